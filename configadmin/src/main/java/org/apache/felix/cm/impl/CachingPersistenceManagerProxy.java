@@ -20,13 +20,20 @@ package org.apache.felix.cm.impl;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.felix.cm.PersistenceManager;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
 
 
 /**
@@ -34,6 +41,10 @@ import org.osgi.framework.Constants;
  * underlying actual {@link PersistenceManager} implementation. All API calls
  * are also (or primarily) routed through a local cache of dictionaries indexed
  * by the <code>service.pid</code>.
+ * <p>
+ * The cached dictionaries are indexed by the values of some properties, see
+ * {@link PropertyIndex}, which is used to list the dictionaries matching a
+ * filter.
  */
 class CachingPersistenceManagerProxy implements PersistenceManager
 {
@@ -44,6 +55,9 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     /** cached dictionaries */
     private final Hashtable cache;
 
+    /** index of the cached dictionaries, also used to lock updates of both */
+    private final PropertyIndex index;
+
     /**
      * Indicates whether the getDictionaries method has already been called
      * and the cache is complete with respect to the contents of the underlying
@@ -57,9 +71,23 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      * @param pm The actual {@link PersistenceManager}
      */
     public CachingPersistenceManagerProxy( final PersistenceManager pm )
+    {
+        this( pm, null );
+    }
+
+
+    /**
+     * Creates a new caching layer for the given actual {@link PersistenceManager}
+     * indexing the given properties in addition to the default ones.
+     * @param pm The actual {@link PersistenceManager}
+     * @param indexKeys The names of additional properties to index, may be
+     *      <code>null</code>.
+     */
+    public CachingPersistenceManagerProxy( final PersistenceManager pm, final String[] indexKeys )
     {
         this.pm = pm;
         this.cache = new Hashtable();
+        this.index = new PropertyIndex( indexKeys );
     }
 
 
@@ -70,7 +98,14 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public void delete( String pid ) throws IOException
     {
-        cache.remove( pid );
+        synchronized ( index )
+        {
+            Dictionary removed = ( Dictionary ) cache.remove( pid );
+            if ( removed != null )
+            {
+                index.remove( pid, removed );
+            }
+        }
         pm.delete( pid );
     }
 
@@ -98,22 +133,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
      */
     public Enumeration getDictionaries() throws IOException
     {
-        // if not fully loaded, call back to the underlying persistence
-        // manager and cach all dictionaries whose service.pid is set
-        if ( !fullyLoaded )
-        {
-            Enumeration fromPm = pm.getDictionaries();
-            while ( fromPm.hasMoreElements() )
-            {
-                Dictionary next = ( Dictionary ) fromPm.nextElement();
-                String pid = ( String ) next.get( Constants.SERVICE_PID );
-                if ( pid != null )
-                {
-                    cache.put( pid, next );
-                }
-            }
-            fullyLoaded = true;
-        }
+        loadDictionaries();
 
         return new Enumeration()
         {
@@ -134,6 +154,80 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     }
 
 
+    /**
+     * Returns an <code>Enumeration</code> of the <code>Dictionary</code>
+     * objects matching the filter, like {@link #getDictionaries()} does for
+     * all dictionaries. If possible, the dictionaries to match are looked up
+     * in the index, such that only some of the dictionaries have to be
+     * matched and only the matching ones are copied.
+     *
+     * @param filter The filter to match or <code>null</code> to return all
+     *      dictionaries.
+     */
+    public Enumeration getDictionaries( final Filter filter ) throws IOException
+    {
+        if ( filter == null )
+        {
+            return getDictionaries();
+        }
+
+        loadDictionaries();
+
+        final Set<String> pids = index.getCandidates( filter.toString() );
+        final Collection candidates;
+        if ( pids == null )
+        {
+            candidates = new ArrayList( cache.values() );
+        }
+        else
+        {
+            candidates = new ArrayList();
+            for ( Iterator<String> pi = pids.iterator(); pi.hasNext(); )
+            {
+                Object candidate = cache.get( pi.next() );
+                if ( candidate != null )
+                {
+                    candidates.add( candidate );
+                }
+            }
+        }
+
+        final List matches = new ArrayList();
+        for ( Iterator ci = candidates.iterator(); ci.hasNext(); )
+        {
+            Dictionary candidate = ( Dictionary ) ci.next();
+            if ( filter.match( candidate ) )
+            {
+                matches.add( copy( candidate ) );
+            }
+        }
+        return Collections.enumeration( matches );
+    }
+
+
+    /**
+     * If not fully loaded, call back to the underlying persistence manager
+     * and cache all dictionaries whose service.pid is set.
+     */
+    private void loadDictionaries() throws IOException
+    {
+        if ( !fullyLoaded )
+        {
+            Enumeration fromPm = pm.getDictionaries();
+            while ( fromPm.hasMoreElements() )
+            {
+                Dictionary next = ( Dictionary ) fromPm.nextElement();
+                String pid = ( String ) next.get( Constants.SERVICE_PID );
+                if ( pid != null )
+                {
+                    cache( pid, next );
+                }
+            }
+            fullyLoaded = true;
+        }
+    }
+
+
     /**
      * Returns the dictionary for the given PID or <code>null</code> if no
      * such dictionary is stored by the underyling persistence manager. This
@@ -152,7 +246,7 @@ class CachingPersistenceManagerProxy implements PersistenceManager
             loaded = pm.load( pid );
             if ( loaded != null )
             {
-                cache.put( pid, loaded );
+                cache( pid, loaded );
             }
         }
         return copy( loaded );
@@ -171,7 +265,24 @@ class CachingPersistenceManagerProxy implements PersistenceManager
     public void store( String pid, Dictionary properties ) throws IOException
     {
         pm.store( pid, properties );
-        cache.put( pid, copy( properties ) );
+        cache( pid, copy( properties ) );
+    }
+
+
+    /**
+     * Puts the dictionary into the cache and updates the index.
+     */
+    private void cache( final String pid, final Dictionary properties )
+    {
+        synchronized ( index )
+        {
+            Dictionary replaced = ( Dictionary ) cache.put( pid, properties );
+            if ( replaced != null )
+            {
+                index.remove( pid, replaced );
+            }
+            index.add( pid, properties );
+        }
     }
 
 
@@ -115,6 +115,19 @@ public class ConfigurationManager implements BundleActivator, BundleListener
      */
     public static final String CM_LOG_LEVEL = "felix.cm.loglevel";
 
+    /**
+     * The name of the bundle context property defining additional properties
+     * to index for listing configurations (value is "felix.cm.index").
+     * <p>
+     * The value of this property is expected to be a comma separated list
+     * of property names. The <code>service.pid</code>,
+     * <code>service.factoryPid</code> and <code>service.bundleLocation</code>
+     * properties are always indexed. Filters requiring equality of an indexed
+     * property are answered from the index instead of matching all
+     * configurations.
+     */
+    public static final String CM_INDEX_KEYS = "felix.cm.index";
+
     // The name of the LogService (not using the class, which might be missing)
     private static final String LOG_SERVICE_NAME = "org.osgi.service.log.LogService";
 
@@ -192,6 +205,9 @@ public class ConfigurationManager implements BundleActivator, BundleListener
     // the maximum log level when no LogService is available
     private int logLevel = CM_LOG_LEVEL_DEFAULT;
 
+    // additional properties indexed by the persistence manager proxies
+    private String[] indexKeys;
+
     // flag indicating whether BundleChange events should be consumed (FELIX-979)
     private volatile boolean handleBundleEvents;
 
@@ -222,6 +238,13 @@ public class ConfigurationManager implements BundleActivator, BundleListener
             }
         }
 
+        // the additional properties to index
+        String indexKeysProp = bundleContext.getProperty( CM_INDEX_KEYS );
+        if ( indexKeysProp != null )
+        {
+            indexKeys = indexKeysProp.split( "," );
+        }
+
         // set up some fields
         this.bundleContext = bundleContext;
 
@@ -656,7 +679,16 @@ public class ConfigurationManager implements BundleActivator, BundleListener
         PersistenceManager[] pmList = getPersistenceManagers();
         for ( int i = 0; i < pmList.length; i++ )
         {
-            Enumeration configs = pmList[i].getDictionaries();
+            // let the caching proxy look up the configurations in its index
+            Enumeration configs;
+            if ( pmList[i] instanceof CachingPersistenceManagerProxy )
+            {
+                configs = ( ( CachingPersistenceManagerProxy ) pmList[i] ).getDictionaries( filter );
+            }
+            else
+            {
+                configs = pmList[i].getDictionaries();
+            }
             while ( configs.hasMoreElements() )
             {
                 final Dictionary config = ( Dictionary ) configs.nextElement();
@@ -841,7 +873,7 @@ public class ConfigurationManager implements BundleActivator, BundleListener
                     Object service = persistenceManagerTracker.getService( refs[i] );
                     if ( service != null )
                     {
-                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service ) );
+                        pmList.add( new CachingPersistenceManagerProxy( ( PersistenceManager ) service, indexKeys ) );
                     }
                 }
 
@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+/**
+ * The <code>PropertyIndex</code> maps the values of a set of configuration
+ * properties to the PIDs of the configurations having these values. It is
+ * used to find the configurations possibly matching a filter without
+ * matching the filter against all configurations.
+ * <p>
+ * Property names are indexed case insensitively. Strings, string arrays and
+ * collections of strings are indexed by their values. Configurations with
+ * other values for an indexed property are always candidates for a filter
+ * on this property, because the value of the filter has to be converted to
+ * the type of the property to be compared.
+ */
+class PropertyIndex
+{
+
+    /** the properties indexed by default */
+    static final String[] DEFAULT_KEYS =
+        { Constants.SERVICE_PID, ConfigurationAdmin.SERVICE_FACTORYPID, ConfigurationAdmin.SERVICE_BUNDLELOCATION };
+
+    /** the PIDs per value per (lower case) property name */
+    private final Map<String, Map<String, Set<String>>> values;
+
+    /** the PIDs with values which cannot be indexed per (lower case) property name */
+    private final Map<String, Set<String>> unindexed;
+
+
+    /**
+     * Creates an empty index of the default properties and the given
+     * additional properties.
+     *
+     * @param keys The names of the additional properties to index, may be
+     *      <code>null</code>.
+     */
+    PropertyIndex( final String[] keys )
+    {
+        this.values = new HashMap<String, Map<String, Set<String>>>();
+        this.unindexed = new HashMap<String, Set<String>>();
+        for ( int i = 0; i < DEFAULT_KEYS.length; i++ )
+        {
+            addKey( DEFAULT_KEYS[i] );
+        }
+        for ( int i = 0; keys != null && i < keys.length; i++ )
+        {
+            addKey( keys[i] );
+        }
+    }
+
+
+    private void addKey( final String key )
+    {
+        final String lowerCase = CaseInsensitiveDictionary.toLowerCase( key.trim() );
+        if ( lowerCase.length() > 0 && !values.containsKey( lowerCase ) )
+        {
+            values.put( lowerCase, new HashMap<String, Set<String>>() );
+            unindexed.put( lowerCase, new HashSet<String>() );
+        }
+    }
+
+
+    /**
+     * Adds the indexed properties of the configuration to the index.
+     */
+    synchronized void add( final String pid, final Dictionary properties )
+    {
+        update( pid, properties, true );
+    }
+
+
+    /**
+     * Removes the indexed properties of the configuration from the index.
+     * The properties must be the ones which have been added for the PID.
+     */
+    synchronized void remove( final String pid, final Dictionary properties )
+    {
+        update( pid, properties, false );
+    }
+
+
+    private void update( final String pid, final Dictionary properties, final boolean add )
+    {
+        final Enumeration keys = properties.keys();
+        while ( keys.hasMoreElements() )
+        {
+            final Object key = keys.nextElement();
+            final Map<String, Set<String>> index = values.get( CaseInsensitiveDictionary.toLowerCase( key ) );
+            if ( index == null )
+            {
+                continue;
+            }
+
+            final Object value = properties.get( key );
+            if ( value instanceof String )
+            {
+                update( index, ( String ) value, pid, add );
+            }
+            else if ( value instanceof String[] )
+            {
+                final String[] strings = ( String[] ) value;
+                for ( int i = 0; i < strings.length; i++ )
+                {
+                    update( index, strings[i], pid, add );
+                }
+            }
+            else if ( value instanceof Collection && isStrings( ( Collection ) value ) )
+            {
+                for ( Iterator i = ( ( Collection ) value ).iterator(); i.hasNext(); )
+                {
+                    update( index, ( String ) i.next(), pid, add );
+                }
+            }
+            else
+            {
+                final Set<String> pids = unindexed.get( CaseInsensitiveDictionary.toLowerCase( key ) );
+                if ( add )
+                {
+                    pids.add( pid );
+                }
+                else
+                {
+                    pids.remove( pid );
+                }
+            }
+        }
+    }
+
+
+    private static boolean isStrings( final Collection elements )
+    {
+        for ( Iterator i = elements.iterator(); i.hasNext(); )
+        {
+            if ( !( i.next() instanceof String ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static void update( final Map<String, Set<String>> index, final String value, final String pid,
+        final boolean add )
+    {
+        Set<String> pids = index.get( value );
+        if ( add )
+        {
+            if ( pids == null )
+            {
+                pids = new HashSet<String>();
+                index.put( value, pids );
+            }
+            pids.add( pid );
+        }
+        else if ( pids != null )
+        {
+            pids.remove( pid );
+            if ( pids.isEmpty() )
+            {
+                index.remove( value );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the PIDs of the configurations which may match the filter or
+     * <code>null</code> if the filter cannot be answered from the index and
+     * all configurations have to be matched.
+     * <p>
+     * Equality terms on indexed properties are looked up in the index. The
+     * terms of a conjunction which cannot be looked up are ignored, so that
+     * the candidates still have to be matched against the filter. A
+     * disjunction or negation containing such terms requires matching all
+     * configurations.
+     *
+     * @param filter The string representation of a valid filter.
+     */
+    synchronized Set<String> getCandidates( final String filter )
+    {
+        try
+        {
+            final int[] pos = new int[1];
+            final Set<String> candidates = plan( filter, pos );
+            return ( skipWhitespace( filter, pos ) == filter.length() ) ? candidates : null;
+        }
+        catch ( IndexOutOfBoundsException ioobe )
+        {
+            // unexpected end of the filter, just match all configurations
+            return null;
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            // unexpected filter syntax, just match all configurations
+            return null;
+        }
+    }
+
+
+    /**
+     * Parses the filter starting at the position and returns the candidates
+     * for it, which is a new set, or <code>null</code> for all
+     * configurations. When this method returns, the position is just behind
+     * the filter.
+     */
+    private Set<String> plan( final String filter, final int[] pos )
+    {
+        expect( filter, pos, '(' );
+        final char op = filter.charAt( skipWhitespace( filter, pos ) );
+        if ( op == '&' || op == '|' || op == '!' )
+        {
+            pos[0]++;
+            Set<String> candidates = null;
+            boolean all = false;
+            while ( filter.charAt( skipWhitespace( filter, pos ) ) == '(' )
+            {
+                final Set<String> operand = plan( filter, pos );
+                if ( operand == null )
+                {
+                    all = true;
+                }
+                else if ( candidates == null )
+                {
+                    candidates = operand;
+                }
+                else if ( op == '&' )
+                {
+                    candidates.retainAll( operand );
+                }
+                else
+                {
+                    candidates.addAll( operand );
+                }
+            }
+            expect( filter, pos, ')' );
+            return ( op == '&' || ( op == '|' && !all ) ) ? candidates : null;
+        }
+
+        // attribute name and operator
+        final int start = pos[0];
+        int opPos = start;
+        while ( "=<>~".indexOf( filter.charAt( opPos ) ) < 0 )
+        {
+            opPos++;
+        }
+        final String key = filter.substring( start, opPos ).trim();
+        final boolean equality = filter.charAt( opPos ) == '=';
+        pos[0] = equality ? opPos + 1 : opPos + 2;
+
+        // value, unescaped
+        final StringBuffer value = new StringBuffer();
+        boolean wildcard = false;
+        char c = filter.charAt( pos[0]++ );
+        while ( c != ')' )
+        {
+            if ( c == '\\' )
+            {
+                c = filter.charAt( pos[0]++ );
+            }
+            else if ( c == '*' )
+            {
+                wildcard = true;
+            }
+            value.append( c );
+            c = filter.charAt( pos[0]++ );
+        }
+
+        final Map<String, Set<String>> index = values.get( CaseInsensitiveDictionary.toLowerCase( key ) );
+        if ( !equality || wildcard || index == null )
+        {
+            return null;
+        }
+        final Set<String> candidates = new HashSet<String>( unindexed.get( CaseInsensitiveDictionary
+            .toLowerCase( key ) ) );
+        final Set<String> pids = index.get( value.toString() );
+        if ( pids != null )
+        {
+            candidates.addAll( pids );
+        }
+        return candidates;
+    }
+
+
+    private static void expect( final String filter, final int[] pos, final char c )
+    {
+        if ( filter.charAt( skipWhitespace( filter, pos ) ) != c )
+        {
+            throw new IllegalArgumentException( "Expected " + c + " at " + pos[0] + " in " + filter );
+        }
+        pos[0]++;
+    }
+
+
+    private static int skipWhitespace( final String filter, final int[] pos )
+    {
+        while ( pos[0] < filter.length() && Character.isWhitespace( filter.charAt( pos[0] ) ) )
+        {
+            pos[0]++;
+        }
+        return pos[0];
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.cm.impl;
+
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.cm.MockPersistenceManager;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+
+public class CachingPersistenceManagerProxyTest extends TestCase
+{
+
+    private CachingPersistenceManagerProxy cpm;
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        cpm = new CachingPersistenceManagerProxy( new MockPersistenceManager(), new String[]
+            { "region", " rank " } );
+        store( "a.1", "a", "loc1", "eu", new Integer( 1 ) );
+        store( "a.2", "a", "loc2", "us", new Integer( 2 ) );
+        store( "b.1", "b", "loc1", "eu", "1" );
+        store( "c", null, null, null, null );
+    }
+
+
+    public void test_indexed_equality() throws Exception
+    {
+        assertCandidates( "(service.factoryPid=a)", new String[]
+            { "a.1", "a.2" } );
+        assertMatches( "(service.factoryPid=a)", new String[]
+            { "a.1", "a.2" } );
+        assertMatches( "(SERVICE.FACTORYPID=a)", new String[]
+            { "a.1", "a.2" } );
+        assertMatches( "(service.pid=c)", new String[]
+            { "c" } );
+        assertMatches( "(service.bundleLocation=loc1)", new String[]
+            { "a.1", "b.1" } );
+        assertMatches( "(service.factoryPid=x)", new String[0] );
+    }
+
+
+    public void test_combined_terms() throws Exception
+    {
+        assertCandidates( "(&(service.factoryPid=a)(region=eu))", new String[]
+            { "a.1" } );
+        assertMatches( "(&(service.factoryPid=a)(region=eu))", new String[]
+            { "a.1" } );
+        assertCandidates( "(|(service.factoryPid=b)(region=us))", new String[]
+            { "a.2", "b.1" } );
+        assertMatches( "(|(service.factoryPid=b)(region=us))", new String[]
+            { "a.2", "b.1" } );
+
+        // unindexed terms of a conjunction are matched on the candidates
+        assertCandidates( "(&(service.factoryPid=a)(foo=bar))", new String[]
+            { "a.1", "a.2" } );
+        assertMatches( "(&(service.factoryPid=a)(service.pid=a.*))", new String[]
+            { "a.1", "a.2" } );
+    }
+
+
+    public void test_scanned_terms() throws Exception
+    {
+        assertCandidates( "(|(service.factoryPid=a)(foo=bar))", null );
+        assertCandidates( "(!(service.factoryPid=a))", null );
+        assertCandidates( "(service.factoryPid=a*)", null );
+        assertCandidates( "(region>=eu)", null );
+        assertMatches( "(!(service.factoryPid=a))", new String[]
+            { "b.1", "c" } );
+        assertMatches( "(service.pid=a*)", new String[]
+            { "a.1", "a.2" } );
+    }
+
+
+    public void test_non_string_values() throws Exception
+    {
+        // integer values are always candidates for the indexed property
+        assertCandidates( "(rank=1)", new String[]
+            { "a.1", "a.2", "b.1" } );
+        assertMatches( "(rank=1)", new String[]
+            { "a.1", "b.1" } );
+        assertMatches( "(rank=2)", new String[]
+            { "a.2" } );
+    }
+
+
+    public void test_update_and_delete() throws Exception
+    {
+        store( "a.2", "b", "loc2", "us", new Integer( 2 ) );
+        assertMatches( "(service.factoryPid=a)", new String[]
+            { "a.1" } );
+        assertMatches( "(service.factoryPid=b)", new String[]
+            { "a.2", "b.1" } );
+
+        cpm.delete( "b.1" );
+        assertCandidates( "(service.factoryPid=b)", new String[]
+            { "a.2" } );
+        assertMatches( "(service.factoryPid=b)", new String[]
+            { "a.2" } );
+    }
+
+
+    public void test_escaped_values() throws Exception
+    {
+        store( "d", "x(*)\\", null, null, null );
+        assertCandidates( "(service.factoryPid=x\\(\\*\\)\\\\)", new String[]
+            { "d" } );
+        assertMatches( "(service.factoryPid=x\\(\\*\\)\\\\)", new String[]
+            { "d" } );
+    }
+
+
+    private void store( String pid, String factoryPid, String location, String region, Object rank )
+        throws IOException
+    {
+        Dictionary props = new Hashtable();
+        props.put( Constants.SERVICE_PID, pid );
+        if ( factoryPid != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_FACTORYPID, factoryPid );
+        }
+        if ( location != null )
+        {
+            props.put( ConfigurationAdmin.SERVICE_BUNDLELOCATION, location );
+        }
+        if ( region != null )
+        {
+            props.put( "Region", region );
+        }
+        if ( rank != null )
+        {
+            props.put( "rank", rank );
+        }
+        cpm.store( pid, props );
+    }
+
+
+    private void assertCandidates( String filter, String[] expected ) throws Exception
+    {
+        Set candidates = getIndex().getCandidates( FrameworkUtil.createFilter( filter ).toString() );
+        if ( expected == null )
+        {
+            assertNull( filter, candidates );
+        }
+        else
+        {
+            assertEquals( filter, new HashSet( Arrays.asList( expected ) ), candidates );
+        }
+    }
+
+
+    private void assertMatches( String filter, String[] expected ) throws Exception
+    {
+        Set pids = new HashSet();
+        Enumeration dictionaries = cpm.getDictionaries( FrameworkUtil.createFilter( filter ) );
+        while ( dictionaries.hasMoreElements() )
+        {
+            pids.add( ( ( Dictionary ) dictionaries.nextElement() ).get( Constants.SERVICE_PID ) );
+        }
+        assertEquals( filter, new HashSet( Arrays.asList( expected ) ), pids );
+    }
+
+
+    private PropertyIndex getIndex() throws Exception
+    {
+        Field index = CachingPersistenceManagerProxy.class.getDeclaredField( "index" );
+        index.setAccessible( true );
+        return ( PropertyIndex ) index.get( cpm );
+    }
+}
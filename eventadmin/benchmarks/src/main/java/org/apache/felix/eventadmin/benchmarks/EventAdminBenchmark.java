@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.benchmarks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
+import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of posting events to 1, 10 and 100 handlers one
+ * by one, as a batch and as replaceable events, which are coalesced with the
+ * pending event of the same key. The queues of the handlers are limited, so
+ * that the throughput includes the delivery of the events once the queues
+ * are full. Use "-t" to post from several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventAdminBenchmark
+{
+    private static final int BATCH_SIZE = 100;
+    private static final int KEYS = 10;
+    private static final int QUEUE_SIZE = 10000;
+    private static final String COALESCE_PROPERTY = "bench.key";
+
+    @Param({ "1", "10", "100" })
+    public int m_handlers;
+
+    private File m_dir;
+    private Felix m_felix;
+    private DefaultThreadPool m_syncPool;
+    private DefaultThreadPool m_asyncPool;
+    private EventAdminImpl m_admin;
+    private Event[] m_events;
+    private Event[] m_replaceable;
+    private final AtomicLong m_received = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-bench", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_dir.getPath());
+        params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        m_felix = new Felix(params);
+        m_felix.start();
+
+        Hashtable props = new Hashtable();
+        props.put(EventConstants.EVENT_TOPIC, "org/apache/felix/bench/*");
+        for (int i = 0; i < m_handlers; i++)
+        {
+            m_felix.getBundleContext().registerService(
+                EventHandler.class.getName(), new BenchHandler(m_received), props);
+        }
+
+        // The delivery to the handlers is not watched for timeouts.
+        m_syncPool = new DefaultThreadPool(10);
+        m_asyncPool = new DefaultThreadPool(10);
+        m_admin = new EventAdminImpl(m_felix.getBundleContext(), m_syncPool, m_asyncPool,
+            5000, true, new String[] { BenchHandler.class.getName() }, true,
+            QUEUE_SIZE, COALESCE_PROPERTY);
+
+        m_events = new Event[BATCH_SIZE];
+        m_replaceable = new Event[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            Map<String, Object> eventProps = new HashMap<String, Object>();
+            eventProps.put("index", Integer.valueOf(i));
+            m_events[i] = new Event("org/apache/felix/bench/event", eventProps);
+            eventProps.put(COALESCE_PROPERTY, "key" + (i % KEYS));
+            m_replaceable[i] = new Event("org/apache/felix/bench/event", eventProps);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        m_admin.stop();
+        m_asyncPool.close();
+        m_syncPool.close();
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_dir);
+    }
+
+    private static void deleteDir(File root)
+    {
+        File[] files = root.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        root.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void postEvent()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            m_admin.postEvent(m_events[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void postEvents()
+    {
+        m_admin.postEvents(m_events);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void postCoalesced()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            m_admin.postEvent(m_replaceable[i]);
+        }
+    }
+
+    public static class BenchHandler implements EventHandler
+    {
+        private final AtomicLong m_received;
+
+        public BenchHandler(AtomicLong received)
+        {
+            m_received = received;
+        }
+
+        public void handleEvent(Event event)
+        {
+            m_received.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin;
+
+import org.osgi.service.event.Event;
+
+/**
+ * The <code>BatchEventAdmin</code> is an extension of the Event Admin
+ * service of Apache Felix, which is registered together with the
+ * <code>EventAdmin</code> service. It allows high-rate producers to post a
+ * batch of events at once, which are handed to each event handler in a
+ * single step instead of one event at a time.
+ */
+public interface BatchEventAdmin
+{
+
+    /**
+     * Initiate asynchronous, ordered delivery of the given events. Each
+     * event handler receives the events it is interested in in the order of
+     * the array, exactly as if they were posted one by one with
+     * <code>EventAdmin.postEvent</code> from the calling thread.
+     *
+     * @param events The events to post
+     *
+     * @throws SecurityException If the caller does not have
+     *      <code>TopicPermission[topic,PUBLISH]</code> for the topic of one
+     *      of the events; no event is posted in this case.
+     */
+    void postEvents( Event[] events );
+}
@@ -21,6 +21,7 @@ package org.apache.felix.eventadmin.impl;
 
 import java.util.*;
 
+import org.apache.felix.eventadmin.BatchEventAdmin;
 import org.apache.felix.eventadmin.impl.adapter.*;
 import org.apache.felix.eventadmin.impl.handler.EventAdminImpl;
 import org.apache.felix.eventadmin.impl.security.SecureEventAdminFactory;
@@ -43,11 +44,12 @@ import org.osgi.service.metatype.MetaTypeProvider;
  *      <tt>org.apache.felix.eventadmin.ThreadPoolSize</tt> - The size of the thread
  *          pool.
  * </p>
- * The default value is 10. Increase in case of a large amount of synchronous events
- * where the <tt>EventHandler</tt> services in turn send new synchronous events in
- * the event dispatching thread or a lot of timeouts are to be expected. A value of
- * less then 2 triggers the default value. A value of 2 effectively disables thread
- * pooling.
+ * The default value is 10. The size is used for two thread pools: one delivers posted
+ * events and the other delivers synchronous events if the sender is released on a
+ * timeout. Increase in case of a large amount of posted events, <tt>EventHandler</tt>
+ * services which are slow to handle them or a lot of timeouts are to be expected.
+ * A value of less then 2 triggers the default value. A value of 2 effectively disables
+ * thread pooling.
  * </p>
  * <p>
  * <p>
@@ -60,6 +62,18 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * <p>
  * <p>
+ *      <tt>org.apache.felix.eventadmin.ReleaseSenderOnTimeout</tt> - Is the sender of
+ *          a synchronous event released when an <tt>EventHandler</tt> times out?
+ * </p>
+ * The default is <tt>true</tt>. The event is then delivered to each <tt>EventHandler</tt>
+ * using the timeout by a thread of the thread pool, and the sender stops waiting for a
+ * handler exceeding the timeout. Setting this value to <tt>false</tt> delivers all events
+ * using the calling thread, which avoids handing each event to another thread; a handler
+ * exceeding the timeout is still blacklisted, but the sender waits until it returns, so
+ * a handler which never returns blocks the sender forever.
+ * </p>
+ * <p>
+ * <p>
  *      <tt>org.apache.felix.eventadmin.RequireTopic</tt> - Are <tt>EventHandler</tt>
  *          required to be registered with a topic?
  * </p>
@@ -75,14 +89,33 @@ import org.osgi.service.metatype.MetaTypeProvider;
  * </p>
  * If a timeout is configured by default all event handlers are called using the timeout.
  * For performance optimization it is possible to configure event handlers where the
- * timeout handling is not used - this reduces the thread usage from the thread pools
- * as the timout handling requires an additional thread to call the event handler.
+ * timeout handling is not used - this avoids the small overhead of watching the
+ * delivery of events to these handlers.
  * However, the application should work without this configuration property. It is a
  * pure optimization!
  * The value is a list of string (separated by comma). If the string ends with a dot,
  * all handlers in exactly this package are ignored. If the string ends with a star,
  * all handlers in this package and all subpackages are ignored. If the string neither
  * ends with a dot nor with a start, this is assumed to define an exact class name.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.AsyncQueueSize</tt> - The maximum number of
+ *          posted events waiting for delivery to a single <tt>EventHandler</tt>.
+ * </p>
+ * The default value is 0, which does not limit the queues. If a queue is full, the
+ * posting thread waits for at most the timeout for the handler to catch up, after
+ * which the event is dropped for this handler.
+ * </p>
+ * <p>
+ * <p>
+ *      <tt>org.apache.felix.eventadmin.CoalesceProperty</tt> - The name of the event
+ *          property marking posted events as replaceable.
+ * </p>
+ * By default no events are replaced. If set, a posted event with this property
+ * replaces an undelivered event with the same property value in the queue of each
+ * <tt>EventHandler</tt>, so that only the newest of these events is delivered.
+ * </p>
  *
  * These properties are read at startup and serve as a default configuration.
  * If a configuration admin is configured, the event admin can be configured
@@ -97,9 +130,12 @@ public class Configuration
 
     static final String PROP_THREAD_POOL_SIZE = "org.apache.felix.eventadmin.ThreadPoolSize";
     static final String PROP_TIMEOUT = "org.apache.felix.eventadmin.Timeout";
+    static final String PROP_RELEASE_SENDER = "org.apache.felix.eventadmin.ReleaseSenderOnTimeout";
     static final String PROP_REQUIRE_TOPIC = "org.apache.felix.eventadmin.RequireTopic";
     static final String PROP_IGNORE_TIMEOUT = "org.apache.felix.eventadmin.IgnoreTimeout";
     static final String PROP_LOG_LEVEL = "org.apache.felix.eventadmin.LogLevel";
+    static final String PROP_ASYNC_QUEUE_SIZE = "org.apache.felix.eventadmin.AsyncQueueSize";
+    static final String PROP_COALESCE_PROPERTY = "org.apache.felix.eventadmin.CoalesceProperty";
 
     /** The bundle context. */
     private final BundleContext m_bundleContext;
@@ -108,13 +144,19 @@ public class Configuration
 
     private int m_timeout;
 
+    private boolean m_releaseSender;
+
     private boolean m_requireTopic;
 
     private String[] m_ignoreTimeout;
 
     private int m_logLevel;
 
-    // The thread pool used - this is a member because we need to close it on stop
+    private int m_asyncQueueSize;
+
+    private String m_coalesceProperty;
+
+    // The thread pools used - this is a member because we need to close it on stop
     private volatile DefaultThreadPool m_sync_pool;
 
     private volatile DefaultThreadPool m_async_pool;
@@ -214,6 +256,12 @@ public class Configuration
             m_timeout = getIntProperty(PROP_TIMEOUT,
                     m_bundleContext.getProperty(PROP_TIMEOUT), 5000, Integer.MIN_VALUE);
 
+            // Is the sender released when a handler exceeds the timeout? - The
+            // default is true. Otherwise the sender waits until the blacklisted
+            // handler returns.
+            m_releaseSender = getBooleanProperty(
+                m_bundleContext.getProperty(PROP_RELEASE_SENDER), true);
+
             // Are EventHandler required to be registered with a topic? - The default is
             // true. The specification says that EventHandler must register with a list
             // of topics they are interested in. Setting this value to false will enable
@@ -239,11 +287,22 @@ public class Configuration
                     m_bundleContext.getProperty(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+
+            // The maximum number of posted events per handler - A value of 0
+            // does not limit the queues.
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    m_bundleContext.getProperty(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+
+            // The event property marking replaceable events - by default no
+            // events are replaced.
+            m_coalesceProperty = getStringProperty(
+                    m_bundleContext.getProperty(PROP_COALESCE_PROPERTY));
         }
         else
         {
             m_threadPoolSize = getIntProperty(PROP_THREAD_POOL_SIZE, config.get(PROP_THREAD_POOL_SIZE), 20, 2);
             m_timeout = getIntProperty(PROP_TIMEOUT, config.get(PROP_TIMEOUT), 5000, Integer.MIN_VALUE);
+            m_releaseSender = getBooleanProperty(config.get(PROP_RELEASE_SENDER), true);
             m_requireTopic = getBooleanProperty(config.get(PROP_REQUIRE_TOPIC), true);
             m_ignoreTimeout = null;
             final Object value = config.get(PROP_IGNORE_TIMEOUT);
@@ -264,6 +323,9 @@ public class Configuration
                     config.get(PROP_LOG_LEVEL),
                     LogWrapper.LOG_WARNING, // default log level is WARNING
                     LogWrapper.LOG_ERROR);
+            m_asyncQueueSize = getIntProperty(PROP_ASYNC_QUEUE_SIZE,
+                    config.get(PROP_ASYNC_QUEUE_SIZE), 0, 0);
+            m_coalesceProperty = getStringProperty(config.get(PROP_COALESCE_PROPERTY));
         }
         // a timeout less or equals to 100 means : disable timeout
         if ( m_timeout <= 100 )
@@ -281,8 +343,14 @@ public class Configuration
             PROP_THREAD_POOL_SIZE + "=" + m_threadPoolSize);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_TIMEOUT + "=" + m_timeout);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_RELEASE_SENDER + "=" + m_releaseSender);
         LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
             PROP_REQUIRE_TOPIC + "=" + m_requireTopic);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_ASYNC_QUEUE_SIZE + "=" + m_asyncQueueSize);
+        LogWrapper.getLogger().log(LogWrapper.LOG_DEBUG,
+            PROP_COALESCE_PROPERTY + "=" + m_coalesceProperty);
 
         // Note that this uses a lazy thread pool that will create new threads on
         // demand - in case none of its cached threads is free - until threadPoolSize
@@ -290,20 +358,19 @@ public class Configuration
         // caching of threads.
         if ( m_sync_pool == null )
         {
-            m_sync_pool = new DefaultThreadPool(m_threadPoolSize, true);
+            m_sync_pool = new DefaultThreadPool(m_threadPoolSize);
         }
         else
         {
             m_sync_pool.configure(m_threadPoolSize);
         }
-        final int asyncThreadPoolSize = m_threadPoolSize > 5 ? m_threadPoolSize / 2 : 2;
         if ( m_async_pool == null )
         {
-            m_async_pool = new DefaultThreadPool(asyncThreadPoolSize, false);
+            m_async_pool = new DefaultThreadPool(m_threadPoolSize);
         }
         else
         {
-            m_async_pool.configure(asyncThreadPoolSize);
+            m_async_pool.configure(m_threadPoolSize);
         }
 
         if ( m_admin == null )
@@ -312,8 +379,11 @@ public class Configuration
                     m_sync_pool,
                     m_async_pool,
                     m_timeout,
+                    m_releaseSender,
                     m_ignoreTimeout,
-                    m_requireTopic);
+                    m_requireTopic,
+                    m_asyncQueueSize,
+                    m_coalesceProperty);
 
             // Finally, adapt the outside events to our kind of events as per spec
             adaptEvents(m_admin);
@@ -321,12 +391,14 @@ public class Configuration
             // register the admin wrapped in a service factory (SecureEventAdminFactory)
             // that hands-out the m_admin object wrapped in a decorator that checks
             // appropriated permissions of each calling bundle
-            m_registration = m_bundleContext.registerService(EventAdmin.class.getName(),
+            m_registration = m_bundleContext.registerService(
+                    new String[] {EventAdmin.class.getName(), BatchEventAdmin.class.getName()},
                     new SecureEventAdminFactory(m_admin), null);
         }
         else
         {
-            m_admin.update(m_timeout, m_ignoreTimeout, m_requireTopic);
+            m_admin.update(m_timeout, m_releaseSender, m_ignoreTimeout, m_requireTopic, m_asyncQueueSize,
+                    m_coalesceProperty);
         }
 
     }
@@ -396,8 +468,8 @@ public class Configuration
         try
         {
             return new MetaTypeProviderImpl((ManagedService)managedService,
-                    m_threadPoolSize, m_timeout, m_requireTopic,
-                    m_ignoreTimeout);
+                    m_threadPoolSize, m_timeout, m_releaseSender, m_requireTopic,
+                    m_ignoreTimeout, m_asyncQueueSize, m_coalesceProperty);
         }
         catch (final Throwable t)
         {
@@ -466,6 +538,19 @@ public class Configuration
         return defaultValue;
     }
 
+    /**
+     * Returns the trimmed value of the property if it is set and not empty or
+     * <code>null</code> otherwise.
+     */
+    private String getStringProperty(final Object value)
+    {
+        if ( value != null && value.toString().trim().length() > 0 )
+        {
+            return value.toString().trim();
+        }
+        return null;
+    }
+
     /**
      * Returns true if the value of the property is set and is either 1, true, or yes
      * Returns false if the value of the property is set and is either 0, false, or no
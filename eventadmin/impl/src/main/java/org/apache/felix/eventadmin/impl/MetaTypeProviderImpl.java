@@ -36,21 +36,30 @@ public class MetaTypeProviderImpl
 {
     private final int m_threadPoolSize;
     private final int m_timeout;
+    private final boolean m_releaseSender;
     private final boolean m_requireTopic;
     private final String[] m_ignoreTimeout;
+    private final int m_asyncQueueSize;
+    private final String m_coalesceProperty;
 
     private final ManagedService m_delegatee;
 
     public MetaTypeProviderImpl(final ManagedService delegatee,
             final int threadPoolSize,
-            final int timeout, final boolean requireTopic,
-            final String[] ignoreTimeout)
+            final int timeout, final boolean releaseSender,
+            final boolean requireTopic,
+            final String[] ignoreTimeout,
+            final int asyncQueueSize,
+            final String coalesceProperty)
     {
         m_threadPoolSize = threadPoolSize;
         m_timeout = timeout;
+        m_releaseSender = releaseSender;
         m_requireTopic = requireTopic;
         m_delegatee = delegatee;
         m_ignoreTimeout = ignoreTimeout;
+        m_asyncQueueSize = asyncQueueSize;
+        m_coalesceProperty = coalesceProperty;
     }
 
     private ObjectClassDefinition ocd;
@@ -86,10 +95,10 @@ public class MetaTypeProviderImpl
             final ArrayList adList = new ArrayList();
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_THREAD_POOL_SIZE, "Thread Pool Size",
-                "The size of the thread pool. The default value is 10. Increase in case of a large amount " +
-                "of synchronous events where the event handler services in turn send new synchronous events in " +
-                "the event dispatching thread or a lot of timeouts are to be expected. A value of " +
-                "less then 2 triggers the default value. A value of 2 effectively disables thread pooling.",
+                "The size of the thread pools used to deliver posted events and, if the sender is released on " +
+                "a timeout, synchronous events. The default value is 10. Increase in case of a large amount of " +
+                "posted events, event handlers which are slow to handle them or a lot of timeouts. " +
+                "A value of less then 2 triggers the default value. A value of 2 effectively disables thread pooling.",
                 m_threadPoolSize ) );
 
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_TIMEOUT, "Timeout",
@@ -98,6 +107,14 @@ public class MetaTypeProviderImpl
                     "in milliseconds granted to each event handler before it gets blacklisted",
                     m_timeout ) );
 
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_RELEASE_SENDER, "Release Sender On Timeout",
+                    "Is the sender of a synchronous event released when an event handler exceeds the timeout? " +
+                    "This is enabled by default, and the event is then delivered to each event handler using the " +
+                    "timeout by a pooled thread. Disabling this setting delivers the event using the calling thread, " +
+                    "which is faster; a handler exceeding the timeout is still blacklisted, but the sender waits " +
+                    "until it returns, so a handler which never returns blocks the sender forever.",
+                    m_releaseSender ) );
+
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_REQUIRE_TOPIC, "Require Topic",
                     "Are event handlers required to be registered with a topic? " +
                     "This is enabled by default. The specification says that event handlers " +
@@ -108,14 +125,26 @@ public class MetaTypeProviderImpl
             adList.add( new AttributeDefinitionImpl( Configuration.PROP_IGNORE_TIMEOUT, "Ignore Timeouts",
                     "Configure event handlers to be called without a timeout. If a timeout is configured by default " +
                     "all event handlers are called using the timeout. For performance optimization it is possible to " +
-                    "configure event handlers where the timeout handling is not used - this reduces the thread usage " +
-                    "from the thread pools as the timout handling requires an additional thread to call the event " +
-                    "handler. However, the application should work without this configuration property. It is a " +
+                    "configure event handlers where the timeout handling is not used - this avoids the small overhead " +
+                    "of watching the delivery of events to these handlers. However, the application should work without this configuration property. It is a " +
                     "pure optimization! The value is a list of strings. If a string ends with a dot, " +
                     "all handlers in exactly this package are ignored. If the string ends with a star, " +
                     "all handlers in this package and all subpackages are ignored. If the string neither " +
                     "ends with a dot nor with a star, this is assumed to define an exact class name.",
                     AttributeDefinition.STRING, m_ignoreTimeout, Integer.MAX_VALUE, null, null));
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_ASYNC_QUEUE_SIZE, "Async Queue Size",
+                    "The maximum number of posted events waiting for delivery to a single event handler. " +
+                    "The default value is 0, which does not limit the queues. If a queue is full, the posting " +
+                    "thread waits for at most the timeout for the handler to catch up, after which the event " +
+                    "is dropped for this handler.",
+                    m_asyncQueueSize ) );
+            adList.add( new AttributeDefinitionImpl( Configuration.PROP_COALESCE_PROPERTY, "Coalesce Property",
+                    "The name of the event property marking posted events as replaceable. By default no events " +
+                    "are replaced. If set, a posted event with this property replaces an undelivered event with " +
+                    "the same property value in the queue of each event handler, so that only the newest of " +
+                    "these events is delivered.",
+                    AttributeDefinition.STRING,
+                    m_coalesceProperty == null ? null : new String[] {m_coalesceProperty}, 0, null, null));
             ocd = new ObjectClassDefinition()
             {
 
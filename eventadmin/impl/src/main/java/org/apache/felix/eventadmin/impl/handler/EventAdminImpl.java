@@ -18,6 +18,13 @@
  */
 package org.apache.felix.eventadmin.impl.handler;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.eventadmin.BatchEventAdmin;
 import org.apache.felix.eventadmin.impl.tasks.AsyncDeliverTasks;
 import org.apache.felix.eventadmin.impl.tasks.DefaultThreadPool;
 import org.apache.felix.eventadmin.impl.tasks.SyncDeliverTasks;
@@ -34,11 +41,12 @@ import org.osgi.service.event.EventAdmin;
  * one for synchronous event delivery depending on whether its <tt>post()</tt> or
  * its <tt>send()</tt> method is called. Note that the actual work is done in the
  * implementations of the <tt>DeliverTasks</tt>. Additionally, a stop method is
- * provided that prevents subsequent events to be delivered.
+ * provided that prevents subsequent events to be delivered. As an extension, it
+ * implements <tt>BatchEventAdmin</tt> to post several events at once.
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
-public class EventAdminImpl implements EventAdmin
+public class EventAdminImpl implements EventAdmin, BatchEventAdmin
 {
     /** The tracker for the event handlers. */
     private volatile EventHandlerTracker tracker;
@@ -60,8 +68,11 @@ public class EventAdminImpl implements EventAdmin
                     final DefaultThreadPool syncPool,
                     final DefaultThreadPool asyncPool,
                     final int timeout,
+                    final boolean releaseSender,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final int asyncQueueSize,
+                    final String coalesceProperty)
     {
         checkNull(syncPool, "syncPool");
         checkNull(asyncPool, "asyncPool");
@@ -69,8 +80,9 @@ public class EventAdminImpl implements EventAdmin
         this.tracker = new EventHandlerTracker(bundleContext);
         this.tracker.update(ignoreTimeout, requireTopic);
         this.tracker.open();
-        m_sendManager = new SyncDeliverTasks(syncPool, timeout);
-        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager);
+        m_sendManager = new SyncDeliverTasks(syncPool, timeout, releaseSender);
+        m_postManager = new AsyncDeliverTasks(asyncPool, m_sendManager, asyncQueueSize, timeout,
+            coalesceProperty);
     }
 
     /**
@@ -100,6 +112,39 @@ public class EventAdminImpl implements EventAdmin
         m_postManager.execute(this.getTracker().getHandlers(event), event);
     }
 
+    /**
+     * Post a batch of asynchronous events. The events are collected per
+     * handler and handed to the queue of each handler at once.
+     *
+     * @param events The events to be posted by this service
+     *
+     * @throws IllegalStateException - In case we are stopped
+     *
+     * @see org.apache.felix.eventadmin.BatchEventAdmin#postEvents(org.osgi.service.event.Event[])
+     */
+    public void postEvents(final Event[] events)
+    {
+        final EventHandlerTracker localTracker = this.getTracker();
+        final Map<EventHandlerProxy, List<Event>> batches =
+            new LinkedHashMap<EventHandlerProxy, List<Event>>();
+        for(int i = 0; i < events.length; i++)
+        {
+            final Iterator handlers = localTracker.getHandlers(events[i]).iterator();
+            while ( handlers.hasNext() )
+            {
+                final EventHandlerProxy handler = (EventHandlerProxy)handlers.next();
+                List<Event> batch = batches.get(handler);
+                if ( batch == null )
+                {
+                    batch = new ArrayList<Event>();
+                    batches.put(handler, batch);
+                }
+                batch.add(events[i]);
+            }
+        }
+        m_postManager.execute(batches);
+    }
+
     /**
      * Send a synchronous event.
      *
@@ -121,21 +166,58 @@ public class EventAdminImpl implements EventAdmin
     {
         this.tracker.close();
         this.tracker = null;
+        this.m_sendManager.stop();
     }
 
     /**
      * Update the event admin with new configuration.
      */
     public void update(final int timeout,
+                    final boolean releaseSender,
                     final String[] ignoreTimeout,
-                    final boolean requireTopic)
+                    final boolean requireTopic,
+                    final int asyncQueueSize,
+                    final String coalesceProperty)
     {
         this.tracker.close();
         this.tracker.update(ignoreTimeout, requireTopic);
-        this.m_sendManager.update(timeout);
+        this.m_sendManager.update(timeout, releaseSender);
+        this.m_postManager.update(asyncQueueSize, timeout, coalesceProperty);
         this.tracker.open();
     }
 
+    /**
+     * Return the number of posted events waiting for delivery.
+     */
+    public int getQueueDepth()
+    {
+        return m_postManager.getQueueDepth();
+    }
+
+    /**
+     * Return the number of posted events which had to wait for a full queue.
+     */
+    public long getWaitedEvents()
+    {
+        return m_postManager.getWaitedEvents();
+    }
+
+    /**
+     * Return the number of posted events dropped because of a full queue.
+     */
+    public long getDroppedEvents()
+    {
+        return m_postManager.getDroppedEvents();
+    }
+
+    /**
+     * Return the number of posted events replaced by a newer event.
+     */
+    public long getCoalescedEvents()
+    {
+        return m_postManager.getCoalescedEvents();
+    }
+
     /**
      * This is a utility method that will throw a <tt>NullPointerException</tt>
      * in case that the given object is null. The message will be of the form
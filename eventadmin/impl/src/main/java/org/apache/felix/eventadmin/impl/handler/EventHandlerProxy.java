@@ -21,7 +21,6 @@ package org.apache.felix.eventadmin.impl.handler;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Filter;
@@ -323,12 +322,22 @@ public class EventHandlerProxy {
     }
 
     /**
-     * Check if this handler is allowed to receive the event
+     * Get the filter of this handler.
+     * If this handler has no filter <code>null</code> is returned
+     */
+    public Filter getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * Check if this handler is allowed to receive an event whose
+     * filter has already been checked
      * - blacklisted
-     * - check filter
      * - check permission
+     * @param permission The subscribe permission for the topic of the event
      */
-    public boolean canDeliver(final Event event)
+    public boolean canDeliver(final Object permission)
     {
         if ( this.blacklisted )
         {
@@ -341,16 +350,8 @@ public class EventHandlerProxy {
             return false;
         }
 
-        // filter match
-        final Filter eventFilter = this.filter;
-        if ( eventFilter != null && !event.matches(eventFilter) )
-        {
-            return false;
-        }
-
         // permission check
-        final Object p = PermissionsUtil.createSubscribePermission(event.getTopic());
-        if (p != null && !bundle.hasPermission(p) )
+        if (permission != null && !bundle.hasPermission(permission) )
         {
             return false;
         }
@@ -426,8 +427,12 @@ public class EventHandlerProxy {
     /**
      * Blacklist the handler.
      */
-    public void blackListHandler()
+    public synchronized void blackListHandler()
     {
+        if ( this.blacklisted )
+        {
+            return;
+        }
         LogWrapper.getLogger().log(
                         LogWrapper.LOG_WARNING,
                         "Blacklisting ServiceReference [" + this.reference + " | Bundle("
@@ -19,8 +19,12 @@
 package org.apache.felix.eventadmin.impl.handler;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.felix.eventadmin.impl.security.PermissionsUtil;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
@@ -33,19 +37,11 @@ import org.osgi.util.tracker.ServiceTracker;
  */
 public class EventHandlerTracker extends ServiceTracker {
 
-    /** The proxies in this list match all events. */
-	private volatile List matchingAllEvents;
-
-    /** This is a map for exact topic matches. The key is the topic,
-     * the value is a list of proxies.
-     */
-    private volatile Map matchingTopic;
-
-	/** This is a map for wildcard topics. The key is the prefix of the topic,
-	 * the value is a list of proxies
-	 */
-	private volatile Map matchingPrefixTopic;
+    /** The maximum number of topics whose handlers are cached. */
+    private static final int MAX_CACHED_TOPICS = 1024;
 
+    /** The topic tree of the handlers, which is replaced on every change. */
+    private volatile TopicTree topicTree;
 
 	/** The context for the proxies. */
 	private HandlerContext handlerContext;
@@ -53,10 +49,8 @@ public class EventHandlerTracker extends ServiceTracker {
     public EventHandlerTracker(final BundleContext context) {
 		super(context, EventHandler.class.getName(), null);
 
-		// we start with empty collections
-		this.matchingAllEvents = new ArrayList();
-		this.matchingTopic = new HashMap();
-		this.matchingPrefixTopic = new HashMap();
+		// we start with an empty tree
+		this.topicTree = new TopicTree(TopicNode.EMPTY);
 	}
 
     /**
@@ -130,188 +124,284 @@ public class EventHandlerTracker extends ServiceTracker {
         proxy.dispose();
 	}
 
-	private void updateMap(final Map proxyListMap, final String key, final EventHandlerProxy proxy, final boolean add) {
-        List proxies = (List)proxyListMap.get(key);
-        if (proxies == null) {
-            if ( !add )
-            {
-                return;
-            }
-            proxies = new ArrayList();
-        } else {
-            proxies = new ArrayList(proxies);
-        }
-        if ( add )
-        {
-            proxies.add(proxy);
-        }
-        else
-        {
-            proxies.remove(proxy);
-        }
-        if ( proxies.size() == 0 )
-        {
-            proxyListMap.remove(key);
-        }
-        else
-        {
-            proxyListMap.put(key, proxies);
-        }
+	/**
+	 * Add the event handler to or remove it from the nodes of its topics.
+	 * We always create new nodes along the path to the changed node - while
+	 * this is "expensive" it allows us to read from the tree unsynced
+	 */
+	private void update(final EventHandlerProxy proxy, final boolean add) {
+	    TopicNode root = this.topicTree.root;
+	    final String[] topics = proxy.getTopics();
+	    if ( topics == null )
+	    {
+	        // matching all events is the same as the prefix of the root
+	        root = root.update(null, 0, true, proxy, add);
+	    }
+	    else
+	    {
+	        for(int i = 0; i < topics.length; i++) {
+	            final String topic = topics[i];
+	            if ( topic.endsWith("/*") )
+	            {
+	                // prefix topic: we remove the /*
+	                root = root.update(topic.substring(0, topic.length() - 2), 0, true, proxy, add);
+	            }
+	            else
+	            {
+	                root = root.update(topic, 0, false, proxy, add);
+	            }
+	        }
+	    }
+	    // this drops the cached handlers as well
+	    this.topicTree = new TopicTree(root == null ? TopicNode.EMPTY : root);
 	}
 
 	/**
 	 * Check the topics of the event handler and put it into the
-	 * corresponding collections.
-	 * We always create new collections - while this is "expensive"
-	 * it allows us to read from them unsynced
+	 * corresponding nodes.
 	 */
 	private synchronized void put(final EventHandlerProxy proxy) {
-		final String[] topics = proxy.getTopics();
-		if ( topics == null )
-		{
-		    final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-		    newMatchingAllEvents.add(proxy);
-		    this.matchingAllEvents = newMatchingAllEvents;
-		}
-		else
-		{
-		    Map newMatchingTopic = null;
-		    Map newMatchingPrefixTopic = null;
-    		for(int i = 0; i < topics.length; i++) {
-    			final String topic = topics[i];
-
-    			if ( topic.endsWith("/*") )
-    			{
-                    // prefix topic: we remove the /*
-    			    if ( newMatchingPrefixTopic == null )
-    			    {
-    			        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-    			    }
-
-    				final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, true);
-    			}
-    			else
-    			{
-    			    // exact match
-                    if ( newMatchingTopic == null )
-                    {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
-                    }
-
-                    this.updateMap(newMatchingTopic, topic, proxy, true);
-    			}
-    		}
-    		if ( newMatchingTopic != null )
-    		{
-    		    this.matchingTopic = newMatchingTopic;
-    		}
-    		if ( newMatchingPrefixTopic != null )
-    		{
-    		    this.matchingPrefixTopic = newMatchingPrefixTopic;
-    		}
-		}
+	    this.update(proxy, true);
 	}
 
     /**
      * Check the topics of the event handler and remove it from the
-     * corresponding collections.
-     * We always create new collections - while this is "expensive"
-     * it allows us to read from them unsynced
+     * corresponding nodes.
      */
 	private synchronized void remove(final EventHandlerProxy proxy) {
-        final String[] topics = proxy.getTopics();
-        if ( topics == null )
+	    this.update(proxy, false);
+	}
+
+	/**
+	 * Get all handlers for this event
+	 *
+	 * @param event The event topic
+	 * @return All handlers for the event
+	 */
+	public Collection getHandlers(final Event event) {
+	    final String topic = event.getTopic();
+	    final TopicTree tree = this.topicTree;
+
+	    HandlerGroup[] groups = tree.cache.get(topic);
+	    if ( groups == null )
+	    {
+	        groups = tree.match(topic);
+	        if ( tree.cache.size() >= MAX_CACHED_TOPICS )
+	        {
+	            tree.cache.clear();
+	        }
+	        tree.cache.put(topic, groups);
+	    }
+
+	    // now check filters - once per group - and permission
+	    final Object permission = PermissionsUtil.createSubscribePermission(topic);
+	    final List<EventHandlerProxy> handlers = new ArrayList<EventHandlerProxy>();
+	    for(int i = 0; i < groups.length; i++)
+	    {
+	        final HandlerGroup group = groups[i];
+	        if ( group.filter == null || event.matches(group.filter) )
+	        {
+	            for(int j = 0; j < group.proxies.length; j++)
+	            {
+	                if ( group.proxies[j].canDeliver(permission) )
+	                {
+	                    handlers.add(group.proxies[j]);
+	                }
+	            }
+	        }
+	    }
+	    return handlers;
+	}
+
+    /**
+     * The topic tree together with the handlers found for topics, which
+     * stay valid as long as the tree is not replaced.
+     */
+    private static final class TopicTree
+    {
+        public final TopicNode root;
+
+        public final ConcurrentMap<String, HandlerGroup[]> cache =
+            new ConcurrentHashMap<String, HandlerGroup[]>();
+
+        public TopicTree(final TopicNode root)
         {
-            final List newMatchingAllEvents = new ArrayList(this.matchingAllEvents);
-            newMatchingAllEvents.remove(proxy);
-            this.matchingAllEvents = newMatchingAllEvents;
-        } else {
-            Map newMatchingTopic = null;
-            Map newMatchingPrefixTopic = null;
-            for(int i = 0; i < topics.length; i++) {
-                final String topic = topics[i];
-
-                if ( topic.endsWith("/*") )
+            this.root = root;
+        }
+
+        /**
+         * Find the handlers of the topic in a single walk along its
+         * levels and group them by their filters.
+         */
+        public HandlerGroup[] match(final String topic)
+        {
+            final Set<EventHandlerProxy> proxies = new LinkedHashSet<EventHandlerProxy>();
+            TopicNode node = this.root;
+            int start = 0;
+            while ( node != null )
+            {
+                // the prefix handlers match as there is at least one more level
+                proxies.addAll(node.prefixProxies);
+                final int end = topic.indexOf('/', start);
+                node = node.getChild(end == -1 ? topic.substring(start) : topic.substring(start, end));
+                if ( node != null && end == -1 )
                 {
-                    // prefix topic: we remove the /*
-                    if ( newMatchingPrefixTopic == null )
-                    {
-                        newMatchingPrefixTopic = new HashMap(this.matchingPrefixTopic);
-                    }
+                    proxies.addAll(node.exactProxies);
+                    break;
+                }
+                start = end + 1;
+            }
+
+            final Map<String, List<EventHandlerProxy>> byFilter =
+                new LinkedHashMap<String, List<EventHandlerProxy>>();
+            final Map<String, Filter> filters = new HashMap<String, Filter>();
+            final Iterator<EventHandlerProxy> i = proxies.iterator();
+            while ( i.hasNext() )
+            {
+                final EventHandlerProxy proxy = i.next();
+                final Filter filter = proxy.getFilter();
+                final String key = filter == null ? null : filter.toString();
+                List<EventHandlerProxy> group = byFilter.get(key);
+                if ( group == null )
+                {
+                    group = new ArrayList<EventHandlerProxy>();
+                    byFilter.put(key, group);
+                    filters.put(key, filter);
+                }
+                group.add(proxy);
+            }
+
+            final HandlerGroup[] groups = new HandlerGroup[byFilter.size()];
+            int index = 0;
+            final Iterator<Map.Entry<String, List<EventHandlerProxy>>> g = byFilter.entrySet().iterator();
+            while ( g.hasNext() )
+            {
+                final Map.Entry<String, List<EventHandlerProxy>> entry = g.next();
+                groups[index++] = new HandlerGroup(filters.get(entry.getKey()),
+                    entry.getValue().toArray(new EventHandlerProxy[entry.getValue().size()]));
+            }
+            return groups;
+        }
+    }
 
-                    final String prefix = topic.substring(0, topic.length() - 2);
-                    this.updateMap(newMatchingPrefixTopic, prefix, proxy, false);
+    /**
+     * A level of the topic tree. The exact proxies have registered for the
+     * topic ending at this level, the prefix proxies for all topics below
+     * this level. Nodes are never modified once they are part of the tree.
+     */
+    private static final class TopicNode
+    {
+        public static final TopicNode EMPTY = new TopicNode(
+            Collections.<String, TopicNode>emptyMap(),
+            Collections.<EventHandlerProxy>emptyList(),
+            Collections.<EventHandlerProxy>emptyList());
+
+        private final Map<String, TopicNode> children;
+
+        public final List<EventHandlerProxy> exactProxies;
+
+        public final List<EventHandlerProxy> prefixProxies;
+
+        private TopicNode(final Map<String, TopicNode> children,
+                final List<EventHandlerProxy> exactProxies,
+                final List<EventHandlerProxy> prefixProxies)
+        {
+            this.children = children;
+            this.exactProxies = exactProxies;
+            this.prefixProxies = prefixProxies;
+        }
+
+        public TopicNode getChild(final String level)
+        {
+            return this.children.get(level);
+        }
+
+        /**
+         * Return a copy of this node with the proxy added to or removed from
+         * the node of the topic, starting at the given index.
+         * @param topic The topic or <code>null</code> for this node.
+         * @return The new node or <code>null</code> if it is empty.
+         */
+        public TopicNode update(final String topic, final int start,
+                final boolean prefix, final EventHandlerProxy proxy, final boolean add)
+        {
+            Map<String, TopicNode> newChildren = this.children;
+            List<EventHandlerProxy> newExactProxies = this.exactProxies;
+            List<EventHandlerProxy> newPrefixProxies = this.prefixProxies;
+            if ( topic == null )
+            {
+                if ( prefix )
+                {
+                    newPrefixProxies = update(this.prefixProxies, proxy, add);
                 }
                 else
                 {
-                    // exact match
-                    if ( newMatchingTopic == null )
+                    newExactProxies = update(this.exactProxies, proxy, add);
+                }
+            }
+            else
+            {
+                final int end = topic.indexOf('/', start);
+                final String level = end == -1 ? topic.substring(start) : topic.substring(start, end);
+                TopicNode child = this.children.get(level);
+                if ( child == null )
+                {
+                    if ( !add )
                     {
-                        newMatchingTopic = new HashMap(this.matchingTopic);
+                        return this;
                     }
-
-                    this.updateMap(newMatchingTopic, topic, proxy, false);
+                    child = EMPTY;
+                }
+                child = child.update(end == -1 ? null : topic, end + 1, prefix, proxy, add);
+                newChildren = new HashMap<String, TopicNode>(this.children);
+                if ( child == null )
+                {
+                    newChildren.remove(level);
                 }
+                else
+                {
+                    newChildren.put(level, child);
+                }
+            }
+            if ( newChildren.isEmpty() && newExactProxies.isEmpty() && newPrefixProxies.isEmpty() )
+            {
+                return null;
             }
-            if ( newMatchingTopic != null )
+            return new TopicNode(newChildren, newExactProxies, newPrefixProxies);
+        }
+
+        private static List<EventHandlerProxy> update(final List<EventHandlerProxy> proxies,
+                final EventHandlerProxy proxy, final boolean add)
+        {
+            final List<EventHandlerProxy> newProxies = new ArrayList<EventHandlerProxy>(proxies);
+            if ( add )
             {
-                this.matchingTopic = newMatchingTopic;
+                newProxies.add(proxy);
             }
-            if ( newMatchingPrefixTopic != null )
+            else
             {
-                this.matchingPrefixTopic = newMatchingPrefixTopic;
+                newProxies.remove(proxy);
             }
+            return newProxies;
         }
-	}
-
-	/**
-	 * Get all handlers for this event
-	 *
-	 * @param event The event topic
-	 * @return All handlers for the event
-	 */
-	public Collection getHandlers(final Event event) {
-	    final String topic = event.getTopic();
+    }
 
-		final Set handlers = new HashSet();
-
-		// Add all handlers matching everything
-		handlers.addAll(this.matchingAllEvents);
-
-		// Now check for prefix matches
-		if ( !this.matchingPrefixTopic.isEmpty() )
-		{
-		    int pos = topic.lastIndexOf('/');
-			while (pos != -1)
-			{
-			    final String prefix = topic.substring(0, pos);
-				List proxies = (List)this.matchingPrefixTopic.get(prefix);
-				if (proxies != null)
-				{
-					handlers.addAll(proxies);
-				}
-
-				pos = prefix.lastIndexOf('/');
-			}
-		}
+    /**
+     * Handlers sharing the same filter, which has to be evaluated only
+     * once per event.
+     */
+    private static final class HandlerGroup
+    {
+        public final Filter filter;
 
-		// Add the handlers for matching topic names
-		List proxies = (List)this.matchingTopic.get(topic);
-		if (proxies != null) {
-			handlers.addAll(proxies);
-		}
+        public final EventHandlerProxy[] proxies;
 
-		// now check permission and filters
-		final Iterator i = handlers.iterator();
-		while ( i.hasNext() ) {
-		    final EventHandlerProxy proxy = (EventHandlerProxy) i.next();
-		    if ( !proxy.canDeliver(event) ) {
-		        i.remove();
-		    }
-		}
-		return handlers;
-	}
+        public HandlerGroup(final Filter filter, final EventHandlerProxy[] proxies)
+        {
+            this.filter = filter;
+            this.proxies = proxies;
+        }
+    }
 
     /**
      * The matcher interface for checking if timeout handling
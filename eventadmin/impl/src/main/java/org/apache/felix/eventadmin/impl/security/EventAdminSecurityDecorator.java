@@ -19,7 +19,10 @@
 package org.apache.felix.eventadmin.impl.security;
 
 import java.security.Permission;
+import java.util.HashSet;
+import java.util.Set;
 
+import org.apache.felix.eventadmin.BatchEventAdmin;
 import org.osgi.framework.Bundle;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
@@ -34,7 +37,7 @@ import org.osgi.service.event.EventAdmin;
  *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
-public class EventAdminSecurityDecorator implements EventAdmin
+public class EventAdminSecurityDecorator implements EventAdmin, BatchEventAdmin
 {
     // The bundle used to determine appropriate permissions
     private final Bundle m_bundle;
@@ -79,6 +82,30 @@ public class EventAdminSecurityDecorator implements EventAdmin
         m_admin.postEvent(event);
     }
 
+    /**
+     * This method checks whether the given (i.e., calling) bundle has
+     * appropriate permissions to post the events to their targeted topics. A
+     * <tt>SecurityException</tt> is thrown in case it has not. Otherwise, the
+     * events are posted using this decorator's service instance.
+     *
+     * @param events The events that should be posted
+     *
+     * @see org.apache.felix.eventadmin.BatchEventAdmin#postEvents(org.osgi.service.event.Event[])
+     */
+    public void postEvents(final Event[] events)
+    {
+        final Set<String> topics = new HashSet<String>();
+        for(int i = 0; i < events.length; i++)
+        {
+            if ( topics.add(events[i].getTopic()) )
+            {
+                checkPermission(events[i].getTopic());
+            }
+        }
+
+        ((BatchEventAdmin) m_admin).postEvents(events);
+    }
+
     /**
      * This method checks whether the given (i.e., calling) bundle has
      * appropriate permissions to send an event to the targeted topic. A
@@ -18,21 +18,52 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 import org.osgi.service.event.Event;
 
 /**
  * This class does the actual work of the asynchronous event dispatch.
  *
+ * Each event handler with ordered delivery has its own lock-free queue of
+ * pending events, which is drained by at most one pooled thread at a time.
+ * Events posted by one thread are therefore delivered to each handler in
+ * the order they were posted, while a slow handler only delays its own
+ * events. Handlers with unordered delivery get each event from a pooled
+ * thread of its own.
+ *
+ * If a queue size is configured, a thread posting to a full queue waits for
+ * at most the timeout for the handler to catch up, after which the event is
+ * dropped for this handler. Without a timeout the event is dropped at once.
+ *
+ * If a coalesce property is configured, posted events with this property
+ * replace the pending event of a handler with the same property value, so
+ * that only the newest of these events is delivered. The newer event takes
+ * the place of the replaced one in the queue.
+ *
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class AsyncDeliverTasks
 {
+    /** The maximum number of events delivered before a queue yields its thread. */
+    private static final int BATCH_SIZE = 64;
+
     /** The thread pool to use to spin-off new threads. */
     private final DefaultThreadPool m_pool;
 
@@ -42,8 +73,27 @@ public class AsyncDeliverTasks
      */
     private final SyncDeliverTasks m_deliver_task;
 
-    /** A map of running threads currently delivering async events. */
-    private final Map m_running_threads = new HashMap();
+    /** The queues of the handlers with pending events. */
+    private final ConcurrentMap<EventHandlerProxy, HandlerQueue> m_queues =
+        new ConcurrentHashMap<EventHandlerProxy, HandlerQueue>();
+
+    /** The maximum number of pending events per handler, 0 for no limit. */
+    private volatile int m_queueSize;
+
+    /** The time in milliseconds to wait for a full queue. */
+    private volatile long m_timeout;
+
+    /** The event property identifying replaceable events, if any. */
+    private volatile String m_coalesceProperty;
+
+    /** The number of events that had to wait for a full queue. */
+    private final AtomicLong m_waited = new AtomicLong();
+
+    /** The number of events dropped because of a full queue. */
+    private final AtomicLong m_dropped = new AtomicLong();
+
+    /** The number of events replaced by a newer event. */
+    private final AtomicLong m_coalesced = new AtomicLong();
 
     /**
      * The constructor of the class that will use the asynchronous.
@@ -52,11 +102,26 @@ public class AsyncDeliverTasks
      *      dispatching threads in case of timeout or that the asynchronous event
      *      dispatching thread is used to send a synchronous event
      * @param deliverTask The deliver tasks for dispatching the event.
+     * @param queueSize The maximum number of pending events per handler.
+     * @param timeout The time to wait for a full queue.
+     * @param coalesceProperty The event property identifying replaceable events.
      */
-    public AsyncDeliverTasks(final DefaultThreadPool pool, final SyncDeliverTasks deliverTask)
+    public AsyncDeliverTasks(final DefaultThreadPool pool, final SyncDeliverTasks deliverTask,
+            final int queueSize, final long timeout, final String coalesceProperty)
     {
         m_pool = pool;
         m_deliver_task = deliverTask;
+        this.update(queueSize, timeout, coalesceProperty);
+    }
+
+    /**
+     * Update the queue configuration
+     */
+    public void update(final int queueSize, final long timeout, final String coalesceProperty)
+    {
+        m_queueSize = queueSize;
+        m_timeout = timeout;
+        m_coalesceProperty = coalesceProperty;
     }
 
     /**
@@ -67,86 +132,448 @@ public class AsyncDeliverTasks
      */
     public void execute(final Collection tasks, final Event event)
     {
-        /*
         final Iterator i = tasks.iterator();
-        boolean hasOrdered = false;
         while ( i.hasNext() )
         {
             final EventHandlerProxy task = (EventHandlerProxy)i.next();
             if ( !task.isAsyncOrderedDelivery() )
             {
-                // do somethimg
+                m_pool.executeTask(new Runnable()
+                {
+                    public void run()
+                    {
+                        m_deliver_task.execute(Collections.singletonList(task), event, true);
+                    }
+                });
             }
             else
             {
-                hasOrdered = true;
+                HandlerQueue queue = this.getQueue(task, null);
+                while ( !queue.offer(event) )
+                {
+                    queue = this.getQueue(task, queue);
+                }
             }
+        }
+    }
 
+    /**
+     * Deliver batches of events to their handlers. The events of a batch are
+     * added to the queue of its handler at once, as far as the queue can take
+     * them. Batches with replaceable events are queued event by event. If no
+     * queue can take more events, this waits at most the timeout for one of
+     * the handlers to catch up, after which the remaining events are dropped.
+     *
+     * @param batches The events in the order they are to be delivered per handler
+     */
+    public void execute(final Map<EventHandlerProxy, List<Event>> batches)
+    {
+        final List<Batch> pending = new ArrayList<Batch>();
+        final Iterator<Map.Entry<EventHandlerProxy, List<Event>>> i = batches.entrySet().iterator();
+        while ( i.hasNext() )
+        {
+            final Map.Entry<EventHandlerProxy, List<Event>> entry = i.next();
+            final EventHandlerProxy task = entry.getKey();
+            final List<Event> events = entry.getValue();
+            if ( !task.isAsyncOrderedDelivery() )
+            {
+                m_pool.executeTask(new Runnable()
+                {
+                    public void run()
+                    {
+                        final Collection<EventHandlerProxy> tasks = Collections.singletonList(task);
+                        for(int n = 0; n < events.size(); n++)
+                        {
+                            m_deliver_task.execute(tasks, events.get(n), true);
+                        }
+                    }
+                });
+            }
+            else if ( this.hasReplaceable(events) )
+            {
+                HandlerQueue queue = this.getQueue(task, null);
+                for(int n = 0; n < events.size(); n++)
+                {
+                    while ( !queue.offer(events.get(n)) )
+                    {
+                        queue = this.getQueue(task, queue);
+                    }
+                }
+            }
+            else
+            {
+                pending.add(new Batch(task, events, this.getQueue(task, null)));
+            }
         }
-        if ( hasOrdered )
-        {*/
-            final Thread currentThread = Thread.currentThread();
-            TaskExecuter executer = null;
-            synchronized (m_running_threads )
+
+        long deadline = -1;
+        while ( !pending.isEmpty() )
+        {
+            boolean progress = false;
+            final Iterator<Batch> b = pending.iterator();
+            while ( b.hasNext() )
             {
-                final TaskExecuter runningExecutor = (TaskExecuter)m_running_threads.get(currentThread);
-                if ( runningExecutor != null )
+                final Batch batch = b.next();
+                int index = batch.m_queue.offerSome(batch.m_events, batch.m_index);
+                if ( index == batch.m_index && batch.m_queue.isClosed() )
                 {
-                    runningExecutor.add(tasks, event);
+                    batch.m_queue = this.getQueue(batch.m_handler, batch.m_queue);
+                    index = batch.m_queue.offerSome(batch.m_events, batch.m_index);
                 }
-                else
+                if ( index > batch.m_index )
                 {
-                    executer = new TaskExecuter( tasks, event, currentThread );
-                    m_running_threads.put(currentThread, executer);
+                    batch.m_index = index;
+                    progress = true;
                 }
+                if ( batch.m_index == batch.m_events.size() )
+                {
+                    b.remove();
+                }
+            }
+            if ( progress || pending.isEmpty() )
+            {
+                deadline = -1;
+                continue;
+            }
+
+            // all remaining queues are full
+            final long now = System.currentTimeMillis();
+            if ( deadline == -1 )
+            {
+                deadline = now + m_timeout;
             }
-            if ( executer != null )
+            for(int n = 0; n < pending.size(); n++)
             {
-                m_pool.executeTask(executer);
+                final Batch batch = pending.get(n);
+                if ( now >= deadline )
+                {
+                    final int remaining = batch.m_events.size() - batch.m_index;
+                    if ( m_dropped.getAndAdd(remaining) == 0 )
+                    {
+                        LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                            "Event queue of handler is full, dropping event " + batch.m_events.get(batch.m_index)
+                            + " - further events are dropped silently");
+                    }
+                }
+                else if ( !batch.m_waited && m_timeout > 0 )
+                {
+                    batch.m_waited = true;
+                    m_waited.addAndGet(batch.m_events.size() - batch.m_index);
+                }
             }
-        //}
+            if ( now >= deadline )
+            {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
     }
 
-    private final class TaskExecuter implements Runnable
+    /**
+     * Check whether any of the events may replace a pending event.
+     */
+    private boolean hasReplaceable(final List<Event> events)
     {
-        private final List m_tasks = new LinkedList();
+        final String property = m_coalesceProperty;
+        for(int i = 0; property != null && i < events.size(); i++)
+        {
+            if ( events.get(i).getProperty(property) != null )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        private final Object m_key;
+    /**
+     * Get the queue of the handler, creating it if needed.
+     *
+     * @param task The event handler
+     * @param closed The queue found to be closed, if any
+     */
+    private HandlerQueue getQueue(final EventHandlerProxy task, final HandlerQueue closed)
+    {
+        // the queue has been closed after it was drained
+        if ( closed != null )
+        {
+            m_queues.remove(task, closed);
+        }
+        HandlerQueue queue = m_queues.get(task);
+        if ( queue == null )
+        {
+            queue = new HandlerQueue(task);
+            final HandlerQueue existing = m_queues.putIfAbsent(task, queue);
+            if ( existing != null )
+            {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
 
-        public TaskExecuter(final Collection tasks, final Event event, final Object key)
+    /**
+     * Return the number of events waiting for delivery to handlers with
+     * ordered delivery.
+     */
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        final Iterator i = m_queues.values().iterator();
+        while ( i.hasNext() )
         {
-            m_key = key;
-            m_tasks.add(new Object[] {tasks, event});
+            depth += Math.max(((HandlerQueue)i.next()).m_size.get(), 0);
         }
+        return depth;
+    }
 
-        public void run()
+    /**
+     * Return the number of events which had to wait for a full queue.
+     */
+    public long getWaitedEvents()
+    {
+        return m_waited.get();
+    }
+
+    /**
+     * Return the number of events dropped because of a full queue.
+     */
+    public long getDroppedEvents()
+    {
+        return m_dropped.get();
+    }
+
+    /**
+     * Return the number of events replaced by a newer event.
+     */
+    public long getCoalescedEvents()
+    {
+        return m_coalesced.get();
+    }
+
+    /**
+     * The pending events of one handler. The size counts the events which
+     * are queued or being delivered; it is set to -1 once the queue has been
+     * drained and removed, so that no more events are added to it. Only the
+     * thread that raises the size from 0 schedules the queue, so there is at
+     * most one thread delivering its events. Replaceable events are queued
+     * in slots, which are looked up by their key.
+     */
+    private final class HandlerQueue implements Runnable
+    {
+        private final EventHandlerProxy m_handler;
+
+        private final Queue<Object> m_events = new ConcurrentLinkedQueue<Object>();
+
+        private final AtomicInteger m_size = new AtomicInteger();
+
+        private final ConcurrentMap<Object, Slot> m_slots;
+
+        public HandlerQueue(final EventHandlerProxy handler)
+        {
+            m_handler = handler;
+            m_slots = m_coalesceProperty == null ? null : new ConcurrentHashMap<Object, Slot>();
+        }
+
+        /**
+         * Add an event to the queue or replace a pending event.
+         * @return <code>false</code> if the queue has been closed.
+         */
+        public boolean offer(final Event event)
         {
-            boolean running;
-            do
+            final String property = m_coalesceProperty;
+            final Object key = property == null || m_slots == null ? null : event.getProperty(property);
+            if ( key == null )
+            {
+                return this.offer(event, event);
+            }
+            final Slot slot = m_slots.get(key);
+            if ( slot != null && slot.replace(event) )
             {
-                Object[] tasks = null;
-                synchronized ( m_tasks )
+                m_coalesced.incrementAndGet();
+                return true;
+            }
+            return this.offer(event, new Slot(key, event));
+        }
+
+        /**
+         * Add as many of the events starting at the given index to the queue
+         * as it can take, at once.
+         * @return The index of the first event not added.
+         */
+        public int offerSome(final List<Event> events, final int start)
+        {
+            while ( true )
+            {
+                final int size = m_size.get();
+                int count = events.size() - start;
+                if ( m_queueSize > 0 )
                 {
-                    tasks = (Object[]) m_tasks.remove(0);
+                    count = Math.min(count, m_queueSize - size);
                 }
-                m_deliver_task.execute((Collection)tasks[0], (Event)tasks[1], true);
-                synchronized ( m_running_threads )
+                if ( size < 0 || count <= 0 )
                 {
-                    running = m_tasks.size() > 0;
-                    if ( !running )
+                    return start;
+                }
+                if ( m_size.compareAndSet(size, size + count) )
+                {
+                    m_events.addAll(events.subList(start, start + count));
+                    if ( size == 0 )
                     {
-                        m_running_threads.remove(m_key);
+                        m_pool.executeTask(this);
                     }
+                    return start + count;
                 }
-            } while ( running );
+            }
         }
 
-        public void add(final Collection tasks, final Event event)
+        /**
+         * Check whether the queue has been closed.
+         */
+        public boolean isClosed()
         {
-            synchronized ( m_tasks )
+            return m_size.get() < 0;
+        }
+
+        private boolean offer(final Event event, final Object item)
+        {
+            long deadline = -1;
+            while ( true )
             {
-                m_tasks.add(new Object[] {tasks, event});
+                final int size = m_size.get();
+                if ( size < 0 )
+                {
+                    return false;
+                }
+                final int limit = m_queueSize;
+                if ( limit > 0 && size >= limit )
+                {
+                    final long now = System.currentTimeMillis();
+                    if ( deadline == -1 )
+                    {
+                        deadline = now + m_timeout;
+                        if ( m_timeout > 0 )
+                        {
+                            m_waited.incrementAndGet();
+                        }
+                    }
+                    if ( now >= deadline )
+                    {
+                        if ( m_dropped.getAndIncrement() == 0 )
+                        {
+                            LogWrapper.getLogger().log(LogWrapper.LOG_WARNING,
+                                "Event queue of handler is full, dropping event " + event
+                                + " - further events are dropped silently");
+                        }
+                        return true;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                else if ( m_size.compareAndSet(size, size + 1) )
+                {
+                    if ( item instanceof Slot )
+                    {
+                        m_slots.put(((Slot)item).m_key, (Slot)item);
+                    }
+                    m_events.offer(item);
+                    if ( size == 0 )
+                    {
+                        m_pool.executeTask(this);
+                    }
+                    return true;
+                }
             }
         }
+
+        public void run()
+        {
+            for ( int i = 0; i < BATCH_SIZE; i++ )
+            {
+                Object item = m_events.poll();
+                while ( item == null )
+                {
+                    // the event has been counted but not added yet
+                    Thread.yield();
+                    item = m_events.poll();
+                }
+                final Event event;
+                if ( item instanceof Slot )
+                {
+                    final Slot slot = (Slot)item;
+                    event = slot.take();
+                    m_slots.remove(slot.m_key, slot);
+                }
+                else
+                {
+                    event = (Event)item;
+                }
+                m_deliver_task.execute(Collections.singletonList(m_handler), event, true);
+                if ( m_size.decrementAndGet() == 0 )
+                {
+                    // close the queue unless a new event has been counted,
+                    // whose thread schedules the queue again
+                    if ( m_size.compareAndSet(0, -1) )
+                    {
+                        m_queues.remove(m_handler, this);
+                    }
+                    return;
+                }
+            }
+            // let the handlers of other queues use this thread
+            m_pool.executeTask(this);
+        }
+    }
+
+    /**
+     * The events of a batch for one handler which are not queued yet.
+     */
+    private static final class Batch
+    {
+        private final EventHandlerProxy m_handler;
+
+        private final List<Event> m_events;
+
+        private HandlerQueue m_queue;
+
+        private int m_index;
+
+        private boolean m_waited;
+
+        public Batch(final EventHandlerProxy handler, final List<Event> events, final HandlerQueue queue)
+        {
+            m_handler = handler;
+            m_events = events;
+            m_queue = queue;
+        }
+    }
+
+    /**
+     * A queued event which may be replaced by a newer event with the same
+     * key until it is taken for delivery.
+     */
+    private static final class Slot
+    {
+        private final Object m_key;
+
+        private final AtomicReference<Event> m_event;
+
+        public Slot(final Object key, final Event event)
+        {
+            m_key = key;
+            m_event = new AtomicReference<Event>(event);
+        }
+
+        /**
+         * Replace the event unless it has been taken already.
+         */
+        public boolean replace(final Event event)
+        {
+            final Event current = m_event.get();
+            return current != null && m_event.compareAndSet(current, event);
+        }
+
+        public Event take()
+        {
+            return m_event.getAndSet(null);
+        }
     }
 }
@@ -16,9 +16,13 @@
  */
 package org.apache.felix.eventadmin.impl.tasks;
 
-import org.apache.felix.eventadmin.impl.util.LogWrapper;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import EDU.oswego.cs.dl.util.concurrent.*;
+import org.apache.felix.eventadmin.impl.util.LogWrapper;
 
 /**
  * A thread pool that allows to execute tasks using pooled threads in order
@@ -27,48 +31,37 @@ import EDU.oswego.cs.dl.util.concurrent.*;
  * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
  */
 public class DefaultThreadPool
-    extends PooledExecutor
+    extends ThreadPoolExecutor
 {
 
     /**
      * Create a new pool.
      */
-    public DefaultThreadPool(final int poolSize, final boolean syncThreads)
+    public DefaultThreadPool(final int poolSize)
     {
-   	    super(new LinkedQueue());
-   	    if ( syncThreads )
-   	    {
-            this.setThreadFactory(new ThreadFactory()
-            {
-
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new SyncThread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( true );
+        super(poolSize, poolSize + 10, 60000, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>());
+        this.setThreadFactory(new ThreadFactory()
+        {
 
-                    return thread;
-                }
-            });
-   	    }
-   	    else
-   	    {
-            this.setThreadFactory(new ThreadFactory()
+            public Thread newThread( final Runnable command )
             {
+                final Thread thread = new Thread( command );
+                thread.setPriority( Thread.NORM_PRIORITY );
+                thread.setDaemon( true );
 
-                public Thread newThread( final Runnable command )
-                {
-                    final Thread thread = new Thread( command );
-                    thread.setPriority( Thread.NORM_PRIORITY );
-                    thread.setDaemon( true );
+                return thread;
+            }
+        });
+        // run the task in the calling thread once the pool is closed
+        setRejectedExecutionHandler(new RejectedExecutionHandler()
+        {
 
-                    return thread;
-                }
-            });
-   	    }
-   	    configure(poolSize);
-        setKeepAliveTime(60000);
-        runWhenBlocked();
+            public void rejectedExecution( final Runnable task, final ThreadPoolExecutor pool )
+            {
+                task.run();
+            }
+        });
     }
 
     /**
@@ -76,8 +69,17 @@ public class DefaultThreadPool
      */
     public void configure(final int poolSize)
     {
-        setMinimumPoolSize(poolSize);
-        setMaximumPoolSize(poolSize + 10);
+        // the maximum has to be raised first, it may never be below the core size
+        if ( poolSize + 10 > getMaximumPoolSize() )
+        {
+            setMaximumPoolSize(poolSize + 10);
+            setCorePoolSize(poolSize);
+        }
+        else
+        {
+            setCorePoolSize(poolSize);
+            setMaximumPoolSize(poolSize + 10);
+        }
     }
 
     /**
@@ -20,32 +20,39 @@ package org.apache.felix.eventadmin.impl.tasks;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
 import org.osgi.service.event.Event;
 
-import EDU.oswego.cs.dl.util.concurrent.TimeoutException;
-
 /**
  * This class does the actual work of the synchronous event delivery.
  *
  * This is the heart of the event delivery. If an event is delivered
  * without timeout handling, the event is directly delivered using
  * the calling thread.
- * If timeout handling is enabled, a new thread is taken from the
- * thread pool and this thread is used to deliver the event.
- * The calling thread is blocked until either the deliver is finished
- * or the timeout occurs.
+ * If timeout handling is enabled and the sender is released on a timeout,
+ * a thread is taken from the thread pool and this thread is used to deliver
+ * the event. The calling thread is blocked until either the delivery is
+ * finished or the timeout occurs, in which case the handler is blacklisted.
  * <p><tt>
- * Note that in case of a timeout while a task is disabled the thread
- * is released and we spin-off a new thread that resumes the disabled
- * task hence, this is the only place were we break the semantics of
- * the synchronous delivery. While the only one to notice this is the
- * timed-out handler - it is the fault of this handler too (i.e., it
- * blocked the dispatch for to long) but since it will not receive
- * events anymore it will not notice this semantic difference except
- * that it might not see events it already sent before.
- * </tt></pre>
+ * Note that in case of a timeout the calling thread is released while
+ * the pooled thread is still delivering the event, hence this is the
+ * only place were we break the semantics of the synchronous delivery.
+ * While the only one to notice this is the timed-out handler - it is
+ * the fault of this handler too (i.e., it blocked the dispatch for too
+ * long) but since it will not receive events anymore it will not notice
+ * this semantic difference except that it might not see events it
+ * already sent before.
+ * </tt></p>
+ * If the sender is not released, the event is delivered using the calling
+ * thread and the delivery is watched by the <tt>TimeoutWatchdog</tt>, which
+ * blacklists the handler as soon as it exceeds the timeout. This avoids
+ * handing the event to another thread, but a handler which never returns
+ * blocks the sender forever. In both cases the handler is blacklisted as
+ * well if it returns after the timeout has been exceeded.
  *
  * If during an event delivery a new event should be delivered from
  * within the event handler, the timeout handler is stopped for the
@@ -59,24 +66,46 @@ public class SyncDeliverTasks
     /** The thread pool used to spin-off new threads. */
     private final DefaultThreadPool pool;
 
-    private long timeout;
+    /** The watchdog detecting handlers exceeding the timeout. */
+    private final TimeoutWatchdog watchdog;
+
+    /** Marks the pooled threads currently delivering an event. */
+    private final ThreadLocal<Boolean> delivering = new ThreadLocal<Boolean>();
+
+    private volatile long timeout;
+
+    private volatile boolean releaseSender;
 
     /**
      * Construct a new sync deliver tasks.
      * @param pool The thread pool used to spin-off new threads.
+     * @param timeout The time in milliseconds a handler may take.
+     * @param releaseSender Whether the sender is released on a timeout.
      */
-    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout)
+    public SyncDeliverTasks(final DefaultThreadPool pool, final long timeout,
+            final boolean releaseSender)
     {
         this.pool = pool;
-        this.update(timeout);
+        this.watchdog = new TimeoutWatchdog(timeout);
+        this.update(timeout, releaseSender);
     }
 
     /**
      * Update the timeout configuration
      */
-    public void update(final long timeout)
+    public void update(final long timeout, final boolean releaseSender)
     {
         this.timeout = timeout;
+        this.releaseSender = releaseSender;
+        this.watchdog.update(timeout);
+    }
+
+    /**
+     * Stop the timeout handling.
+     */
+    public void stop()
+    {
+        this.watchdog.stop();
     }
 
     /**
@@ -95,80 +124,179 @@ public class SyncDeliverTasks
     }
 
     /**
-     * This blocks an unrelated thread used to send a synchronous event until the
-     * event is send (or a timeout occurs).
+     * This delivers the event to the handlers and blacklists the handlers
+     * exceeding the timeout.
      *
      * @param tasks The event handler dispatch tasks to execute
      *
      */
     public void execute(final Collection tasks, final Event event, final boolean filterAsyncUnordered)
     {
-        final Thread sleepingThread = Thread.currentThread();
-        final SyncThread syncThread = sleepingThread instanceof SyncThread ? (SyncThread)sleepingThread : null;
-
-        final Iterator i = tasks.iterator();
-        while ( i.hasNext() )
+        // if this is a cascaded event, we directly use this thread
+        // otherwise we could end up in a starvation
+        final boolean release = this.releaseSender && this.delivering.get() == null;
+        TimeoutWatchdog.Slot slot = null;
+        EventHandlerProxy outerTask = null;
+        long outerStartTime = 0;
+        long innerStartTime = 0;
+        try
         {
-            final EventHandlerProxy task = (EventHandlerProxy)i.next();
-//            if ( !filterAsyncUnordered || task.isAsyncOrderedDelivery() )
-//            {
+            final Iterator i = tasks.iterator();
+            while ( i.hasNext() )
+            {
+                final EventHandlerProxy task = (EventHandlerProxy)i.next();
                 if ( !useTimeout(task) )
                 {
                     // no timeout, we can directly execute
                     task.sendEvent(event);
                 }
-                else if ( syncThread != null )
+                else if ( release )
                 {
-                    // if this is a cascaded event, we directly use this thread
-                    // otherwise we could end up in a starvation
-                    final long startTime = System.currentTimeMillis();
-                    task.sendEvent(event);
-                    if ( System.currentTimeMillis() - startTime > this.timeout )
-                    {
-                        task.blackListHandler();
-                    }
+                    this.executeReleasing(task, event);
                 }
                 else
                 {
-                    final Rendezvous startBarrier = new Rendezvous();
-                    final Rendezvous timerBarrier = new Rendezvous();
-                    this.pool.executeTask(new Runnable()
+                    if ( slot == null )
                     {
-                        public void run()
-                        {
-                            try
-                            {
-                                // notify the outer thread to start the timer
-                                startBarrier.waitForRendezvous();
-                                // execute the task
-                                task.sendEvent(event);
-                                // stop the timer
-                                timerBarrier.waitForRendezvous();
-                            }
-                            catch (final IllegalStateException ise)
-                            {
-                                // this can happen on shutdown, so we ignore it
-                            }
-                        }
-                    });
-                    // we wait for the inner thread to start
-                    startBarrier.waitForRendezvous();
-
-                    // timeout handling
-                    // we sleep for the sleep time
-                    // if someone wakes us up it's the finished inner task
+                        // if this is a cascaded event, we remember the outer
+                        // delivery to stop its timer
+                        slot = this.watchdog.getSlot();
+                        outerTask = slot.getHandler();
+                        outerStartTime = slot.getStart();
+                        innerStartTime = System.currentTimeMillis();
+                    }
+                    slot.enter(task, System.currentTimeMillis());
                     try
                     {
-                        timerBarrier.waitAttemptForRendezvous(this.timeout);
+                        task.sendEvent(event);
                     }
-                    catch (final TimeoutException ie)
+                    finally
+                    {
+                        slot.exit();
+                    }
+                    // the start time does not include the delivery of cascaded events
+                    if ( System.currentTimeMillis() - slot.getStart() > this.timeout )
                     {
-                        // if we timed out, we have to blacklist the handler
                         task.blackListHandler();
                     }
+                }
+            }
+        }
+        finally
+        {
+            if ( outerTask != null )
+            {
+                // resume the timer of the outer delivery
+                slot.enter(outerTask, outerStartTime + System.currentTimeMillis() - innerStartTime);
+            }
+        }
+    }
 
+    /**
+     * This blocks the calling thread until a pooled thread has delivered the
+     * event to the handler, or until the timeout occurs, in which case the
+     * handler is blacklisted.
+     */
+    private void executeReleasing(final EventHandlerProxy task, final Event event)
+    {
+        final Delivery delivery = new Delivery(task, event);
+        this.pool.executeTask(delivery);
+        try
+        {
+            if ( !delivery.done.await(this.timeout, TimeUnit.MILLISECONDS) )
+            {
+                if ( delivery.claim() )
+                {
+                    // no pooled thread picked up the delivery in time, as all
+                    // of them are busy, so the calling thread delivers it
+                    this.watchAndSend(task, event);
+                }
+                else
+                {
+                    task.blackListHandler();
                 }
-//            }
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            // the delivery continues in the pooled thread
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This delivers the event using the calling thread while the watchdog
+     * watches the delivery.
+     */
+    private void watchAndSend(final EventHandlerProxy task, final Event event)
+    {
+        final TimeoutWatchdog.Slot slot = this.watchdog.getSlot();
+        // if this is a cascaded event, we remember the outer delivery
+        final EventHandlerProxy outerTask = slot.getHandler();
+        final long outerStartTime = slot.getStart();
+        final long startTime = System.currentTimeMillis();
+        slot.enter(task, startTime);
+        try
+        {
+            task.sendEvent(event);
+        }
+        finally
+        {
+            slot.exit();
+            if ( outerTask != null )
+            {
+                // resume the timer of the outer delivery
+                slot.enter(outerTask, outerStartTime + System.currentTimeMillis() - startTime);
+            }
+        }
+        if ( System.currentTimeMillis() - startTime > this.timeout )
+        {
+            task.blackListHandler();
+        }
+    }
+
+    /**
+     * The delivery of an event to a handler by a pooled thread.
+     */
+    private final class Delivery implements Runnable
+    {
+        private final EventHandlerProxy task;
+
+        private final Event event;
+
+        /** Set by the thread delivering the event. */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Delivery(final EventHandlerProxy task, final Event event)
+        {
+            this.task = task;
+            this.event = event;
+        }
+
+        boolean claim()
+        {
+            return this.claimed.compareAndSet(false, true);
+        }
+
+        public void run()
+        {
+            if ( !this.claim() )
+            {
+                // the sender delivered the event itself
+                return;
+            }
+            delivering.set(Boolean.TRUE);
+            try
+            {
+                this.task.sendEvent(this.event);
+            }
+            finally
+            {
+                delivering.remove();
+                this.done.countDown();
+            }
         }
     }
 }
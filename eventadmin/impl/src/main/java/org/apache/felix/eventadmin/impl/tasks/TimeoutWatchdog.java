@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.eventadmin.impl.tasks;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.felix.eventadmin.impl.handler.EventHandlerProxy;
+
+/**
+ * The watchdog detects event handlers exceeding the timeout while an event
+ * is delivered to them synchronously. The delivering thread records the
+ * handler and the start time of the delivery in its slot, and a single
+ * daemon thread regularly checks all slots and blacklists the handlers that
+ * did not return within the timeout.
+ *
+ * The thread is started on the first delivery with a timeout.
+ *
+ * @author <a href="mailto:dev@felix.apache.org">Felix Project Team</a>
+ */
+public class TimeoutWatchdog implements Runnable
+{
+
+    /** The minimum time in milliseconds between two checks. */
+    private static final long MIN_INTERVAL = 10;
+
+    /** The slots of all threads which delivered events with a timeout. */
+    private final Queue<Slot> m_slots = new ConcurrentLinkedQueue<Slot>();
+
+    /** The slot of the current thread. */
+    private final ThreadLocal<Slot> m_slot = new ThreadLocal<Slot>()
+    {
+        protected Slot initialValue()
+        {
+            final Slot slot = new Slot(Thread.currentThread());
+            m_slots.add(slot);
+            start();
+            return slot;
+        }
+    };
+
+    /** The timeout in milliseconds. */
+    private volatile long m_timeout;
+
+    /** The watchdog thread, if started. */
+    private Thread m_thread;
+
+    /** Has the watchdog been stopped? */
+    private volatile boolean m_stopped;
+
+    /**
+     * Construct a new watchdog.
+     * @param timeout The timeout in milliseconds.
+     */
+    public TimeoutWatchdog(final long timeout)
+    {
+        this.update(timeout);
+    }
+
+    /**
+     * Update the timeout configuration
+     */
+    public void update(final long timeout)
+    {
+        m_timeout = timeout;
+    }
+
+    /**
+     * Return the slot of the current thread.
+     */
+    public Slot getSlot()
+    {
+        return m_slot.get();
+    }
+
+    private synchronized void start()
+    {
+        if ( m_thread == null && !m_stopped )
+        {
+            m_thread = new Thread(this, "EventAdminTimeoutWatchdog");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+    }
+
+    /**
+     * Stop the watchdog thread.
+     */
+    public synchronized void stop()
+    {
+        m_stopped = true;
+        if ( m_thread != null )
+        {
+            m_thread.interrupt();
+            m_thread = null;
+        }
+    }
+
+    public void run()
+    {
+        while ( !m_stopped )
+        {
+            final long timeout = m_timeout;
+            try
+            {
+                Thread.sleep(Math.max(MIN_INTERVAL, timeout / 4));
+            }
+            catch (final InterruptedException ie)
+            {
+                // we have been stopped
+                continue;
+            }
+            final long now = System.currentTimeMillis();
+            final Iterator<Slot> i = m_slots.iterator();
+            while ( i.hasNext() )
+            {
+                final Slot slot = i.next();
+                // read the handler before its start time, see Slot.enter
+                final EventHandlerProxy handler = slot.m_handler;
+                if ( handler != null )
+                {
+                    if ( timeout > 0 && now - slot.m_start > timeout )
+                    {
+                        handler.blackListHandler();
+                    }
+                }
+                else if ( slot.m_thread.get() == null )
+                {
+                    // the thread has been garbage collected
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The handler a thread is currently delivering an event to and the start
+     * time of this delivery.
+     */
+    public static final class Slot
+    {
+        private final WeakReference<Thread> m_thread;
+
+        private volatile EventHandlerProxy m_handler;
+
+        private volatile long m_start;
+
+        private Slot(final Thread thread)
+        {
+            m_thread = new WeakReference<Thread>(thread);
+        }
+
+        /**
+         * Start watching the delivery to the handler.
+         */
+        public void enter(final EventHandlerProxy handler, final long start)
+        {
+            // the start time is written first, so that the watchdog
+            // never sees the new handler with the start time of the old one
+            m_start = start;
+            m_handler = handler;
+        }
+
+        /**
+         * Stop watching the delivery.
+         */
+        public void exit()
+        {
+            m_handler = null;
+        }
+
+        public EventHandlerProxy getHandler()
+        {
+            return m_handler;
+        }
+
+        public long getStart()
+        {
+            return m_start;
+        }
+    }
+}
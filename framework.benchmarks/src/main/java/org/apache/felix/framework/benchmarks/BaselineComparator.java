@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compares benchmark results written by JMH in CSV format against a saved
+ * baseline and fails if a benchmark regressed by more than a threshold
+ * percentage. Benchmarks are matched by their name, mode, thread count and
+ * parameters. A missing baseline file or a benchmark without an entry in
+ * the baseline is an error as well, so an incomplete baseline never passes
+ * silently; the baseline is only replaced by the results if recording is
+ * requested explicitly.
+ * <p>
+ * Usage: <tt>BaselineComparator &lt;results.csv&gt; &lt;baseline.csv&gt;
+ * [threshold% [record]]</tt>
+ * </p>
+**/
+public class BaselineComparator
+{
+    public static void main(String[] args) throws IOException
+    {
+        if ((args.length < 2) || (args.length > 4))
+        {
+            System.err.println("Usage: BaselineComparator <results.csv> <baseline.csv>"
+                + " [threshold% [record]]");
+            System.exit(2);
+        }
+        File results = new File(args[0]);
+        File baseline = new File(args[1]);
+        double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : 10.0;
+        boolean record = (args.length > 3) && "true".equalsIgnoreCase(args[3]);
+
+        if (record)
+        {
+            copy(results, baseline);
+            System.out.println("Saved " + results + " as baseline " + baseline + ".");
+            return;
+        }
+        else if (!baseline.exists())
+        {
+            System.out.println("Baseline " + baseline + " not found; record it with"
+                + " -Dbenchmark.record=true.");
+            System.exit(1);
+        }
+
+        int failures = compare(read(results), read(baseline), threshold);
+        if (failures > 0)
+        {
+            System.out.println(failures + " benchmark(s) regressed by more than "
+                + threshold + "% against " + baseline + " or have no baseline;"
+                + " record missing baselines with -Dbenchmark.record=true.");
+            System.exit(1);
+        }
+        System.out.println("No benchmark regressed by more than " + threshold + "%.");
+    }
+
+    static int compare(
+        Map<String, Result> results, Map<String, Result> baseline, double threshold)
+    {
+        int failures = 0;
+        for (Entry<String, Result> entry : results.entrySet())
+        {
+            Result current = entry.getValue();
+            Result base = baseline.get(entry.getKey());
+            if (base == null)
+            {
+                failures++;
+                System.out.println("MISSING    " + entry.getKey()
+                    + ": " + current.m_score + " " + current.m_unit + " (no baseline)");
+                continue;
+            }
+
+            // Throughput has to stay high, all other modes measure time.
+            double change = (current.m_score - base.m_score) / base.m_score * 100.0;
+            if ("thrpt".equals(current.m_mode))
+            {
+                change = -change;
+            }
+            boolean regressed = (change > threshold)
+                && (Math.abs(current.m_score - base.m_score) > current.m_error + base.m_error);
+            if (regressed)
+            {
+                failures++;
+            }
+            System.out.println((regressed ? "REGRESSION " : "OK         ")
+                + entry.getKey() + ": " + base.m_score + " -> " + current.m_score
+                + " " + current.m_unit + " (" + (change > 0 ? "+" : "")
+                + Math.round(change * 10) / 10.0 + "% worse)");
+        }
+        return failures;
+    }
+
+    static Map<String, Result> read(File file) throws IOException
+    {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            List<String> header = split(reader.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int threads = header.indexOf("Threads");
+            int score = header.indexOf("Score");
+            int error = header.indexOf("Score Error (99.9%)");
+            int unit = header.indexOf("Unit");
+            if ((benchmark < 0) || (mode < 0) || (score < 0))
+            {
+                throw new IOException("Not a JMH CSV result file: " + file);
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.trim().length() == 0)
+                {
+                    continue;
+                }
+                List<String> values = split(line);
+                StringBuilder key = new StringBuilder(values.get(benchmark));
+                key.append(" [").append(values.get(mode));
+                if (threads >= 0)
+                {
+                    key.append(", threads=").append(values.get(threads));
+                }
+                // Parameter columns follow the unit column and are empty for
+                // benchmarks without that parameter.
+                for (int i = unit + 1; (unit >= 0) && (i < values.size()); i++)
+                {
+                    if (values.get(i).length() > 0)
+                    {
+                        key.append(", ").append(header.get(i)).append('=').append(values.get(i));
+                    }
+                }
+                key.append(']');
+
+                Result result = new Result();
+                result.m_mode = values.get(mode);
+                result.m_score = parse(values.get(score));
+                result.m_error = (error >= 0) ? parse(values.get(error)) : 0;
+                result.m_unit = (unit >= 0) ? values.get(unit) : "";
+                results.put(key.toString(), result);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static double parse(String value)
+    {
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            // JMH writes NaN errors for single measurements.
+            return 0;
+        }
+    }
+
+    private static List<String> split(String line)
+    {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c == '"')
+            {
+                if (quoted && (i + 1 < line.length()) && (line.charAt(i + 1) == '"'))
+                {
+                    value.append(c);
+                    i++;
+                }
+                else
+                {
+                    quoted = !quoted;
+                }
+            }
+            else if ((c == ',') && !quoted)
+            {
+                values.add(value.toString());
+                value.setLength(0);
+            }
+            else
+            {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        if (to.getParentFile() != null)
+        {
+            to.getParentFile().mkdirs();
+        }
+        InputStream is = new FileInputStream(from);
+        try
+        {
+            OutputStream os = new FileOutputStream(to);
+            try
+            {
+                byte[] buf = new byte[4096];
+                int len;
+                while ((len = is.read(buf)) >= 0)
+                {
+                    os.write(buf, 0, len);
+                }
+            }
+            finally
+            {
+                os.close();
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    static class Result
+    {
+        String m_mode;
+        double m_score;
+        double m_error;
+        String m_unit;
+    }
+}
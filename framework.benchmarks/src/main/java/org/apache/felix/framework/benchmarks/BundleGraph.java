@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+
+/**
+ * A synthetic graph of bundles for the benchmarks. Bundle <tt>i</tt>
+ * exports package <tt>bench.p&lt;i&gt;</tt> and imports the packages of a
+ * few bundles installed before it, mostly nearby ones, with <tt>uses</tt>
+ * constraints on its first import, so the resolver has to check package
+ * spaces of realistic depth. The first bundle also contains and exports the
+ * <tt>Exported</tt> class, which the last bundle imports, so class loads
+ * through the last bundle are delegated across the graph.
+**/
+public class BundleGraph
+{
+    private static final int IMPORTS = 4;
+    private static final int LOCALITY = 50;
+
+    private final File m_dir;
+    private final List<File> m_files = new ArrayList<File>();
+
+    public BundleGraph(int size) throws IOException
+    {
+        m_dir = File.createTempFile("felix-bench", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++)
+        {
+            Set<Integer> imports = new LinkedHashSet<Integer>();
+            for (int j = 0; (i > 0) && (j < IMPORTS); j++)
+            {
+                imports.add(new Integer(i - 1 - random.nextInt(Math.min(i, LOCALITY))));
+            }
+
+            StringBuffer mf = new StringBuffer();
+            mf.append("Manifest-Version: 1.0\n");
+            mf.append("Bundle-ManifestVersion: 2\n");
+            mf.append("Bundle-SymbolicName: bench.b").append(i).append('\n');
+            mf.append("Bundle-Version: 1.0.0\n");
+            mf.append("Export-Package: bench.p").append(i).append(";version=1.0.0");
+            if (!imports.isEmpty())
+            {
+                mf.append(";uses:=\"bench.p").append(imports.iterator().next()).append('"');
+            }
+            if (i == 0)
+            {
+                mf.append(',').append(getPackage()).append(";version=1.0.0");
+            }
+            mf.append('\n');
+
+            StringBuffer ip = new StringBuffer();
+            for (Integer imp : imports)
+            {
+                ip.append((ip.length() == 0) ? "" : ",")
+                    .append("bench.p").append(imp).append(";version=\"[1.0,2.0)\"");
+            }
+            if ((i == size - 1) && (i > 0))
+            {
+                ip.append((ip.length() == 0) ? "" : ",").append(getPackage());
+            }
+            if (ip.length() > 0)
+            {
+                mf.append("Import-Package: ").append(ip).append('\n');
+            }
+
+            File file = new File(m_dir, "bundle" + i + ".jar");
+            JarOutputStream jos = new JarOutputStream(new FileOutputStream(file),
+                new Manifest(new ByteArrayInputStream(mf.toString().getBytes("UTF-8"))));
+            if (i == 0)
+            {
+                String entry = Exported.class.getName().replace('.', '/') + ".class";
+                jos.putNextEntry(new JarEntry(entry));
+                InputStream is = BundleGraph.class.getClassLoader().getResourceAsStream(entry);
+                byte[] buffer = new byte[4096];
+                for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+                {
+                    jos.write(buffer, 0, n);
+                }
+                is.close();
+            }
+            jos.close();
+            m_files.add(file);
+        }
+    }
+
+    /**
+     * Returns the name of the class contained in the first bundle.
+    **/
+    public static String getExportedClassName()
+    {
+        return Exported.class.getName();
+    }
+
+    private static String getPackage()
+    {
+        String name = Exported.class.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * Creates and initializes a framework with an empty bundle cache in the
+     * directory of the graph.
+     * @param config additional configuration properties or <tt>null</tt>.
+    **/
+    public Felix createFramework(Map<String, String> config) throws BundleException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.6.0");
+        params.put(Constants.FRAMEWORK_STORAGE, new File(m_dir, "cache").getPath());
+        params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        if (config != null)
+        {
+            params.putAll(config);
+        }
+        Felix felix = new Felix(params);
+        felix.init();
+        return felix;
+    }
+
+    /**
+     * Installs all bundles of the graph in their order.
+    **/
+    public List<Bundle> install(Felix felix) throws BundleException
+    {
+        List<Bundle> bundles = new ArrayList<Bundle>(m_files.size());
+        for (File file : m_files)
+        {
+            bundles.add(felix.getBundleContext().installBundle(file.toURI().toString()));
+        }
+        return bundles;
+    }
+
+    public static void stop(Felix felix) throws Exception
+    {
+        felix.stop();
+        felix.waitForStop(60000);
+    }
+
+    public void delete()
+    {
+        deleteDir(m_dir);
+    }
+
+    private static void deleteDir(File root)
+    {
+        File[] files = root.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        root.delete();
+    }
+
+    /**
+     * The class loaded through the graph.
+    **/
+    public static class Exported
+    {
+    }
+}
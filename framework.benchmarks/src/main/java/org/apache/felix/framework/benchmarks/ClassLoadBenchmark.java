@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures class loads delegated by the class loader of the last bundle of
+ * a resolved synthetic bundle graph: an imported class, which is found
+ * through the package wiring, and a missing class of an imported package
+ * and of an unknown package, which are searched for and not found.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassLoadBenchmark
+{
+    @Param({ "100", "1000", "10000" })
+    public int m_size;
+
+    private BundleGraph m_graph;
+    private Felix m_felix;
+    private ClassLoader m_loader;
+    private String m_importedMissing;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_graph = new BundleGraph(m_size);
+        m_felix = m_graph.createFramework(null);
+        List<Bundle> bundles = m_graph.install(m_felix);
+        m_felix.adapt(FrameworkWiring.class).resolveBundles(null);
+        m_loader = bundles.get(bundles.size() - 1)
+            .adapt(BundleWiring.class).getClassLoader();
+        String name = BundleGraph.getExportedClassName();
+        m_importedMissing = name.substring(0, name.lastIndexOf('.')) + ".Missing";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BundleGraph.stop(m_felix);
+        m_graph.delete();
+    }
+
+    @Benchmark
+    public Class loadImported() throws ClassNotFoundException
+    {
+        return m_loader.loadClass(BundleGraph.getExportedClassName());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Class loadImported8() throws ClassNotFoundException
+    {
+        return m_loader.loadClass(BundleGraph.getExportedClassName());
+    }
+
+    @Benchmark
+    public boolean loadImportedMissing()
+    {
+        return loadMissing(m_importedMissing);
+    }
+
+    @Benchmark
+    public boolean loadUnknownMissing()
+    {
+        return loadMissing("bench.unknown.Missing");
+    }
+
+    private boolean loadMissing(String name)
+    {
+        try
+        {
+            m_loader.loadClass(name);
+            return true;
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return false;
+        }
+    }
+}
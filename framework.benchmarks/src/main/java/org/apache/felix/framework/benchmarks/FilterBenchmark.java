@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures filter parsing and evaluation. Capability matching is measured
+ * against a capability set with 100, 1k and 10k package capabilities,
+ * once on the indexed package name alone and once with a version range,
+ * which has to be evaluated for every candidate of the package.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark
+{
+    private static final String PACKAGE_FILTER = "(osgi.wiring.package=bench.p42)";
+    private static final String RANGE_FILTER =
+        "(&(osgi.wiring.package=bench.p42)(version>=1.0.0)(!(version>=2.0.0)))";
+    private static final String SERVICE_FILTER =
+        "(&(objectClass=java.lang.Runnable)(|(group=g3)(group=g7))(id>=500))";
+
+    @Param({ "100", "1000", "10000" })
+    public int m_capabilities;
+
+    private CapabilitySet m_capSet;
+    private SimpleFilter m_packageFilter;
+    private SimpleFilter m_rangeFilter;
+    private Filter m_serviceFilter;
+    private Hashtable m_serviceProps;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidSyntaxException
+    {
+        m_capSet = new CapabilitySet(
+            Collections.singletonList(BundleRevision.PACKAGE_NAMESPACE), true);
+        for (int i = 0; i < m_capabilities; i++)
+        {
+            // Ten versions of each package.
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(BundleRevision.PACKAGE_NAMESPACE, "bench.p" + (i / 10));
+            attrs.put(Constants.VERSION_ATTRIBUTE, new Version(i % 10, 0, 0));
+            m_capSet.addCapability(new BundleCapabilityImpl(
+                null, BundleRevision.PACKAGE_NAMESPACE,
+                Collections.<String, String>emptyMap(), attrs));
+        }
+        m_packageFilter = SimpleFilter.parse(PACKAGE_FILTER);
+        m_rangeFilter = SimpleFilter.parse(RANGE_FILTER);
+
+        m_serviceFilter = FrameworkUtil.createFilter(SERVICE_FILTER);
+        m_serviceProps = new Hashtable();
+        m_serviceProps.put(Constants.OBJECTCLASS, new String[] { "java.lang.Runnable" });
+        m_serviceProps.put("group", "g7");
+        m_serviceProps.put("id", new Integer(742));
+    }
+
+    @Benchmark
+    public Set<BundleCapability> matchPackage()
+    {
+        return m_capSet.match(m_packageFilter, false);
+    }
+
+    @Benchmark
+    public Set<BundleCapability> matchVersionRange()
+    {
+        return m_capSet.match(m_rangeFilter, false);
+    }
+
+    @Benchmark
+    public SimpleFilter parse()
+    {
+        return SimpleFilter.parse(RANGE_FILTER);
+    }
+
+    @Benchmark
+    public boolean matchServiceProperties()
+    {
+        return m_serviceFilter.match(m_serviceProps);
+    }
+}
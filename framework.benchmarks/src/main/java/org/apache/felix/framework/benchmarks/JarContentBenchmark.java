@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.cache.JarContent;
+import org.apache.felix.framework.cache.MappedJarContent;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading class entries of a class-heavy bundle JAR file through
+ * the regular <tt>JarContent</tt> with the memory mapped content. The file
+ * limit parameter makes the JAR file get closed weakly before every read,
+ * as happens when more bundles are installed than files may be opened.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JarContentBenchmark
+{
+    @Param({ "jar", "mapped" })
+    public String m_content;
+
+    @Param({ "0", "1" })
+    public int m_fileLimit;
+
+    @Param({ "2000" })
+    public int m_classes;
+
+    private File m_dir;
+    private JarContent m_jar;
+    private JarContent m_other;
+    private String[] m_names;
+    private String[] m_missing;
+    private int m_next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        m_dir = File.createTempFile("felix-bench", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        Random random = new Random(42);
+        m_names = new String[m_classes];
+        m_missing = new String[m_classes];
+        File file = new File(m_dir, "bundle.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        for (int i = 0; i < m_classes; i++)
+        {
+            m_names[i] = "org/apache/felix/bench/p" + (i % 50) + "/Class" + i + ".class";
+            m_missing[i] = "org/apache/felix/bench/p" + (i % 50) + "/Missing" + i + ".class";
+            zos.putNextEntry(new ZipEntry(m_names[i]));
+            zos.write(createClassBytes(random));
+        }
+        zos.close();
+        File otherFile = new File(m_dir, "other.jar");
+        zos = new ZipOutputStream(new FileOutputStream(otherFile));
+        zos.putNextEntry(new ZipEntry("other.txt"));
+        zos.close();
+
+        // Shuffle the lookup order, like a class loader would.
+        for (int i = m_names.length - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            String tmp = m_names[i];
+            m_names[i] = m_names[j];
+            m_names[j] = tmp;
+        }
+
+        WeakZipFileFactory factory = new WeakZipFileFactory(m_fileLimit);
+        Logger logger = new Logger();
+        m_jar = "mapped".equals(m_content)
+            ? new MappedJarContent(logger, new HashMap(), factory, this, m_dir, file, null)
+            : new JarContent(logger, new HashMap(), factory, this, m_dir, file, null);
+        m_other = new JarContent(logger, new HashMap(), factory, this, m_dir, otherFile, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        m_jar.close();
+        m_other.close();
+        for (File file : m_dir.listFiles())
+        {
+            file.delete();
+        }
+        m_dir.delete();
+    }
+
+    private static byte[] createClassBytes(Random random)
+    {
+        // Class files compress reasonably well, so use a limited alphabet.
+        byte[] bytes = new byte[1024 + random.nextInt(7 * 1024)];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) ('A' + random.nextInt(16));
+        }
+        return bytes;
+    }
+
+    private String nextName(String[] names)
+    {
+        // With a file limit, touching another JAR file closes ours weakly.
+        if (m_fileLimit > 0)
+        {
+            m_other.hasEntry("other.txt");
+        }
+        m_next = (m_next + 1) % names.length;
+        return names[m_next];
+    }
+
+    @Benchmark
+    public byte[] getEntryAsBytes()
+    {
+        return m_jar.getEntryAsBytes(nextName(m_names));
+    }
+
+    @Benchmark
+    public void getEntryAsByteBuffer(Blackhole bh)
+    {
+        String name = nextName(m_names);
+        if (m_jar instanceof MappedJarContent)
+        {
+            ByteBuffer buffer = ((MappedJarContent) m_jar).getEntryAsByteBuffer(name);
+            bh.consume(buffer.get(buffer.limit() - 1));
+        }
+        else
+        {
+            byte[] bytes = m_jar.getEntryAsBytes(name);
+            bh.consume(bytes[bytes.length - 1]);
+        }
+    }
+
+    @Benchmark
+    public boolean hasEntryMiss()
+    {
+        return m_jar.hasEntry(nextName(m_missing));
+    }
+}
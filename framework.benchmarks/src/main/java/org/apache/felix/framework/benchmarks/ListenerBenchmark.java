@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fan-out of service events to 100, 1k and 10k service
+ * listeners. The listeners either filter on the object class, so that
+ * only one in ten receives the event, or on a property, which has to be
+ * evaluated for every listener; the event is a modification of a
+ * registered service.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark
+{
+    private static final String[] CLASSES = {
+        "java.lang.Runnable", "java.lang.Comparable", "java.lang.CharSequence",
+        "java.lang.Iterable", "java.lang.Appendable", "java.lang.Readable",
+        "java.io.Closeable", "java.io.Flushable", "java.io.Serializable",
+        "java.util.EventListener" };
+
+    @Param({ "100", "1000", "10000" })
+    public int m_listeners;
+
+    @Param({ "class", "property" })
+    public String m_filter;
+
+    private BundleGraph m_graph;
+    private Felix m_felix;
+    private ServiceRegistration m_reg;
+    private Hashtable m_props;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_graph = new BundleGraph(1);
+        m_felix = m_graph.createFramework(null);
+        m_felix.start();
+        BundleContext bc = m_felix.getBundleContext();
+
+        for (int i = 0; i < m_listeners; i++)
+        {
+            String filter = "class".equals(m_filter)
+                ? "(objectClass=" + CLASSES[i % CLASSES.length] + ")"
+                : "(group=g" + (i % 10) + ")";
+            bc.addServiceListener(new Listener(), filter);
+        }
+
+        m_props = new Hashtable();
+        m_props.put("group", "g0");
+        m_reg = bc.registerService(CLASSES[0], new Task(), m_props);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BundleGraph.stop(m_felix);
+        m_graph.delete();
+    }
+
+    @Benchmark
+    public void modify()
+    {
+        m_reg.setProperties(m_props);
+    }
+
+    public static class Task implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+
+    public static class Listener implements ServiceListener
+    {
+        public volatile int m_events;
+
+        public void serviceChanged(ServiceEvent event)
+        {
+            m_events++;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time to resolve all bundles of a freshly installed synthetic
+ * bundle graph. Every iteration installs the graph into a new framework,
+ * which is not measured, and resolves it once.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ResolveBenchmark
+{
+    @Param({ "100", "1000", "10000" })
+    public int m_size;
+
+    private BundleGraph m_graph;
+    private Felix m_felix;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_graph = new BundleGraph(m_size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        m_graph.delete();
+    }
+
+    @Setup(Level.Iteration)
+    public void install() throws Exception
+    {
+        m_felix = m_graph.createFramework(null);
+        m_graph.install(m_felix);
+    }
+
+    @TearDown(Level.Iteration)
+    public void uninstall() throws Exception
+    {
+        BundleGraph.stop(m_felix);
+    }
+
+    @Benchmark
+    public boolean resolve()
+    {
+        return m_felix.adapt(FrameworkWiring.class).resolveBundles(null);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of registering, looking up and getting services
+ * with 8 threads, with 100, 1k and 10k services registered already. The
+ * services are registered by the bundles of a synthetic bundle graph, each
+ * service with a unique <tt>id</tt> and one of ten <tt>group</tt> values.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ServiceRegistryBenchmark
+{
+    @Param({ "100", "1000", "10000" })
+    public int m_services;
+
+    private BundleGraph m_graph;
+    private Felix m_felix;
+    private BundleContext m_context;
+    private ServiceReference m_ref;
+    private String[] m_filters;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_graph = new BundleGraph(1);
+        m_felix = m_graph.createFramework(null);
+        m_felix.start();
+        m_context = m_felix.getBundleContext();
+
+        m_filters = new String[m_services];
+        for (int i = 0; i < m_services; i++)
+        {
+            Hashtable props = new Hashtable();
+            props.put("id", new Integer(i));
+            props.put("group", "g" + (i % 10));
+            m_context.registerService(Runnable.class.getName(), new Task(), props);
+            m_filters[i] = "(id=" + i + ")";
+        }
+        m_ref = m_context.getServiceReferences(
+            Runnable.class.getName(), "(id=" + (m_services / 2) + ")")[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BundleGraph.stop(m_felix);
+        m_graph.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Lookups
+    {
+        int m_next = 0;
+    }
+
+    @Benchmark
+    public void registerUnregister()
+    {
+        ServiceRegistration reg = m_context.registerService(
+            Runnable.class.getName(), new Task(), null);
+        reg.unregister();
+    }
+
+    @Benchmark
+    public ServiceReference[] lookupById(Lookups lookups) throws InvalidSyntaxException
+    {
+        int next = lookups.m_next++;
+        return m_context.getServiceReferences(
+            Runnable.class.getName(), m_filters[next % m_filters.length]);
+    }
+
+    @Benchmark
+    public ServiceReference[] lookupByGroup() throws InvalidSyntaxException
+    {
+        return m_context.getServiceReferences(Runnable.class.getName(), "(group=g3)");
+    }
+
+    @Benchmark
+    public ServiceReference lookupByClass()
+    {
+        return m_context.getServiceReference(Runnable.class.getName());
+    }
+
+    @Benchmark
+    public Object getUngetService()
+    {
+        Object svc = m_context.getService(m_ref);
+        m_context.ungetService(m_ref);
+        return svc;
+    }
+
+    public static class Task implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+}
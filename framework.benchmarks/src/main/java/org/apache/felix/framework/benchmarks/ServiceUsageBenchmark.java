@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how getting and ungetting services scales with 1, 8 and 32
+ * threads, each acting for a bundle of its own. The threads either use
+ * unrelated services, one per thread, which must not contend with each
+ * other, or all use the same service. The <tt>churn</tt> group measures
+ * service lookups by six threads while two other threads keep registering
+ * and unregistering services.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceUsageBenchmark
+{
+    private static final int CONSUMERS = 32;
+
+    private BundleGraph m_graph;
+    private Felix m_felix;
+    private BundleContext[] m_contexts;
+    private ServiceReference[] m_refs;
+    private final AtomicInteger m_nextConsumer = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_graph = new BundleGraph(CONSUMERS);
+        m_felix = m_graph.createFramework(null);
+        m_felix.start();
+
+        List<Bundle> bundles = m_graph.install(m_felix);
+        m_contexts = new BundleContext[CONSUMERS];
+        m_refs = new ServiceReference[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++)
+        {
+            bundles.get(i).start();
+            m_contexts[i] = bundles.get(i).getBundleContext();
+
+            Hashtable props = new Hashtable();
+            props.put("id", new Integer(i));
+            m_refs[i] = m_felix.getBundleContext().registerService(
+                Runnable.class.getName(), new Task(), props).getReference();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        BundleGraph.stop(m_felix);
+        m_graph.delete();
+    }
+
+    /**
+     * The bundle a thread acts for and the service only it uses.
+    **/
+    @State(Scope.Thread)
+    public static class Consumer
+    {
+        BundleContext m_context;
+        ServiceReference m_ref;
+        int m_next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(ServiceUsageBenchmark bench)
+        {
+            int i = bench.m_nextConsumer.getAndIncrement() % CONSUMERS;
+            m_context = bench.m_contexts[i];
+            m_ref = bench.m_refs[i];
+        }
+    }
+
+    private static Object getUnget(BundleContext context, ServiceReference ref)
+    {
+        Object svc = context.getService(ref);
+        context.ungetService(ref);
+        return svc;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object getUngetUnrelated1(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, consumer.m_ref);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object getUngetUnrelated8(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, consumer.m_ref);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object getUngetUnrelated32(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, consumer.m_ref);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object getUngetShared1(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, m_refs[0]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object getUngetShared8(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, m_refs[0]);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object getUngetShared32(Consumer consumer)
+    {
+        return getUnget(consumer.m_context, m_refs[0]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void churnRegister(Consumer consumer)
+    {
+        ServiceRegistration reg = consumer.m_context.registerService(
+            Runnable.class.getName(), new Task(), null);
+        reg.unregister();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(6)
+    public ServiceReference[] churnLookup(Consumer consumer) throws InvalidSyntaxException
+    {
+        int next = consumer.m_next++;
+        return consumer.m_context.getServiceReferences(
+            Runnable.class.getName(), "(id=" + (next % CONSUMERS) + ")");
+    }
+
+    public static class Task implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Constants;
+import org.osgi.service.url.AbstractURLStreamHandlerService;
+import org.osgi.service.url.URLConstants;
+import org.osgi.service.url.URLStreamHandlerService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of creating URLs through the URL Handlers service
+ * of a running framework with 1, 8 and 32 threads. The "bundle" protocol is
+ * handled by the framework itself, "bench" by a stream handler service and
+ * "http" by the built-in handler, which is found through the proxy after
+ * looking for a stream handler service.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class URLHandlersBenchmark
+{
+    @Param({ "bundle", "bench", "http" })
+    public String m_protocol;
+
+    private File m_dir;
+    private Felix m_felix;
+    private String m_spec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-bench", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_STORAGE, m_dir.getPath());
+        params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        m_felix = new Felix(params);
+        m_felix.start();
+
+        Hashtable props = new Hashtable();
+        props.put(URLConstants.URL_HANDLER_PROTOCOL, "bench");
+        m_felix.getBundleContext().registerService(
+            URLStreamHandlerService.class.getName(), new BenchHandler(), props);
+
+        m_spec = "bundle".equals(m_protocol)
+            ? "bundle://0.0:1/org/apache/felix/bench/resource.txt"
+            : m_protocol + "://localhost/org/apache/felix/bench/resource.txt";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_dir);
+    }
+
+    private static void deleteDir(File root)
+    {
+        File[] files = root.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+        {
+            deleteDir(files[i]);
+        }
+        root.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public URL createURL1() throws MalformedURLException
+    {
+        return new URL(m_spec);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public URL createURL8() throws MalformedURLException
+    {
+        return new URL(m_spec);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public URL createURL32() throws MalformedURLException
+    {
+        return new URL(m_spec);
+    }
+
+    public static class BenchHandler extends AbstractURLStreamHandlerService
+    {
+        public URLConnection openConnection(URL u) throws IOException
+        {
+            throw new IOException("Not supported.");
+        }
+    }
+}
@@ -28,11 +28,14 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import org.apache.felix.framework.cache.BundleArchiveRevision;
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.apache.felix.framework.util.manifestparser.ParsedManifest;
 import org.apache.felix.framework.util.manifestparser.R4Library;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleException;
@@ -109,17 +112,24 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     BundleRevisionImpl(
         Bundle bundle, String id, Map headerMap, Content content)
         throws BundleException
+    {
+        this(bundle, id, headerMap, content, null);
+    }
+
+    BundleRevisionImpl(
+        Bundle bundle, String id, Map headerMap, Content content,
+        BundleArchiveRevision archiveRevision)
+        throws BundleException
     {
         m_bundle = bundle;
         m_id = id;
         m_headerMap = headerMap;
         m_content = content;
 
-        ManifestParser mp = new ManifestParser(
+        ManifestParser mp = parseManifest(
             ((BundleImpl) bundle).getFramework().getLogger(),
             ((BundleImpl) bundle).getFramework().getConfig(),
-            this,
-            m_headerMap);
+            archiveRevision);
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -141,6 +151,44 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
     }
 
+    // Reuses the parsed manifest stored with the archive revision, if any,
+    // otherwise parses the manifest and stores the result for next time.
+    private ManifestParser parseManifest(
+        Logger logger, Map configMap, BundleArchiveRevision archiveRevision)
+        throws BundleException
+    {
+        byte[] data = (archiveRevision != null)
+            ? archiveRevision.getParsedManifest() : null;
+        if (data != null)
+        {
+            try
+            {
+                ManifestParser mp = ParsedManifest.read(
+                    logger, configMap, this, m_headerMap, data);
+                if (mp != null)
+                {
+                    return mp;
+                }
+            }
+            catch (Exception ex)
+            {
+                logger.log(m_bundle, Logger.LOG_WARNING,
+                    "Unable to use stored manifest, parsing it again.", ex);
+            }
+        }
+
+        ManifestParser mp = new ManifestParser(logger, configMap, this, m_headerMap);
+        if (archiveRevision != null)
+        {
+            data = ParsedManifest.write(mp);
+            if (data != null)
+            {
+                archiveRevision.setParsedManifest(data);
+            }
+        }
+        return mp;
+    }
+
     static SecureAction getSecureAction()
     {
         return m_secureAction;
@@ -272,6 +320,17 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         return m_headerMap;
     }
 
+    /**
+     * Returns the interner of the framework of this revision, which is used
+     * to share the metadata of its capabilities and requirements.
+    **/
+    public Interner getInterner()
+    {
+        return (m_bundle instanceof BundleImpl)
+            ? ((BundleImpl) m_bundle).getFramework().getInterner()
+            : Interner.getDefault();
+    }
+
     public boolean isExtension()
     {
         return m_isExtension;
@@ -23,6 +23,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -40,12 +41,17 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
+import org.apache.felix.framework.cache.MappedJarContent;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.ResolveException;
 import org.apache.felix.framework.resolver.ResourceNotFoundException;
+import org.apache.felix.framework.util.BoundedCache;
 import org.apache.felix.framework.util.CompoundEnumeration;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ImmutableList;
@@ -152,6 +158,32 @@ public class BundleWiringImpl implements BundleWiring
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Maximum number of entries in each of the lookup caches below; the
+    // least recently used entries are evicted beyond this size.
+    private static final int LOOKUP_CACHE_SIZE = 4096;
+
+    // Thread local to count the class loading cycles detected by a thread;
+    // the lookup caches are not updated by searches during which a cycle
+    // was detected, since these may see partial results.
+    private static final ThreadLocal m_cycleCount = new ThreadLocal();
+
+    // Index from resource name to the revision that provided it via the
+    // required bundles or the local content.
+    private final BoundedCache<String, BundleRevision> m_resourceSources =
+        new BoundedCache<String, BundleRevision>(LOOKUP_CACHE_SIZE);
+    // Names of classes and resources not found by the imports, the required
+    // bundles, or the local content; the dynamic imports are still searched
+    // for them since they may change over time.
+    private final BoundedCache<String, Boolean> m_notFoundClasses =
+        new BoundedCache<String, Boolean>(LOOKUP_CACHE_SIZE);
+    private final BoundedCache<String, Boolean> m_notFoundResources =
+        new BoundedCache<String, Boolean>(LOOKUP_CACHE_SIZE);
+    // Statistics about the effectiveness of the lookup caches.
+    private final AtomicLong m_sourceIndexHits = new AtomicLong();
+    private final AtomicLong m_sourceIndexMisses = new AtomicLong();
+    private final AtomicLong m_notFoundHits = new AtomicLong();
+    private final AtomicLong m_notFoundMisses = new AtomicLong();
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -485,6 +517,7 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        clearLookupCaches();
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -647,6 +680,9 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // The new package source takes precedence over the local content
+        // and must now be searched, so the lookup caches are stale.
+        clearLookupCaches();
     }
 
     public BundleRevision getResource()
@@ -1458,8 +1494,10 @@ public class BundleWiringImpl implements BundleWiring
             requestSet = new HashSet();
             m_cycleCheck.set(requestSet);
         }
+        int[] cycleCount = getCycleCount();
         if (requestSet.add(name))
         {
+            int cyclesBefore = cycleCount[0];
             try
             {
                 // Get the package of the target class/resource.
@@ -1496,39 +1534,72 @@ public class BundleWiringImpl implements BundleWiring
                     }
                 }
 
-                // Look in the revision's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
-
-                // If not found, try the revision's own class path.
-                if (result == null)
+                // Skip the static package sources and the local content if
+                // we already know that they do not contain the target.
+                BoundedCache<String, Boolean> notFound = (isClass)
+                    ? m_notFoundClasses : m_notFoundResources;
+                if (notFound.containsKey(name))
+                {
+                    m_notFoundHits.incrementAndGet();
+                }
+                else
                 {
-                    if (isClass)
+                    m_notFoundMisses.incrementAndGet();
+
+                    // For resources, try the revision that provided the
+                    // resource the last time first.
+                    if (!isClass)
                     {
-                        ClassLoader cl = getClassLoaderInternal();
-                        if (cl == null)
-                        {
-                            throw new ClassNotFoundException(
-                                "Unable to load class '"
-                                + name
-                                + "' because the bundle wiring for "
-                                + m_revision.getSymbolicName()
-                                + " is no longer valid.");
-                        }
-                        result = (Object) ((BundleClassLoader) cl).findClass(name);
+                        result = searchResourceSource(name);
                     }
-                    else
+
+                    // Look in the revision's imports. Note that the search may
+                    // be aborted if this method throws an exception, otherwise
+                    // it continues if a null is returned.
+                    if (result == null)
                     {
-                        result = (Object) m_revision.getResourceLocal(name);
+                        result = searchImports(pkgName, name, isClass, cyclesBefore);
                     }
 
-                    // If still not found, then try the revision's dynamic imports.
+                    // If not found, try the revision's own class path.
                     if (result == null)
                     {
-                        result = searchDynamicImports(pkgName, name, isClass);
+                        if (isClass)
+                        {
+                            ClassLoader cl = getClassLoaderInternal();
+                            if (cl == null)
+                            {
+                                throw new ClassNotFoundException(
+                                    "Unable to load class '"
+                                    + name
+                                    + "' because the bundle wiring for "
+                                    + m_revision.getSymbolicName()
+                                    + " is no longer valid.");
+                            }
+                            result = (Object) ((BundleClassLoader) cl).findClass(name);
+                        }
+                        else
+                        {
+                            result = (Object) m_revision.getResourceLocal(name);
+                            if ((result != null) && (cycleCount[0] == cyclesBefore))
+                            {
+                                m_resourceSources.put(name, m_revision);
+                            }
+                        }
+
+                        // Remember that the name is not found statically.
+                        if ((result == null) && (cycleCount[0] == cyclesBefore))
+                        {
+                            notFound.put(name, Boolean.TRUE);
+                        }
                     }
                 }
+
+                // If still not found, then try the revision's dynamic imports.
+                if (result == null)
+                {
+                    result = searchDynamicImports(pkgName, name, isClass);
+                }
             }
             finally
             {
@@ -1540,6 +1611,7 @@ public class BundleWiringImpl implements BundleWiring
             // If a cycle is detected, we should return null to break the
             // cycle. This should only ever be return to internal class
             // loading code and not to the actual instigator of the class load.
+            cycleCount[0]++;
             return null;
         }
 
@@ -1560,7 +1632,29 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
-    private Object searchImports(String pkgName, String name, boolean isClass)
+    private Object searchResourceSource(String name)
+    {
+        BundleRevision source = m_resourceSources.get(name);
+        if (source != null)
+        {
+            Object result = (source == m_revision)
+                ? (Object) m_revision.getResourceLocal(name)
+                : (Object) ((BundleWiringImpl) source.getWiring()).getResourceByDelegation(name);
+            if (result != null)
+            {
+                m_sourceIndexHits.incrementAndGet();
+                return result;
+            }
+            // The source no longer provides the resource, so forget it
+            // and search all package sources again.
+            m_resourceSources.remove(name);
+        }
+        m_sourceIndexMisses.incrementAndGet();
+        return null;
+    }
+
+    private Object searchImports(
+        String pkgName, String name, boolean isClass, int cyclesBefore)
         throws ClassNotFoundException, ResourceNotFoundException
     {
         // Check if the package is imported.
@@ -1600,6 +1694,10 @@ public class BundleWiringImpl implements BundleWiring
                         : (Object) ((BundleWiringImpl) p.getWiring()).getResourceByDelegation(name);
                     if (result != null)
                     {
+                        if (!isClass && (getCycleCount()[0] == cyclesBefore))
+                        {
+                            m_resourceSources.put(name, p);
+                        }
                         return result;
                     }
                 }
@@ -1616,6 +1714,82 @@ public class BundleWiringImpl implements BundleWiring
         return null;
     }
 
+    private static int[] getCycleCount()
+    {
+        int[] cycleCount = (int[]) m_cycleCount.get();
+        if (cycleCount == null)
+        {
+            cycleCount = new int[1];
+            m_cycleCount.set(cycleCount);
+        }
+        return cycleCount;
+    }
+
+    private void clearLookupCaches()
+    {
+        m_resourceSources.clear();
+        m_notFoundClasses.clear();
+        m_notFoundResources.clear();
+    }
+
+    /**
+     * Returns the number of entries in the lookup caches of this wiring.
+    **/
+    int getLookupCacheSize()
+    {
+        return m_resourceSources.size()
+            + m_notFoundClasses.size() + m_notFoundResources.size();
+    }
+
+    /**
+     * Returns the number of resource lookups that were satisfied by the
+     * revision that provided the resource previously.
+    **/
+    public long getSourceIndexHits()
+    {
+        return m_sourceIndexHits.get();
+    }
+
+    /**
+     * Returns the number of resource lookups for which no previous
+     * provider was known or the previous provider did not provide it anymore.
+    **/
+    public long getSourceIndexMisses()
+    {
+        return m_sourceIndexMisses.get();
+    }
+
+    /**
+     * Returns the number of class and resource lookups for which the search of
+     * the static package sources and the local content was skipped since the
+     * name is known not to be found there.
+    **/
+    public long getNotFoundCacheHits()
+    {
+        return m_notFoundHits.get();
+    }
+
+    /**
+     * Returns the number of class and resource lookups that were not known to
+     * be missing and thus searched the static package sources and the local
+     * content.
+    **/
+    public long getNotFoundCacheMisses()
+    {
+        return m_notFoundMisses.get();
+    }
+
+    /**
+     * Resets the lookup statistics of this wiring.
+    **/
+    void resetLookupStatistics()
+    {
+        m_sourceIndexHits.set(0);
+        m_sourceIndexMisses.set(0);
+        m_notFoundHits.set(0);
+        m_notFoundMisses.set(0);
+    }
+
     private Object searchDynamicImports(
         final String pkgName, final String name, final boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
@@ -1927,7 +2101,10 @@ public class BundleWiringImpl implements BundleWiring
         private Object[][] m_cachedLibs = new Object[0][];
         private static final int LIBNAME_IDX = 0;
         private static final int LIBPATH_IDX = 1;
-        private final Map<String, Thread> m_classLocks = new HashMap<String, Thread>();
+        // Locks of the classes currently being defined by this class loader,
+        // which allows independent classes to be defined in parallel.
+        private final ConcurrentMap<String, ClassLock> m_classLocks =
+            new ConcurrentHashMap<String, ClassLock>();
         private BundleWiringImpl m_wiring;
 
         public BundleClassLoader(BundleWiringImpl wiring, ClassLoader parent)
@@ -1961,10 +2138,7 @@ public class BundleWiringImpl implements BundleWiring
             Class clazz;
 
             // Make sure the class was not already loaded.
-            synchronized (m_classLocks)
-            {
-                clazz = findLoadedClass(name);
-            }
+            clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
@@ -1979,6 +2153,12 @@ public class BundleWiringImpl implements BundleWiring
                 }
                 catch (ClassNotFoundException cnfe)
                 {
+                    FrameworkMetrics metrics = ((BundleImpl) m_wiring.m_revision
+                        .getBundle()).getFramework().getMetrics();
+                    if (metrics != null)
+                    {
+                        metrics.classNotFound();
+                    }
                     ClassNotFoundException ex = cnfe;
                     if (m_wiring.m_logger.getLogLevel() >= Logger.LOG_DEBUG)
                     {
@@ -2001,6 +2181,23 @@ public class BundleWiringImpl implements BundleWiring
 
         @Override
         protected Class findClass(String name) throws ClassNotFoundException
+        {
+            FrameworkMetrics metrics = ((BundleImpl) m_wiring.m_revision
+                .getBundle()).getFramework().getMetrics();
+            if (metrics == null)
+            {
+                return findClassInContent(name);
+            }
+            long start = System.nanoTime();
+            Class clazz = findClassInContent(name);
+            if (clazz != null)
+            {
+                metrics.classLoaded(m_wiring.m_revision.getBundle(), System.nanoTime() - start);
+            }
+            return clazz;
+        }
+
+        private Class findClassInContent(String name) throws ClassNotFoundException
         {
             Class clazz = null;
 
@@ -2025,19 +2222,29 @@ public class BundleWiringImpl implements BundleWiring
                 String actual = name.replace('.', '/') + ".class";
 
                 byte[] bytes = null;
+                // Mapped JAR contents provide the class bytes as a buffer,
+                // which avoids copying them before defining the class.
+                ByteBuffer buffer = null;
 
                 // Check the bundle class path.
                 List<Content> contentPath = m_wiring.m_revision.getContentPath();
                 Content content = null;
                 for (int i = 0;
-                    (bytes == null) &&
+                    (bytes == null) && (buffer == null) &&
                     (i < contentPath.size()); i++)
                 {
-                    bytes = contentPath.get(i).getEntryAsBytes(actual);
                     content = contentPath.get(i);
+                    if (content instanceof MappedJarContent)
+                    {
+                        buffer = ((MappedJarContent) content).getEntryAsByteBuffer(actual);
+                    }
+                    else
+                    {
+                        bytes = content.getEntryAsBytes(actual);
+                    }
                 }
 
-                if (bytes != null)
+                if ((bytes != null) || (buffer != null))
                 {
                     // Get package name.
                     String pkgName = Util.getClassPackage(name);
@@ -2055,6 +2262,14 @@ public class BundleWiringImpl implements BundleWiring
                     WovenClassImpl wci = null;
                     if (!hooks.isEmpty())
                     {
+                        // Weaving hooks need the class bytes as an array.
+                        if (buffer != null)
+                        {
+                            bytes = new byte[buffer.remaining()];
+                            buffer.get(bytes);
+                            ((MappedJarContent) content).release(buffer);
+                            buffer = null;
+                        }
                         // Create woven class to be used for hooks.
                         wci = new WovenClassImpl(name, m_wiring, bytes);
                         // Loop through hooks in service ranking order.
@@ -2103,31 +2318,10 @@ public class BundleWiringImpl implements BundleWiring
                     }
 
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
+                    // the lock for this class name and make sure than no
                     // other thread has defined this class in the meantime.
-                    synchronized (m_classLocks)
-                    {
-                        Thread me = Thread.currentThread();
-                        while (m_classLocks.containsKey(name) && (m_classLocks.get(name) != me))
-                        {
-                            try
-                            {
-                                m_classLocks.wait();
-                            }
-                            catch (InterruptedException e)
-                            {
-                                // TODO: WHAT TO DO HERE?
-                                throw new RuntimeException(e);
-                            }
-                        }
-                        // Lock released, try loading class.
-                        clazz = findLoadedClass(name);
-                        if (clazz == null)
-                        {
-                            // Not found, we should try load it.
-                            m_classLocks.put(name, me);
-                        }
-                    }
+                    ClassLock lock = lockClass(name);
+                    clazz = findLoadedClass(name);
 
                     byte[] wovenBytes = null;
                     Class wovenClass = null;
@@ -2292,7 +2486,12 @@ public class BundleWiringImpl implements BundleWiring
                                 // If we have a security context, then use it to
                                 // define the class with it for security purposes,
                                 // otherwise define the class without a protection domain.
-                                if (m_wiring.m_revision.getProtectionDomain() != null)
+                                if (buffer != null)
+                                {
+                                    clazz = defineClass(name, buffer,
+                                        m_wiring.m_revision.getProtectionDomain());
+                                }
+                                else if (m_wiring.m_revision.getProtectionDomain() != null)
                                 {
                                     clazz = defineClass(name, bytes, 0, bytes.length,
                                         m_wiring.m_revision.getProtectionDomain());
@@ -2324,11 +2523,14 @@ public class BundleWiringImpl implements BundleWiring
                             wci.complete(wovenClass, wovenBytes, wovenImports);
                         }
 
-                        synchronized (m_classLocks)
+                        // Allow the mapped JAR file to be unmapped once
+                        // its content is closed.
+                        if (buffer != null)
                         {
-                            m_classLocks.remove(name);
-                            m_classLocks.notifyAll();
+                            ((MappedJarContent) content).release(buffer);
                         }
+
+                        unlockClass(name, lock);
                     }
 
                     // Perform deferred activation without holding the class loader lock,
@@ -2365,6 +2567,59 @@ public class BundleWiringImpl implements BundleWiring
             return clazz;
         }
 
+        /**
+         * Acquires the lock for defining the specified class, waiting while
+         * another thread holds it.
+         * @param name the name of the class to lock.
+         * @return the acquired lock or <tt>null</tt> if the current thread
+         *         already holds the lock.
+        **/
+        private ClassLock lockClass(String name)
+        {
+            Thread me = Thread.currentThread();
+            ClassLock lock = new ClassLock(me);
+            while (true)
+            {
+                ClassLock existing = m_classLocks.putIfAbsent(name, lock);
+                if (existing == null)
+                {
+                    return lock;
+                }
+                else if (existing.m_owner == me)
+                {
+                    return null;
+                }
+                synchronized (existing)
+                {
+                    while (!existing.m_released)
+                    {
+                        try
+                        {
+                            existing.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // TODO: WHAT TO DO HERE?
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void unlockClass(String name, ClassLock lock)
+        {
+            if (lock != null)
+            {
+                m_classLocks.remove(name, lock);
+                synchronized (lock)
+                {
+                    lock.m_released = true;
+                    lock.notifyAll();
+                }
+            }
+        }
+
         private Object[] definePackage(String pkgName)
         {
             String spectitle = (String) m_wiring.m_revision.getHeaders().get("Specification-Title");
@@ -2397,31 +2652,35 @@ public class BundleWiringImpl implements BundleWiring
 
             Object dexFile = null;
 
-            if (!m_jarContentToDexFile.containsKey(content))
+            // Classes may be defined in parallel, so guard the dex file map.
+            synchronized (m_jarContentToDexFile)
             {
-                try
+                if (!m_jarContentToDexFile.containsKey(content))
                 {
-                    if (m_dexFileClassLoadDex != null)
+                    try
                     {
-                        dexFile = m_dexFileClassLoadDex.invoke(null,
-                            new Object[]{content.getFile().getAbsolutePath(),
-                                content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        if (m_dexFileClassLoadDex != null)
+                        {
+                            dexFile = m_dexFileClassLoadDex.invoke(null,
+                                new Object[]{content.getFile().getAbsolutePath(),
+                                    content.getFile().getAbsolutePath() + ".dex", new Integer(0)});
+                        }
+                        else
+                        {
+                            dexFile = m_dexFileClassConstructor.newInstance(
+                                new Object[] { content.getFile() });
+                        }
                     }
-                    else
+                    finally
                     {
-                        dexFile = m_dexFileClassConstructor.newInstance(
-                            new Object[] { content.getFile() });
+                        m_jarContentToDexFile.put(content, dexFile);
                     }
                 }
-                finally
+                else
                 {
-                    m_jarContentToDexFile.put(content, dexFile);
+                    dexFile = m_jarContentToDexFile.get(content);
                 }
             }
-            else
-            {
-                dexFile = m_jarContentToDexFile.get(content);
-            }
 
             if (dexFile != null)
             {
@@ -2550,6 +2809,17 @@ public class BundleWiringImpl implements BundleWiring
         return url;
     }
 
+    private static class ClassLock
+    {
+        private final Thread m_owner;
+        private boolean m_released = false;
+
+        ClassLock(Thread owner)
+        {
+            m_owner = owner;
+        }
+    }
+
     private static class ResourceSource implements Comparable<ResourceSource>
     {
         public final String m_resource;
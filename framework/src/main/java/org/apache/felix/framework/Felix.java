@@ -22,6 +22,12 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
@@ -33,6 +39,7 @@ import org.apache.felix.framework.ext.SecurityProvider;
 import org.apache.felix.framework.resolver.ResolveException;
 import org.apache.felix.framework.util.EventDispatcher;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.ListenerInfo;
 import org.apache.felix.framework.util.MapToDictionary;
 import org.apache.felix.framework.util.SecureAction;
@@ -54,7 +61,6 @@ import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
-import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceException;
@@ -68,6 +74,7 @@ import org.osgi.framework.startlevel.FrameworkStartLevel;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRevision;
 import org.osgi.framework.wiring.BundleRevisions;
+import org.osgi.framework.wiring.BundleWire;
 import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.service.packageadmin.ExportedPackage;
@@ -90,6 +97,8 @@ public class Felix extends BundleImpl implements Framework
     private final Map m_configMap;
     // Mutable configuration properties passed into constructor.
     private final Map m_configMutableMap;
+    // Interner for the metadata of the bundles of this framework.
+    private final Interner m_interner = new Interner();
 
     // Resolver and resolver state.
     private final StatefulResolver m_resolver;
@@ -141,6 +150,21 @@ public class Felix extends BundleImpl implements Framework
     // Keep track of bundles currently being processed by start level thread.
     private final SortedSet<StartLevelTuple> m_startLevelBundles =
         new TreeSet<StartLevelTuple>();
+    // Number of threads used to start the bundles of a start level
+    // concurrently; one means that bundles are started one at a time.
+    private final int m_startLevelThreads;
+    // Flag indicating whether the bundles affected by a refresh are
+    // determined from the stale wirings, see getRefreshClosure().
+    private final boolean m_incrementalRefresh;
+    // Accumulated time and number of refreshed bundles of all refreshes,
+    // which is used to estimate the time of a refresh; guarded by the
+    // global lock.
+    private long m_refreshTime = 0;
+    private long m_refreshCount = 0;
+    // Metrics of the hot paths or null if disabled.
+    private final FrameworkMetrics m_metrics;
+    // Cache of service reference lookups or null if disabled.
+    private final ServiceLookupCache m_serviceLookupCache;
 
     // Local bundle cache.
     private BundleCache m_cache = null;
@@ -292,6 +316,59 @@ public class Felix extends BundleImpl implements Framework
      *       to consult the default java securtiy policy if no security extension
      *       is present. The default value is "<tt>false</tt>".
      *   </li>
+     *   <li><tt>felix.eventdispatcher.threads</tt> - The number of threads
+     *       used to deliver asynchronous framework and bundle events. If set
+     *       to a positive value, the framework uses its own thread pool in
+     *       which events are delivered in order for each listener while
+     *       different listeners are notified in parallel. The default value
+     *       is zero, which means a single dispatch thread shared by all
+     *       framework instances is used.
+     *   </li>
+     *   <li><tt>felix.startlevel.threads</tt> - The number of threads used
+     *       to start the bundles of the same start level concurrently when
+     *       the active start level is raised. All bundles of a start level
+     *       are started before any bundle of the next start level. The
+     *       default value is one, which means that bundles are started one
+     *       at a time.
+     *   </li>
+     *   <li><tt>felix.resolver.cache</tt> - Flag to indicate whether the
+     *       wires of resolved bundles are stored in the bundle cache when the
+     *       framework stops, so that they can be reused instead of resolving
+     *       the bundles again when the framework is restarted without any
+     *       changes to the installed bundles or the configuration. The
+     *       default value is "<tt>false</tt>".
+     *   </li>
+     *   <li><tt>felix.resolver.parallelism</tt> - The maximum number of
+     *       candidate permutations the resolver checks in parallel when it
+     *       needs to resolve conflicting constraints. The default value is
+     *       one, which means that permutations are checked one at a time.
+     *   </li>
+     *   <li><tt>felix.resolver.timeout</tt> - The maximum time in
+     *       milliseconds the resolver spends checking candidate permutations
+     *       before it gives up on a resolve. The default value is zero,
+     *       which means that there is no limit.
+     *   </li>
+     *   <li><tt>felix.refresh.incremental</tt> - Flag to indicate whether
+     *       the bundles affected by a refresh are determined from the wirings
+     *       that actually become stale, i.e., the wirings in use with wires
+     *       to a revision of a refreshed bundle, instead of all dependencies
+     *       ever recorded for the refreshed bundles. The targets of a refresh
+     *       are always refreshed. The default value is "<tt>false</tt>".
+     *   </li>
+     *   <li><tt>felix.service.lookupcache</tt> - The maximum number of
+     *       service reference lookups whose results are cached by bundle,
+     *       class name and filter, until any service or bundle wiring
+     *       changes. Lookups are not cached while service find hooks are
+     *       registered. The default value is zero, which means that no
+     *       lookups are cached.
+     *   </li>
+     *   <li><tt>felix.metrics</tt> - Flag to indicate whether the framework
+     *       collects metrics about class loading, resolving, the service
+     *       registry and event delivery. The metrics are registered as a
+     *       service, which provides the <tt>felix:metrics</tt> shell
+     *       command, and as an MBean. The default value is
+     *       "<tt>false</tt>".
+     *   </li>
      * </ul>
      * <p>
      * The <a href="Main.html"><tt>Main</tt></a> class implements some
@@ -404,7 +481,58 @@ public class Felix extends BundleImpl implements Framework
         });
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        int dispatchThreads = 0;
+        try
+        {
+            String threads = (m_configMap == null)
+                ? null
+                : (String) m_configMap.get(FelixConstants.EVENTDISPATCHER_THREADS_PROP);
+            dispatchThreads = (threads == null) ? 0 : Integer.parseInt(threads.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just use the shared dispatch thread.
+        }
+        // The event dispatcher keeps listener statistics for the metrics.
+        m_metrics = ((m_configMap != null) && "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.METRICS_PROP)))
+            ? new FrameworkMetrics(this, m_registry) : null;
+        m_dispatcher = new EventDispatcher(m_logger, m_registry, dispatchThreads,
+            m_metrics != null);
+
+        // Determine how many bundles of a start level are started concurrently.
+        int startLevelThreads = 1;
+        try
+        {
+            String threads = (m_configMap == null)
+                ? null
+                : (String) m_configMap.get(FelixConstants.STARTLEVEL_THREADS_PROP);
+            startLevelThreads = (threads == null) ? 1 : Integer.parseInt(threads.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just start bundles one at a time.
+        }
+        m_startLevelThreads = (startLevelThreads > 1) ? startLevelThreads : 1;
+
+        m_incrementalRefresh = (m_configMap != null) && "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.REFRESH_INCREMENTAL_PROP));
+
+        // Determine how many service reference lookups are cached.
+        int lookupCacheSize = 0;
+        try
+        {
+            String size = (m_configMap == null)
+                ? null
+                : (String) m_configMap.get(FelixConstants.SERVICE_LOOKUPCACHE_PROP);
+            lookupCacheSize = (size == null) ? 0 : Integer.parseInt(size.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just do not cache lookups.
+        }
+        m_serviceLookupCache = (lookupCacheSize > 0)
+            ? new ServiceLookupCache(lookupCacheSize) : null;
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -422,11 +550,26 @@ public class Felix extends BundleImpl implements Framework
         return m_configMap;
     }
 
+    Interner getInterner()
+    {
+        return m_interner;
+    }
+
     StatefulResolver getResolver()
     {
         return m_resolver;
     }
 
+    FrameworkMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+
+    EventDispatcher getEventDispatcher()
+    {
+        return m_dispatcher;
+    }
+
     BundleRevisionDependencies getDependencies()
     {
         return m_dependencies;
@@ -671,6 +814,24 @@ public class Felix extends BundleImpl implements Framework
                     }
                 }
 
+                // Enable the persisted resolver wires, if configured.
+                ResolverCache resolverCache = null;
+                if ("true".equalsIgnoreCase(
+                    (String) m_configMap.get(FelixConstants.RESOLVER_CACHE_PROP)))
+                {
+                    try
+                    {
+                        resolverCache = new ResolverCache(m_logger,
+                            m_cache.getSystemBundleDataFile("resolver.cache"));
+                    }
+                    catch (Exception ex)
+                    {
+                        m_logger.log(Logger.LOG_WARNING,
+                            "Unable to access resolver cache.", ex);
+                    }
+                }
+                m_resolver.setResolverCache(resolverCache);
+
                 // Initialize installed bundle data structures.
                 Map[] maps = new Map[] {
                     new HashMap<String, BundleImpl>(1),
@@ -783,6 +944,10 @@ public class Felix extends BundleImpl implements Framework
                 // Start services
                 m_fwkWiring.start();
                 m_fwkStartLevel.start();
+                if (m_metrics != null)
+                {
+                    m_metrics.start();
+                }
 
                 try
                 {
@@ -932,6 +1097,9 @@ public class Felix extends BundleImpl implements Framework
 
         // Send a framework event to indicate the framework has started.
         fireFrameworkEvent(FrameworkEvent.STARTED, this, null);
+
+        m_logger.log(Logger.LOG_DEBUG,
+            "Manifest interning statistics: " + m_interner.getStatistics());
     }
 
     public void start(int options) throws BundleException
@@ -1214,126 +1382,95 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
-            // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
+            // Create the thread pool to start the bundles of a start level
+            // concurrently, if configured. Pool threads use the name of the
+            // start level thread, so that bundles are started the same way
+            // as on the start level thread itself.
+            ExecutorService executor = null;
+            if (!isLowering && (m_startLevelThreads > 1))
             {
-                StartLevelTuple tuple;
+                executor = Executors.newFixedThreadPool(
+                    m_startLevelThreads, new ThreadFactory() {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r, FrameworkStartLevelImpl.THREAD_NAME);
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            }
 
-                // Remove our tuple to be processed while holding the queue lock
-                // and update the active start level accordingly, which allows
-                // us to determine in startBundle() if concurrent requests to
-                // start a bundle should be handled synchronously or just added
-                // to the queue and handled asynchronously.
-                synchronized (m_startLevelBundles)
+            try
+            {
+                // Process bundles and stop or start them accordingly.
+                while (bundlesRemaining)
                 {
-                    if (isLowering)
-                    {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
-
-                    if ((tuple.m_level >= low) && (tuple.m_level <= high))
-                    {
-                        m_activeStartLevel = tuple.m_level;
-                    }
-                }
+                    List<StartLevelTuple> tuples;
 
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
-                {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
+                    // Remove our tuples to be processed while holding the queue
+                    // lock and update the active start level accordingly, which
+                    // allows us to determine in startBundle() if concurrent
+                    // requests to start a bundle should be handled synchronously
+                    // or just added to the queue and handled asynchronously.
+                    synchronized (m_startLevelBundles)
                     {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        StartLevelTuple tuple;
+                        if (isLowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuple = m_startLevelBundles.last();
                         }
                         else
                         {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
+                            tuple = m_startLevelBundles.first();
                         }
-                        continue;
-                    }
 
-                    try
-                    {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        if ((tuple.m_level >= low) && (tuple.m_level <= high))
                         {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_activeStartLevel = tuple.m_level;
                         }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+
+                        // When starting bundles concurrently, process all
+                        // bundles of the active start level at once.
+                        tuples = new ArrayList<StartLevelTuple>();
+                        if ((executor != null) && (tuple.m_level == m_activeStartLevel))
                         {
-                            try
+                            for (StartLevelTuple t : m_startLevelBundles)
                             {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
+                                if (t.m_level == tuple.m_level)
+                                {
+                                    tuples.add(t);
+                                }
                             }
                         }
+                        else
+                        {
+                            tuples.add(tuple);
+                        }
                     }
-                    finally
+
+                    List<StartLevelTuple> processed;
+                    if (tuples.size() > 1)
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        processed = processStartLevelTuples(executor, tuples, isLowering);
+                    }
+                    else
+                    {
+                        processed = processStartLevelTuple(tuples.get(0), isLowering)
+                            ? tuples : Collections.EMPTY_LIST;
                     }
-                }
 
-                synchronized (m_startLevelBundles)
+                    synchronized (m_startLevelBundles)
+                    {
+                        m_startLevelBundles.removeAll(processed);
+                        bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    }
+                }
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1364,6 +1501,161 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts the bundles of the specified tuples concurrently using the
+     * specified thread pool and waits until all of them are processed.
+     * @param executor the thread pool to use.
+     * @param tuples the tuples of the bundles to start.
+     * @param isLowering whether the active start level is being lowered.
+     * @return the tuples that were processed and can be removed.
+    **/
+    private List<StartLevelTuple> processStartLevelTuples(
+        ExecutorService executor, List<StartLevelTuple> tuples, final boolean isLowering)
+    {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(tuples.size());
+        for (final StartLevelTuple tuple : tuples)
+        {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call()
+                {
+                    return Boolean.valueOf(processStartLevelTuple(tuple, isLowering));
+                }
+            }));
+        }
+
+        // Wait for all bundles of the start level before moving on.
+        List<StartLevelTuple> processed = new ArrayList<StartLevelTuple>(tuples.size());
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                if (futures.get(i).get().booleanValue())
+                {
+                    processed.add(tuples.get(i));
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                // Keep waiting, since the start level must be completed
+                // before the next one is processed.
+                interrupted = true;
+                i--;
+            }
+            catch (ExecutionException ex)
+            {
+                // This should not happen, since processing a tuple does
+                // not throw exceptions, but log it just in case.
+                m_logger.log(tuples.get(i).m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error processing " + tuples.get(i).m_bundle._getLocation(),
+                    ex.getCause());
+                processed.add(tuples.get(i));
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return processed;
+    }
+
+    /**
+     * Starts or stops the bundle of the specified tuple if necessary for the
+     * active start level. Errors are reported as framework events.
+     * @param tuple the tuple of the bundle to process.
+     * @param isLowering whether the active start level is being lowered.
+     * @return <tt>true</tt> if the tuple was processed and can be removed,
+     *         <tt>false</tt> if it must be processed again.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() == 0)
+        {
+            return true;
+        }
+
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(tuple.m_bundle,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+                return false;
+            }
+            return true;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            // Note that we only attempt to start the bundle if
+            // its start level is equal to the active start level,
+            // which means we assume lower bundles are in the state
+            // they should be in (i.e., we won't attempt to restart
+            // them if they previously failed to start).
+            if (!isLowering
+                && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+// TODO: LAZY - Not sure if this is the best way...
+                    int options = Bundle.START_TRANSIENT;
+                    options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                        ? options | Bundle.START_ACTIVATION_POLICY
+                        : options;
+                    startBundle(tuple.m_bundle, options);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error starting " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+            // Stop the bundle if necessary.
+            else if (isLowering
+                && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+                    stopBundle(tuple.m_bundle, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error stopping " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(tuple.m_bundle);
+        }
+        return true;
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -3234,7 +3526,9 @@ public class Felix extends BundleImpl implements Framework
         throws InvalidSyntaxException
     {
         Filter oldFilter;
-        Filter newFilter = (f == null) ? null : FrameworkUtil.createFilter(f);
+        // Use our own filter implementation, since service listener filters
+        // are evaluated for every service event.
+        Filter newFilter = (f == null) ? null : new FilterImpl(f);
 
         oldFilter = m_dispatcher.addListener(
             bundle._getBundleContext(), ServiceListener.class, l, newFilter);
@@ -3446,6 +3740,26 @@ public class Felix extends BundleImpl implements Framework
         final String expr, final boolean checkAssignable)
         throws InvalidSyntaxException
     {
+        Set<ServiceReference<org.osgi.framework.hooks.service.FindHook>> findHooks =
+            m_registry.getHooks(org.osgi.framework.hooks.service.FindHook.class);
+
+        // Find hooks have to be called for every lookup, so results can
+        // only be cached if there are none.
+        ServiceLookupCache.Generation cached = null;
+        if ((m_serviceLookupCache != null) && findHooks.isEmpty())
+        {
+            // Get the modification counts before the lookup, so that the
+            // result is discarded if anything changes during the lookup.
+            cached = m_serviceLookupCache.getGeneration(
+                m_registry.getModCount(), m_resolver.getModCount());
+            ServiceReference[] refs =
+                cached.get(bundle, className, expr, checkAssignable);
+            if (refs != null)
+            {
+                return (refs.length > 0) ? refs : null;
+            }
+        }
+
         // Define filter if expression is not null.
         SimpleFilter filter = null;
         if (expr != null)
@@ -3481,8 +3795,6 @@ public class Felix extends BundleImpl implements Framework
         }
 
         // activate findhooks
-        Set<ServiceReference<org.osgi.framework.hooks.service.FindHook>> findHooks =
-            m_registry.getHooks(org.osgi.framework.hooks.service.FindHook.class);
         for (ServiceReference<org.osgi.framework.hooks.service.FindHook> sr : findHooks)
         {
             org.osgi.framework.hooks.service.FindHook fh = getService(this, sr);
@@ -3510,9 +3822,16 @@ public class Felix extends BundleImpl implements Framework
             }
         }
 
-        if (refList.size() > 0)
+        ServiceReference[] refs =
+            (ServiceReference[]) refList.toArray(new ServiceReference[refList.size()]);
+        if (cached != null)
+        {
+            cached.put(bundle, className, expr, checkAssignable, refs);
+        }
+
+        if (refs.length > 0)
         {
-            return (ServiceReference[]) refList.toArray(new ServiceReference[refList.size()]);
+            return refs;
         }
 
         return null;
@@ -3534,7 +3853,12 @@ public class Felix extends BundleImpl implements Framework
         BundleImpl bundle, String className, String expr, boolean checkAssignable)
         throws InvalidSyntaxException
     {
+        long start = (m_metrics != null) ? System.nanoTime() : 0;
         ServiceReference[] refs = getServiceReferences(bundle, className, expr, checkAssignable);
+        if (m_metrics != null)
+        {
+            m_metrics.serviceLookup(System.nanoTime() - start);
+        }
 
         Object sm = System.getSecurityManager();
 
@@ -4003,81 +4327,20 @@ public class Felix extends BundleImpl implements Framework
                 "Unable to acquire global lock for refresh.");
         }
 
-        // Determine set of bundles to refresh, which is all transitive
-        // dependencies of specified set or all transitive dependencies
-        // of all bundles if null is specified.
-        Collection<Bundle> newTargets = targets;
-        if (newTargets == null)
-        {
-            List<Bundle> list = new ArrayList<Bundle>();
-
-            // First add all uninstalled bundles.
-            for (int i = 0;
-                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
-                i++)
-            {
-                list.add(m_uninstalledBundles.get(i));
-            }
-
-            // Then add all updated bundles.
-            Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
-            while (iter.hasNext())
-            {
-                BundleImpl bundle = (BundleImpl) iter.next();
-                if (bundle.isRemovalPending())
-                {
-                    list.add(bundle);
-                }
-            }
-
-            if (!list.isEmpty())
-            {
-                newTargets = list;
-            }
-        }
-
-        // If there are targets, then find all dependencies for each one.
-        Set<Bundle> bundles = null;
-        if (newTargets != null)
-        {
-            // Create map of bundles that import the packages
-            // from the target bundles.
-            bundles = new HashSet<Bundle>();
-            for (Bundle target : newTargets)
-            {
-                // If anyone passes in a null bundle, then just
-                // ignore it.
-                if (target != null)
-                {
-                    // Add the current target bundle to the map of
-                    // bundles to be refreshed.
-                    bundles.add(target);
-                    // Add all importing bundles to map.
-                    populateDependentGraph((BundleImpl) target, bundles);
-                }
-            }
-        }
+        // Determine set of bundles to refresh.
+        Set<Bundle> bundles = getRefreshClosure(targets);
 
         // Now refresh each bundle.
         try
         {
             boolean restart = false;
 
-            Bundle systemBundle = this;
-
             // We need to restart the framework if either an extension bundle is
             // refreshed or the system bundle is refreshed and any extension bundle
             // has been updated or uninstalled.
             if (bundles != null)
             {
-                for (Bundle b : bundles)
-                {
-                    if ((systemBundle == b) || ((BundleImpl) b).isExtension())
-                    {
-                        restart = true;
-                        break;
-                    }
-                }
+                restart = isRestartRequired(bundles);
 
                 // If we need to restart the framework, then no reason to
                 // do a refresh.
@@ -4088,6 +4351,8 @@ public class Felix extends BundleImpl implements Framework
                     // been updated and/or removed as well as all bundles that import
                     // packages from these bundles.
 
+                    long start = System.nanoTime();
+
                     // Create refresh helpers for each bundle.
                     List<RefreshHelper> helpers = new ArrayList<RefreshHelper>(bundles.size());
                     for (Bundle b : bundles)
@@ -4128,6 +4393,9 @@ public class Felix extends BundleImpl implements Framework
                             helper.restart();
                         }
                     }
+
+                    m_refreshTime += System.nanoTime() - start;
+                    m_refreshCount += helpers.size();
                 }
                 else
                 {
@@ -4169,6 +4437,173 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Returns the bundles that would be affected by refreshing the specified
+     * bundles, without actually refreshing them. The result takes the
+     * <tt>felix.refresh.incremental</tt> configuration property into account
+     * and estimates the time of the refresh from the previous refreshes.
+     * @param targets the bundles to refresh or <tt>null</tt> for all bundles
+     *        that are uninstalled or updated.
+     * @return the preview of the refresh.
+    **/
+    public RefreshPreview previewRefresh(Collection<Bundle> targets)
+    {
+        Object sm = System.getSecurityManager();
+
+        if (sm != null)
+        {
+            ((SecurityManager) sm).checkPermission(
+                new AdminPermission(this, AdminPermission.RESOLVE));
+        }
+
+        // Acquire global lock.
+        boolean locked = acquireGlobalLock();
+        if (!locked)
+        {
+            throw new IllegalStateException(
+                "Unable to acquire global lock for refresh preview.");
+        }
+
+        try
+        {
+            Set<Bundle> bundles = getRefreshClosure(targets);
+            if (bundles == null)
+            {
+                bundles = Collections.EMPTY_SET;
+            }
+
+            Set<Bundle> active = new HashSet<Bundle>();
+            for (Bundle b : bundles)
+            {
+                if (b.getState() == Bundle.ACTIVE)
+                {
+                    active.add(b);
+                }
+            }
+
+            long estimate = (m_refreshCount > 0)
+                ? (m_refreshTime / m_refreshCount) * bundles.size() / 1000000
+                : -1;
+
+            return new RefreshPreview(
+                bundles, active, isRestartRequired(bundles), estimate);
+        }
+        finally
+        {
+            // Always release the global lock.
+            releaseGlobalLock();
+        }
+    }
+
+    // Calls to this method must have the global lock.
+    private Set<Bundle> getRefreshClosure(Collection<Bundle> targets)
+    {
+        // Determine set of bundles to refresh, which is all transitive
+        // dependencies of specified set or all transitive dependencies
+        // of all bundles if null is specified.
+        Collection<Bundle> newTargets = targets;
+        if (newTargets == null)
+        {
+            List<Bundle> list = new ArrayList<Bundle>();
+
+            // First add all uninstalled bundles.
+            for (int i = 0;
+                (m_uninstalledBundles != null) && (i < m_uninstalledBundles.size());
+                i++)
+            {
+                list.add(m_uninstalledBundles.get(i));
+            }
+
+            // Then add all updated bundles.
+            Iterator iter = m_installedBundles[LOCATION_MAP_IDX].values().iterator();
+            while (iter.hasNext())
+            {
+                BundleImpl bundle = (BundleImpl) iter.next();
+                if (bundle.isRemovalPending())
+                {
+                    list.add(bundle);
+                }
+            }
+
+            if (!list.isEmpty())
+            {
+                newTargets = list;
+            }
+        }
+
+        // If there are targets, then find all dependencies for each one.
+        Set<Bundle> bundles = null;
+        if (newTargets != null)
+        {
+            // Create map of bundles that import the packages
+            // from the target bundles.
+            bundles = new HashSet<Bundle>();
+            for (Bundle target : newTargets)
+            {
+                // If anyone passes in a null bundle, then just
+                // ignore it.
+                if (target != null)
+                {
+                    // Add the current target bundle to the map of
+                    // bundles to be refreshed.
+                    bundles.add(target);
+                    // Add all importing bundles to map.
+                    if (m_incrementalRefresh)
+                    {
+                        populateStaleGraph((BundleImpl) target, bundles);
+                    }
+                    else
+                    {
+                        populateDependentGraph((BundleImpl) target, bundles);
+                    }
+                }
+            }
+        }
+        return bundles;
+    }
+
+    // Calls to this method must have the global lock.
+    private void populateStaleGraph(BundleImpl bundle, Set<Bundle> set)
+    {
+        // Refreshing a bundle discards the wirings of all of its revisions,
+        // so every wiring in use with a wire to one of them becomes stale.
+        // For fragments, these are the wirings of their hosts.
+        for (BundleRevision revision
+            : bundle.adapt(BundleRevisions.class).getRevisions())
+        {
+            BundleWiring wiring = revision.getWiring();
+            boolean isFragment = Util.isFragment(revision);
+            List<BundleWire> wires = (wiring == null)
+                ? null
+                : (isFragment)
+                    ? wiring.getRequiredWires(null)
+                    : wiring.getProvidedWires(null);
+            for (int i = 0; (wires != null) && (i < wires.size()); i++)
+            {
+                BundleRevision stale = (isFragment)
+                    ? wires.get(i).getProvider()
+                    : wires.get(i).getRequirer();
+                if ((stale.getWiring() != null) && stale.getWiring().isInUse()
+                    && set.add(stale.getBundle()))
+                {
+                    populateStaleGraph((BundleImpl) stale.getBundle(), set);
+                }
+            }
+        }
+    }
+
+    private boolean isRestartRequired(Set<Bundle> bundles)
+    {
+        for (Bundle b : bundles)
+        {
+            if ((this == b) || ((BundleImpl) b).isExtension())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
     Collection<Bundle> getDependencyClosure(Collection<Bundle> targets)
     {
         // Acquire global lock.
@@ -4422,6 +4857,10 @@ public class Felix extends BundleImpl implements Framework
     **/
     private void fireServiceEvent(ServiceEvent event, Dictionary oldProps)
     {
+        if (m_metrics != null)
+        {
+            m_metrics.serviceChanged(event.getType());
+        }
         m_dispatcher.fireServiceEvent(event, oldProps, this);
     }
 
@@ -4671,6 +5110,11 @@ public class Felix extends BundleImpl implements Framework
             m_fwkWiring.stop();
             // Stop framework start level thread.
             m_fwkStartLevel.stop();
+            // Unregister the metrics service and MBean.
+            if (m_metrics != null)
+            {
+                m_metrics.stop();
+            }
 
             // Shutdown event dispatching queue.
             m_dispatcher.stopDispatching();
@@ -4717,6 +5161,10 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Persist the wires of the resolved bundles for the next
+            // framework session, if enabled.
+            m_resolver.saveResolverCache();
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
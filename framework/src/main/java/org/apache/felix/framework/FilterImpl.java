@@ -27,8 +27,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import org.apache.felix.framework.ServiceRegistrationImpl.ServiceReferenceImpl;
-import org.apache.felix.framework.capabilityset.CapabilitySet;
-import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.capabilityset.CompiledFilter;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
 import org.osgi.framework.Filter;
@@ -38,13 +37,15 @@ import org.osgi.framework.wiring.BundleRevision;
 
 public class FilterImpl implements Filter
 {
-    private final SimpleFilter m_filter;
+    // Compiled filters are shared by all filter objects with the same
+    // filter string.
+    private final CompiledFilter m_filter;
 
     public FilterImpl(String filterStr) throws InvalidSyntaxException
     {
         try
         {
-            m_filter = SimpleFilter.parse(filterStr);
+            m_filter = CompiledFilter.parse(filterStr);
         }
         catch (Throwable th)
         {
@@ -56,27 +57,27 @@ public class FilterImpl implements Filter
     {
         if (sr instanceof ServiceReferenceImpl)
         {
-            return CapabilitySet.matches((ServiceReferenceImpl) sr, m_filter);
+            return m_filter.matches((ServiceReferenceImpl) sr);
         }
         else
         {
-            return CapabilitySet.matches(new WrapperCapability(sr), m_filter);
+            return m_filter.matches(new WrapperCapability(sr));
         }
     }
 
     public boolean match(Dictionary<String, ? > dctnr)
     {
-        return CapabilitySet.matches(new WrapperCapability(dctnr, false), m_filter);
+        return m_filter.matches(new WrapperCapability(dctnr, false));
     }
 
     public boolean matchCase(Dictionary<String, ? > dctnr)
     {
-        return CapabilitySet.matches(new WrapperCapability(dctnr, true), m_filter);
+        return m_filter.matches(new WrapperCapability(dctnr, true));
     }
 
     public boolean matches(Map<String, ?> map)
     {
-        return CapabilitySet.matches(new WrapperCapability(map), m_filter);
+        return m_filter.matches(new WrapperCapability(map));
     }
 
     public boolean equals(Object o)
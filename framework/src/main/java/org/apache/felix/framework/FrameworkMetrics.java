@@ -0,0 +1,439 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.EventListener;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.util.EventDispatcher.ListenerStatistics;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Histogram;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Collects the metrics of the hot paths of the framework. An instance only
+ * exists if metrics are enabled, so the instrumented code only pays for a
+ * <tt>null</tt> check otherwise. The metrics are registered as a service,
+ * which provides the <tt>felix:metrics</tt> shell command, and as an MBean.
+**/
+public class FrameworkMetrics implements FrameworkMetricsMBean
+{
+    // The namespace of the capabilities of service registrations.
+    private static final String SERVICE_NAMESPACE = "service-reference";
+
+    private final Felix m_felix;
+    private final ServiceRegistry m_registry;
+
+    private final ConcurrentMap<Long, AtomicLong> m_classLoads =
+        new ConcurrentHashMap<Long, AtomicLong>();
+    private final Histogram m_classLoadTimes = new Histogram();
+    private final AtomicLong m_classNotFound = new AtomicLong();
+    private final Histogram m_resolveTimes = new Histogram();
+    private final AtomicLong m_resolveFailures = new AtomicLong();
+    private final AtomicLong m_registrations = new AtomicLong();
+    private final AtomicLong m_unregistrations = new AtomicLong();
+    private final Histogram m_lookupTimes = new Histogram();
+
+    private ServiceRegistration m_registration = null;
+    private ObjectName m_objectName = null;
+
+    FrameworkMetrics(Felix felix, ServiceRegistry registry)
+    {
+        m_felix = felix;
+        m_registry = registry;
+    }
+
+    void start()
+    {
+        Hashtable props = new Hashtable();
+        props.put("osgi.command.scope", "felix");
+        props.put("osgi.command.function", new String[] { "metrics" });
+        m_registration = m_registry.registerService(m_felix._getBundleContext(),
+            new String[] { FrameworkMetricsMBean.class.getName() },
+            this,
+            props);
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(
+                "org.apache.felix.framework:type=FrameworkMetrics,uuid="
+                + m_felix.getProperty(FelixConstants.FRAMEWORK_UUID));
+            server.registerMBean(
+                new StandardMBean(this, FrameworkMetricsMBean.class), name);
+            m_objectName = name;
+        }
+        catch (Throwable th)
+        {
+            // JMX may not be available on all platforms.
+            m_felix.getLogger().log(Logger.LOG_WARNING,
+                "Unable to register framework metrics MBean.", th);
+        }
+    }
+
+    void stop()
+    {
+        if (m_registration != null)
+        {
+            try
+            {
+                m_registration.unregister();
+            }
+            catch (IllegalStateException ex)
+            {
+                // The service was already unregistered.
+            }
+            m_registration = null;
+        }
+        if (m_objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_objectName);
+            }
+            catch (Throwable th)
+            {
+                m_felix.getLogger().log(Logger.LOG_WARNING,
+                    "Unable to unregister framework metrics MBean.", th);
+            }
+            m_objectName = null;
+        }
+    }
+
+    void classLoaded(Bundle bundle, long nanos)
+    {
+        Long id = new Long(bundle.getBundleId());
+        AtomicLong count = m_classLoads.get(id);
+        if (count == null)
+        {
+            count = new AtomicLong();
+            AtomicLong existing = m_classLoads.putIfAbsent(id, count);
+            count = (existing != null) ? existing : count;
+        }
+        count.incrementAndGet();
+        m_classLoadTimes.record(nanos);
+    }
+
+    void classNotFound()
+    {
+        m_classNotFound.incrementAndGet();
+    }
+
+    void resolved(long nanos, boolean success)
+    {
+        m_resolveTimes.record(nanos);
+        if (!success)
+        {
+            m_resolveFailures.incrementAndGet();
+        }
+    }
+
+    void serviceChanged(int type)
+    {
+        if (type == ServiceEvent.REGISTERED)
+        {
+            m_registrations.incrementAndGet();
+        }
+        else if (type == ServiceEvent.UNREGISTERING)
+        {
+            m_unregistrations.incrementAndGet();
+        }
+    }
+
+    void serviceLookup(long nanos)
+    {
+        m_lookupTimes.record(nanos);
+    }
+
+    public long getClassLoads()
+    {
+        return m_classLoadTimes.getCount();
+    }
+
+    public Map<Long, Long> getClassLoadsByBundle()
+    {
+        Map<Long, Long> result = new TreeMap<Long, Long>();
+        for (Entry<Long, AtomicLong> entry : m_classLoads.entrySet())
+        {
+            result.put(entry.getKey(), new Long(entry.getValue().get()));
+        }
+        return result;
+    }
+
+    public String getClassLoadTimes()
+    {
+        return m_classLoadTimes.toString();
+    }
+
+    public long getClassNotFound()
+    {
+        return m_classNotFound.get();
+    }
+
+    public long getResolves()
+    {
+        return m_resolveTimes.getCount();
+    }
+
+    public String getResolveTimes()
+    {
+        return m_resolveTimes.toString();
+    }
+
+    public long getResolveFailures()
+    {
+        return m_resolveFailures.get();
+    }
+
+    public long getServiceRegistrations()
+    {
+        return m_registrations.get();
+    }
+
+    public long getServiceUnregistrations()
+    {
+        return m_unregistrations.get();
+    }
+
+    public long getServiceLookups()
+    {
+        return m_lookupTimes.getCount();
+    }
+
+    public String getServiceLookupTimes()
+    {
+        return m_lookupTimes.toString();
+    }
+
+    public int getEventQueueDepth()
+    {
+        return m_felix.getEventDispatcher().getAsyncQueueDepth();
+    }
+
+    public String getListenerTimes()
+    {
+        long deliveries = 0;
+        long totalLatency = 0;
+        long maxLatency = 0;
+        for (ListenerStatistics stats
+            : m_felix.getEventDispatcher().getListenerStatistics().values())
+        {
+            deliveries += stats.getDeliveries();
+            totalLatency += stats.getTotalLatency();
+            maxLatency = Math.max(maxLatency, stats.getMaxLatency());
+        }
+        return "count=" + deliveries
+            + ", mean=" + micros((deliveries == 0) ? 0 : totalLatency / deliveries)
+            + ", max=" + micros(maxLatency);
+    }
+
+    public long getSourceIndexHits()
+    {
+        long hits = 0;
+        for (BundleWiringImpl wiring : getWirings())
+        {
+            hits += wiring.getSourceIndexHits();
+        }
+        return hits;
+    }
+
+    public long getSourceIndexMisses()
+    {
+        long misses = 0;
+        for (BundleWiringImpl wiring : getWirings())
+        {
+            misses += wiring.getSourceIndexMisses();
+        }
+        return misses;
+    }
+
+    public double getSourceIndexHitRatio()
+    {
+        return ratio(getSourceIndexHits(), getSourceIndexMisses());
+    }
+
+    public long getNotFoundCacheHits()
+    {
+        long hits = 0;
+        for (BundleWiringImpl wiring : getWirings())
+        {
+            hits += wiring.getNotFoundCacheHits();
+        }
+        return hits;
+    }
+
+    public long getNotFoundCacheMisses()
+    {
+        long misses = 0;
+        for (BundleWiringImpl wiring : getWirings())
+        {
+            misses += wiring.getNotFoundCacheMisses();
+        }
+        return misses;
+    }
+
+    public double getNotFoundCacheHitRatio()
+    {
+        return ratio(getNotFoundCacheHits(), getNotFoundCacheMisses());
+    }
+
+    public Map<String, String> getIndexStatistics()
+    {
+        Map<String, String> result = new TreeMap<String, String>();
+        for (Entry<String, CapabilitySet> entry : getCapabilitySets().entrySet())
+        {
+            CapabilitySet capSet = entry.getValue();
+            result.put(entry.getKey(), "hits=" + capSet.getIndexHits()
+                + ", misses=" + capSet.getIndexMisses()
+                + ", adaptive=" + new TreeSet<String>(capSet.getAdaptiveIndices()));
+        }
+        return result;
+    }
+
+    public void reset()
+    {
+        m_classLoads.clear();
+        m_classLoadTimes.reset();
+        m_classNotFound.set(0);
+        m_resolveTimes.reset();
+        m_resolveFailures.set(0);
+        m_registrations.set(0);
+        m_unregistrations.set(0);
+        m_lookupTimes.reset();
+        m_felix.getEventDispatcher().resetListenerStatistics();
+        for (BundleWiringImpl wiring : getWirings())
+        {
+            wiring.resetLookupStatistics();
+        }
+        for (CapabilitySet capSet : getCapabilitySets().values())
+        {
+            capSet.resetStatistics();
+        }
+    }
+
+    public String metrics()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("Class loads: ").append(getClassLoadTimes()).append('\n');
+        sb.append("Classes not found: ").append(getClassNotFound()).append('\n');
+        sb.append("Resolves: ").append(getResolveTimes())
+            .append(", failed=").append(getResolveFailures()).append('\n');
+        sb.append("Last resolve: ")
+            .append(m_felix.getResolver().getStatistics()).append('\n');
+        sb.append("Service registrations: ").append(getServiceRegistrations())
+            .append(", unregistrations=").append(getServiceUnregistrations()).append('\n');
+        sb.append("Service lookups: ").append(getServiceLookupTimes()).append('\n');
+        sb.append("Event queue depth: ").append(getEventQueueDepth()).append('\n');
+        sb.append("Listener deliveries: ").append(getListenerTimes()).append('\n');
+        for (Entry<EventListener, ListenerStatistics> entry
+            : m_felix.getEventDispatcher().getListenerStatistics().entrySet())
+        {
+            sb.append("  ").append(entry.getKey().getClass().getName())
+                .append(": count=").append(entry.getValue().getDeliveries())
+                .append(", mean=").append(micros(entry.getValue().getAverageLatency()))
+                .append(", max=").append(micros(entry.getValue().getMaxLatency()))
+                .append('\n');
+        }
+        sb.append("Resource source index: hits=").append(getSourceIndexHits())
+            .append(", misses=").append(getSourceIndexMisses())
+            .append(", ratio=").append(percent(getSourceIndexHitRatio())).append('\n');
+        sb.append("Not found cache: hits=").append(getNotFoundCacheHits())
+            .append(", misses=").append(getNotFoundCacheMisses())
+            .append(", ratio=").append(percent(getNotFoundCacheHitRatio())).append('\n');
+        sb.append("Manifest interning: ").append(m_felix.getInterner().getStatistics()).append('\n');
+        sb.append("Capability indices:\n");
+        for (Entry<String, String> entry : getIndexStatistics().entrySet())
+        {
+            sb.append("  ").append(entry.getKey()).append(": ")
+                .append(entry.getValue()).append('\n');
+        }
+        sb.append("Class loads by bundle:\n");
+        for (Entry<Long, Long> entry : getClassLoadsByBundle().entrySet())
+        {
+            Bundle bundle = m_felix.getBundle(entry.getKey().longValue());
+            sb.append("  ").append(entry.getKey()).append(' ')
+                .append((bundle != null) ? bundle.getSymbolicName() : "<uninstalled>")
+                .append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the capability sets of the resolver and the service registry,
+     * keyed by namespace.
+    **/
+    private Map<String, CapabilitySet> getCapabilitySets()
+    {
+        Map<String, CapabilitySet> capSets = m_felix.getResolver().getCapabilitySets();
+        capSets.put(SERVICE_NAMESPACE, m_registry.getCapabilitySet());
+        return capSets;
+    }
+
+    /**
+     * Returns the wirings of all current revisions of the installed bundles.
+    **/
+    private List<BundleWiringImpl> getWirings()
+    {
+        List<BundleWiringImpl> wirings = new ArrayList<BundleWiringImpl>();
+        for (Bundle bundle : m_felix.getBundles())
+        {
+            for (BundleRevision revision : ((BundleImpl) bundle).getRevisions())
+            {
+                BundleWiring wiring = revision.getWiring();
+                if (wiring instanceof BundleWiringImpl)
+                {
+                    wirings.add((BundleWiringImpl) wiring);
+                }
+            }
+        }
+        return wirings;
+    }
+
+    private static double ratio(long hits, long misses)
+    {
+        return ((hits + misses) == 0) ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static String percent(double ratio)
+    {
+        return Math.round(ratio * 100) + "%";
+    }
+
+    private static String micros(long nanos)
+    {
+        return (nanos / 1000) + " us";
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Map;
+
+/**
+ * Metrics of the hot paths of the framework, i.e., class loading,
+ * resolving, the service registry and event delivery. The metrics are
+ * only collected if the <tt>felix.metrics</tt> configuration property is
+ * set to "<tt>true</tt>", in which case they are registered as a service
+ * and as an MBean. Durations are measured in nanoseconds and reported as
+ * a summary of their count, mean, percentiles and maximum.
+**/
+public interface FrameworkMetricsMBean
+{
+    /**
+     * Returns the number of classes defined by all bundle class loaders.
+    **/
+    long getClassLoads();
+
+    /**
+     * Returns the number of classes defined by each bundle class loader,
+     * keyed by bundle identifier.
+    **/
+    Map<Long, Long> getClassLoadsByBundle();
+
+    /**
+     * Returns the summary of the time spent finding and defining classes
+     * in the content of bundles.
+    **/
+    String getClassLoadTimes();
+
+    /**
+     * Returns the number of classes that were not found by bundle class
+     * loaders.
+    **/
+    long getClassNotFound();
+
+    /**
+     * Returns the number of resolves, including failed resolves and
+     * dynamic imports.
+    **/
+    long getResolves();
+
+    /**
+     * Returns the summary of the time spent resolving, including failed
+     * resolves and dynamic imports.
+    **/
+    String getResolveTimes();
+
+    /**
+     * Returns the number of failed resolves.
+    **/
+    long getResolveFailures();
+
+    /**
+     * Returns the number of services registered so far.
+    **/
+    long getServiceRegistrations();
+
+    /**
+     * Returns the number of services unregistered so far.
+    **/
+    long getServiceUnregistrations();
+
+    /**
+     * Returns the number of service reference lookups.
+    **/
+    long getServiceLookups();
+
+    /**
+     * Returns the summary of the time spent looking up service references.
+    **/
+    String getServiceLookupTimes();
+
+    /**
+     * Returns the current number of pending asynchronous event deliveries.
+    **/
+    int getEventQueueDepth();
+
+    /**
+     * Returns the summary of the delivery latencies of asynchronous events
+     * to framework and bundle listeners, i.e., the time from queuing an
+     * event until the listener returned.
+    **/
+    String getListenerTimes();
+
+    /**
+     * Returns the number of resource lookups of all current bundle wirings
+     * that were satisfied by the revision that provided the resource
+     * previously.
+    **/
+    long getSourceIndexHits();
+
+    /**
+     * Returns the number of resource lookups of all current bundle wirings
+     * for which no previous provider was known or the previous provider did
+     * not provide it anymore.
+    **/
+    long getSourceIndexMisses();
+
+    /**
+     * Returns the ratio of the resource source index hits to all resource
+     * lookups, or zero if there were no lookups.
+    **/
+    double getSourceIndexHitRatio();
+
+    /**
+     * Returns the number of class and resource lookups of all current bundle
+     * wirings that skipped searching the static package sources and the
+     * local content, since the name is known not to be found there.
+    **/
+    long getNotFoundCacheHits();
+
+    /**
+     * Returns the number of class and resource lookups of all current bundle
+     * wirings that were not known to be missing.
+    **/
+    long getNotFoundCacheMisses();
+
+    /**
+     * Returns the ratio of the not found cache hits to all lookups that
+     * consulted the cache, or zero if there were no lookups.
+    **/
+    double getNotFoundCacheHitRatio();
+
+    /**
+     * Returns the statistics of the capability indices of the resolver and
+     * the service registry, keyed by namespace, i.e., the number of filter
+     * terms evaluated using an index and by scanning capabilities, and the
+     * attributes indexed on demand since they were frequently queried.
+    **/
+    Map<String, String> getIndexStatistics();
+
+    /**
+     * Resets all counters and durations.
+    **/
+    void reset();
+
+    /**
+     * Returns a report of all metrics, which is also available as the
+     * <tt>felix:metrics</tt> shell command.
+    **/
+    String metrics();
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Collections;
+import java.util.Set;
+import org.osgi.framework.Bundle;
+
+/**
+ * The result of <tt>Felix.previewRefresh()</tt>, which describes the effect
+ * a refresh of the same bundles would currently have.
+**/
+public class RefreshPreview
+{
+    private final Set<Bundle> m_bundles;
+    private final Set<Bundle> m_activeBundles;
+    private final boolean m_restart;
+    private final long m_estimatedTime;
+
+    RefreshPreview(
+        Set<Bundle> bundles, Set<Bundle> activeBundles,
+        boolean restart, long estimatedTime)
+    {
+        m_bundles = Collections.unmodifiableSet(bundles);
+        m_activeBundles = Collections.unmodifiableSet(activeBundles);
+        m_restart = restart;
+        m_estimatedTime = estimatedTime;
+    }
+
+    /**
+     * Returns the bundles that would be refreshed, i.e., whose wirings
+     * would be discarded.
+     * @return the bundles that would be refreshed.
+    **/
+    public Set<Bundle> getBundles()
+    {
+        return m_bundles;
+    }
+
+    /**
+     * Returns the bundles that would be stopped and started again.
+     * @return the active bundles that would be refreshed.
+    **/
+    public Set<Bundle> getActiveBundles()
+    {
+        return m_activeBundles;
+    }
+
+    /**
+     * Returns whether the refresh would restart the framework instead,
+     * since it includes the system bundle or an extension bundle.
+     * @return <tt>true</tt> if the framework would be restarted.
+    **/
+    public boolean isRestart()
+    {
+        return m_restart;
+    }
+
+    /**
+     * Returns the estimated time of the refresh in milliseconds, based on
+     * the average time per bundle of the previous refreshes.
+     * @return the estimated time or <tt>-1</tt> if there were no previous
+     *         refreshes.
+    **/
+    public long getEstimatedTime()
+    {
+        return m_estimatedTime;
+    }
+
+    @Override
+    public String toString()
+    {
+        return m_bundles.size() + " bundles, " + m_activeBundles.size()
+            + " active, restart=" + m_restart
+            + ", estimated " + m_estimatedTime + " ms";
+    }
+}
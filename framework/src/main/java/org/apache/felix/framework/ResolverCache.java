@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Util;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+
+/**
+ * Persists the wires of resolved revisions so that they can be reused
+ * instead of resolving the same revisions again after a framework restart.
+ * The wires are stored together with a key computed from the manifests of
+ * all revisions known to the resolver and the framework configuration; the
+ * stored wires are only used if the key still matches.
+**/
+class ResolverCache
+{
+    private static final String REVISION = "R";
+    private static final String WIRE = "W";
+
+    private final Logger m_logger;
+    private final File m_file;
+
+    ResolverCache(Logger logger, File file)
+    {
+        m_logger = logger;
+        m_file = file;
+    }
+
+    /**
+     * Computes the key identifying the resolver state made up by the
+     * specified revisions and framework configuration.
+     * @param revisions all revisions known to the resolver.
+     * @param configMap the framework configuration.
+     * @return a hexadecimal string identifying the resolver state.
+    **/
+    static String computeKey(Collection<BundleRevision> revisions, Map configMap)
+    {
+        // Sort revisions and headers to get a stable key.
+        Map<String, BundleRevision> sorted = new TreeMap<String, BundleRevision>();
+        for (BundleRevision br : revisions)
+        {
+            sorted.put(((BundleRevisionImpl) br).getId(), br);
+        }
+
+        StringBuffer sb = new StringBuffer();
+        for (Entry<String, BundleRevision> entry : sorted.entrySet())
+        {
+            sb.append(entry.getKey()).append('\n');
+            appendEntries(sb, ((BundleRevisionImpl) entry.getValue()).getHeaders());
+        }
+        // Only string configuration properties can be compared across
+        // framework instances and the framework UUID changes every time.
+        Map config = new HashMap(configMap);
+        config.remove(FelixConstants.FRAMEWORK_UUID);
+        appendEntries(sb, config);
+
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return Util.toHexString(md.digest(sb.toString().getBytes("UTF-8")));
+        }
+        catch (Exception ex)
+        {
+            // SHA-1 and UTF-8 are always supported.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static void appendEntries(StringBuffer sb, Map map)
+    {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); )
+        {
+            Entry entry = (Entry) it.next();
+            if ((entry.getKey() instanceof String) && (entry.getValue() instanceof String))
+            {
+                sorted.put((String) entry.getKey(), (String) entry.getValue());
+            }
+        }
+        for (Entry<String, String> entry : sorted.entrySet())
+        {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+    }
+
+    /**
+     * Stores the wires of the specified resolved revisions. Dynamic wires
+     * are not stored since they are not created by a regular resolve.
+     * @param key the key of the current resolver state.
+     * @param revisions the resolved revisions to store.
+    **/
+    void save(String key, Collection<BundleRevision> revisions)
+    {
+        OutputStream os = null;
+        PrintWriter pw = null;
+        boolean saved = false;
+        try
+        {
+            os = BundleRevisionImpl.getSecureAction().getFileOutputStream(m_file);
+            pw = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+            pw.println(key);
+            for (BundleRevision br : revisions)
+            {
+                pw.println(REVISION + " " + ((BundleRevisionImpl) br).getId());
+                for (BundleWire wire : br.getWiring().getRequiredWires(null))
+                {
+                    BundleRequirement req = wire.getRequirement();
+                    if (FelixConstants.RESOLUTION_DYNAMIC.equals(
+                        req.getDirectives().get(Constants.RESOLUTION_DIRECTIVE)))
+                    {
+                        continue;
+                    }
+                    BundleCapability cap = wire.getCapability();
+                    pw.println(WIRE
+                        + " " + ((BundleRevisionImpl) req.getRevision()).getId()
+                        + " " + req.getRevision().getDeclaredRequirements(null).indexOf(req)
+                        + " " + ((BundleRevisionImpl) wire.getProvider()).getId()
+                        + " " + ((BundleRevisionImpl) cap.getRevision()).getId()
+                        + " " + cap.getRevision().getDeclaredCapabilities(null).indexOf(cap));
+                }
+            }
+            pw.flush();
+            saved = !pw.checkError();
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to save resolver cache.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (pw != null) pw.close();
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Unable to close resolver cache.", ex);
+            }
+        }
+
+        // Make sure incomplete wires are never used.
+        if (!saved)
+        {
+            delete();
+        }
+    }
+
+    /**
+     * Removes the stored wires, if any.
+    **/
+    void delete()
+    {
+        BundleRevisionImpl.getSecureAction().deleteFile(m_file);
+    }
+
+    /**
+     * Loads the stored wires if they were stored for the specified key.
+     * @param key the key of the current resolver state.
+     * @param revisions the revisions known to the resolver, keyed by
+     *        revision identifier.
+     * @return the wires of the stored revisions or <tt>null</tt> if there
+     *         are no stored wires for the key or they cannot be used.
+    **/
+    Map<BundleRevision, List<ResolverWire>> load(
+        String key, Map<String, BundleRevision> revisions)
+    {
+        InputStream is = null;
+        BufferedReader br = null;
+        try
+        {
+            is = BundleRevisionImpl.getSecureAction().getFileInputStream(m_file);
+            br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            if (!key.equals(br.readLine()))
+            {
+                return null;
+            }
+
+            Map<BundleRevision, List<ResolverWire>> wireMap =
+                new LinkedHashMap<BundleRevision, List<ResolverWire>>();
+            BundleRevision requirer = null;
+            List<ResolverWire> wires = null;
+            for (String line = br.readLine(); line != null; line = br.readLine())
+            {
+                StringTokenizer st = new StringTokenizer(line, " ");
+                String type = st.nextToken();
+                if (type.equals(REVISION))
+                {
+                    requirer = revisions.get(st.nextToken());
+                    if ((requirer == null) || (requirer.getWiring() != null))
+                    {
+                        return null;
+                    }
+                    wires = new ArrayList<ResolverWire>();
+                    wireMap.put(requirer, wires);
+                }
+                else if (type.equals(WIRE) && (requirer != null))
+                {
+                    BundleRevision reqRevision = revisions.get(st.nextToken());
+                    int reqIdx = Integer.parseInt(st.nextToken());
+                    BundleRevision provider = revisions.get(st.nextToken());
+                    BundleRevision capRevision = revisions.get(st.nextToken());
+                    int capIdx = Integer.parseInt(st.nextToken());
+                    if ((reqRevision == null) || (provider == null) || (capRevision == null))
+                    {
+                        return null;
+                    }
+                    List<BundleRequirement> reqs = reqRevision.getDeclaredRequirements(null);
+                    List<BundleCapability> caps = capRevision.getDeclaredCapabilities(null);
+                    if ((reqIdx < 0) || (reqIdx >= reqs.size())
+                        || (capIdx < 0) || (capIdx >= caps.size())
+                        || !reqs.get(reqIdx).getNamespace().equals(
+                            caps.get(capIdx).getNamespace()))
+                    {
+                        return null;
+                    }
+                    wires.add(new CachedWire(
+                        requirer, reqs.get(reqIdx), provider, caps.get(capIdx)));
+                }
+                else
+                {
+                    return null;
+                }
+            }
+            return wireMap;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Nothing was stored yet.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to load resolver cache.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (br != null) br.close();
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Unable to close resolver cache.", ex);
+            }
+        }
+        return null;
+    }
+
+    private static class CachedWire implements ResolverWire
+    {
+        private final BundleRevision m_requirer;
+        private final BundleRequirement m_req;
+        private final BundleRevision m_provider;
+        private final BundleCapability m_cap;
+
+        CachedWire(
+            BundleRevision requirer, BundleRequirement req,
+            BundleRevision provider, BundleCapability cap)
+        {
+            m_requirer = requirer;
+            m_req = req;
+            m_provider = provider;
+            m_cap = cap;
+        }
+
+        public BundleRevision getRequirer()
+        {
+            return m_requirer;
+        }
+
+        public BundleRequirement getRequirement()
+        {
+            return m_req;
+        }
+
+        public BundleRevision getProvider()
+        {
+            return m_provider;
+        }
+
+        public BundleCapability getCapability()
+        {
+            return m_cap;
+        }
+
+        public String toString()
+        {
+            return m_req
+                + " -> "
+                + "[" + m_provider + "]";
+        }
+    }
+}
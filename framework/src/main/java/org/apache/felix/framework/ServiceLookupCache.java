@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Caches the results of service reference lookups by bundle, class name
+ * and filter. The cached results are only valid for the modification counts
+ * of the service registry and the resolver they were computed for, since
+ * any service change affects the matching services and any wiring change
+ * may affect whether a service is assignable to a bundle. Once either of
+ * the counts changes, all cached results are discarded at once. The cache
+ * must not be used while find hooks are registered, since they have to be
+ * called for every lookup.
+**/
+class ServiceLookupCache
+{
+    private final int m_maxSize;
+    private volatile Generation m_generation = null;
+
+    ServiceLookupCache(int maxSize)
+    {
+        m_maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached results for the specified modification counts,
+     * which replace the current results if they were computed for
+     * different counts. The counts must be read before the lookup is
+     * performed, so that the result of a lookup running concurrently to a
+     * modification is never cached for the new counts.
+     * @param registryCount the modification count of the service registry.
+     * @param resolverCount the modification count of the resolver.
+     * @return the cached results for the specified counts.
+    **/
+    Generation getGeneration(long registryCount, long resolverCount)
+    {
+        Generation generation = m_generation;
+        if ((generation == null)
+            || (generation.m_registryCount != registryCount)
+            || (generation.m_resolverCount != resolverCount))
+        {
+            generation = new Generation(registryCount, resolverCount);
+            m_generation = generation;
+        }
+        return generation;
+    }
+
+    class Generation
+    {
+        private final long m_registryCount;
+        private final long m_resolverCount;
+        private final Map<Key, ServiceReference[]> m_results =
+            new ConcurrentHashMap<Key, ServiceReference[]>();
+
+        Generation(long registryCount, long resolverCount)
+        {
+            m_registryCount = registryCount;
+            m_resolverCount = resolverCount;
+        }
+
+        /**
+         * Returns a copy of the cached result of a lookup.
+         * @return the result, which may be empty, or <tt>null</tt> if it
+         *         is not cached.
+        **/
+        ServiceReference[] get(
+            Bundle bundle, String className, String expr, boolean checkAssignable)
+        {
+            ServiceReference[] refs = m_results.get(
+                new Key(bundle, className, expr, checkAssignable));
+            return (refs == null) ? null : (ServiceReference[]) refs.clone();
+        }
+
+        void put(
+            Bundle bundle, String className, String expr, boolean checkAssignable,
+            ServiceReference[] refs)
+        {
+            // Lookups may use arbitrary filters, so simply start over when
+            // there are too many of them instead of tracking their usage.
+            if (m_results.size() >= m_maxSize)
+            {
+                m_results.clear();
+            }
+            m_results.put(new Key(bundle, className, expr, checkAssignable),
+                (ServiceReference[]) refs.clone());
+        }
+    }
+
+    private static class Key
+    {
+        private final Bundle m_bundle;
+        private final String m_className;
+        private final String m_expr;
+        private final boolean m_checkAssignable;
+        private final int m_hashCode;
+
+        Key(Bundle bundle, String className, String expr, boolean checkAssignable)
+        {
+            m_bundle = bundle;
+            m_className = className;
+            m_expr = expr;
+            m_checkAssignable = checkAssignable;
+            int hashCode = System.identityHashCode(bundle);
+            hashCode = 31 * hashCode + ((className == null) ? 0 : className.hashCode());
+            hashCode = 31 * hashCode + ((expr == null) ? 0 : expr.hashCode());
+            m_hashCode = 31 * hashCode + (checkAssignable ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key key = (Key) obj;
+            return (m_bundle == key.m_bundle)
+                && (m_checkAssignable == key.m_checkAssignable)
+                && ((m_className == null)
+                    ? key.m_className == null : m_className.equals(key.m_className))
+                && ((m_expr == null) ? key.m_expr == null : m_expr.equals(key.m_expr));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hashCode;
+        }
+    }
+}
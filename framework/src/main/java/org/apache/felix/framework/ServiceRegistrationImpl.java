@@ -53,6 +53,11 @@ class ServiceRegistrationImpl implements ServiceRegistration
     private final ServiceReferenceImpl m_ref;
     // Flag indicating that we are unregistering.
     private volatile boolean m_isUnregistering = false;
+    // Lock used by the service registry to serialize getting and
+    // ungetting the service object of this registration.
+    private final Object m_usageLock = new Object();
+    // Thread currently getting or ungetting the service object.
+    private Thread m_usageLockOwner = null;
 
     public ServiceRegistrationImpl(
         ServiceRegistry registry, Bundle bundle,
@@ -282,6 +287,55 @@ class ServiceRegistrationImpl implements ServiceRegistration
         }
     }
 
+    /**
+     * Locks this registration so that the calling thread can get or
+     * unget its service object without interference from other threads.
+     * If another thread holds the lock, then this method waits until
+     * it is released. Each registration has its own lock, so threads using
+     * unrelated services never contend with each other.
+     * @return <tt>false</tt> if the calling thread already holds the lock,
+     *         which means a service factory call resulted in a cycle,
+     *         otherwise <tt>true</tt>.
+    **/
+    boolean lockForUsage()
+    {
+        synchronized (m_usageLock)
+        {
+            while (m_usageLockOwner != null)
+            {
+                // We don't allow cycles when we call out to the service factory.
+                if (m_usageLockOwner == Thread.currentThread())
+                {
+                    return false;
+                }
+
+                // Otherwise, wait for it to be freed.
+                try
+                {
+                    m_usageLock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+            m_usageLockOwner = Thread.currentThread();
+            return true;
+        }
+    }
+
+    /**
+     * Releases the lock acquired with <tt>lockForUsage()</tt> so any
+     * waiting threads can continue.
+    **/
+    void unlockForUsage()
+    {
+        synchronized (m_usageLock)
+        {
+            m_usageLockOwner = null;
+            m_usageLock.notifyAll();
+        }
+    }
+
     private void initializeProperties(Dictionary dict)
     {
         // Create a case-insensitive map for the properties.
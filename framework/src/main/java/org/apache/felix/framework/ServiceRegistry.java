@@ -19,6 +19,8 @@
 package org.apache.felix.framework;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
@@ -38,16 +40,23 @@ public class ServiceRegistry
     private final Logger m_logger;
     private long m_currentServiceId = 1L;
     // Maps bundle to an array of service registrations.
-    private final Map m_regsMap = Collections.synchronizedMap(new HashMap());
-    // Capability set for all service registrations.
-    private final CapabilitySet m_regCapSet;
-
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private final Map m_lockedRegsMap = new HashMap();
-    // Maps bundle to an array of usage counts.
-    private final Map m_inUseMap = new HashMap();
+    private final Map m_regsMap = new ConcurrentHashMap();
+    // Capability set for all service registrations. The capability set
+    // is never modified once published; registry changes create a modified
+    // copy and replace it while holding the registry lock, so service
+    // lookups can match against it without any locking. The copy shares
+    // everything but the modified entries with the published set, so a
+    // change does not cost time proportional to the number of services.
+    private volatile CapabilitySet m_regCapSet;
+    // Incremented after every change of the registered services or their
+    // properties, while holding the registry lock.
+    private volatile long m_modCount = 0;
+
+    // Maps bundle to an array of usage counts. The arrays are never
+    // modified once stored in the map; they are replaced atomically, so
+    // bundles using different services never contend with each other.
+    private final ConcurrentMap<Bundle, UsageCount[]> m_inUseMap =
+        new ConcurrentHashMap<Bundle, UsageCount[]>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -122,7 +131,10 @@ public class ServiceRegistry
             // Get the bundles current registered services.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
             m_regsMap.put(bundle, addServiceRegistration(regs, reg));
-            m_regCapSet.addCapability((BundleCapabilityImpl) reg.getReference());
+            CapabilitySet capSet = new CapabilitySet(m_regCapSet);
+            capSet.addCapability((BundleCapabilityImpl) reg.getReference());
+            m_regCapSet = capSet;
+            m_modCount++;
         }
 
         return reg;
@@ -136,15 +148,21 @@ public class ServiceRegistry
         synchronized (this)
         {
             // Note that we don't lock the service registration here using
-            // the m_lockedRegsMap because we want to allow bundles to get
+            // lockForUsage() because we want to allow bundles to get
             // the service during the unregistration process. However, since
             // we do remove the registration from the service registry, no
             // new bundles will be able to look up the service.
 
             // Now remove the registered service.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_regsMap.get(bundle);
-            m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
-            m_regCapSet.removeCapability((BundleCapabilityImpl) reg.getReference());
+            if (regs != null)
+            {
+                m_regsMap.put(bundle, removeServiceRegistration(regs, reg));
+            }
+            CapabilitySet capSet = new CapabilitySet(m_regCapSet);
+            capSet.removeCapability((BundleCapabilityImpl) reg.getReference());
+            m_regCapSet = capSet;
+            m_modCount++;
         }
 
         // Notify callback objects about unregistering service.
@@ -208,7 +226,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized List getServiceReferences(String className, SimpleFilter filter)
+    public List getServiceReferences(String className, SimpleFilter filter)
     {
         if ((className == null) && (filter == null))
         {
@@ -230,14 +248,16 @@ public class ServiceRegistry
         }
         // else just use the specified filter.
 
+        // No need to lock, since the capability set is an immutable
+        // snapshot of the registered services.
         Set<BundleCapability> matches = m_regCapSet.match(filter, false);
 
         return new ArrayList(matches);
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = m_inUseMap.get(bundle);
         if (usages != null)
         {
             ServiceReference[] refs = new ServiceReference[usages.length];
@@ -259,34 +279,19 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
+        // First make sure that no existing operation is currently
+        // being performed by another thread on the service registration.
+        // We don't allow cycles when we call out to the service factory.
+        if (!reg.lockForUsage())
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new ServiceException(
-                        "ServiceFactory.getService() resulted in a cycle.",
-                        ServiceException.FACTORY_ERROR,
-                        null);
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
-
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+            throw new ServiceException(
+                "ServiceFactory.getService() resulted in a cycle.",
+                ServiceException.FACTORY_ERROR,
+                null);
+        }
 
+        try
+        {
             // Make sure the service registration is still valid.
             if (reg.isValid())
             {
@@ -306,14 +311,11 @@ public class ServiceRegistry
                 usage.m_count++;
                 svcObj = usage.m_svcObj;
             }
-        }
 
-        // If we have a usage count, but no service object, then we haven't
-        // cached the service object yet, so we need to create one now without
-        // holding the lock, since we will potentially call out to a service
-        // factory.
-        try
-        {
+            // If we have a usage count, but no service object, then we haven't
+            // cached the service object yet, so we need to create one now. We
+            // only hold the lock of this registration, so calling out to a
+            // service factory does not block other services.
             if ((usage != null) && (svcObj == null))
             {
                 svcObj = reg.getService(bundle);
@@ -325,22 +327,19 @@ public class ServiceRegistry
             // cache it in the usage count. If not, we should flush the usage
             // count. Either way, we need to unlock the service registration
             // so that any threads waiting for it can continue.
-            synchronized (this)
+
+            // Before caching the service object, double check to see if
+            // the registration is still valid, since it may have been
+            // unregistered while we were getting the service object.
+            if (!reg.isValid() || (svcObj == null))
             {
-                // Before caching the service object, double check to see if
-                // the registration is still valid, since it may have been
-                // unregistered while we didn't hold the lock.
-                if (!reg.isValid() || (svcObj == null))
-                {
-                    flushUsageCount(bundle, ref);
-                }
-                else
-                {
-                    usage.m_svcObj = svcObj;
-                }
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                flushUsageCount(bundle, ref);
             }
+            else
+            {
+                usage.m_svcObj = svcObj;
+            }
+            reg.unlockForUsage();
         }
 
         return (S) svcObj;
@@ -352,29 +351,17 @@ public class ServiceRegistry
         ServiceRegistrationImpl reg =
             ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getRegistration();
 
-        synchronized (this)
+        // First make sure that no existing operation is currently
+        // being performed by another thread on the service registration.
+        // We don't allow cycles when we call out to the service factory.
+        if (!reg.lockForUsage())
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new IllegalStateException(
-                        "ServiceFactory.ungetService() resulted in a cycle.");
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
+            throw new IllegalStateException(
+                "ServiceFactory.ungetService() resulted in a cycle.");
+        }
 
+        try
+        {
             // Get the usage count.
             usage = getUsageCount(bundle, ref);
             // If there is no cached services, then just return immediately.
@@ -383,29 +370,21 @@ public class ServiceRegistry
                 return false;
             }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
-        }
-
-        // If usage count will go to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
-        try
-        {
+            // If usage count will go to zero, then unget the service
+            // from the registration.
             if (usage.m_count == 1)
             {
                 // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getRegistration().ungetService(bundle, usage.m_svcObj);
+                reg.ungetService(bundle, usage.m_svcObj);
             }
         }
         finally
         {
             // Finally, decrement usage count and flush if it goes to zero or
-            // the registration became invalid while we were not holding the
-            // lock. Either way, unlock the service registration so that any
-            // threads waiting for it can continue.
-            synchronized (this)
+            // the registration became invalid while we were ungetting the
+            // service. Either way, unlock the service registration so that
+            // any threads waiting for it can continue.
+            if (usage != null)
             {
                 // Decrement usage count, which spec says should happen after
                 // ungetting the service object.
@@ -418,18 +397,16 @@ public class ServiceRegistry
                     usage.m_svcObj = null;
                     flushUsageCount(bundle, ref);
                 }
-
-                // Release the registration lock so any waiting threads can
-                // continue.
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
             }
+
+            // Release the registration lock so any waiting threads can
+            // continue.
+            reg.unlockForUsage();
         }
 
         return true;
     }
 
-
     /**
      * This is a utility method to release all services being
      * used by the specified bundle.
@@ -437,11 +414,7 @@ public class ServiceRegistry
     **/
     public void ungetServices(Bundle bundle)
     {
-        UsageCount[] usages;
-        synchronized (this)
-        {
-            usages = (UsageCount[]) m_inUseMap.get(bundle);
-        }
+        UsageCount[] usages = m_inUseMap.get(bundle);
 
         if (usages == null)
         {
@@ -465,14 +438,13 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
         Bundle[] bundles = null;
-        for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        for (Map.Entry<Bundle, UsageCount[]> entry : m_inUseMap.entrySet())
         {
-            Map.Entry entry = (Map.Entry) iter.next();
-            Bundle bundle = (Bundle) entry.getKey();
-            UsageCount[] usages = (UsageCount[]) entry.getValue();
+            Bundle bundle = entry.getKey();
+            UsageCount[] usages = entry.getValue();
             for (int useIdx = 0; useIdx < usages.length; useIdx++)
             {
                 if (usages[useIdx].m_ref.equals(ref))
@@ -498,6 +470,21 @@ public class ServiceRegistry
     void servicePropertiesModified(ServiceRegistration reg, Dictionary oldProps)
     {
         updateHook(reg.getReference());
+
+        // Reindex the registration, since indices may have been built
+        // for modified properties, unless it was unregistered meanwhile.
+        synchronized (this)
+        {
+            BundleCapabilityImpl cap = (BundleCapabilityImpl) reg.getReference();
+            CapabilitySet capSet = new CapabilitySet(m_regCapSet);
+            if (capSet.removeCapability(cap))
+            {
+                capSet.addCapability(cap);
+                m_regCapSet = capSet;
+            }
+            m_modCount++;
+        }
+
         if (m_callbacks != null)
         {
             m_callbacks.serviceChanged(
@@ -505,6 +492,26 @@ public class ServiceRegistry
         }
     }
 
+    /**
+     * Returns the currently published capability set of all service
+     * registrations.
+     * @return the capability set of the service registrations.
+    **/
+    CapabilitySet getCapabilitySet()
+    {
+        return m_regCapSet;
+    }
+
+    /**
+     * Returns the number of changes of the registered services or their
+     * properties so far, which can be used to detect any such change.
+     * @return the modification count of the registry.
+    **/
+    public long getModCount()
+    {
+        return m_modCount;
+    }
+
     public Logger getLogger()
     {
         return m_logger;
@@ -565,7 +572,7 @@ public class ServiceRegistry
     **/
     private UsageCount getUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
+        UsageCount[] usages = m_inUseMap.get(bundle);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
             if (usages[i].m_ref.equals(ref))
@@ -581,33 +588,37 @@ public class ServiceRegistry
      * include the specified service. This method should only be called
      * to add a usage count for a previously unreferenced service. If the
      * service already has a usage count, then the existing usage count
-     * counter simply needs to be incremented.
+     * counter simply needs to be incremented. The bundle's usage count array
+     * is replaced atomically, since other threads may concurrently add or
+     * flush usage counts of the same bundle for other services.
      * @param bundle The bundle acquiring the service.
      * @param ref The service reference of the acquired service.
-     * @param svcObj The service object of the acquired service.
     **/
     private UsageCount addUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-
-        UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
+        UsageCount usage = new UsageCount(ref);
 
-        if (usages == null)
+        for (;;)
         {
-            usages = new UsageCount[] { usage };
-        }
-        else
-        {
-            UsageCount[] newUsages = new UsageCount[usages.length + 1];
-            System.arraycopy(usages, 0, newUsages, 0, usages.length);
-            newUsages[usages.length] = usage;
-            usages = newUsages;
+            UsageCount[] usages = m_inUseMap.get(bundle);
+            if (usages == null)
+            {
+                if (m_inUseMap.putIfAbsent(bundle, new UsageCount[] { usage }) == null)
+                {
+                    return usage;
+                }
+            }
+            else
+            {
+                UsageCount[] newUsages = new UsageCount[usages.length + 1];
+                System.arraycopy(usages, 0, newUsages, 0, usages.length);
+                newUsages[usages.length] = usage;
+                if (m_inUseMap.replace(bundle, usages, newUsages))
+                {
+                    return usage;
+                }
+            }
         }
-
-        m_inUseMap.put(bundle, usages);
-
-        return usage;
     }
 
     /**
@@ -618,44 +629,53 @@ public class ServiceRegistry
      * the usage count and decrement its counter. This method will also
      * remove the specified bundle from the "in use" map if it has no more
      * usage counts after removing the usage count for the specified service
-     * reference.
+     * reference. Like <tt>addUsageCount()</tt>, the bundle's usage count
+     * array is replaced atomically.
      * @param bundle The bundle whose usage count should be removed.
      * @param ref The service reference whose usage count should be removed.
     **/
     private void flushUsageCount(Bundle bundle, ServiceReference ref)
     {
-        UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        for (;;)
         {
-            if (usages[i].m_ref.equals(ref))
+            UsageCount[] usages = m_inUseMap.get(bundle);
+            UsageCount[] newUsages = usages;
+            for (int i = 0; (newUsages != null) && (i < newUsages.length); i++)
             {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
-                {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
+                if (newUsages[i].m_ref.equals(ref))
                 {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
+                    // If this is the only usage, then point to empty list.
+                    if ((newUsages.length - 1) == 0)
                     {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
+                        newUsages = null;
+                    }
+                    // Otherwise, we need to do some array copying.
+                    else
+                    {
+                        UsageCount[] tmp = new UsageCount[newUsages.length - 1];
+                        System.arraycopy(newUsages, 0, tmp, 0, i);
+                        if (i < tmp.length)
+                        {
+                            System.arraycopy(
+                                newUsages, i + 1, tmp, i, tmp.length - i);
+                        }
+                        newUsages = tmp;
                     }
-                    usages = newUsages;
+                    break;
                 }
             }
-        }
 
-        if (usages != null)
-        {
-            m_inUseMap.put(bundle, usages);
-        }
-        else
-        {
-            m_inUseMap.remove(bundle);
+            if (newUsages == usages)
+            {
+                // Nothing to flush.
+                return;
+            }
+            else if ((newUsages != null)
+                ? m_inUseMap.replace(bundle, usages, newUsages)
+                : m_inUseMap.remove(bundle, usages))
+            {
+                return;
+            }
         }
     }
 
@@ -796,11 +816,18 @@ public class ServiceRegistry
         return (SortedSet<ServiceReference<S>>) (SortedSet) ss;
     }
 
+    // Usage counts are only modified while holding the lock of the
+    // associated service registration, but may be read without it.
     private static class UsageCount
     {
-        public int m_count = 0;
-        public ServiceReference m_ref = null;
-        public Object m_svcObj = null;
+        public final ServiceReference m_ref;
+        public volatile int m_count = 0;
+        public volatile Object m_svcObj = null;
+
+        UsageCount(ServiceReference ref)
+        {
+            m_ref = ref;
+        }
     }
 
     public interface ServiceRegistryCallbacks
@@ -31,13 +31,14 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
-import org.apache.felix.framework.resolver.Resolver;
 import org.apache.felix.framework.resolver.ResolverImpl;
 import org.apache.felix.framework.resolver.ResolverWire;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.R4Library;
@@ -64,7 +65,7 @@ class StatefulResolver
 {
     private final Logger m_logger;
     private final Felix m_felix;
-    private final Resolver m_resolver;
+    private final ResolverImpl m_resolver;
     private boolean m_isResolving = false;
 
     // Set of all revisions.
@@ -82,11 +83,48 @@ class StatefulResolver
     // Parsed framework environments
     private final Set<String> m_fwkExecEnvSet;
 
+    // Persistent wires of a previous framework session, if enabled.
+    private ResolverCache m_resolverCache = null;
+    // Indicates whether the persistent wires were loaded already.
+    private boolean m_resolverCacheChecked = false;
+    // Persistent wires of the revisions that were not resolved yet, which
+    // are used for resolves until the revisions or wirings change otherwise.
+    private Map<BundleRevision, List<ResolverWire>> m_cachedWires = null;
+    // Indicates whether resolver hooks were involved in any resolve, in
+    // which case the wires cannot be reused without calling the hooks.
+    private boolean m_resolverHooksUsed = false;
+    // Incremented after every change of the revisions or their wirings,
+    // i.e., installs, updates, resolves, dynamic imports and refreshes,
+    // while holding the resolver lock.
+    private volatile long m_modCount = 0;
+
     StatefulResolver(Felix felix)
     {
         m_felix = felix;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        int parallelism = 1;
+        long timeout = 0;
+        try
+        {
+            String value = (String) m_felix.getConfig().get(
+                FelixConstants.RESOLVER_PARALLELISM_PROP);
+            parallelism = (value == null) ? 1 : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just check permutations one at a time.
+        }
+        try
+        {
+            String value = (String) m_felix.getConfig().get(
+                FelixConstants.RESOLVER_TIMEOUT_PROP);
+            timeout = (value == null) ? 0 : Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just do not limit the resolve time.
+        }
+        m_resolver = new ResolverImpl(m_logger, parallelism, timeout);
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -117,7 +155,11 @@ class StatefulResolver
         // Always attempt to remove the revision, since
         // this method can be used for re-indexing a revision
         // after it has been resolved.
-        removeRevision(br);
+        if (!deindexRevision(br))
+        {
+            // A new revision invalidates the persistent wires.
+            m_cachedWires = null;
+        }
 
         m_revisions.add(br);
 
@@ -141,9 +183,19 @@ class StatefulResolver
             }
             indexCapabilities(br);
         }
+
+        m_modCount++;
     }
 
     synchronized void removeRevision(BundleRevision br)
+    {
+        if (deindexRevision(br))
+        {
+            m_cachedWires = null;
+        }
+    }
+
+    private boolean deindexRevision(BundleRevision br)
     {
         if (m_revisions.remove(br))
         {
@@ -161,7 +213,40 @@ class StatefulResolver
                     m_singletons.remove(br.getSymbolicName());
                 }
             }
+
+            m_modCount++;
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Returns the number of changes of the revisions or their wirings so
+     * far, which can be used to detect any such change.
+     * @return the modification count of the resolver state.
+    **/
+    long getModCount()
+    {
+        return m_modCount;
+    }
+
+    /**
+     * Returns the statistics of the last resolve operation.
+     * @return the statistics of the last resolve operation.
+    **/
+    ResolverImpl.Statistics getStatistics()
+    {
+        return m_resolver.getStatistics();
+    }
+
+    /**
+     * Returns the capability sets indexing the capabilities of the
+     * resolver state.
+     * @return the capability sets keyed by namespace.
+    **/
+    synchronized Map<String, CapabilitySet> getCapabilitySets()
+    {
+        return new TreeMap<String, CapabilitySet>(m_capSets);
     }
 
     boolean isEffective(BundleRequirement req)
@@ -354,6 +439,7 @@ class StatefulResolver
         m_isResolving = true;
 
         Map<BundleRevision, List<ResolverWire>> wireMap = null;
+        Map<BundleRevision, List<ResolverWire>> cachedWireMap = null;
         try
         {
             // Make our own copy of revisions.
@@ -368,12 +454,25 @@ class StatefulResolver
             // Select any singletons in the resolver state.
             selectSingletons(record);
 
+            // Try to reuse the wires of the previous framework session for
+            // the revisions to resolve and the revisions they depend on;
+            // any revisions they resolve do not need to be resolved anymore.
+            if ((m_resolverCache != null) && record.getResolverHookRefs().isEmpty()
+                && (containsBundleRevisions(mandatory) || containsBundleRevisions(optional)))
+            {
+                cachedWireMap = resolveFromCache(mandatory, optional);
+            }
+
             // Extensions are resolved differently.
             for (Iterator<BundleRevision> it = mandatory.iterator(); it.hasNext(); )
             {
                 BundleRevision br = it.next();
                 BundleImpl bundle = (BundleImpl) br.getBundle();
-                if (bundle.isExtension())
+                if ((cachedWireMap != null) && cachedWireMap.containsKey(br))
+                {
+                    it.remove();
+                }
+                else if (bundle.isExtension())
                 {
                     it.remove();
                 }
@@ -386,7 +485,11 @@ class StatefulResolver
             {
                 BundleRevision br = it.next();
                 BundleImpl bundle = (BundleImpl) br.getBundle();
-                if (bundle.isExtension())
+                if ((cachedWireMap != null) && cachedWireMap.containsKey(br))
+                {
+                    it.remove();
+                }
+                else if (bundle.isExtension())
                 {
                     it.remove();
                 }
@@ -399,6 +502,8 @@ class StatefulResolver
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolveException rethrow = null;
+            FrameworkMetrics metrics = m_felix.getMetrics();
+            long start = (metrics != null) ? System.nanoTime() : 0;
             try
             {
                 // Resolve the revision.
@@ -415,6 +520,12 @@ class StatefulResolver
             {
                 rethrow = ex;
             }
+            if (metrics != null)
+            {
+                metrics.resolved(System.nanoTime() - start, rethrow == null);
+            }
+            m_logger.log(Logger.LOG_DEBUG,
+                "Resolve statistics: " + m_resolver.getStatistics());
 
             // Release resolver hooks, if any.
             releaseResolverHooks(record);
@@ -427,6 +538,15 @@ class StatefulResolver
 
             // Otherwise, mark all revisions as resolved.
             markResolvedRevisions(wireMap);
+
+            // The persistent wires may conflict with the new wires.
+            if ((wireMap != null) && !wireMap.isEmpty())
+            {
+                synchronized (this)
+                {
+                    m_cachedWires = null;
+                }
+            }
         }
         finally
         {
@@ -436,9 +556,214 @@ class StatefulResolver
             m_felix.releaseGlobalLock();
         }
 
+        fireResolvedEvents(cachedWireMap);
         fireResolvedEvents(wireMap);
     }
 
+    /**
+     * Sets the persistent wires to use for the first resolve and to update
+     * when the framework is stopped.
+     * @param cache the persistent wires or <tt>null</tt> to disable them.
+    **/
+    synchronized void setResolverCache(ResolverCache cache)
+    {
+        m_resolverCache = cache;
+        m_resolverCacheChecked = false;
+        m_cachedWires = null;
+        m_resolverHooksUsed = false;
+    }
+
+    /**
+     * Stores the wires of all currently resolved revisions, so that the next
+     * framework session can reuse them if the resolver state is the same.
+    **/
+    void saveResolverCache()
+    {
+        ResolverCache cache;
+        String key;
+        List<BundleRevision> resolved = new ArrayList<BundleRevision>();
+        synchronized (this)
+        {
+            cache = m_resolverCache;
+            if ((cache == null) || m_resolverHooksUsed)
+            {
+                if (cache != null)
+                {
+                    cache.delete();
+                }
+                return;
+            }
+            key = ResolverCache.computeKey(m_revisions, m_felix.getConfig());
+            for (BundleRevision br : m_revisions)
+            {
+                // The system bundle and its extensions are not resolved
+                // by the resolver.
+                if ((br.getWiring() != null)
+                    && (br.getBundle().getBundleId() != 0)
+                    && !((BundleImpl) br.getBundle()).isExtension())
+                {
+                    resolved.add(br);
+                }
+            }
+        }
+        cache.save(key, resolved);
+    }
+
+    private static boolean containsBundleRevisions(Set<BundleRevision> revisions)
+    {
+        // The system bundle and its extensions are not resolved
+        // by the resolver.
+        for (BundleRevision br : revisions)
+        {
+            if ((br.getBundle().getBundleId() != 0)
+                && !((BundleImpl) br.getBundle()).isExtension())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the specified revisions and the revisions they depend on
+     * using the persistent wires, if these are available for them. The
+     * persistent wires are loaded by the first resolve that can use them.
+     * @param mandatory the mandatory revisions to resolve.
+     * @param optional the optional revisions to resolve.
+     * @return the wires of the resolved revisions or <tt>null</tt> if the
+     *         persistent wires cannot be used.
+    **/
+    private Map<BundleRevision, List<ResolverWire>> resolveFromCache(
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        Map<BundleRevision, List<ResolverWire>> cachedWires;
+        synchronized (this)
+        {
+            if (!m_resolverCacheChecked)
+            {
+                m_resolverCacheChecked = true;
+                Map<String, BundleRevision> revisions =
+                    new HashMap<String, BundleRevision>();
+                for (BundleRevision br : m_revisions)
+                {
+                    revisions.put(((BundleRevisionImpl) br).getId(), br);
+                }
+                m_cachedWires = m_resolverCache.load(
+                    ResolverCache.computeKey(m_revisions, m_felix.getConfig()),
+                    revisions);
+            }
+            cachedWires = m_cachedWires;
+        }
+        if (cachedWires == null)
+        {
+            return null;
+        }
+
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            selectCachedWires(cachedWires, mandatory, optional);
+        if (wireMap == null)
+        {
+            return null;
+        }
+        // Make sure the same singletons are selected.
+        for (BundleRevision br : wireMap.keySet())
+        {
+            if (Util.isSingleton(br) && !isSelectedSingleton(br))
+            {
+                return null;
+            }
+        }
+
+        m_logger.log(Logger.LOG_DEBUG,
+            "Reusing persisted wires of " + wireMap.size() + " revisions.");
+        try
+        {
+            markResolvedRevisions(wireMap);
+        }
+        catch (ResolveException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to reuse persisted wires, resolving instead.", ex);
+            synchronized (this)
+            {
+                m_cachedWires = null;
+            }
+            return null;
+        }
+        synchronized (this)
+        {
+            if (m_cachedWires == cachedWires)
+            {
+                cachedWires = new HashMap<BundleRevision, List<ResolverWire>>(cachedWires);
+                cachedWires.keySet().removeAll(wireMap.keySet());
+                m_cachedWires = cachedWires;
+            }
+        }
+        return wireMap;
+    }
+
+    /**
+     * Selects the persistent wires of the specified revisions, of the
+     * revisions providing capabilities to them, and of the fragments
+     * attached to any of these, transitively.
+     * @return the selected wires or <tt>null</tt> if there are none or if
+     *         a selected wire refers to an unresolved revision without
+     *         persistent wires.
+    **/
+    private static Map<BundleRevision, List<ResolverWire>> selectCachedWires(
+        Map<BundleRevision, List<ResolverWire>> cachedWires,
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        Map<BundleRevision, List<ResolverWire>> wireMap =
+            new LinkedHashMap<BundleRevision, List<ResolverWire>>();
+        List<BundleRevision> queue = new ArrayList<BundleRevision>(mandatory);
+        queue.addAll(optional);
+        while (!queue.isEmpty())
+        {
+            while (!queue.isEmpty())
+            {
+                BundleRevision br = queue.remove(queue.size() - 1);
+                List<ResolverWire> wires = cachedWires.get(br);
+                if ((wires != null) && !wireMap.containsKey(br))
+                {
+                    wireMap.put(br, wires);
+                    for (ResolverWire wire : wires)
+                    {
+                        queue.add(wire.getProvider());
+                    }
+                }
+            }
+            // Hosts must be resolved together with their fragments.
+            for (Entry<BundleRevision, List<ResolverWire>> entry : cachedWires.entrySet())
+            {
+                if (!wireMap.containsKey(entry.getKey()) && Util.isFragment(entry.getKey()))
+                {
+                    for (ResolverWire wire : entry.getValue())
+                    {
+                        if (wireMap.containsKey(wire.getProvider()))
+                        {
+                            queue.add(entry.getKey());
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (List<ResolverWire> wires : wireMap.values())
+        {
+            for (ResolverWire wire : wires)
+            {
+                if (!wireMap.containsKey(wire.getProvider())
+                    && (wire.getProvider().getWiring() == null))
+                {
+                    return null;
+                }
+            }
+        }
+        return wireMap.isEmpty() ? null : wireMap;
+    }
+
     BundleRevision resolve(BundleRevision revision, String pkgName)
         throws ResolveException, BundleException
     {
@@ -490,6 +815,8 @@ class StatefulResolver
                     // Catch any resolve exception to rethrow later because
                     // we may need to call end() on resolver hooks.
                     ResolveException rethrow = null;
+                    FrameworkMetrics metrics = m_felix.getMetrics();
+                    long start = (metrics != null) ? System.nanoTime() : 0;
                     try
                     {
                         wireMap = m_resolver.resolve(
@@ -506,6 +833,10 @@ class StatefulResolver
                     {
                         rethrow = ex;
                     }
+                    if (metrics != null)
+                    {
+                        metrics.resolved(System.nanoTime() - start, rethrow == null);
+                    }
 
                     // Release resolver hooks, if any.
                     releaseResolverHooks(record);
@@ -536,6 +867,11 @@ class StatefulResolver
                             m_felix.getDependencies().addDependent(bw);
 
                             ((BundleWiringImpl) revision.getWiring()).addDynamicWire(bw);
+                            synchronized (this)
+                            {
+                                m_modCount++;
+                                m_cachedWires = null;
+                            }
 
                             m_felix.getLogger().log(
                                 Logger.LOG_DEBUG,
@@ -580,6 +916,11 @@ class StatefulResolver
 
         if (!hookRefs.isEmpty())
         {
+            synchronized (this)
+            {
+                m_resolverHooksUsed = true;
+            }
+
             // Create triggers list.
             Set<BundleRevision> triggers;
             if (!mandatory.isEmpty() && !optional.isEmpty())
@@ -24,11 +24,12 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
@@ -85,16 +86,20 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     private static volatile SecurityManagerEx m_sm = null;
     private static volatile URLHandlers m_handler = null;
 
+    // Marks protocols without a built-in stream handler.
+    private static final Object NO_HANDLER = new Object();
+
     // This maps classloaders of URLHandlers in other classloaders to lists of
     // their frameworks.
-    private static Map m_classloaderToFrameworkLists = new HashMap();
+    private static final Map m_classloaderToFrameworkLists = new ConcurrentHashMap();
 
-    // The list to hold all enabled frameworks registered with this handlers
-    private static final List m_frameworks = new ArrayList();
-    private static int m_counter = 0;
+    // The list to hold all enabled frameworks registered with this handlers.
+    // It is copied on write, so that it can be searched without locking.
+    private static final List m_frameworks = new CopyOnWriteArrayList();
+    private static volatile int m_counter = 0;
 
-    private static Map m_contentHandlerCache = null;
-    private static Map m_streamHandlerCache = null;
+    private static final ConcurrentMap m_contentHandlerCache = new ConcurrentHashMap();
+    private static final ConcurrentMap m_streamHandlerCache = new ConcurrentHashMap();
     private static URLStreamHandlerFactory m_streamHandlerFactory;
     private static ContentHandlerFactory m_contentHandlerFactory;
     private static final String STREAM_HANDLER_PACKAGE_PROP = "java.protocol.handler.pkgs";
@@ -102,7 +107,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     private static Object m_rootURLHandlers;
 
     private static final String m_streamPkgs;
-    private static final Map m_builtIn = new HashMap();
+    private static final ConcurrentMap m_builtIn = new ConcurrentHashMap();
     private static final boolean m_loaded;
 
     static
@@ -116,7 +121,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     }
 
 
-    private static final Map m_handlerToURL = new HashMap();
+    private static final Map m_handlerToURL = new ConcurrentHashMap();
     private void init(String protocol, URLStreamHandlerFactory factory)
     {
         try
@@ -354,12 +359,10 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
 
     private URLStreamHandler getBuiltInStreamHandler(String protocol, URLStreamHandlerFactory factory)
     {
-        synchronized (m_builtIn)
+        Object cached = m_builtIn.get(protocol);
+        if (cached != null)
         {
-            if (m_builtIn.containsKey(protocol))
-            {
-                return (URLStreamHandler) m_builtIn.get(protocol);
-            }
+            return (cached == NO_HANDLER) ? null : (URLStreamHandler) cached;
         }
         if (factory != null)
         {
@@ -445,14 +448,15 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         return null;
     }
 
-    private synchronized URLStreamHandler addToCache(String protocol, URLStreamHandler result)
+    private URLStreamHandler addToCache(String protocol, URLStreamHandler result)
     {
-        if (!m_builtIn.containsKey(protocol))
-            {
-                m_builtIn.put(protocol, result);
-                return result;
-            }
-        return (URLStreamHandler) m_builtIn.get(protocol);
+        Object cached = m_builtIn.putIfAbsent(
+            protocol, (result == null) ? NO_HANDLER : result);
+        if (cached == null)
+        {
+            return result;
+        }
+        return (cached == NO_HANDLER) ? null : (URLStreamHandler) cached;
     }
 
     /**
@@ -494,7 +498,7 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         // If built-in content handler, then create a proxy handler.
         return addToStreamCache(protocol,
             new URLHandlersStreamHandlerProxy(protocol, m_secureAction,
-                handler, (URL) m_handlerToURL.get(handler)));
+                handler, (handler != null) ? (URL) m_handlerToURL.get(handler) : null));
     }
 
     /**
@@ -527,51 +531,35 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
             (m_contentHandlerFactory != this) ? m_contentHandlerFactory : null));
     }
 
-    private synchronized ContentHandler addToContentCache(String mimeType, ContentHandler handler)
+    private ContentHandler addToContentCache(String mimeType, ContentHandler handler)
     {
-        if (m_contentHandlerCache == null)
-        {
-            m_contentHandlerCache = new HashMap();
-        }
         return (ContentHandler) addToCache(m_contentHandlerCache, mimeType, handler);
     }
 
-    private synchronized ContentHandler getFromContentCache(String mimeType)
+    private ContentHandler getFromContentCache(String mimeType)
     {
-        return (ContentHandler) ((m_contentHandlerCache != null) ?
-            m_contentHandlerCache.get(mimeType) : null);
+        return (ContentHandler) m_contentHandlerCache.get(mimeType);
     }
 
-    private synchronized URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
+    private URLStreamHandler addToStreamCache(String protocol, URLStreamHandler handler)
     {
-        if (m_streamHandlerCache == null)
-        {
-            m_streamHandlerCache = new HashMap();
-        }
         return (URLStreamHandler) addToCache(m_streamHandlerCache, protocol, handler);
     }
 
-    private synchronized URLStreamHandler getFromStreamCache(String protocol)
+    private URLStreamHandler getFromStreamCache(String protocol)
     {
-        return (URLStreamHandler) ((m_streamHandlerCache != null) ?
-            m_streamHandlerCache.get(protocol) : null);
+        return (URLStreamHandler) m_streamHandlerCache.get(protocol);
     }
 
-    private Object addToCache(Map cache, String key, Object value)
+    private Object addToCache(ConcurrentMap cache, String key, Object value)
     {
         if (value == null)
         {
             return null;
         }
 
-        Object result = cache.get(key);
-
-        if (result == null)
-        {
-            cache.put(key, value);
-            result = value;
-        }
-        return result;
+        Object result = cache.putIfAbsent(key, value);
+        return (result == null) ? value : result;
     }
 
     /**
@@ -661,17 +649,12 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
     public static Object getFrameworkFromContext()
     {
         // This is a hack. The idea is to return the only registered framework
-        synchronized (m_classloaderToFrameworkLists)
+        if (m_classloaderToFrameworkLists.isEmpty() && (m_counter == 1))
         {
-            if (m_classloaderToFrameworkLists.isEmpty())
+            Object[] frameworks = m_frameworks.toArray();
+            if (frameworks.length == 1)
             {
-                synchronized (m_frameworks)
-                {
-                    if ((m_counter == 1) && (m_frameworks.size() == 1))
-                    {
-                        return m_frameworks.get(0);
-                    }
-                }
+                return frameworks[0];
             }
         }
         // get the current class call stack.
@@ -698,43 +681,59 @@ class URLHandlers implements URLStreamHandlerFactory, ContentHandlerFactory
         // the bundle that loaded the class.
         if (targetClass != null)
         {
-            synchronized (m_classloaderToFrameworkLists)
-            {
-                ClassLoader index = targetClass.getClassLoader().getClass().getClassLoader();
+            ClassLoader index = targetClass.getClassLoader().getClass().getClassLoader();
 
-                List frameworks = (List) m_classloaderToFrameworkLists.get(
-                    index);
+            List frameworks = (index != null)
+                ? (List) m_classloaderToFrameworkLists.get(index) : null;
 
-                if ((frameworks == null) && (index == URLHANDLERS_CLASS.getClassLoader()))
+            if ((frameworks == null) && (index == URLHANDLERS_CLASS.getClassLoader()))
+            {
+                frameworks = m_frameworks;
+            }
+            if (frameworks != null)
+            {
+                // Lists of URLHandlers in other classloaders may not
+                // be safe to read without holding their lock.
+                Object[] candidates;
+                if (frameworks instanceof CopyOnWriteArrayList)
                 {
-                    frameworks = m_frameworks;
+                    candidates = frameworks.toArray();
                 }
-                if (frameworks != null)
+                else
                 {
                     synchronized (frameworks)
                     {
-                        // Check the registry of framework instances
-                        for (int i = 0; i < frameworks.size(); i++)
+                        candidates = frameworks.toArray();
+                    }
+                }
+
+                // Check the registry of framework instances
+                for (int i = 0; i < candidates.length; i++)
+                {
+                    Object framework = candidates[i];
+                    try
+                    {
+                        if (framework instanceof Felix)
                         {
-                            Object framework = frameworks.get(i);
-                            try
+                            if (((Felix) framework).getBundle(targetClass) != null)
                             {
-                                if (m_secureAction.invoke(
-                                    m_secureAction.getDeclaredMethod(framework.getClass(),
-                                    "getBundle", CLASS_TYPE),
-                                    framework, new Object[]{targetClass}) != null)
-                                {
-                                    return framework;
-                                }
-                            }
-                            catch (Exception ex)
-                            {
-                                // This should not happen but if it does there is
-                                // not much we can do other then ignore it.
-                                // Maybe log this or something.
-                                ex.printStackTrace();
+                                return framework;
                             }
                         }
+                        else if (m_secureAction.invoke(
+                            m_secureAction.getDeclaredMethod(framework.getClass(),
+                            "getBundle", CLASS_TYPE),
+                            framework, new Object[]{targetClass}) != null)
+                        {
+                            return framework;
+                        }
+                    }
+                    catch (Exception ex)
+                    {
+                        // This should not happen but if it does there is
+                        // not much we can do other then ignore it.
+                        // Maybe log this or something.
+                        ex.printStackTrace();
                     }
                 }
             }
@@ -23,10 +23,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.url.URLStreamHandlerService;
 import org.osgi.util.tracker.ServiceTracker;
@@ -37,14 +42,31 @@ import org.osgi.util.tracker.ServiceTracker;
  * URL Handlers service. The only purpose of this class is to call
  * <tt>URLHandlers.registerInstance()</tt> when the framework is
  * started and <tt>URLHandlers.unregisterInstance()</tt> when the
- * framework is stopped.
+ * framework is stopped. It also keeps a table of the stream and content
+ * handler services per protocol and mime type, which is cleared whenever
+ * a handler service changes, so that handler lookups need no locks.
  *</p>
 **/
-class URLHandlersActivator implements BundleActivator
+class URLHandlersActivator implements BundleActivator, AllServiceListener
 {
+    private static final String HANDLER_FILTER =
+        "(|(" + Constants.OBJECTCLASS + "=" + URLStreamHandlerService.class.getName() + ")"
+        + "(" + Constants.OBJECTCLASS + "=" + ContentHandler.class.getName() + "))";
+
+    // Marks protocols and mime types without a handler service.
+    private static final Object NO_SERVICE = new Object();
+
     private final Map m_configMap;
     private final Felix m_framework;
 
+    // The handler services found per protocol and mime type. The tables are
+    // replaced whenever a handler service changes, so that a lookup racing
+    // with the change can only add its result to the discarded table.
+    private volatile ConcurrentMap<String, Object> m_streamHandlers =
+        new ConcurrentHashMap<String, Object>();
+    private volatile ConcurrentMap<String, Object> m_contentHandlers =
+        new ConcurrentHashMap<String, Object>();
+
     public URLHandlersActivator(Map configMap, Felix framework)
     {
         m_configMap = configMap;
@@ -55,7 +77,7 @@ class URLHandlersActivator implements BundleActivator
     // Bundle activator methods.
     //
 
-    public void start(BundleContext context)
+    public void start(BundleContext context) throws Exception
     {
         // Only register the framework with the URL Handlers service
         // if the service is enabled.
@@ -66,6 +88,7 @@ class URLHandlersActivator implements BundleActivator
 
         if (enable)
         {
+            context.addServiceListener(this, HANDLER_FILTER);
             m_framework.setURLHandlersActivator(this);
         }
         URLHandlers.registerFrameworkInstance(m_framework, enable);
@@ -75,20 +98,54 @@ class URLHandlersActivator implements BundleActivator
     {
         URLHandlers.unregisterFrameworkInstance(m_framework);
         m_framework.setURLHandlersActivator(null);
+        context.removeServiceListener(this);
+        clear();
+    }
+
+    //
+    // Service listener methods.
+    //
+
+    public void serviceChanged(ServiceEvent event)
+    {
+        // Registered services are already visible as hooks and
+        // unregistering ones are not anymore, so the next lookup
+        // finds the right handler service.
+        clear();
     }
 
     protected Object getStreamHandlerService(String protocol)
     {
-        return get(
-            m_framework.getHooks(URLStreamHandlerService.class),
-            "url.handler.protocol", protocol);
+        Map<String, Object> handlers = m_streamHandlers;
+        Object service = handlers.get(protocol);
+        if (service == null)
+        {
+            service = get(
+                m_framework.getHooks(URLStreamHandlerService.class),
+                "url.handler.protocol", protocol);
+            handlers.put(protocol, (service == null) ? NO_SERVICE : service);
+        }
+        return (service == NO_SERVICE) ? null : service;
     }
 
     protected Object getContentHandlerService(String mimeType)
     {
-        return get(
-            m_framework.getHooks(ContentHandler.class),
-            "url.content.mimetype", mimeType);
+        Map<String, Object> handlers = m_contentHandlers;
+        Object service = handlers.get(mimeType);
+        if (service == null)
+        {
+            service = get(
+                m_framework.getHooks(ContentHandler.class),
+                "url.content.mimetype", mimeType);
+            handlers.put(mimeType, (service == null) ? NO_SERVICE : service);
+        }
+        return (service == NO_SERVICE) ? null : service;
+    }
+
+    private void clear()
+    {
+        m_streamHandlers = new ConcurrentHashMap<String, Object>();
+        m_contentHandlers = new ConcurrentHashMap<String, Object>();
     }
 
     private <S> S get(Set<ServiceReference<S>> hooks, String key, String value)
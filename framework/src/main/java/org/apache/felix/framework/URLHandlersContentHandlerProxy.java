@@ -22,9 +22,9 @@ import java.io.IOException;
 import java.net.ContentHandler;
 import java.net.ContentHandlerFactory;
 import java.net.URLConnection;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.util.SecureAction;
 
@@ -57,7 +57,10 @@ class URLHandlersContentHandlerProxy extends ContentHandler
     private static final String CONTENT_HANDLER_PACKAGE_PROP = "java.content.handler.pkgs";
     private static final String DEFAULT_CONTENT_HANDLER_PACKAGE = "sun.net.www.content|com.ibm.oti.net.www.content|gnu.java.net.content|org.apache.harmony.luni.internal.net.www.content|COM.newmonics.www.content";
 
-    private static final Map m_builtIn = new HashMap();
+    // Marks mime types without a built-in content handler.
+    private static final Object NO_HANDLER = new Object();
+
+    private static final ConcurrentMap m_builtIn = new ConcurrentHashMap();
     private static final String m_pkgs;
 
     static
@@ -141,12 +144,10 @@ class URLHandlersContentHandlerProxy extends ContentHandler
 
     private ContentHandler getBuiltIn()
     {
-        synchronized (m_builtIn)
+        Object cached = m_builtIn.get(m_mimeType);
+        if (cached != null)
         {
-            if (m_builtIn.containsKey(m_mimeType))
-            {
-                return (ContentHandler) m_builtIn.get(m_mimeType);
-            }
+            return (cached == NO_HANDLER) ? null : (ContentHandler) cached;
         }
         if (m_factory != null)
         {
@@ -186,13 +187,14 @@ class URLHandlersContentHandlerProxy extends ContentHandler
         return addToCache(m_mimeType, null);
     }
 
-    private synchronized ContentHandler addToCache(String mimeType, ContentHandler handler)
+    private ContentHandler addToCache(String mimeType, ContentHandler handler)
     {
-        if (!m_builtIn.containsKey(mimeType))
+        Object cached = m_builtIn.putIfAbsent(
+            mimeType, (handler == null) ? NO_HANDLER : handler);
+        if (cached == null)
         {
-            m_builtIn.put(mimeType, handler);
             return handler;
         }
-        return (ContentHandler) m_builtIn.get(mimeType);
+        return (cached == NO_HANDLER) ? null : (ContentHandler) cached;
     }
 }
\ No newline at end of file
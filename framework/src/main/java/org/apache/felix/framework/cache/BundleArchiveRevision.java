@@ -129,6 +129,32 @@ public abstract class BundleArchiveRevision
 
     public abstract Content getContent() throws Exception;
 
+    /**
+     * <p>
+     * Returns the parsed form of the manifest that was previously stored
+     * with <tt>setParsedManifest()</tt>, if the revision supports storing
+     * it and its content has not changed since.
+     * </p>
+     * @return the stored parsed form of the manifest or <tt>null</tt>.
+    **/
+    public byte[] getParsedManifest()
+    {
+        return null;
+    }
+
+    /**
+     * <p>
+     * Stores the parsed form of the manifest of the revision, so that it
+     * does not have to be parsed again when the revision is reloaded. By
+     * default, revisions do not store it.
+     * </p>
+     * @param data the parsed form of the manifest.
+    **/
+    public void setParsedManifest(byte[] data)
+    {
+        // Nothing to store by default.
+    }
+
     /**
      * <p>
      * This method is called when the revision is no longer needed. The directory
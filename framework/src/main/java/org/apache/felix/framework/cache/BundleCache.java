@@ -68,6 +68,33 @@ import org.osgi.framework.Constants;
  *       string provides control over the size of the internal buffer of the
  *       disk cache for performance reasons.
  *   </li>
+ *   <li><tt>felix.cache.mapped</tt> - Flag to indicate whether bundle JAR
+ *       files are memory mapped and indexed, so that classes and resources
+ *       can be read without going through <tt>ZipFile</tt> and without
+ *       reopening JAR files closed because of the file limit. Mapped files
+ *       are unmapped explicitly once their content is closed and no mapped
+ *       buffer or stream is in use anymore; only mappings whose buffers
+ *       were never released, or JVMs that do not support unmapping, leave
+ *       this to garbage collection, which may delay the deletion of
+ *       uninstalled bundles on some platforms. The default value is
+ *       "<tt>false</tt>".
+ *   </li>
+ *   <li><tt>felix.cache.compact</tt> - Flag to indicate whether a compacted
+ *       layout is created for each bundle JAR file when it is installed or
+ *       updated. The layout stores all entries uncompressed in a single
+ *       memory mapped file with a persistent entry index, and embedded JAR
+ *       files on the bundle class path are extracted immediately, so that
+ *       bundles can be used after a restart without inflating or indexing
+ *       their JAR files. The default value is "<tt>false</tt>".
+ *   </li>
+ *   <li><tt>felix.cache.manifest</tt> - Flag to indicate whether the
+ *       manifest headers and the parsed capabilities and requirements of
+ *       bundle JAR files are stored in the cache, so that bundles can be
+ *       reloaded after a restart without reading and parsing their
+ *       manifests. The stored data is discarded when the length or
+ *       modification time of a bundle JAR file changes. The default value
+ *       is "<tt>false</tt>".
+ *   </li>
  * <p>
  * For specific information on how to configure the Felix framework, refer
  * to the Felix framework usage documentation.
@@ -80,6 +107,9 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MAPPED_PROP = "felix.cache.mapped";
+    public static final String CACHE_COMPACT_PROP = "felix.cache.compact";
+    public static final String CACHE_MANIFEST_PROP = "felix.cache.manifest";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.StringMap;
+
+/**
+ * <p>
+ * Stores the manifest headers of a bundle JAR file in the revision
+ * directory, together with an opaque parsed form of the manifest provided
+ * by the framework. The stored data is only used while the bundle JAR file
+ * has the same length and modification time as when it was stored, so that
+ * the headers do not have to be read from the JAR file again.
+ * </p>
+**/
+class CachedManifest
+{
+    static final String MANIFEST_FILE = "bundle.manifest";
+
+    private static final int MAGIC = 0x46454c4d;
+    private static final int VERSION = 1;
+
+    private final Logger m_logger;
+    private final File m_file;
+    private final File m_bundleFile;
+    private Map m_headers;
+    private byte[] m_parsed;
+
+    CachedManifest(Logger logger, File revisionDir, File bundleFile)
+    {
+        m_logger = logger;
+        m_file = new File(revisionDir, MANIFEST_FILE);
+        m_bundleFile = bundleFile;
+        load();
+    }
+
+    /**
+     * Returns the stored headers or <tt>null</tt> if there are none.
+    **/
+    synchronized Map getHeaders()
+    {
+        return (m_headers == null) ? null : new StringMap(m_headers);
+    }
+
+    /**
+     * Returns the stored parsed form of the manifest or <tt>null</tt>.
+    **/
+    synchronized byte[] getParsed()
+    {
+        return m_parsed;
+    }
+
+    /**
+     * Stores the specified headers and parsed form of the manifest.
+     * @param headers the manifest headers.
+     * @param parsed the parsed form of the manifest or <tt>null</tt>.
+    **/
+    synchronized void store(Map headers, byte[] parsed)
+    {
+        m_headers = new StringMap(headers);
+        m_parsed = parsed;
+
+        OutputStream os = null;
+        boolean stored = false;
+        try
+        {
+            os = BundleCache.getSecureAction().getFileOutputStream(m_file);
+            DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(os, BundleCache.BUFSIZE));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(m_bundleFile.length());
+            dos.writeLong(m_bundleFile.lastModified());
+            dos.writeInt(m_headers.size());
+            for (Iterator it = m_headers.entrySet().iterator(); it.hasNext(); )
+            {
+                Entry entry = (Entry) it.next();
+                writeString(dos, entry.getKey().toString());
+                writeString(dos, entry.getValue().toString());
+            }
+            dos.writeInt((m_parsed == null) ? -1 : m_parsed.length);
+            if (m_parsed != null)
+            {
+                dos.write(m_parsed);
+            }
+            dos.flush();
+            stored = true;
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to store manifest of " + m_bundleFile + ".", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (os != null) os.close();
+            }
+            catch (IOException ex)
+            {
+                stored = false;
+            }
+        }
+
+        // Make sure an incomplete file is never used.
+        if (!stored)
+        {
+            BundleCache.getSecureAction().deleteFile(m_file);
+        }
+    }
+
+    private void load()
+    {
+        DataInputStream dis = null;
+        try
+        {
+            dis = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(m_file)));
+            if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION)
+                || (dis.readLong() != m_bundleFile.length())
+                || (dis.readLong() != m_bundleFile.lastModified()))
+            {
+                return;
+            }
+            Map headers = new StringMap();
+            for (int i = dis.readInt(); i > 0; i--)
+            {
+                headers.put(readString(dis), readString(dis));
+            }
+            byte[] parsed = null;
+            int length = dis.readInt();
+            if (length >= 0)
+            {
+                parsed = new byte[length];
+                dis.readFully(parsed);
+            }
+            m_headers = headers;
+            m_parsed = parsed;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Nothing was stored yet.
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to load stored manifest of " + m_bundleFile + ".", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (dis != null) dis.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do.
+            }
+        }
+    }
+
+    // Unlike writeUTF(), this does not limit the length of header values.
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.cache.MappedJarContent.EntryIndex;
+import org.apache.felix.framework.util.Util;
+
+/**
+ * <p>
+ * A compacted layout of a bundle JAR file in the revision directory. The
+ * layout consists of a flat copy of the JAR file with all entries stored
+ * uncompressed, so that they can be served directly from a memory mapping,
+ * and an index file. The index file holds the entry index of the flat copy
+ * together with the digest, length and modification time of the bundle JAR
+ * file. When a revision is reloaded and the bundle JAR file still has the
+ * recorded length and modification time, the layout is used without
+ * reading either file again.
+ * </p>
+**/
+class CompactedJar
+{
+    static final String FLAT_FILE = "bundle.flat";
+    static final String INDEX_FILE = "bundle.flat.idx";
+
+    private static final int MAGIC = 0x46454c58;
+    private static final int VERSION = 1;
+
+    private final EntryIndex m_index;
+    private final boolean m_isCreated;
+
+    private CompactedJar(EntryIndex index, boolean isCreated)
+    {
+        m_index = index;
+        m_isCreated = isCreated;
+    }
+
+    /**
+     * Returns the entry index of the flat copy of the bundle JAR file.
+    **/
+    EntryIndex getIndex()
+    {
+        return m_index;
+    }
+
+    /**
+     * Returns whether the layout was created instead of loaded.
+    **/
+    boolean isCreated()
+    {
+        return m_isCreated;
+    }
+
+    /**
+     * Releases the entry index, so the flat copy is unmapped once the
+     * contents using it are closed.
+    **/
+    void close()
+    {
+        m_index.release();
+    }
+
+    /**
+     * Opens the compacted layout in the specified revision directory or
+     * creates it if it does not exist or is out of date.
+     * @param logger the logger to use.
+     * @param revisionDir the revision directory.
+     * @param bundleFile the bundle JAR file.
+     * @return the compacted layout.
+     * @throws Exception if the layout cannot be created.
+    **/
+    static CompactedJar open(Logger logger, File revisionDir, File bundleFile)
+        throws Exception
+    {
+        File flatFile = new File(revisionDir, FLAT_FILE);
+        File indexFile = new File(revisionDir, INDEX_FILE);
+
+        CompactedJar compacted = null;
+        try
+        {
+            compacted = load(bundleFile, flatFile, indexFile);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Logger.LOG_WARNING,
+                "Unable to load compacted layout of " + bundleFile + ".", ex);
+        }
+
+        if (compacted == null)
+        {
+            compacted = create(bundleFile, flatFile, indexFile);
+        }
+        return compacted;
+    }
+
+    private static CompactedJar load(File bundleFile, File flatFile, File indexFile)
+        throws Exception
+    {
+        DataInputStream dis;
+        try
+        {
+            dis = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(indexFile)));
+        }
+        catch (FileNotFoundException ex)
+        {
+            return null;
+        }
+
+        String digest;
+        long length;
+        long lastModified;
+        int[] entries;
+        try
+        {
+            if ((dis.readInt() != MAGIC) || (dis.readInt() != VERSION))
+            {
+                return null;
+            }
+            digest = dis.readUTF();
+            length = dis.readLong();
+            lastModified = dis.readLong();
+            if ((dis.readLong() != flatFile.length()))
+            {
+                return null;
+            }
+            entries = new int[dis.readInt()];
+            for (int i = 0; i < entries.length; i++)
+            {
+                entries[i] = dis.readInt();
+            }
+        }
+        finally
+        {
+            dis.close();
+        }
+
+        // The bundle JAR file only needs to be verified if it looks
+        // different than when the layout was created, e.g., because
+        // it was copied or because it is referenced in place.
+        if ((length != bundleFile.length())
+            || (lastModified != bundleFile.lastModified()))
+        {
+            if (!digest.equals(digest(bundleFile)))
+            {
+                return null;
+            }
+            writeIndex(indexFile, digest, bundleFile, flatFile, entries);
+        }
+
+        return new CompactedJar(EntryIndex.create(flatFile, entries), false);
+    }
+
+    private static CompactedJar create(File bundleFile, File flatFile, File indexFile)
+        throws Exception
+    {
+        // Remove any stale index first, so an incomplete layout is never used.
+        BundleCache.getSecureAction().deleteFile(indexFile);
+
+        String digest = digest(bundleFile);
+
+        ZipFile zipFile = BundleCache.getSecureAction().openZipFile(bundleFile);
+        ZipOutputStream zos = null;
+        try
+        {
+            zos = new ZipOutputStream(new BufferedOutputStream(
+                BundleCache.getSecureAction().getFileOutputStream(flatFile),
+                BundleCache.BUFSIZE));
+            zos.setMethod(ZipOutputStream.STORED);
+            byte[] buf = new byte[BundleCache.BUFSIZE];
+            CRC32 crc = new CRC32();
+            for (Enumeration e = zipFile.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry entry = (ZipEntry) e.nextElement();
+
+                // Stored entries need their size and CRC up front, so
+                // compute them in a first pass over the entry instead of
+                // keeping the whole entry in memory.
+                crc.reset();
+                long size = 0;
+                InputStream is = zipFile.getInputStream(entry);
+                try
+                {
+                    for (int n = is.read(buf); n >= 0; n = is.read(buf))
+                    {
+                        crc.update(buf, 0, n);
+                        size += n;
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+
+                ZipEntry stored = new ZipEntry(entry.getName());
+                stored.setMethod(ZipEntry.STORED);
+                stored.setSize(size);
+                stored.setCompressedSize(size);
+                stored.setCrc(crc.getValue());
+                stored.setTime(entry.getTime());
+                zos.putNextEntry(stored);
+                is = zipFile.getInputStream(entry);
+                try
+                {
+                    for (int n = is.read(buf); n >= 0; n = is.read(buf))
+                    {
+                        zos.write(buf, 0, n);
+                    }
+                }
+                finally
+                {
+                    is.close();
+                }
+                zos.closeEntry();
+            }
+            zos.close();
+            zos = null;
+        }
+        finally
+        {
+            if (zos != null) zos.close();
+            zipFile.close();
+        }
+
+        EntryIndex index = EntryIndex.create(flatFile);
+        writeIndex(indexFile, digest, bundleFile, flatFile, index.getEntries());
+        return new CompactedJar(index, true);
+    }
+
+    private static void writeIndex(
+        File indexFile, String digest, File bundleFile, File flatFile, int[] entries)
+        throws IOException
+    {
+        OutputStream os = BundleCache.getSecureAction().getFileOutputStream(indexFile);
+        try
+        {
+            DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(os, BundleCache.BUFSIZE));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeUTF(digest);
+            dos.writeLong(bundleFile.length());
+            dos.writeLong(bundleFile.lastModified());
+            dos.writeLong(flatFile.length());
+            dos.writeInt(entries.length);
+            for (int i = 0; i < entries.length; i++)
+            {
+                dos.writeInt(entries[i]);
+            }
+            dos.flush();
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    private static String digest(File file) throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        InputStream is = BundleCache.getSecureAction().getFileInputStream(file);
+        try
+        {
+            byte[] buf = new byte[BundleCache.BUFSIZE];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                md.update(buf, 0, n);
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+
+        return Util.toHexString(md.digest());
+    }
+}
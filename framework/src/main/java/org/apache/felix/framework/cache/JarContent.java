@@ -227,8 +227,7 @@ public class JarContent implements Content
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+            return createContent(m_rootDir, m_file, m_zipFile);
         }
 
         // Remove any leading slash.
@@ -289,9 +288,7 @@ public class JarContent implements Content
                         "Unable to extract embedded JAR file.", ex);
                 }
             }
-            return new JarContent(
-                m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                extractJar.getParentFile(), extractJar, null);
+            return createContent(extractJar.getParentFile(), extractJar, null);
         }
 
         // The entry could not be found, so return null.
@@ -432,6 +429,20 @@ public class JarContent implements Content
         return m_file;
     }
 
+    /**
+     * Creates the content for this JAR file itself or for an embedded JAR
+     * file extracted from it.
+     * @param rootDir the root directory of the new content.
+     * @param file the JAR file of the new content.
+     * @param zipFile the already opened JAR file or <tt>null</tt>.
+     * @return the new content.
+    **/
+    protected JarContent createContent(File rootDir, File file, WeakZipFile zipFile)
+    {
+        return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+            rootDir, file, zipFile);
+    }
+
     /**
      * This method extracts an embedded JAR file from the bundle's
      * JAR file.
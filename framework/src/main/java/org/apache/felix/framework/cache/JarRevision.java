@@ -25,14 +25,18 @@ import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 
 import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+import org.apache.felix.framework.util.manifestparser.ManifestParser;
+import org.osgi.framework.Constants;
 
 /**
  * <p>
@@ -52,6 +56,8 @@ class JarRevision extends BundleArchiveRevision
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    private final CompactedJar m_compacted;
+    private final CachedManifest m_manifest;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -76,6 +82,12 @@ class JarRevision extends BundleArchiveRevision
         // Save and process the bundle JAR.
         initialize(byReference, is);
 
+        // Load the stored manifest, if enabled.
+        m_manifest = "true".equalsIgnoreCase(
+            (String) getConfig().get(BundleCache.CACHE_MANIFEST_PROP))
+            ? new CachedManifest(getLogger(), getRevisionRootDir(), m_bundleFile)
+            : null;
+
         // Open shared copy of the JAR file.
         WeakZipFile zipFile = null;
         try
@@ -94,19 +106,83 @@ class JarRevision extends BundleArchiveRevision
             if (zipFile != null) zipFile.close();
             throw ex;
         }
+
+        // Create or load the compacted layout, if enabled.
+        CompactedJar compacted = null;
+        if ("true".equalsIgnoreCase(
+            (String) getConfig().get(BundleCache.CACHE_COMPACT_PROP)))
+        {
+            try
+            {
+                compacted = CompactedJar.open(getLogger(), getRevisionRootDir(), m_bundleFile);
+                if (compacted.isCreated())
+                {
+                    extractEmbeddedJars();
+                }
+            }
+            catch (Exception ex)
+            {
+                getLogger().log(
+                    Logger.LOG_WARNING,
+                    "Unable to compact " + m_bundleFile + ", using it as is.", ex);
+                if (compacted != null)
+                {
+                    compacted.close();
+                }
+                compacted = null;
+            }
+        }
+        m_compacted = compacted;
     }
 
     public Map getManifestHeader() throws Exception
     {
-        // Create a case insensitive map of manifest attributes.
-        Map headers = new StringMap();
-        // Read and parse headers.
-        getMainAttributes(headers, m_zipFile);
+        Map headers = (m_manifest != null) ? m_manifest.getHeaders() : null;
+        if (headers == null)
+        {
+            // Create a case insensitive map of manifest attributes.
+            headers = new StringMap();
+            // Read and parse headers.
+            getMainAttributes(headers, m_zipFile);
+            if (m_manifest != null)
+            {
+                m_manifest.store(headers, null);
+            }
+        }
         return headers;
     }
 
+    public byte[] getParsedManifest()
+    {
+        return (m_manifest != null) ? m_manifest.getParsed() : null;
+    }
+
+    public void setParsedManifest(byte[] data)
+    {
+        if (m_manifest != null)
+        {
+            Map headers = m_manifest.getHeaders();
+            if (headers != null)
+            {
+                m_manifest.store(headers, data);
+            }
+        }
+    }
+
     public synchronized Content getContent() throws Exception
     {
+        if (m_compacted != null)
+        {
+            return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                this, getRevisionRootDir(), m_bundleFile, m_zipFile,
+                m_compacted.getIndex());
+        }
+        else if ("true".equalsIgnoreCase(
+            (String) getConfig().get(BundleCache.CACHE_MAPPED_PROP)))
+        {
+            return new MappedJarContent(getLogger(), getConfig(), m_zipFactory,
+                this, getRevisionRootDir(), m_bundleFile, m_zipFile);
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
             this, getRevisionRootDir(), m_bundleFile, m_zipFile);
     }
@@ -114,12 +190,42 @@ class JarRevision extends BundleArchiveRevision
     protected void close() throws Exception
     {
         m_zipFile.close();
+        if (m_compacted != null)
+        {
+            m_compacted.close();
+        }
     }
 
     //
     // Private methods.
     //
 
+    // Extracts the embedded JAR files on the bundle class path up front,
+    // so they do not have to be extracted when the bundle is first used.
+    private void extractEmbeddedJars() throws Exception
+    {
+        List<String> classPath = ManifestParser.parseDelimitedString(
+            (String) getManifestHeader().get(Constants.BUNDLE_CLASSPATH),
+            FelixConstants.CLASS_PATH_SEPARATOR);
+        if (classPath == null)
+        {
+            return;
+        }
+        Content content = new JarContent(getLogger(), getConfig(), m_zipFactory,
+            this, getRevisionRootDir(), m_bundleFile, m_zipFile);
+        for (String entry : classPath)
+        {
+            if (!entry.equals(FelixConstants.CLASS_PATH_DOT))
+            {
+                Content embedded = content.getEntryAsContent(entry);
+                if (embedded != null)
+                {
+                    embedded.close();
+                }
+            }
+        }
+    }
+
     private void initialize(boolean byReference, InputStream is)
         throws Exception
     {
@@ -0,0 +1,762 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
+
+/**
+ * <p>
+ * A JAR content that memory maps the JAR file and looks up entries using
+ * an index of its central directory. Since the index does not depend on
+ * the underlying <tt>ZipFile</tt>, entries can be found and read without
+ * reopening the JAR file after it was closed because of the open file limit.
+ * Stored entries are returned as slices of the mapped file without copying,
+ * while deflated entries are inflated directly into a buffer of the exact
+ * entry size.
+ * </p>
+ * <p>
+ * If the JAR file cannot be mapped or indexed (e.g., because it uses the
+ * ZIP64 format), this content behaves like a regular <tt>JarContent</tt>.
+ * </p>
+ * <p>
+ * The mapping is released explicitly once this content is closed and no
+ * mapped buffer or stream returned by it is in use anymore, since platforms
+ * like Windows do not allow a mapped file to be deleted. Buffers returned
+ * by <tt>getEntryAsByteBuffer()</tt> must be passed to <tt>release()</tt>
+ * and streams must be closed for this; otherwise, or if the JVM does not
+ * support unmapping, the mapping is only released by garbage collection.
+ * </p>
+**/
+public class MappedJarContent extends JarContent
+{
+    private final Logger m_logger;
+    private final Map m_configMap;
+    private final WeakZipFileFactory m_zipFactory;
+    private final Object m_revisionLock;
+    private final EntryIndex m_mapping;
+    private volatile EntryIndex m_index;
+
+    public MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile, null);
+    }
+
+    /**
+     * Creates a content that reads entries using the specified index,
+     * which may be the index of a different file with the same entries.
+     * If the index is <tt>null</tt>, the JAR file itself is indexed.
+    **/
+    MappedJarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile, EntryIndex index)
+    {
+        super(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile);
+        m_logger = logger;
+        m_configMap = configMap;
+        m_zipFactory = zipFactory;
+        m_revisionLock = revisionLock;
+        if ((index != null) && !index.acquire())
+        {
+            // The shared index was already unmapped, so index the JAR
+            // file itself.
+            index = null;
+        }
+        if (index == null)
+        {
+            try
+            {
+                index = EntryIndex.create(file);
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "MappedJarContent: Unable to index JAR file " + file
+                    + ", using regular access instead.", ex);
+            }
+        }
+        m_mapping = index;
+        m_index = index;
+    }
+
+    public void close()
+    {
+        EntryIndex index;
+        synchronized (this)
+        {
+            index = m_index;
+            m_index = null;
+        }
+        if (index != null)
+        {
+            index.release();
+        }
+        super.close();
+    }
+
+    public boolean hasEntry(String name) throws IllegalStateException
+    {
+        EntryIndex index = acquireIndex();
+        if (index != null)
+        {
+            try
+            {
+                return index.lookup(name) >= 0;
+            }
+            finally
+            {
+                index.release();
+            }
+        }
+        return super.hasEntry(name);
+    }
+
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
+    {
+        ByteBuffer buffer = getEntryAsByteBuffer(name);
+        if (buffer == null)
+        {
+            return null;
+        }
+        else if (buffer.hasArray() && (buffer.arrayOffset() == 0)
+            && (buffer.remaining() == buffer.array().length))
+        {
+            return buffer.array();
+        }
+        try
+        {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+        finally
+        {
+            release(buffer);
+        }
+    }
+
+    /**
+     * <p>
+     * This method returns the named entry as a byte buffer. For stored
+     * entries, the returned buffer is a read-only view of the mapped JAR
+     * file, which remains mapped until the buffer is passed to
+     * <tt>release()</tt>.
+     * </p>
+     * @param name The name of the entry to retrieve as a byte buffer.
+     * @return A byte buffer if the corresponding entry was found, <tt>null</tt>
+     *         otherwise.
+    **/
+    public ByteBuffer getEntryAsByteBuffer(String name) throws IllegalStateException
+    {
+        EntryIndex index = acquireIndex();
+        if (index != null)
+        {
+            boolean isMapped = false;
+            try
+            {
+                int entry = index.lookup(name);
+                if (entry < 0)
+                {
+                    return null;
+                }
+                ByteBuffer buffer = index.getData(entry);
+                if (buffer != null)
+                {
+                    // Keep the index acquired for a mapped buffer until
+                    // it is released by the caller.
+                    isMapped = buffer.isDirect();
+                    return buffer;
+                }
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "MappedJarContent: Unable to read mapped entry " + name + ".", ex);
+            }
+            finally
+            {
+                if (!isMapped)
+                {
+                    index.release();
+                }
+            }
+        }
+
+        // Directories, unsupported compression methods and unindexed
+        // JAR files are read through the regular ZIP file.
+        byte[] bytes = super.getEntryAsBytes(name);
+        return (bytes == null) ? null : ByteBuffer.wrap(bytes);
+    }
+
+    public InputStream getEntryAsStream(String name)
+        throws IllegalStateException, IOException
+    {
+        EntryIndex index = acquireIndex();
+        if (index != null)
+        {
+            boolean isMapped = false;
+            try
+            {
+                int entry = index.lookup(name);
+                if (entry < 0)
+                {
+                    return null;
+                }
+                // Only stream stored entries from the mapped file, since
+                // deflated entries may be large and are better inflated
+                // incrementally by the regular ZIP file stream.
+                if (index.isStored(entry))
+                {
+                    InputStream is = new ByteBufferInputStream(index, index.getData(entry));
+                    isMapped = true;
+                    return is;
+                }
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "MappedJarContent: Unable to read mapped entry " + name + ".", ex);
+            }
+            finally
+            {
+                if (!isMapped)
+                {
+                    index.release();
+                }
+            }
+        }
+        return super.getEntryAsStream(name);
+    }
+
+    /**
+     * Releases a buffer returned by <tt>getEntryAsByteBuffer()</tt>, which
+     * must not be used afterwards, so the JAR file can be unmapped once this
+     * content is closed.
+     * @param buffer the buffer to release.
+    **/
+    public void release(ByteBuffer buffer)
+    {
+        if ((buffer != null) && buffer.isDirect())
+        {
+            m_mapping.release();
+        }
+    }
+
+    private EntryIndex acquireIndex()
+    {
+        EntryIndex index = m_index;
+        return ((index != null) && index.acquire()) ? index : null;
+    }
+
+    protected JarContent createContent(File rootDir, File file, WeakZipFile zipFile)
+    {
+        // Share the index if the content is for this JAR file itself.
+        EntryIndex index = (file.equals(getFile())) ? m_index : null;
+        return new MappedJarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
+            rootDir, file, zipFile, index);
+    }
+
+    public String toString()
+    {
+        return "Mapped JAR " + getFile().getPath();
+    }
+
+    /**
+     * An index of the entries of a memory mapped JAR file. The index is an
+     * array of the offsets of the central directory headers sorted by entry
+     * name, so entries are found with a binary search directly on the
+     * mapped bytes.
+    **/
+    static class EntryIndex
+    {
+        private static final int LOCAL_HEADER_SIG = 0x04034b50;
+        private static final int LOCAL_HEADER_SIZE = 30;
+        private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+        private static final int CENTRAL_HEADER_SIZE = 46;
+        private static final int END_HEADER_SIG = 0x06054b50;
+        private static final int END_HEADER_SIZE = 22;
+        private static final int MAX_COMMENT_SIZE = 0xFFFF;
+        private static final int STORED = 0;
+        private static final int DEFLATED = 8;
+
+        private static final Object s_unsafe;
+        private static final Method s_invokeCleaner;
+
+        static
+        {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try
+            {
+                // Java 9 and later only allow to unmap buffers through
+                // Unsafe; older versions use the cleaner of the buffer.
+                Class clazz = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = clazz.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            }
+            catch (Throwable ex)
+            {
+                invokeCleaner = null;
+            }
+            s_unsafe = unsafe;
+            s_invokeCleaner = invokeCleaner;
+        }
+
+        private final ByteBuffer m_buffer;
+        private final int[] m_entries;
+        // The number of users of the mapping, which is unmapped when it
+        // drops to zero; the creator of the index is its first user.
+        private final AtomicInteger m_users = new AtomicInteger(1);
+
+        private EntryIndex(ByteBuffer buffer, int[] entries)
+        {
+            m_buffer = buffer;
+            m_entries = entries;
+        }
+
+        /**
+         * Acquires the mapping, which must be released afterwards.
+         * @return <tt>true</tt> if the mapping was acquired, <tt>false</tt>
+         *         if it was already unmapped.
+        **/
+        boolean acquire()
+        {
+            for (;;)
+            {
+                int users = m_users.get();
+                if (users == 0)
+                {
+                    return false;
+                }
+                if (m_users.compareAndSet(users, users + 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Releases the mapping and unmaps the file if it was the last user.
+        **/
+        void release()
+        {
+            if (m_users.decrementAndGet() == 0)
+            {
+                unmap(m_buffer);
+            }
+        }
+
+        /**
+         * Returns whether the mapping was released by all of its users.
+        **/
+        boolean isReleased()
+        {
+            return m_users.get() == 0;
+        }
+
+        private static void unmap(ByteBuffer buffer)
+        {
+            try
+            {
+                if (s_invokeCleaner != null)
+                {
+                    s_invokeCleaner.invoke(s_unsafe, buffer);
+                }
+                else
+                {
+                    Method method = buffer.getClass().getMethod("cleaner");
+                    method.setAccessible(true);
+                    Object cleaner = method.invoke(buffer);
+                    if (cleaner != null)
+                    {
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                    }
+                }
+            }
+            catch (Throwable ex)
+            {
+                // Unmapping is not supported, so leave it to garbage
+                // collection.
+            }
+        }
+
+        /**
+         * Maps and indexes the specified JAR file.
+         * @param file the JAR file to index.
+         * @return the index of the JAR file.
+         * @throws IOException if the file cannot be mapped or is not a
+         *         supported ZIP file.
+        **/
+        static EntryIndex create(File file) throws IOException
+        {
+            ByteBuffer buffer = map(file);
+
+            // Find the end of central directory record, which may be
+            // followed by a comment.
+            int end = -1;
+            int limit = Math.max(0, buffer.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+            for (int pos = buffer.limit() - END_HEADER_SIZE; (end < 0) && (pos >= limit); pos--)
+            {
+                if (buffer.getInt(pos) == END_HEADER_SIG)
+                {
+                    end = pos;
+                }
+            }
+            if (end < 0)
+            {
+                throw new IOException("Not a ZIP file.");
+            }
+
+            int count = buffer.getShort(end + 10) & 0xFFFF;
+            int offset = buffer.getInt(end + 16);
+            if ((count == 0xFFFF) || (offset == 0xFFFFFFFF))
+            {
+                throw new IOException("ZIP64 files are not supported.");
+            }
+
+            final ByteBuffer b = buffer;
+            Integer[] entries = new Integer[count];
+            for (int i = 0; i < count; i++)
+            {
+                if ((offset < 0) || (offset + CENTRAL_HEADER_SIZE > end)
+                    || (buffer.getInt(offset) != CENTRAL_HEADER_SIG))
+                {
+                    throw new IOException("Invalid central directory.");
+                }
+                entries[i] = Integer.valueOf(offset);
+                offset += CENTRAL_HEADER_SIZE
+                    + (buffer.getShort(offset + 28) & 0xFFFF)
+                    + (buffer.getShort(offset + 30) & 0xFFFF)
+                    + (buffer.getShort(offset + 32) & 0xFFFF);
+            }
+            Arrays.sort(entries, new Comparator<Integer>() {
+                public int compare(Integer e1, Integer e2)
+                {
+                    return compareNames(b, e1.intValue(), e2.intValue());
+                }
+            });
+
+            int[] sorted = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                sorted[i] = entries[i].intValue();
+            }
+            return new EntryIndex(buffer, sorted);
+        }
+
+        /**
+         * Maps the specified ZIP file and uses the specified central
+         * directory header offsets, which must be sorted by entry name,
+         * instead of parsing the central directory.
+         * @param file the ZIP file to map.
+         * @param entries the sorted central directory header offsets.
+         * @return the index of the ZIP file.
+         * @throws IOException if the file cannot be mapped or the offsets
+         *         do not refer to central directory headers.
+        **/
+        static EntryIndex create(File file, int[] entries) throws IOException
+        {
+            ByteBuffer buffer = map(file);
+            for (int i = 0; i < entries.length; i++)
+            {
+                if ((entries[i] < 0) || (entries[i] + CENTRAL_HEADER_SIZE > buffer.limit())
+                    || (buffer.getInt(entries[i]) != CENTRAL_HEADER_SIG))
+                {
+                    throw new IOException("Invalid central directory.");
+                }
+            }
+            return new EntryIndex(buffer, entries);
+        }
+
+        private static ByteBuffer map(File file) throws IOException
+        {
+            ByteBuffer buffer;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE)
+                {
+                    throw new IOException("JAR file is too large to map.");
+                }
+                // The mapping remains valid after the channel is closed.
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            finally
+            {
+                raf.close();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        /**
+         * Returns the central directory header offsets sorted by entry name.
+        **/
+        int[] getEntries()
+        {
+            return m_entries;
+        }
+
+        private static int compareNames(ByteBuffer buffer, int e1, int e2)
+        {
+            int len1 = buffer.getShort(e1 + 28) & 0xFFFF;
+            int len2 = buffer.getShort(e2 + 28) & 0xFFFF;
+            int n = Math.min(len1, len2);
+            for (int i = 0; i < n; i++)
+            {
+                int c1 = buffer.get(e1 + CENTRAL_HEADER_SIZE + i) & 0xFF;
+                int c2 = buffer.get(e2 + CENTRAL_HEADER_SIZE + i) & 0xFF;
+                if (c1 != c2)
+                {
+                    return c1 - c2;
+                }
+            }
+            return len1 - len2;
+        }
+
+        private int compareName(int entry, byte[] name)
+        {
+            int len = m_buffer.getShort(entry + 28) & 0xFFFF;
+            int n = Math.min(len, name.length);
+            for (int i = 0; i < n; i++)
+            {
+                int c1 = m_buffer.get(entry + CENTRAL_HEADER_SIZE + i) & 0xFF;
+                int c2 = name[i] & 0xFF;
+                if (c1 != c2)
+                {
+                    return c1 - c2;
+                }
+            }
+            return len - name.length;
+        }
+
+        private int find(String name)
+        {
+            byte[] bytes;
+            try
+            {
+                bytes = name.getBytes("UTF-8");
+            }
+            catch (IOException ex)
+            {
+                // UTF-8 is always supported.
+                return -1;
+            }
+
+            int low = 0;
+            int high = m_entries.length - 1;
+            while (low <= high)
+            {
+                int mid = (low + high) >>> 1;
+                int cmp = compareName(m_entries[mid], bytes);
+                if (cmp < 0)
+                {
+                    low = mid + 1;
+                }
+                else if (cmp > 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return m_entries[mid];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the specified entry; like <tt>ZipFile.getEntry()</tt>, a
+         * directory entry is also found by its name without trailing slash.
+         * @param name the name of the entry.
+         * @return the entry or a negative value if there is no such entry.
+        **/
+        int lookup(String name)
+        {
+            int entry = find(name);
+            if ((entry < 0) && !name.endsWith("/"))
+            {
+                entry = find(name + "/");
+            }
+            return entry;
+        }
+
+        boolean isStored(int entry)
+        {
+            return ((m_buffer.getShort(entry + 8) & 0x1) == 0)
+                && ((m_buffer.getShort(entry + 10) & 0xFFFF) == STORED)
+                && !isDirectory(entry);
+        }
+
+        private boolean isDirectory(int entry)
+        {
+            int len = m_buffer.getShort(entry + 28) & 0xFFFF;
+            return (len > 0)
+                && (m_buffer.get(entry + CENTRAL_HEADER_SIZE + len - 1) == '/');
+        }
+
+        /**
+         * Returns the data of the specified entry.
+         * @param entry the entry.
+         * @return a read-only slice of the mapped file for a stored entry,
+         *         a buffer with the inflated bytes for a deflated entry or
+         *         <tt>null</tt> if the entry is a directory, is encrypted
+         *         or uses another compression method.
+         * @throws IOException if the entry is corrupted.
+        **/
+        ByteBuffer getData(int entry) throws IOException
+        {
+            int flags = m_buffer.getShort(entry + 8) & 0xFFFF;
+            int method = m_buffer.getShort(entry + 10) & 0xFFFF;
+            int csize = m_buffer.getInt(entry + 20);
+            int size = m_buffer.getInt(entry + 24);
+            int local = m_buffer.getInt(entry + 42);
+            if (((flags & 0x1) != 0) || isDirectory(entry)
+                || ((method != STORED) && (method != DEFLATED)))
+            {
+                return null;
+            }
+            if ((csize < 0) || (size < 0) || (local < 0)
+                || (local + LOCAL_HEADER_SIZE > m_buffer.limit())
+                || (m_buffer.getInt(local) != LOCAL_HEADER_SIG))
+            {
+                throw new IOException("Invalid local header.");
+            }
+            int data = local + LOCAL_HEADER_SIZE
+                + (m_buffer.getShort(local + 26) & 0xFFFF)
+                + (m_buffer.getShort(local + 28) & 0xFFFF);
+
+            ByteBuffer buffer = m_buffer.duplicate();
+            buffer.limit(data + csize);
+            buffer.position(data);
+            if (method == STORED)
+            {
+                return buffer.slice().asReadOnlyBuffer();
+            }
+
+            // The inflater needs an extra dummy byte when not expecting
+            // a ZLIB header.
+            byte[] input = new byte[csize + 1];
+            buffer.get(input, 0, csize);
+            byte[] output = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try
+            {
+                inflater.setInput(input);
+                int n = 0;
+                while (n < size)
+                {
+                    int count = inflater.inflate(output, n, size - n);
+                    if ((count == 0) && (inflater.finished() || inflater.needsInput()))
+                    {
+                        throw new IOException("Truncated deflated entry.");
+                    }
+                    n += count;
+                }
+            }
+            catch (DataFormatException ex)
+            {
+                throw new IOException("Invalid deflated entry: " + ex.getMessage());
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(output);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final EntryIndex m_index;
+        private final ByteBuffer m_buffer;
+        private boolean m_isClosed = false;
+
+        public ByteBufferInputStream(EntryIndex index, ByteBuffer buffer)
+        {
+            m_index = index;
+            m_buffer = buffer;
+        }
+
+        public synchronized void close()
+        {
+            if (!m_isClosed)
+            {
+                m_isClosed = true;
+                m_buffer.limit(m_buffer.position());
+                m_index.release();
+            }
+        }
+
+        public synchronized int read()
+        {
+            return (m_buffer.hasRemaining()) ? (m_buffer.get() & 0xFF) : -1;
+        }
+
+        public synchronized int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_buffer.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_buffer.remaining());
+            m_buffer.get(b, off, len);
+            return len;
+        }
+
+        public synchronized long skip(long n)
+        {
+            int count = (int) Math.max(0, Math.min(n, m_buffer.remaining()));
+            m_buffer.position(m_buffer.position() + count);
+            return count;
+        }
+
+        public synchronized int available()
+        {
+            return m_buffer.remaining();
+        }
+    }
+}
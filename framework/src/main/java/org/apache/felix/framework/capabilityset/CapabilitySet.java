@@ -23,7 +23,9 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -32,26 +34,59 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.felix.framework.util.HashTrieMap;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
 import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
 import org.osgi.framework.wiring.BundleCapability;
 
 public class CapabilitySet
 {
-    private final Map<String, Map<Object, Set<BundleCapability>>> m_indices;
-    private final Set<BundleCapability> m_capSet = new HashSet<BundleCapability>();
+    // Number of times an unindexed attribute must be queried before an
+    // index is built for it.
+    public static final int ADAPTIVE_INDEX_THRESHOLD = 32;
+
+    // The capabilities and the capabilities per attribute value of each
+    // index are kept in immutable maps, which are replaced when capabilities
+    // are added or removed. Copies of this set share these maps, so copying
+    // it only costs time proportional to the number of indices.
+    private final TreeMap<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>> m_indices;
+    private HashTrieMap<BundleCapability, Boolean> m_capSet = HashTrieMap.empty();
+    private final boolean m_caseSensitive;
+    // Indices built for frequently queried attributes, keyed by normalized
+    // attribute name. Matching never modifies the set, it only counts the
+    // queries; indices are built when the set is modified next, so sets
+    // published as immutable snapshots stay immutable. The map is replaced
+    // rather than modified, since matching may happen concurrently.
+    private volatile Map<String, AttributeIndex> m_adaptiveIndices =
+        new HashMap<String, AttributeIndex>();
+    // Query counts for attributes without an index, keyed by normalized
+    // attribute name; attributes that cannot be indexed have a negative
+    // count. Attributes queried often enough are pending until the index
+    // is built, mapped to their attribute name. The counts, pending indices
+    // and statistics are shared with copies of this set.
+    private final ConcurrentMap<String, AtomicInteger> m_queryCounts;
+    private final ConcurrentMap<String, String> m_pendingIndices;
+    private final AtomicLong m_indexHits;
+    private final AtomicLong m_indexMisses;
     private final static SecureAction m_secureAction = new SecureAction();
 
     public void dump()
     {
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>> entry
+            : m_indices.entrySet())
         {
             boolean header1 = false;
-            for (Entry<Object, Set<BundleCapability>> entry2 : entry.getValue().entrySet())
+            for (Entry<Object, HashTrieMap<BundleCapability, Boolean>> entry2
+                : entry.getValue().entrySet())
             {
                 boolean header2 = false;
-                for (BundleCapability cap : entry2.getValue())
+                for (BundleCapability cap : entry2.getValue().keySet())
                 {
                     if (cap.getRevision().getBundle().getBundleId() != 0)
                     {
@@ -74,23 +109,97 @@ public class CapabilitySet
 
     public CapabilitySet(List<String> indexProps, boolean caseSensitive)
     {
+        m_caseSensitive = caseSensitive;
+        m_queryCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        m_pendingIndices = new ConcurrentHashMap<String, String>();
+        m_indexHits = new AtomicLong();
+        m_indexMisses = new AtomicLong();
         m_indices = (caseSensitive)
-            ? new TreeMap<String, Map<Object, Set<BundleCapability>>>()
-            : new TreeMap<String, Map<Object, Set<BundleCapability>>>(
+            ? new TreeMap<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>>()
+            : new TreeMap<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>>(
                 new StringComparator(false));
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
-            m_indices.put(
-                indexProps.get(i), new HashMap<Object, Set<BundleCapability>>());
+            m_indices.put(indexProps.get(i),
+                HashTrieMap.<Object, HashTrieMap<BundleCapability, Boolean>>empty());
         }
     }
 
+    /**
+     * Creates a copy of the specified capability set. The copy can be
+     * modified without affecting the original; this is used to publish
+     * immutable snapshots of a set that can be matched against without
+     * holding any lock. The copy shares the immutable capability and index
+     * maps with the original, so it is cheap to create.
+     * @param capSet the capability set to copy.
+    **/
+    public CapabilitySet(CapabilitySet capSet)
+    {
+        m_caseSensitive = capSet.m_caseSensitive;
+        m_queryCounts = capSet.m_queryCounts;
+        m_pendingIndices = capSet.m_pendingIndices;
+        m_indexHits = capSet.m_indexHits;
+        m_indexMisses = capSet.m_indexMisses;
+        m_indices = new TreeMap<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>>(
+            capSet.m_indices);
+        m_capSet = capSet.m_capSet;
+        Map<String, AttributeIndex> adaptiveIndices = capSet.m_adaptiveIndices;
+        m_adaptiveIndices = new HashMap<String, AttributeIndex>(adaptiveIndices.size());
+        for (Entry<String, AttributeIndex> entry : adaptiveIndices.entrySet())
+        {
+            m_adaptiveIndices.put(entry.getKey(), new AttributeIndex(entry.getValue()));
+        }
+    }
+
+    /**
+     * Returns the number of filter terms that were evaluated using an index.
+     * @return the number of index hits.
+    **/
+    public long getIndexHits()
+    {
+        return m_indexHits.get();
+    }
+
+    /**
+     * Returns the number of filter terms that were evaluated by scanning
+     * capabilities, because no suitable index existed.
+     * @return the number of index misses.
+    **/
+    public long getIndexMisses()
+    {
+        return m_indexMisses.get();
+    }
+
+    /**
+     * Returns the names of the attributes for which an index was built
+     * on demand, because they were frequently queried. The indices are
+     * built when the set is modified after the attributes were queried.
+     * @return the names of the adaptively indexed attributes.
+    **/
+    public Set<String> getAdaptiveIndices()
+    {
+        return new HashSet<String>(m_adaptiveIndices.keySet());
+    }
+
+    /**
+     * Resets the index hit and miss counters, which are shared with the
+     * copies of this set.
+    **/
+    public void resetStatistics()
+    {
+        m_indexHits.set(0);
+        m_indexMisses.set(0);
+    }
+
     public void addCapability(BundleCapability cap)
     {
-        m_capSet.add(cap);
+        buildPendingIndices();
+
+        m_capSet = m_capSet.plus(cap, Boolean.TRUE);
 
         // Index capability.
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>> entry
+            : m_indices.entrySet())
         {
             Object value = cap.getAttributes().get(entry.getKey());
             if (value != null)
@@ -100,41 +209,77 @@ public class CapabilitySet
                     value = convertArrayToList(value);
                 }
 
-                Map<Object, Set<BundleCapability>> index = entry.getValue();
+                HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>> index =
+                    entry.getValue();
 
                 if (value instanceof Collection)
                 {
                     Collection c = (Collection) value;
                     for (Object o : c)
                     {
-                        indexCapability(index, cap, o);
+                        index = indexCapability(index, cap, o);
                     }
                 }
                 else
                 {
-                    indexCapability(index, cap, value);
+                    index = indexCapability(index, cap, value);
+                }
+                entry.setValue(index);
+            }
+        }
+
+        List<String> unindexable = null;
+        for (Entry<String, AttributeIndex> entry : m_adaptiveIndices.entrySet())
+        {
+            if (!entry.getValue().add(cap))
+            {
+                if (unindexable == null)
+                {
+                    unindexable = new ArrayList<String>();
                 }
+                unindexable.add(entry.getKey());
+            }
+        }
+        // If the capability has a value the index cannot handle, then
+        // drop the index and stop trying to index the attribute.
+        if (unindexable != null)
+        {
+            Map<String, AttributeIndex> adaptiveIndices =
+                new HashMap<String, AttributeIndex>(m_adaptiveIndices);
+            for (String name : unindexable)
+            {
+                adaptiveIndices.remove(name);
+                setUnindexable(name);
             }
+            m_adaptiveIndices = adaptiveIndices;
         }
     }
 
-    private void indexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
+    private static <T> HashTrieMap<T, HashTrieMap<BundleCapability, Boolean>> indexCapability(
+        HashTrieMap<T, HashTrieMap<BundleCapability, Boolean>> index,
+        BundleCapability cap, T capValue)
     {
-        Set<BundleCapability> caps = index.get(capValue);
+        if (capValue == null)
+        {
+            return index;
+        }
+        HashTrieMap<BundleCapability, Boolean> caps = index.get(capValue);
         if (caps == null)
         {
-            caps = new HashSet<BundleCapability>();
-            index.put(capValue, caps);
+            caps = HashTrieMap.empty();
         }
-        caps.add(cap);
+        return index.plus(capValue, caps.plus(cap, Boolean.TRUE));
     }
 
-    public void removeCapability(BundleCapability cap)
+    public boolean removeCapability(BundleCapability cap)
     {
-        if (m_capSet.remove(cap))
+        buildPendingIndices();
+
+        if (m_capSet.containsKey(cap))
         {
-            for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+            m_capSet = m_capSet.minus(cap);
+            for (Entry<String, HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>>> entry
+                : m_indices.entrySet())
             {
                 Object value = cap.getAttributes().get(entry.getKey());
                 if (value != null)
@@ -144,42 +289,50 @@ public class CapabilitySet
                         value = convertArrayToList(value);
                     }
 
-                    Map<Object, Set<BundleCapability>> index = entry.getValue();
+                    HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>> index =
+                        entry.getValue();
 
                     if (value instanceof Collection)
                     {
                         Collection c = (Collection) value;
                         for (Object o : c)
                         {
-                            deindexCapability(index, cap, o);
+                            index = deindexCapability(index, cap, o);
                         }
                     }
                     else
                     {
-                        deindexCapability(index, cap, value);
+                        index = deindexCapability(index, cap, value);
                     }
+                    entry.setValue(index);
                 }
             }
+
+            for (AttributeIndex index : m_adaptiveIndices.values())
+            {
+                index.remove(cap);
+            }
+            return true;
         }
+        return false;
     }
 
-    private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
+    private static <T> HashTrieMap<T, HashTrieMap<BundleCapability, Boolean>> deindexCapability(
+        HashTrieMap<T, HashTrieMap<BundleCapability, Boolean>> index,
+        BundleCapability cap, T value)
     {
-        Set<BundleCapability> caps = index.get(value);
+        HashTrieMap<BundleCapability, Boolean> caps = index.get(value);
         if (caps != null)
         {
-            caps.remove(cap);
-            if (caps.isEmpty())
-            {
-                index.remove(value);
-            }
+            caps = caps.minus(cap);
+            index = (caps.isEmpty()) ? index.minus(value) : index.plus(value, caps);
         }
+        return index;
     }
 
     public Set<BundleCapability> match(SimpleFilter sf, boolean obeyMandatory)
     {
-        Set<BundleCapability> matches = match(m_capSet, sf);
+        Set<BundleCapability> matches = match(m_capSet.keySet(), sf);
         return (obeyMandatory)
             ? matchMandatory(matches, sf)
             : matches;
@@ -229,18 +382,40 @@ public class CapabilitySet
         }
         else
         {
-            Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
+            HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>> index =
+                m_indices.get(sf.getName());
+            AttributeIndex adaptiveIndex;
             if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
             {
-                Set<BundleCapability> existingCaps = index.get(sf.getValue());
+                m_indexHits.incrementAndGet();
+                HashTrieMap<BundleCapability, Boolean> existingCaps = index.get(sf.getValue());
                 if (existingCaps != null)
                 {
-                    matches.addAll(existingCaps);
+                    matches.addAll(existingCaps.keySet());
                     matches.retainAll(caps);
                 }
             }
+            else if ((adaptiveIndex = getAdaptiveIndex(sf)) != null)
+            {
+                m_indexHits.incrementAndGet();
+                // The index may be out of date with respect to attributes
+                // that changed after the capability was indexed, so double
+                // check the candidates it returns.
+                for (BundleCapability cap : adaptiveIndex.lookup(sf))
+                {
+                    if (caps.contains(cap))
+                    {
+                        Object lhs = cap.getAttributes().get(sf.getName());
+                        if ((lhs != null) && compare(lhs, sf.getValue(), sf.getOperation()))
+                        {
+                            matches.add(cap);
+                        }
+                    }
+                }
+            }
             else
             {
+                m_indexMisses.incrementAndGet();
                 for (Iterator<BundleCapability> it = caps.iterator(); it.hasNext(); )
                 {
                     BundleCapability cap = it.next();
@@ -259,6 +434,93 @@ public class CapabilitySet
         return matches;
     }
 
+    /**
+     * Returns the adaptive index that can evaluate the specified filter
+     * term. If there is no such index, the query is counted for the term's
+     * attribute and, once the attribute has been queried often enough,
+     * an index is requested for it.
+     * @param sf the filter term to evaluate.
+     * @return the index to use or <tt>null</tt> if there is none.
+    **/
+    private AttributeIndex getAdaptiveIndex(SimpleFilter sf)
+    {
+        int op = sf.getOperation();
+        if ((op != SimpleFilter.EQ) && (op != SimpleFilter.GTE) && (op != SimpleFilter.LTE))
+        {
+            return null;
+        }
+
+        String name = normalize(sf.getName());
+        AttributeIndex index = m_adaptiveIndices.get(name);
+        if (index == null)
+        {
+            AtomicInteger count = m_queryCounts.get(name);
+            if (count == null)
+            {
+                count = new AtomicInteger();
+                AtomicInteger existing = m_queryCounts.putIfAbsent(name, count);
+                count = (existing != null) ? existing : count;
+            }
+            if (count.incrementAndGet() >= ADAPTIVE_INDEX_THRESHOLD)
+            {
+                m_pendingIndices.putIfAbsent(name, sf.getName());
+            }
+        }
+        return ((index != null) && index.supports(op)) ? index : null;
+    }
+
+    /**
+     * Builds the indices for the attributes that have been queried often
+     * enough. This is only called when the set is modified, so matching
+     * never modifies the set.
+    **/
+    private void buildPendingIndices()
+    {
+        if (m_pendingIndices.isEmpty())
+        {
+            return;
+        }
+        Map<String, AttributeIndex> adaptiveIndices = null;
+        for (Iterator<Entry<String, String>> it = m_pendingIndices.entrySet().iterator();
+            it.hasNext(); )
+        {
+            Entry<String, String> entry = it.next();
+            it.remove();
+            // The index may have been built in the set this one was
+            // copied from already.
+            if (!m_adaptiveIndices.containsKey(entry.getKey()))
+            {
+                AttributeIndex index = AttributeIndex.build(entry.getValue(), m_capSet.keySet());
+                if (index == null)
+                {
+                    setUnindexable(entry.getKey());
+                }
+                else
+                {
+                    if (adaptiveIndices == null)
+                    {
+                        adaptiveIndices = new HashMap<String, AttributeIndex>(m_adaptiveIndices);
+                    }
+                    adaptiveIndices.put(entry.getKey(), index);
+                }
+            }
+        }
+        if (adaptiveIndices != null)
+        {
+            m_adaptiveIndices = adaptiveIndices;
+        }
+    }
+
+    private void setUnindexable(String name)
+    {
+        m_queryCounts.put(name, new AtomicInteger(Integer.MIN_VALUE));
+    }
+
+    private String normalize(String name)
+    {
+        return (m_caseSensitive) ? name : name.toLowerCase();
+    }
+
     public static boolean matches(BundleCapability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -332,7 +594,7 @@ public class CapabilitySet
         return caps;
     }
 
-    private static boolean matchMandatory(BundleCapability cap, SimpleFilter sf)
+    static boolean matchMandatory(BundleCapability cap, SimpleFilter sf)
     {
         Map<String, Object> attrs = cap.getAttributes();
         for (Entry<String, Object> entry : attrs.entrySet())
@@ -371,7 +633,7 @@ public class CapabilitySet
     private static final Class<?>[] STRING_CLASS = new Class[] { String.class };
     private static final String VALUE_OF_METHOD_NAME = "valueOf";
 
-    private static boolean compare(Object lhs, Object rhsUnknown, int op)
+    static boolean compare(Object lhs, Object rhsUnknown, int op)
     {
         if (lhs == null)
         {
@@ -545,7 +807,7 @@ public class CapabilitySet
         return sb.toString();
     }
 
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
+    static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
         // the RHS since it is a string.
@@ -628,4 +890,213 @@ public class CapabilitySet
         }
         return list;
     }
+
+    /**
+     * An index for a single attribute that is built on demand. String
+     * values, including multi-valued string attributes, are hashed so equality
+     * can be answered; version values are sorted so ranges can be answered
+     * too. Attributes with other or mixed value types are not indexed.
+    **/
+    private static class AttributeIndex
+    {
+        private final String m_name;
+        private final boolean m_sorted;
+        // Like the capability set, the index keeps immutable maps, which
+        // are shared with copies of the index. The value map maps attribute
+        // value to the capabilities having that value.
+        private HashTrieMap<Object, HashTrieMap<BundleCapability, Boolean>> m_valueMap;
+        // The values of a sorted index in ascending order, which is only
+        // replaced when a value is added or removed.
+        private Object[] m_sortedValues;
+        // Maps capability to the value or values it was indexed with, so
+        // it can be deindexed even if its attributes have changed.
+        private HashTrieMap<BundleCapability, Object> m_capValues;
+
+        private AttributeIndex(String name, boolean sorted)
+        {
+            m_name = name;
+            m_sorted = sorted;
+            m_valueMap = HashTrieMap.empty();
+            m_sortedValues = new Object[0];
+            m_capValues = HashTrieMap.empty();
+        }
+
+        AttributeIndex(AttributeIndex index)
+        {
+            m_name = index.m_name;
+            m_sorted = index.m_sorted;
+            m_valueMap = index.m_valueMap;
+            m_sortedValues = index.m_sortedValues;
+            m_capValues = index.m_capValues;
+        }
+
+        static AttributeIndex build(String name, Set<BundleCapability> caps)
+        {
+            // Determine the kind of index from the first value found.
+            AttributeIndex index = null;
+            for (BundleCapability cap : caps)
+            {
+                Object value = cap.getAttributes().get(name);
+                if (value != null)
+                {
+                    index = new AttributeIndex(name, value instanceof Version);
+                    break;
+                }
+            }
+            if (index != null)
+            {
+                for (BundleCapability cap : caps)
+                {
+                    if (!index.add(cap))
+                    {
+                        return null;
+                    }
+                }
+            }
+            return index;
+        }
+
+        boolean supports(int op)
+        {
+            return m_sorted || (op == SimpleFilter.EQ);
+        }
+
+        /**
+         * Adds the capability to the index.
+         * @return <tt>false</tt> if the capability's value cannot be indexed.
+        **/
+        boolean add(BundleCapability cap)
+        {
+            Object value = cap.getAttributes().get(m_name);
+            if (value == null)
+            {
+                return true;
+            }
+            else if (m_sorted)
+            {
+                if (!(value instanceof Version))
+                {
+                    return false;
+                }
+                index(cap, value);
+            }
+            else if (value instanceof String)
+            {
+                index(cap, value);
+            }
+            else
+            {
+                if (value.getClass().isArray())
+                {
+                    value = convertArrayToList(value);
+                }
+                if (!(value instanceof Collection))
+                {
+                    return false;
+                }
+                for (Object o : (Collection) value)
+                {
+                    if (!(o instanceof String))
+                    {
+                        return false;
+                    }
+                }
+                List<Object> values = new ArrayList<Object>((Collection) value);
+                for (Object o : values)
+                {
+                    index(cap, o);
+                }
+                value = values;
+            }
+            m_capValues = m_capValues.plus(cap, value);
+            return true;
+        }
+
+        private void index(BundleCapability cap, Object value)
+        {
+            if (m_sorted && !m_valueMap.containsKey(value))
+            {
+                int idx = -Arrays.binarySearch(m_sortedValues, value) - 1;
+                Object[] values = new Object[m_sortedValues.length + 1];
+                System.arraycopy(m_sortedValues, 0, values, 0, idx);
+                values[idx] = value;
+                System.arraycopy(m_sortedValues, idx, values, idx + 1, m_sortedValues.length - idx);
+                m_sortedValues = values;
+            }
+            m_valueMap = indexCapability(m_valueMap, cap, value);
+        }
+
+        void remove(BundleCapability cap)
+        {
+            Object value = m_capValues.get(cap);
+            m_capValues = m_capValues.minus(cap);
+            if (value instanceof List)
+            {
+                for (Object o : (List) value)
+                {
+                    deindex(cap, o);
+                }
+            }
+            else if (value != null)
+            {
+                deindex(cap, value);
+            }
+        }
+
+        private void deindex(BundleCapability cap, Object value)
+        {
+            m_valueMap = deindexCapability(m_valueMap, cap, value);
+            if (m_sorted && !m_valueMap.containsKey(value))
+            {
+                int idx = Arrays.binarySearch(m_sortedValues, value);
+                if (idx >= 0)
+                {
+                    Object[] values = new Object[m_sortedValues.length - 1];
+                    System.arraycopy(m_sortedValues, 0, values, 0, idx);
+                    System.arraycopy(m_sortedValues, idx + 1, values, idx, values.length - idx);
+                    m_sortedValues = values;
+                }
+            }
+        }
+
+        /**
+         * Returns the candidate capabilities for the specified filter term,
+         * whose operation must be supported by this index.
+        **/
+        Collection<BundleCapability> lookup(SimpleFilter sf)
+        {
+            Object value = sf.getValue();
+            if (m_sorted)
+            {
+                try
+                {
+                    value = coerceType(Version.emptyVersion, (String) value);
+                }
+                catch (Exception ex)
+                {
+                    return Collections.EMPTY_SET;
+                }
+            }
+
+            if (sf.getOperation() == SimpleFilter.EQ)
+            {
+                HashTrieMap<BundleCapability, Boolean> caps = m_valueMap.get(value);
+                return (caps == null) ? Collections.EMPTY_SET : caps.keySet();
+            }
+
+            // Determine the range of values including the value itself.
+            Object[] values = m_sortedValues;
+            int idx = Arrays.binarySearch(values, value);
+            int from = (sf.getOperation() == SimpleFilter.GTE)
+                ? ((idx >= 0) ? idx : -idx - 1) : 0;
+            int to = (sf.getOperation() == SimpleFilter.GTE)
+                ? values.length : ((idx >= 0) ? idx + 1 : -idx - 1);
+            List<BundleCapability> caps = new ArrayList<BundleCapability>();
+            for (int i = from; i < to; i++)
+            {
+                caps.addAll(m_valueMap.get(values[i]).keySet());
+            }
+            return caps;
+        }
+    }
 }
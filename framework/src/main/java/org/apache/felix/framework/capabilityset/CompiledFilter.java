@@ -0,0 +1,472 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * A <tt>SimpleFilter</tt> compiled into a tree of evaluators. Compared to
+ * <tt>CapabilitySet.matches()</tt>, the evaluators avoid repeated work when
+ * the same filter is matched many times, as is the case for service listener
+ * filters: the operands of comparisons are converted to the attribute's type
+ * once and cached, integral numbers are compared without boxing, and the
+ * operands of AND and OR are evaluated cheapest and most selective first.
+ * The result of matching is always the same as for the original filter.
+ * Compiled filters are immutable and thread safe; <tt>parse()</tt> interns
+ * them by filter string, so identical filters share one instance.
+**/
+public class CompiledFilter
+{
+    // Interned compiled filters by filter string; the values are weakly
+    // referenced, so unused filters can be garbage collected. Each interned
+    // filter references the exact string instance used as its key, so the
+    // entry is kept as long as the filter is in use.
+    private static final Map<String, WeakReference<CompiledFilter>> m_cache =
+        new WeakHashMap<String, WeakReference<CompiledFilter>>();
+
+    private final String m_key;
+    private final SimpleFilter m_filter;
+    private final Node m_root;
+
+    private CompiledFilter(String key, SimpleFilter sf)
+    {
+        m_key = key;
+        m_filter = sf;
+        m_root = compileNode(sf);
+    }
+
+    /**
+     * Compiles the specified filter.
+     * @param sf the filter to compile.
+     * @return the compiled filter.
+    **/
+    public static CompiledFilter compile(SimpleFilter sf)
+    {
+        return new CompiledFilter(null, sf);
+    }
+
+    /**
+     * Parses and compiles the specified filter string, returning the
+     * existing compiled filter if the same filter string was already
+     * compiled and is still in use.
+     * @param filter the filter string.
+     * @return the compiled filter.
+     * @throws IllegalArgumentException if the filter string is invalid.
+    **/
+    public static CompiledFilter parse(String filter)
+    {
+        CompiledFilter cf;
+        synchronized (m_cache)
+        {
+            WeakReference<CompiledFilter> ref = m_cache.get(filter);
+            cf = (ref == null) ? null : ref.get();
+        }
+        if (cf == null)
+        {
+            // Parse outside the lock; if another thread compiled the same
+            // filter meanwhile, one of the two instances will win.
+            cf = new CompiledFilter(filter, SimpleFilter.parse(filter));
+            synchronized (m_cache)
+            {
+                WeakReference<CompiledFilter> ref = m_cache.get(filter);
+                CompiledFilter existing = (ref == null) ? null : ref.get();
+                if (existing != null)
+                {
+                    cf = existing;
+                }
+                else
+                {
+                    m_cache.put(filter, new WeakReference<CompiledFilter>(cf));
+                }
+            }
+        }
+        return cf;
+    }
+
+    public SimpleFilter getFilter()
+    {
+        return m_filter;
+    }
+
+    /**
+     * Determines whether the specified capability matches this filter;
+     * this is equivalent to <tt>CapabilitySet.matches(cap, getFilter())</tt>.
+     * @param cap the capability to match.
+     * @return <tt>true</tt> if the capability matches, otherwise <tt>false</tt>.
+    **/
+    public boolean matches(BundleCapability cap)
+    {
+        return m_root.matches(cap.getAttributes())
+            && CapabilitySet.matchMandatory(cap, m_filter);
+    }
+
+    public String toString()
+    {
+        return m_filter.toString();
+    }
+
+    private static Node compileNode(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.MATCH_ALL:
+                return new MatchAll();
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+                List<Node> nodes = new ArrayList<Node>(sfs.size());
+                for (SimpleFilter child : sfs)
+                {
+                    nodes.add(compileNode(child));
+                }
+                if (sf.getOperation() == SimpleFilter.NOT)
+                {
+                    return new Not(nodes.toArray(new Node[nodes.size()]));
+                }
+                // Evaluation has no side effects, so the operands can be
+                // reordered to evaluate the cheapest and most selective first.
+                Collections.sort(nodes, RANK_COMPARATOR);
+                return new Junction(
+                    sf.getOperation() == SimpleFilter.AND,
+                    nodes.toArray(new Node[nodes.size()]));
+            default:
+                return new Compare(sf);
+        }
+    }
+
+    private static final Comparator<Node> RANK_COMPARATOR = new Comparator<Node>() {
+        public int compare(Node n1, Node n2)
+        {
+            return (n1.m_rank < n2.m_rank) ? -1 : ((n1.m_rank == n2.m_rank) ? 0 : 1);
+        }
+    };
+
+    private abstract static class Node
+    {
+        // Estimate of evaluation cost and selectivity; lower is better.
+        final int m_rank;
+
+        Node(int rank)
+        {
+            m_rank = rank;
+        }
+
+        abstract boolean matches(Map<String, Object> attrs);
+    }
+
+    private static class MatchAll extends Node
+    {
+        MatchAll()
+        {
+            super(0);
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            return true;
+        }
+    }
+
+    private static class Junction extends Node
+    {
+        private final boolean m_and;
+        private final Node[] m_nodes;
+
+        Junction(boolean and, Node[] nodes)
+        {
+            super(rankOf(nodes));
+            m_and = and;
+            m_nodes = nodes;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            for (int i = 0; i < m_nodes.length; i++)
+            {
+                if (m_nodes[i].matches(attrs) != m_and)
+                {
+                    return !m_and;
+                }
+            }
+            return m_and;
+        }
+    }
+
+    private static class Not extends Node
+    {
+        private final Node[] m_nodes;
+
+        Not(Node[] nodes)
+        {
+            super(rankOf(nodes));
+            m_nodes = nodes;
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            // Same as CapabilitySet, the last operand determines the result.
+            boolean matched = true;
+            for (int i = 0; i < m_nodes.length; i++)
+            {
+                matched = !m_nodes[i].matches(attrs);
+            }
+            return matched;
+        }
+    }
+
+    private static int rankOf(Node[] nodes)
+    {
+        int rank = 10;
+        for (int i = 0; i < nodes.length; i++)
+        {
+            rank += nodes[i].m_rank;
+        }
+        return rank;
+    }
+
+    private static class Compare extends Node
+    {
+        private final String m_name;
+        private final int m_op;
+        private final Object m_value;
+        // Operand converted to the type of the most recently matched
+        // attribute value; replaced as a whole, so no locking is needed.
+        private volatile Operand m_operand;
+
+        Compare(SimpleFilter sf)
+        {
+            super(rankOf(sf));
+            m_name = sf.getName();
+            m_op = sf.getOperation();
+            m_value = sf.getValue();
+        }
+
+        private static int rankOf(SimpleFilter sf)
+        {
+            switch (sf.getOperation())
+            {
+                case SimpleFilter.EQ:
+                    // Most service filters are about the object class and
+                    // most services do not have the requested one.
+                    return Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName()) ? 1 : 2;
+                case SimpleFilter.PRESENT:
+                    return 3;
+                case SimpleFilter.LTE:
+                case SimpleFilter.GTE:
+                    return 4;
+                default:
+                    return 5;
+            }
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            Object lhs = attrs.get(m_name);
+            return (lhs != null) && compare(lhs);
+        }
+
+        // Mirrors CapabilitySet.compare(), which it delegates to for
+        // the less common cases.
+        private boolean compare(Object lhs)
+        {
+            if (m_op == SimpleFilter.PRESENT)
+            {
+                return true;
+            }
+            else if ((m_op != SimpleFilter.SUBSTRING) && !(m_value instanceof String))
+            {
+                return CapabilitySet.compare(lhs, m_value, m_op);
+            }
+            else if (lhs instanceof String)
+            {
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ:
+                        return lhs.equals(m_value);
+                    case SimpleFilter.GTE:
+                        return ((String) lhs).compareTo((String) m_value) >= 0;
+                    case SimpleFilter.LTE:
+                        return ((String) lhs).compareTo((String) m_value) <= 0;
+                    case SimpleFilter.SUBSTRING:
+                        return SimpleFilter.compareSubstring(
+                            (List<String>) m_value, (String) lhs);
+                    default:
+                        return CapabilitySet.compare(lhs, m_value, m_op);
+                }
+            }
+            else if (lhs instanceof Comparable)
+            {
+                // Spec says SUBSTRING is false for all types other than string.
+                if (m_op == SimpleFilter.SUBSTRING)
+                {
+                    return false;
+                }
+                else if (m_op == SimpleFilter.APPROX)
+                {
+                    return CapabilitySet.compare(lhs, m_value, m_op);
+                }
+
+                Operand operand = getOperand(lhs);
+                if (operand == null)
+                {
+                    return false;
+                }
+
+                int result;
+                if (operand.m_isLong && (lhs instanceof Long))
+                {
+                    long l = ((Long) lhs).longValue();
+                    result = (l < operand.m_long) ? -1 : ((l == operand.m_long) ? 0 : 1);
+                }
+                else if (operand.m_isLong && (lhs instanceof Integer))
+                {
+                    long l = ((Integer) lhs).longValue();
+                    result = (l < operand.m_long) ? -1 : ((l == operand.m_long) ? 0 : 1);
+                }
+                else
+                {
+                    try
+                    {
+                        result = ((Comparable) lhs).compareTo(operand.m_value);
+                    }
+                    catch (Exception ex)
+                    {
+                        return false;
+                    }
+                }
+
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ:
+                        return result == 0;
+                    case SimpleFilter.GTE:
+                        return result >= 0;
+                    case SimpleFilter.LTE:
+                        return result <= 0;
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+            else if (lhs instanceof Object[])
+            {
+                Object[] array = (Object[]) lhs;
+                for (int i = 0; i < array.length; i++)
+                {
+                    if ((array[i] != null) && compare(array[i]))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs.getClass().isArray())
+            {
+                int len = Array.getLength(lhs);
+                for (int i = 0; i < len; i++)
+                {
+                    if (compare(Array.get(lhs, i)))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs instanceof Collection)
+            {
+                for (Iterator it = ((Collection) lhs).iterator(); it.hasNext(); )
+                {
+                    Object o = it.next();
+                    if ((o != null) && compare(o))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return CapabilitySet.compare(lhs, m_value, m_op);
+        }
+
+        /**
+         * Returns the operand converted to the type of the specified
+         * attribute value, or <tt>null</tt> if it cannot be converted.
+        **/
+        private Operand getOperand(Object lhs)
+        {
+            Class clazz = lhs.getClass();
+            Operand operand = m_operand;
+            if ((operand != null) && (operand.m_class == clazz))
+            {
+                return operand.m_valid ? operand : null;
+            }
+
+            Object value = null;
+            boolean valid = true;
+            try
+            {
+                value = CapabilitySet.coerceType(lhs, (String) m_value);
+            }
+            catch (Exception ex)
+            {
+                valid = false;
+            }
+            operand = new Operand(clazz, value, valid);
+
+            // Only cache operands of framework or system types, since
+            // otherwise the filter would keep a bundle class loader alive.
+            ClassLoader loader = clazz.getClassLoader();
+            if ((loader == null) || (loader == CompiledFilter.class.getClassLoader()))
+            {
+                m_operand = operand;
+            }
+            return valid ? operand : null;
+        }
+    }
+
+    private static class Operand
+    {
+        final Class m_class;
+        final Object m_value;
+        final boolean m_valid;
+        // Integral operands are also kept as a primitive for comparison.
+        final boolean m_isLong;
+        final long m_long;
+
+        Operand(Class clazz, Object value, boolean valid)
+        {
+            m_class = clazz;
+            m_value = value;
+            m_valid = valid;
+            m_isLong = (value instanceof Long) || (value instanceof Integer);
+            m_long = (m_isLong) ? ((Number) value).longValue() : 0;
+        }
+    }
+}
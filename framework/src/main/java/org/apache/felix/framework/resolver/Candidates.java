@@ -979,6 +979,30 @@ class Candidates
      * @return copy of this Candidates object.
     **/
     public Candidates copy()
+    {
+        return copy(m_allWrappedHosts, m_populateResultCache);
+    }
+
+    /**
+     * Creates a copy of the Candidates object that does not share any
+     * state with this object or its other copies, so that it can be
+     * checked by another thread while they are used.
+     * @return unshared copy of this Candidates object.
+    **/
+    public Candidates copyUnshared()
+    {
+        Candidates copy = copy(
+            new HashMap<BundleRevision, WrappedRevision>(m_allWrappedHosts),
+            new HashMap<BundleRevision, Object>(m_populateResultCache));
+        return new Candidates(
+            new HashSet<BundleRevision>(m_mandatoryRevisions),
+            copy.m_dependentMap, copy.m_candidateMap,
+            copy.m_allWrappedHosts, copy.m_populateResultCache, m_fragmentsPresent);
+    }
+
+    private Candidates copy(
+        Map<BundleRevision, WrappedRevision> wrappedHosts,
+        Map<BundleRevision, Object> populateResultCache)
     {
         Map<BundleCapability, Set<BundleRequirement>> dependentMap =
             new HashMap<BundleCapability, Set<BundleRequirement>>();
@@ -1000,7 +1024,7 @@ class Candidates
 
         return new Candidates(
             m_mandatoryRevisions, dependentMap, candidateMap,
-            m_allWrappedHosts, m_populateResultCache, m_fragmentsPresent);
+            wrappedHosts, populateResultCache, m_fragmentsPresent);
     }
 
     public void dump()
@@ -29,6 +29,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.felix.framework.BundleWiringImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ResolveContextImpl;
@@ -54,17 +62,54 @@ public class ResolverImpl implements Resolver
     // These permutations represent backtracking on previous decisions.
     private final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
 
+    // Maximum number of candidate permutations checked in parallel; one
+    // means that permutations are checked one at a time.
+    private final int m_parallelism;
+    // Maximum time in milliseconds to spend checking candidate permutations
+    // during a resolve; zero means that there is no limit.
+    private final long m_timeout;
+    // Statistics about the current or last resolve.
+    private Statistics m_statistics = new Statistics();
+
     public ResolverImpl(Logger logger)
+    {
+        this(logger, 1, 0);
+    }
+
+    /**
+     * Creates a resolver that may check candidate permutations in parallel.
+     * When checking permutations in parallel, the resolver checks batches of
+     * pending permutations and always chooses the first consistent
+     * permutation in the order they were created, so the result does not
+     * depend on thread scheduling.
+     * @param logger the logger to use.
+     * @param parallelism the maximum number of permutations to check in
+     *        parallel; one to check them one at a time.
+     * @param timeout the maximum time in milliseconds to spend checking
+     *        candidate permutations during a resolve; zero for no limit.
+    **/
+    public ResolverImpl(Logger logger, int parallelism, long timeout)
     {
         m_logger = logger;
+        m_parallelism = (parallelism > 1) ? parallelism : 1;
+        m_timeout = (timeout > 0) ? timeout : 0;
+    }
+
+    /**
+     * Returns the statistics of the last resolve operation.
+     * @return the statistics of the last resolve operation.
+    **/
+    public Statistics getStatistics()
+    {
+        return m_statistics;
     }
 
     public Map<BundleRevision, List<ResolverWire>> resolve(ResolveContext rc)
     {
         Map<BundleRevision, List<ResolverWire>> wireMap =
             new HashMap<BundleRevision, List<ResolverWire>>();
-        Map<BundleRevision, Packages> revisionPkgMap =
-            new HashMap<BundleRevision, Packages>();
+        Map<BundleRevision, Packages> revisionPkgMap = null;
+        m_statistics = new Statistics();
 
         Collection<BundleRevision> mandatoryRevisions = rc.getMandatoryRevisions();
         Collection<BundleRevision> optionalRevisions = rc.getOptionalRevisions();
@@ -77,6 +122,8 @@ public class ResolverImpl implements Resolver
 
             try
             {
+                long start = System.nanoTime();
+
                 // Create object to hold all candidates.
                 Candidates allCandidates = new Candidates();
 
@@ -138,8 +185,6 @@ public class ResolverImpl implements Resolver
                 // Record the initial candidate permutation.
                 m_usesPermutations.add(allCandidates);
 
-                ResolveException rethrow = null;
-
                 // If a populated revision is a fragment, then its host
                 // must ultimately be verified, so store its host requirement
                 // to use for package space calculation.
@@ -154,53 +199,15 @@ public class ResolverImpl implements Resolver
                             br.getDeclaredRequirements(BundleRevision.HOST_NAMESPACE));
                     }
                 }
+                m_statistics.m_populateTime += System.nanoTime() - start;
 
-                do
-                {
-                    rethrow = null;
-
-                    revisionPkgMap.clear();
-                    m_packageSourcesCache.clear();
-
-                    allCandidates = (m_usesPermutations.size() > 0)
-                        ? m_usesPermutations.remove(0)
-                        : m_importPermutations.remove(0);
-//allCandidates.dump();
-
-                    for (BundleRevision br : allRevisions)
-                    {
-                        BundleRevision target = br;
-
-                        // If we are resolving a fragment, then get its
-                        // host candidate and verify it instead.
-                        List<BundleRequirement> hostReq = hostReqs.get(br);
-                        if (hostReq != null)
-                        {
-                            target = allCandidates.getCandidates(hostReq.get(0))
-                                .iterator().next().getRevision();
-                        }
-
-                        calculatePackageSpaces(
-                            allCandidates.getWrappedHost(target), allCandidates, revisionPkgMap,
-                            new HashMap(), new HashSet());
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpRevisionPkgMap(revisionPkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
-
-                        try
-                        {
-                            checkPackageSpaceConsistency(
-                                rc, false, allCandidates.getWrappedHost(target),
-                                allCandidates, revisionPkgMap, new HashMap());
-                        }
-                        catch (ResolveException ex)
-                        {
-                            rethrow = ex;
-                        }
-                    }
-                }
-                while ((rethrow != null)
-                    && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
+                // Check permutations until we find a consistent one.
+                start = System.nanoTime();
+                Permutation result = checkPermutations(rc, allRevisions, hostReqs);
+                m_statistics.m_checkTime += System.nanoTime() - start;
+                allCandidates = result.m_candidates;
+                revisionPkgMap = result.m_revisionPkgMap;
+                ResolveException rethrow = result.m_exception;
 
                 // If there is a resolve exception, then determine if an
                 // optionally resolved revision is to blame (typically a fragment).
@@ -233,6 +240,7 @@ public class ResolverImpl implements Resolver
                 // resolve, so populate the wire map.
                 else
                 {
+                    start = System.nanoTime();
                     for (BundleRevision br : allRevisions)
                     {
                         BundleRevision target = br;
@@ -254,6 +262,7 @@ public class ResolverImpl implements Resolver
                                     revisionPkgMap, wireMap, allCandidates);
                         }
                     }
+                    m_statistics.m_wireTime += System.nanoTime() - start;
                 }
             }
             finally
@@ -289,8 +298,8 @@ public class ResolverImpl implements Resolver
 
             Map<BundleRevision, List<ResolverWire>> wireMap =
                 new HashMap<BundleRevision, List<ResolverWire>>();
-            Map<BundleRevision, Packages> revisionPkgMap =
-                new HashMap<BundleRevision, Packages>();
+            Map<BundleRevision, Packages> revisionPkgMap = null;
+            m_statistics = new Statistics();
 
             boolean retry;
             do
@@ -314,45 +323,18 @@ public class ResolverImpl implements Resolver
                     // Record the initial candidate permutation.
                     m_usesPermutations.add(allCandidates);
 
-                    ResolveException rethrow = null;
-
-                    do
-                    {
-                        rethrow = null;
-
-                        revisionPkgMap.clear();
-                        m_packageSourcesCache.clear();
-
-                        allCandidates = (m_usesPermutations.size() > 0)
-                            ? m_usesPermutations.remove(0)
-                            : m_importPermutations.remove(0);
-//allCandidates.dump();
-
-                        // For a dynamic import, the instigating revision
-                        // will never be a fragment since fragments never
-                        // execute code, so we don't need to check for
-                        // this case like we do for a normal resolve.
-
-                        calculatePackageSpaces(
-                            allCandidates.getWrappedHost(revision), allCandidates, revisionPkgMap,
-                            new HashMap(), new HashSet());
-//System.out.println("+++ PACKAGE SPACES START +++");
-//dumpRevisionPkgMap(revisionPkgMap);
-//System.out.println("+++ PACKAGE SPACES END +++");
-
-                        try
-                        {
-                            checkPackageSpaceConsistency(
-                                rc, false, allCandidates.getWrappedHost(revision),
-                                allCandidates, revisionPkgMap, new HashMap());
-                        }
-                        catch (ResolveException ex)
-                        {
-                            rethrow = ex;
-                        }
-                    }
-                    while ((rethrow != null)
-                        && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0)));
+                    // For a dynamic import, the instigating revision
+                    // will never be a fragment since fragments never
+                    // execute code, so we don't need to check for
+                    // this case like we do for a normal resolve.
+                    long start = System.nanoTime();
+                    Permutation result = checkPermutations(
+                        rc, Collections.singleton(revision),
+                        Collections.<BundleRevision, List<BundleRequirement>>emptyMap());
+                    m_statistics.m_checkTime += System.nanoTime() - start;
+                    allCandidates = result.m_candidates;
+                    revisionPkgMap = result.m_revisionPkgMap;
+                    ResolveException rethrow = result.m_exception;
 
                     // If there is a resolve exception, then determine if an
                     // optionally resolved revision is to blame (typically a fragment).
@@ -399,6 +381,205 @@ public class ResolverImpl implements Resolver
         return null;
     }
 
+    /**
+     * Checks the pending candidate permutations until a consistent one is
+     * found or there are no more permutations to check. The time spent
+     * checking permutations during a resolve is limited by the timeout, if
+     * any; the thread pool used to check permutations in parallel only
+     * lives for the duration of this method.
+     * @return the consistent permutation or the last permutation checked
+     *         along with the reason it is not consistent.
+    **/
+    private Permutation checkPermutations(
+        ResolveContext rc, Collection<BundleRevision> revisions,
+        Map<BundleRevision, List<BundleRequirement>> hostReqs)
+    {
+        // Permutations may be checked several times per resolve if optional
+        // revisions are removed, so only the remaining time is available.
+        long deadline = (m_timeout > 0)
+            ? System.currentTimeMillis() + m_timeout
+                - TimeUnit.NANOSECONDS.toMillis(m_statistics.m_checkTime)
+            : 0;
+        ExecutorService executor = null;
+        try
+        {
+            Permutation result = null;
+            while ((result == null) || ((result.m_exception != null)
+                && ((m_usesPermutations.size() > 0) || (m_importPermutations.size() > 0))))
+            {
+                if ((deadline > 0) && (System.currentTimeMillis() > deadline))
+                {
+                    throw new ResolveException(
+                        "Unable to resolve within " + m_timeout + " ms after checking "
+                        + m_statistics.m_permutations + " candidate permutations.",
+                        null, null);
+                }
+
+                // Take the next batch of permutations, but never mix uses
+                // and import permutations in a batch, since uses permutations
+                // created while checking are to be checked before any pending
+                // import permutation.
+                List<Candidates> source = (m_usesPermutations.size() > 0)
+                    ? m_usesPermutations : m_importPermutations;
+                int size = Math.min(m_parallelism, source.size());
+                if (size == 1)
+                {
+                    result = checkPermutation(rc, source.remove(0), revisions, hostReqs);
+                    m_statistics.m_permutations++;
+                }
+                else
+                {
+                    if (executor == null)
+                    {
+                        executor = createExecutor();
+                    }
+                    List<Candidates> batch =
+                        new ArrayList<Candidates>(source.subList(0, size));
+                    source.subList(0, size).clear();
+                    result = checkPermutations(executor, rc, batch, revisions, hostReqs);
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private ExecutorService createExecutor()
+    {
+        return Executors.newFixedThreadPool(m_parallelism, new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "FelixResolver-" + m_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private Permutation checkPermutations(
+        ExecutorService executor, final ResolveContext rc, List<Candidates> batch,
+        final Collection<BundleRevision> revisions,
+        final Map<BundleRevision, List<BundleRequirement>> hostReqs)
+    {
+        // Check each permutation with its own resolver state and its own
+        // copy of the candidates, so that the checks share no mutable state;
+        // the resolve context is only read while checking. Each of them
+        // sees the pending import permutations to avoid duplicates.
+        List<ResolverImpl> checkers = new ArrayList<ResolverImpl>(batch.size());
+        List<Future<Permutation>> futures = new ArrayList<Future<Permutation>>(batch.size());
+        for (Candidates permutation : batch)
+        {
+            final Candidates candidates = permutation.copyUnshared();
+            final ResolverImpl checker = new ResolverImpl(m_logger);
+            checker.m_importPermutations.addAll(m_importPermutations);
+            checkers.add(checker);
+            futures.add(executor.submit(new Callable<Permutation>() {
+                public Permutation call()
+                {
+                    return checker.checkPermutation(rc, candidates, revisions, hostReqs);
+                }
+            }));
+        }
+
+        // Wait for all checks and pick the first consistent permutation in
+        // batch order; otherwise, queue the permutations created by the
+        // checks in batch order.
+        int pendingImports = m_importPermutations.size();
+        Permutation result = null;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            Permutation permutation;
+            try
+            {
+                permutation = futures.get(i).get();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new ResolveException(
+                    "Interrupted while checking candidate permutations.", null, null);
+            }
+            catch (ExecutionException ex)
+            {
+                if (ex.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw (Error) ex.getCause();
+            }
+            m_statistics.m_permutations++;
+
+            if ((result == null) || (result.m_exception != null))
+            {
+                result = permutation;
+                if (permutation.m_exception != null)
+                {
+                    ResolverImpl checker = checkers.get(i);
+                    m_usesPermutations.addAll(checker.m_usesPermutations);
+                    m_importPermutations.addAll(checker.m_importPermutations.subList(
+                        pendingImports, checker.m_importPermutations.size()));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether the specified candidate permutation is consistent for
+     * the specified revisions; any new permutations that may resolve a
+     * conflict are added to the pending permutations.
+    **/
+    private Permutation checkPermutation(
+        ResolveContext rc, Candidates allCandidates, Collection<BundleRevision> revisions,
+        Map<BundleRevision, List<BundleRequirement>> hostReqs)
+    {
+        Map<BundleRevision, Packages> revisionPkgMap = new HashMap<BundleRevision, Packages>();
+        m_packageSourcesCache.clear();
+//allCandidates.dump();
+
+        ResolveException rethrow = null;
+        for (BundleRevision br : revisions)
+        {
+            BundleRevision target = br;
+
+            // If we are resolving a fragment, then get its
+            // host candidate and verify it instead.
+            List<BundleRequirement> hostReq = hostReqs.get(br);
+            if (hostReq != null)
+            {
+                target = allCandidates.getCandidates(hostReq.get(0))
+                    .iterator().next().getRevision();
+            }
+
+            calculatePackageSpaces(
+                allCandidates.getWrappedHost(target), allCandidates, revisionPkgMap,
+                new HashMap(), new HashSet());
+//System.out.println("+++ PACKAGE SPACES START +++");
+//dumpRevisionPkgMap(revisionPkgMap);
+//System.out.println("+++ PACKAGE SPACES END +++");
+
+            try
+            {
+                checkPackageSpaceConsistency(
+                    rc, false, allCandidates.getWrappedHost(target),
+                    allCandidates, revisionPkgMap, new HashMap());
+            }
+            catch (ResolveException ex)
+            {
+                rethrow = ex;
+            }
+        }
+        return new Permutation(allCandidates, revisionPkgMap, rethrow);
+    }
+
     private static Candidates getDynamicImportCandidates(
         ResolveContext rc, BundleRevision revision, String pkgName)
     {
@@ -1765,6 +1946,74 @@ public class ResolverImpl implements Resolver
         return cap;
     }
 
+    private static class Permutation
+    {
+        public final Candidates m_candidates;
+        public final Map<BundleRevision, Packages> m_revisionPkgMap;
+        public final ResolveException m_exception;
+
+        public Permutation(
+            Candidates candidates, Map<BundleRevision, Packages> revisionPkgMap,
+            ResolveException exception)
+        {
+            m_candidates = candidates;
+            m_revisionPkgMap = revisionPkgMap;
+            m_exception = exception;
+        }
+    }
+
+    /**
+     * Statistics about a resolve operation; times are in nanoseconds.
+    **/
+    public static class Statistics
+    {
+        private int m_permutations = 0;
+        private long m_populateTime = 0;
+        private long m_checkTime = 0;
+        private long m_wireTime = 0;
+
+        /**
+         * Returns the number of candidate permutations checked.
+        **/
+        public int getPermutations()
+        {
+            return m_permutations;
+        }
+
+        /**
+         * Returns the time spent populating the candidates.
+        **/
+        public long getPopulateTime()
+        {
+            return m_populateTime;
+        }
+
+        /**
+         * Returns the time spent checking candidate permutations.
+        **/
+        public long getCheckTime()
+        {
+            return m_checkTime;
+        }
+
+        /**
+         * Returns the time spent creating the wires.
+        **/
+        public long getWireTime()
+        {
+            return m_wireTime;
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_permutations + " permutations checked, "
+                + (m_populateTime / 1000000) + " ms populating, "
+                + (m_checkTime / 1000000) + " ms checking, "
+                + (m_wireTime / 1000000) + " ms wiring";
+        }
+    }
+
     private static class Packages
     {
         private final BundleRevision m_revision;
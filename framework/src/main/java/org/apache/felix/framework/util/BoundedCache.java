@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent cache with a bounded number of entries that evicts the
+ * least recently used entries approximately. Entries are kept in two
+ * generations: new and recently used entries go into the young generation,
+ * and when it is full, it becomes the old generation and the previous old
+ * generation is dropped. An entry found in the old generation is moved back
+ * into the young one, so only entries that were not used during a whole
+ * generation are evicted. Lookups do not lock.
+**/
+public class BoundedCache<K, V>
+{
+    private final int m_generationSize;
+    private volatile Map<K, V> m_young = new ConcurrentHashMap<K, V>();
+    private volatile Map<K, V> m_old = new ConcurrentHashMap<K, V>();
+
+    /**
+     * Creates a cache that holds at most the specified number of entries.
+     * @param maxSize the maximum number of entries, which must be at least two.
+    **/
+    public BoundedCache(int maxSize)
+    {
+        if (maxSize < 2)
+        {
+            throw new IllegalArgumentException("Invalid cache size: " + maxSize);
+        }
+        m_generationSize = maxSize / 2;
+    }
+
+    public V get(K key)
+    {
+        V value = m_young.get(key);
+        if (value == null)
+        {
+            value = m_old.get(key);
+            if (value != null)
+            {
+                // The entry is still used, so keep it for another generation.
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public boolean containsKey(K key)
+    {
+        return get(key) != null;
+    }
+
+    public void put(K key, V value)
+    {
+        Map<K, V> young = m_young;
+        young.put(key, value);
+        if (young.size() >= m_generationSize)
+        {
+            synchronized (this)
+            {
+                if ((m_young == young) && (young.size() >= m_generationSize))
+                {
+                    m_old = young;
+                    m_young = new ConcurrentHashMap<K, V>();
+                }
+            }
+        }
+    }
+
+    public void remove(K key)
+    {
+        m_young.remove(key);
+        m_old.remove(key);
+    }
+
+    public synchronized void clear()
+    {
+        m_young = new ConcurrentHashMap<K, V>();
+        m_old = new ConcurrentHashMap<K, V>();
+    }
+
+    /**
+     * Returns the number of cached entries; an entry that was recently
+     * moved to the young generation may be counted twice.
+    **/
+    public int size()
+    {
+        return m_young.size() + m_old.size();
+    }
+}
@@ -28,10 +28,20 @@ import java.util.EventListener;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
@@ -65,6 +75,13 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Index of the service listeners by required object class; it is
+    // updated along with the service listener map.
+    private ServiceListenerIndex m_svcListenerIndex = ServiceListenerIndex.EMPTY;
+    // Statistics about how many listener filter evaluations were performed
+    // or skipped thanks to the service listener index.
+    private final AtomicLong m_svcListenerEvaluations = new AtomicLong();
+    private final AtomicLong m_svcListenerEvaluationsSkipped = new AtomicLong();
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -79,14 +96,94 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Time in milliseconds to wait for pending events to be delivered
+    // when pooled delivery is stopped.
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    // Number of threads used to deliver asynchronous events for this
+    // dispatcher; zero means the shared dispatch thread above is used.
+    private final int m_poolSize;
+    // Thread pool of this dispatcher if it uses pooled delivery.
+    private ExecutorService m_executor = null;
+    // Delivery lanes of listeners with pending asynchronous events; a lane
+    // is only present while it has events to deliver. All lanes are guarded
+    // by the lock of this map.
+    private final Map<EventListener, ListenerLane> m_lanes =
+        new IdentityHashMap<EventListener, ListenerLane>();
+    // Number of pending asynchronous deliveries in pooled delivery mode.
+    private final AtomicInteger m_pendingDeliveries = new AtomicInteger();
+    // Delivery statistics of registered asynchronous listeners or null if
+    // disabled; entries are created when a listener is added and removed
+    // together with it, so deliveries to removed listeners are not recorded.
+    private final Map<EventListener, ListenerStatistics> m_listenerStats;
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 0);
+    }
+
+    /**
+     * Creates an event dispatcher that delivers asynchronous events using
+     * the specified number of threads. If the number of threads is zero, then
+     * the dispatch thread shared by all dispatchers is used; otherwise, the
+     * dispatcher uses its own pool of threads in which events are delivered
+     * in order for each listener, while different listeners are notified in
+     * parallel.
+     * @param logger the logger to use.
+     * @param registry the service registry of the framework.
+     * @param poolSize the number of threads used to deliver asynchronous
+     *        events or zero to use the shared dispatch thread.
+    **/
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int poolSize)
+    {
+        this(logger, registry, poolSize, false);
+    }
+
+    /**
+     * Creates an event dispatcher like above, which additionally keeps
+     * delivery statistics of asynchronous listeners if requested.
+     * @param logger the logger to use.
+     * @param registry the service registry of the framework.
+     * @param poolSize the number of threads used to deliver asynchronous
+     *        events or zero to use the shared dispatch thread.
+     * @param statistics whether delivery statistics of asynchronous
+     *        listeners are kept.
+    **/
+    public EventDispatcher(
+        Logger logger, ServiceRegistry registry, int poolSize, boolean statistics)
     {
         m_logger = logger;
         m_registry = registry;
+        m_poolSize = (poolSize > 0) ? poolSize : 0;
+        m_listenerStats = statistics
+            ? new IdentityHashMap<EventListener, ListenerStatistics>() : null;
     }
 
     public void startDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            synchronized (m_lanes)
+            {
+                if (m_executor == null)
+                {
+                    m_executor = new ThreadPoolExecutor(
+                        m_poolSize, m_poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory() {
+                            private final AtomicInteger m_count = new AtomicInteger();
+
+                            public Thread newThread(Runnable r)
+                            {
+                                return new Thread(r,
+                                    "FelixDispatchQueue-" + m_count.incrementAndGet());
+                            }
+                        });
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -125,6 +222,41 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_poolSize > 0)
+        {
+            ExecutorService executor;
+            synchronized (m_lanes)
+            {
+                executor = m_executor;
+                m_executor = null;
+            }
+            if (executor != null)
+            {
+                // Pending events are still delivered, but no new events
+                // are accepted.
+                executor.shutdown();
+                try
+                {
+                    if (!executor.awaitTermination(
+                        SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+                    {
+                        // A listener does not return; interrupt the delivery
+                        // threads and drop the remaining events.
+                        executor.shutdownNow();
+                        m_logger.log(Logger.LOG_WARNING,
+                            "Event delivery did not complete within "
+                            + SHUTDOWN_TIMEOUT + " ms; pending events are dropped.");
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -241,6 +373,20 @@ public class EventDispatcher
                 new ListenerInfo(bc.getBundle(), bc, clazz, l, filter, acc, false);
             listeners = addListenerInfo(listeners, info);
 
+            if ((m_listenerStats != null)
+                && ((clazz == FrameworkListener.class)
+                    || ((clazz == BundleListener.class)
+                        && !SynchronousBundleListener.class.isInstance(l))))
+            {
+                synchronized (m_listenerStats)
+                {
+                    if (!m_listenerStats.containsKey(l))
+                    {
+                        m_listenerStats.put(l, new ListenerStatistics());
+                    }
+                }
+            }
+
             if (clazz == FrameworkListener.class)
             {
                 m_fwkListeners = listeners;
@@ -259,6 +405,7 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                m_svcListenerIndex = m_svcListenerIndex.add(info);
             }
         }
         return null;
@@ -311,6 +458,7 @@ public class EventDispatcher
 
             // Try to find the instance in our list.
             int idx = -1;
+            ListenerInfo removed = null;
             for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
             {
                 List<ListenerInfo> infos = entry.getValue();
@@ -327,6 +475,7 @@ public class EventDispatcher
                         {
                             returnInfo = new ListenerInfo(infos.get(i), true);
                         }
+                        removed = infos.get(i);
                         idx = i;
                         break;
                     }
@@ -337,6 +486,13 @@ public class EventDispatcher
             if (idx >= 0)
             {
                 listeners = removeListenerInfo(listeners, bc, idx);
+                if ((m_listenerStats != null) && (clazz != ServiceListener.class))
+                {
+                    synchronized (m_listenerStats)
+                    {
+                        m_listenerStats.remove(l);
+                    }
+                }
             }
 
             if (clazz == FrameworkListener.class)
@@ -357,6 +513,10 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_svcListeners = listeners;
+                if (removed != null)
+                {
+                    m_svcListenerIndex = m_svcListenerIndex.remove(removed);
+                }
             }
         }
 
@@ -374,6 +534,9 @@ public class EventDispatcher
 
         synchronized (this)
         {
+            removeListenerStatistics(m_fwkListeners, bc);
+            removeListenerStatistics(m_bndlListeners, bc);
+
             // Remove all framework listeners associated with the specified bundle.
             m_fwkListeners = removeListenerInfos(m_fwkListeners, bc);
 
@@ -385,6 +548,11 @@ public class EventDispatcher
             m_syncBndlListeners = removeListenerInfos(m_syncBndlListeners, bc);
 
             // Remove all service listeners associated with the specified bundle.
+            List<ListenerInfo> infos = m_svcListeners.get(bc);
+            if (infos != null)
+            {
+                m_svcListenerIndex = m_svcListenerIndex.removeAll(bc, infos.size());
+            }
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
         }
     }
@@ -426,6 +594,8 @@ public class EventDispatcher
                             info.getSecurityContext(),
                             info.isRemoved());
                         m_svcListeners = updateListenerInfo(m_svcListeners, i, newInfo);
+                        m_svcListenerIndex =
+                            m_svcListenerIndex.remove(info).add(newInfo);
                         return oldFilter;
                     }
                 }
@@ -532,19 +702,60 @@ public class EventDispatcher
     {
         // Take a snapshot of the listener array.
         Map<BundleContext, List<ListenerInfo>> listeners = null;
+        ServiceListenerIndex index = null;
         synchronized (this)
         {
             listeners = m_svcListeners;
+            index = m_svcListenerIndex;
         }
 
-        // Use service registry hooks to filter target listeners.
-        listeners = filterListenersUsingHooks(event, felix, listeners);
+        if (m_registry.getHooks(
+                org.osgi.framework.hooks.service.EventHook.class).isEmpty()
+            && m_registry.getHooks(
+                org.osgi.framework.hooks.service.EventListenerHook.class).isEmpty())
+        {
+            // Without hooks, we only need to dispatch to the listeners
+            // that can match the service according to the listener index.
+            listeners = index.getListeners(event.getServiceReference());
+            int count = 0;
+            for (List<ListenerInfo> infos : listeners.values())
+            {
+                count += infos.size();
+            }
+            m_svcListenerEvaluations.addAndGet(count);
+            m_svcListenerEvaluationsSkipped.addAndGet(index.size() - count);
+        }
+        else
+        {
+            // Use service registry hooks to filter target listeners;
+            // the hooks get to see all listeners, so we cannot use the index.
+            listeners = filterListenersUsingHooks(event, felix, listeners);
+        }
 
         // Fire all service events immediately on the calling thread.
         fireEventImmediately(
             this, Request.SERVICE_EVENT, listeners, event, oldProps);
     }
 
+    /**
+     * Returns the number of service listeners that were considered for
+     * service events dispatched using the service listener index.
+    **/
+    public long getServiceListenerEvaluations()
+    {
+        return m_svcListenerEvaluations.get();
+    }
+
+    /**
+     * Returns the number of service listeners that did not need to be
+     * considered for service events, because the service listener index
+     * showed they could not match.
+    **/
+    public long getServiceListenerEvaluationsSkipped()
+    {
+        return m_svcListenerEvaluationsSkipped.get();
+    }
+
 // TODO: OSGi R4.3 - This is ugly and inefficient.
     private Map<BundleContext, List<ListenerInfo>> filterListenersUsingHooks(
         ServiceEvent event, Framework felix, Map<BundleContext, List<ListenerInfo>> listeners)
@@ -725,6 +936,14 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        // If the dispatcher has its own thread pool, then queue the event
+        // in the lanes of the target listeners.
+        if (dispatcher.m_poolSize > 0)
+        {
+            dispatcher.queueEvent(type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -751,6 +970,7 @@ public class EventDispatcher
         req.m_type = type;
         req.m_listeners = listeners;
         req.m_event = event;
+        req.m_queued = System.nanoTime();
 
         // Lock the request list.
         synchronized (m_requestList)
@@ -774,44 +994,66 @@ public class EventDispatcher
             {
                 for (ListenerInfo info : entry.getValue())
                 {
-                    Bundle bundle = info.getBundle();
-                    EventListener l = info.getListener();
-                    Filter filter = info.getParsedFilter();
-                    Object acc = info.getSecurityContext();
-
-                    try
-                    {
-                        if (type == Request.FRAMEWORK_EVENT)
-                        {
-                            invokeFrameworkListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.BUNDLE_EVENT)
-                        {
-                            invokeBundleListenerCallback(bundle, l, event);
-                        }
-                        else if (type == Request.SERVICE_EVENT)
-                        {
-                            invokeServiceListenerCallback(
-                                bundle, l, filter, acc, event, oldProps);
-                        }
-                    }
-                    catch (Throwable th)
-                    {
-                        if ((type != Request.FRAMEWORK_EVENT)
-                            || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
-                        {
-                            dispatcher.m_logger.log(bundle,
-                                Logger.LOG_ERROR,
-                                "EventDispatcher: Error during dispatch.", th);
-                            dispatcher.fireFrameworkEvent(
-                                new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
-                        }
-                    }
+                    invokeListener(dispatcher, type, info, event, oldProps);
                 }
             }
         }
     }
 
+    private static void invokeListener(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, Dictionary oldProps)
+    {
+        Bundle bundle = info.getBundle();
+        EventListener l = info.getListener();
+        Filter filter = info.getParsedFilter();
+        Object acc = info.getSecurityContext();
+
+        try
+        {
+            if (type == Request.FRAMEWORK_EVENT)
+            {
+                invokeFrameworkListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.BUNDLE_EVENT)
+            {
+                invokeBundleListenerCallback(bundle, l, event);
+            }
+            else if (type == Request.SERVICE_EVENT)
+            {
+                invokeServiceListenerCallback(
+                    bundle, l, filter, acc, event, oldProps);
+            }
+        }
+        catch (Throwable th)
+        {
+            if ((type != Request.FRAMEWORK_EVENT)
+                || (((FrameworkEvent) event).getType() != FrameworkEvent.ERROR))
+            {
+                dispatcher.m_logger.log(bundle,
+                    Logger.LOG_ERROR,
+                    "EventDispatcher: Error during dispatch.", th);
+                dispatcher.fireFrameworkEvent(
+                    new FrameworkEvent(FrameworkEvent.ERROR, bundle, th));
+            }
+        }
+    }
+
+    /**
+     * Delivers an asynchronous event to a single listener and records the
+     * time elapsed since the event was queued in the listener statistics.
+    **/
+    private static void deliverQueuedEvent(
+        EventDispatcher dispatcher, int type, ListenerInfo info,
+        EventObject event, long queued)
+    {
+        invokeListener(dispatcher, type, info, event, null);
+        if (dispatcher.m_listenerStats != null)
+        {
+            dispatcher.recordDelivery(info.getListener(), System.nanoTime() - queued);
+        }
+    }
+
     private static void invokeFrameworkListenerCallback(
         Bundle bundle, final EventListener l, final EventObject event)
     {
@@ -1096,9 +1338,15 @@ public class EventDispatcher
             // NOTE: We don't catch any exceptions here, because
             // the invoked method shields us from exceptions by
             // catching Throwables when it invokes callbacks.
-            fireEventImmediately(
-                req.m_dispatcher, req.m_type, req.m_listeners,
-                req.m_event, null);
+            for (List<ListenerInfo> infos : req.m_listeners.values())
+            {
+                for (ListenerInfo info : infos)
+                {
+                    deliverQueuedEvent(
+                        req.m_dispatcher, req.m_type, info,
+                        req.m_event, req.m_queued);
+                }
+            }
 
             // Put dispatch request in cache.
             synchronized (m_requestPool)
@@ -1107,11 +1355,263 @@ public class EventDispatcher
                 req.m_type = -1;
                 req.m_listeners = null;
                 req.m_event = null;
+                req.m_queued = 0;
                 m_requestPool.add(req);
             }
         }
     }
 
+    /**
+     * Queues an asynchronous event in the lanes of the specified listeners
+     * and schedules the lanes that were idle on the thread pool.
+    **/
+    private void queueEvent(
+        int type, Map<BundleContext, List<ListenerInfo>> listeners,
+        EventObject event)
+    {
+        if (listeners.isEmpty())
+        {
+            return;
+        }
+
+        long queued = System.nanoTime();
+        List<ListenerLane> idle = null;
+        ExecutorService executor;
+        synchronized (m_lanes)
+        {
+            // If dispatching is stopped, then ignore dispatch request.
+            executor = m_executor;
+            if (executor == null)
+            {
+                return;
+            }
+
+            for (List<ListenerInfo> infos : listeners.values())
+            {
+                for (ListenerInfo info : infos)
+                {
+                    ListenerLane lane = m_lanes.get(info.getListener());
+                    if (lane == null)
+                    {
+                        lane = new ListenerLane(info.getListener());
+                        m_lanes.put(info.getListener(), lane);
+                        if (idle == null)
+                        {
+                            idle = new ArrayList<ListenerLane>();
+                        }
+                        idle.add(lane);
+                    }
+                    lane.m_deliveries.add(new Delivery(type, info, event, queued));
+                    m_pendingDeliveries.incrementAndGet();
+                }
+            }
+        }
+
+        for (int i = 0; (idle != null) && (i < idle.size()); i++)
+        {
+            try
+            {
+                executor.execute(idle.get(i));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                // Dispatching was stopped concurrently, so drop the lane.
+                synchronized (m_lanes)
+                {
+                    ListenerLane lane = idle.get(i);
+                    m_lanes.remove(lane.m_listener);
+                    m_pendingDeliveries.addAndGet(-lane.m_deliveries.size());
+                    lane.m_deliveries.clear();
+                }
+            }
+        }
+    }
+
+    private void recordDelivery(EventListener l, long latency)
+    {
+        // Only listeners that are still registered have statistics, since
+        // the entry is removed under the same lock when the listener is.
+        ListenerStatistics stats;
+        synchronized (m_listenerStats)
+        {
+            stats = m_listenerStats.get(l);
+        }
+        if (stats != null)
+        {
+            stats.record(latency);
+        }
+    }
+
+    private void removeListenerStatistics(
+        Map<BundleContext, List<ListenerInfo>> listeners, BundleContext bc)
+    {
+        List<ListenerInfo> infos = listeners.get(bc);
+        if ((m_listenerStats != null) && (infos != null))
+        {
+            synchronized (m_listenerStats)
+            {
+                for (ListenerInfo info : infos)
+                {
+                    m_listenerStats.remove(info.getListener());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pending asynchronous event deliveries. With the
+     * shared dispatch thread, this is the number of queued events of all
+     * dispatchers; with a thread pool, this is the number of queued
+     * event-listener pairs of this dispatcher.
+    **/
+    public int getAsyncQueueDepth()
+    {
+        if (m_poolSize > 0)
+        {
+            return m_pendingDeliveries.get();
+        }
+        synchronized (m_requestList)
+        {
+            return m_requestList.size();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the delivery statistics of the registered
+     * asynchronous framework and bundle listeners, keyed by listener; the
+     * map is empty if statistics are disabled.
+    **/
+    public Map<EventListener, ListenerStatistics> getListenerStatistics()
+    {
+        if (m_listenerStats == null)
+        {
+            return Collections.emptyMap();
+        }
+        synchronized (m_listenerStats)
+        {
+            return new IdentityHashMap<EventListener, ListenerStatistics>(m_listenerStats);
+        }
+    }
+
+    /**
+     * Resets the delivery statistics of all registered listeners.
+    **/
+    public void resetListenerStatistics()
+    {
+        if (m_listenerStats != null)
+        {
+            synchronized (m_listenerStats)
+            {
+                for (ListenerStatistics stats : m_listenerStats.values())
+                {
+                    stats.reset();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivery statistics of an asynchronous listener; latencies are
+     * measured in nanoseconds from the time the event was queued until
+     * the listener returned.
+    **/
+    public static class ListenerStatistics
+    {
+        private long m_deliveries = 0;
+        private long m_totalLatency = 0;
+        private long m_maxLatency = 0;
+
+        synchronized void record(long latency)
+        {
+            m_deliveries++;
+            m_totalLatency += latency;
+            if (latency > m_maxLatency)
+            {
+                m_maxLatency = latency;
+            }
+        }
+
+        synchronized void reset()
+        {
+            m_deliveries = 0;
+            m_totalLatency = 0;
+            m_maxLatency = 0;
+        }
+
+        public synchronized long getDeliveries()
+        {
+            return m_deliveries;
+        }
+
+        public synchronized long getTotalLatency()
+        {
+            return m_totalLatency;
+        }
+
+        public synchronized long getAverageLatency()
+        {
+            return (m_deliveries == 0) ? 0 : m_totalLatency / m_deliveries;
+        }
+
+        public synchronized long getMaxLatency()
+        {
+            return m_maxLatency;
+        }
+    }
+
+    /**
+     * A lane delivers the queued events of a single listener in order; it
+     * runs on the thread pool until it has no more events to deliver and
+     * then removes itself, so that lanes of different listeners proceed in
+     * parallel while each listener is notified by at most one thread.
+    **/
+    private class ListenerLane implements Runnable
+    {
+        private final EventListener m_listener;
+        private final LinkedList<Delivery> m_deliveries = new LinkedList<Delivery>();
+
+        ListenerLane(EventListener listener)
+        {
+            m_listener = listener;
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                Delivery delivery;
+                synchronized (m_lanes)
+                {
+                    delivery = m_deliveries.poll();
+                    if (delivery == null)
+                    {
+                        m_lanes.remove(m_listener);
+                        return;
+                    }
+                }
+                m_pendingDeliveries.decrementAndGet();
+                deliverQueuedEvent(EventDispatcher.this, delivery.m_type,
+                    delivery.m_info, delivery.m_event, delivery.m_queued);
+            }
+        }
+    }
+
+    private static class Delivery
+    {
+        private final int m_type;
+        private final ListenerInfo m_info;
+        private final EventObject m_event;
+        private final long m_queued;
+
+        Delivery(int type, ListenerInfo info, EventObject event, long queued)
+        {
+            m_type = type;
+            m_info = info;
+            m_event = event;
+            m_queued = queued;
+        }
+    }
+
     private static class Request
     {
         public static final int FRAMEWORK_EVENT = 0;
@@ -1122,5 +1622,6 @@ public class EventDispatcher
         public int m_type = -1;
         public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
         public EventObject m_event = null;
+        public long m_queued = 0;
     }
 }
@@ -48,9 +48,17 @@ public interface FelixConstants extends org.osgi.framework.Constants
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
+    String SERVICE_LOOKUPCACHE_PROP = "felix.service.lookupcache";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
     String USE_LOCALURLS_PROP = "felix.jarurls";
+    String EVENTDISPATCHER_THREADS_PROP = "felix.eventdispatcher.threads";
+    String STARTLEVEL_THREADS_PROP = "felix.startlevel.threads";
+    String RESOLVER_CACHE_PROP = "felix.resolver.cache";
+    String RESOLVER_PARALLELISM_PROP = "felix.resolver.parallelism";
+    String RESOLVER_TIMEOUT_PROP = "felix.resolver.timeout";
+    String REFRESH_INCREMENTAL_PROP = "felix.refresh.incremental";
+    String METRICS_PROP = "felix.metrics";
 
     // Missing OSGi constant for resolution directive.
     String RESOLUTION_DYNAMIC = "dynamic";
@@ -0,0 +1,493 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * An immutable map implemented as a hash array mapped trie. Instead of
+ * modifying the map, <tt>plus()</tt> and <tt>minus()</tt> return a new map
+ * which shares all but the modified path of the trie with this map, so an
+ * update only costs <tt>O(log n)</tt> time and space. This allows to keep
+ * cheap immutable snapshots of large, frequently modified maps.
+ * </p>
+ * <p>
+ * Keys are compared using <tt>equals()</tt>; <tt>null</tt> keys and values
+ * are not supported.
+ * </p>
+**/
+public class HashTrieMap<K, V> extends AbstractMap<K, V>
+{
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final HashTrieMap EMPTY = new HashTrieMap(null, 0);
+
+    private final Node m_root;
+    private final int m_size;
+    private Set<Entry<K, V>> m_entrySet;
+
+    public static <K, V> HashTrieMap<K, V> empty()
+    {
+        return EMPTY;
+    }
+
+    private HashTrieMap(Node root, int size)
+    {
+        m_root = root;
+        m_size = size;
+    }
+
+    @Override
+    public int size()
+    {
+        return m_size;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return find(key) != null;
+    }
+
+    @Override
+    public V get(Object key)
+    {
+        Leaf<K, V> leaf = find(key);
+        return (leaf != null) ? leaf.m_value : null;
+    }
+
+    /**
+     * Returns a map with the mappings of this map and the specified mapping,
+     * which replaces any mapping of the key in this map.
+     * @param key the key to map.
+     * @param value the value to map the key to.
+     * @return the resulting map, which is this map if it already contains
+     *         the mapping.
+    **/
+    public HashTrieMap<K, V> plus(K key, V value)
+    {
+        Leaf<K, V> leaf = new Leaf<K, V>(hash(key), key, value);
+        if (m_root == null)
+        {
+            return new HashTrieMap<K, V>(
+                new Node(1 << (leaf.m_hash & MASK), new Object[] { leaf }), 1);
+        }
+        boolean[] added = new boolean[1];
+        Node root = put(m_root, 0, leaf, added);
+        return (root == m_root)
+            ? this : new HashTrieMap<K, V>(root, added[0] ? m_size + 1 : m_size);
+    }
+
+    /**
+     * Returns a map with the mappings of this map except the mapping of the
+     * specified key.
+     * @param key the key to remove.
+     * @return the resulting map, which is this map if it contains no mapping
+     *         for the key.
+    **/
+    public HashTrieMap<K, V> minus(Object key)
+    {
+        if (m_root == null)
+        {
+            return this;
+        }
+        Node root = remove(m_root, 0, key, hash(key));
+        return (root == m_root)
+            ? this : (root == null) ? EMPTY : new HashTrieMap<K, V>(root, m_size - 1);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet()
+    {
+        if (m_entrySet == null)
+        {
+            m_entrySet = new AbstractSet<Entry<K, V>>()
+            {
+                @Override
+                public Iterator<Entry<K, V>> iterator()
+                {
+                    return new EntryIterator<K, V>(m_root);
+                }
+
+                @Override
+                public int size()
+                {
+                    return m_size;
+                }
+            };
+        }
+        return m_entrySet;
+    }
+
+    private static int hash(Object key)
+    {
+        // Spread the bits, since the trie consumes the low bits first.
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private Leaf<K, V> find(Object key)
+    {
+        if ((key == null) || (m_root == null))
+        {
+            return null;
+        }
+        int hash = hash(key);
+        Object slot = m_root;
+        for (int shift = 0; slot instanceof Node; shift += BITS)
+        {
+            Node node = (Node) slot;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.m_bitmap & bit) == 0)
+            {
+                return null;
+            }
+            slot = node.m_slots[node.index(bit)];
+        }
+        Leaf[] leaves = (slot instanceof Leaf) ? new Leaf[] { (Leaf) slot } : (Leaf[]) slot;
+        for (int i = 0; i < leaves.length; i++)
+        {
+            if ((leaves[i].m_hash == hash) && key.equals(leaves[i].m_key))
+            {
+                return leaves[i];
+            }
+        }
+        return null;
+    }
+
+    private static Node put(Node node, int shift, Leaf leaf, boolean[] added)
+    {
+        int bit = 1 << ((leaf.m_hash >>> shift) & MASK);
+        int idx = node.index(bit);
+        if ((node.m_bitmap & bit) == 0)
+        {
+            added[0] = true;
+            return node.insert(idx, bit, leaf);
+        }
+
+        Object slot = node.m_slots[idx];
+        Object newSlot;
+        if (slot instanceof Node)
+        {
+            newSlot = put((Node) slot, shift + BITS, leaf, added);
+        }
+        else if (slot instanceof Leaf)
+        {
+            Leaf other = (Leaf) slot;
+            if (other.m_hash != leaf.m_hash)
+            {
+                added[0] = true;
+                newSlot = merge(other, other.m_hash, leaf, shift + BITS);
+            }
+            else if (other.m_key.equals(leaf.m_key))
+            {
+                newSlot = (other.m_value == leaf.m_value) ? other : leaf;
+            }
+            else
+            {
+                added[0] = true;
+                newSlot = new Leaf[] { other, leaf };
+            }
+        }
+        else
+        {
+            // Keys with colliding hashes are kept in an array.
+            Leaf[] leaves = (Leaf[]) slot;
+            if (leaves[0].m_hash != leaf.m_hash)
+            {
+                added[0] = true;
+                newSlot = merge(leaves, leaves[0].m_hash, leaf, shift + BITS);
+            }
+            else
+            {
+                int i = 0;
+                while ((i < leaves.length) && !leaves[i].m_key.equals(leaf.m_key))
+                {
+                    i++;
+                }
+                if ((i < leaves.length) && (leaves[i].m_value == leaf.m_value))
+                {
+                    return node;
+                }
+                Leaf[] newLeaves = new Leaf[(i < leaves.length) ? leaves.length : leaves.length + 1];
+                System.arraycopy(leaves, 0, newLeaves, 0, leaves.length);
+                newLeaves[i] = leaf;
+                added[0] = (i == leaves.length);
+                newSlot = newLeaves;
+            }
+        }
+        return (newSlot == slot) ? node : node.replace(idx, newSlot);
+    }
+
+    private static Node merge(Object slot, int hash, Leaf leaf, int shift)
+    {
+        // The hashes differ, so they end up in different slots at the
+        // latest when all bits of the hashes have been consumed.
+        int slotIdx = (hash >>> shift) & MASK;
+        int leafIdx = (leaf.m_hash >>> shift) & MASK;
+        if (slotIdx == leafIdx)
+        {
+            return new Node(1 << slotIdx,
+                new Object[] { merge(slot, hash, leaf, shift + BITS) });
+        }
+        return new Node((1 << slotIdx) | (1 << leafIdx), (slotIdx < leafIdx)
+            ? new Object[] { slot, leaf } : new Object[] { leaf, slot });
+    }
+
+    private static Node remove(Node node, int shift, Object key, int hash)
+    {
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.m_bitmap & bit) == 0)
+        {
+            return node;
+        }
+        int idx = node.index(bit);
+
+        Object slot = node.m_slots[idx];
+        Object newSlot;
+        if (slot instanceof Node)
+        {
+            Node child = remove((Node) slot, shift + BITS, key, hash);
+            if (child == slot)
+            {
+                return node;
+            }
+            // Pull up a single remaining entry, which keeps the trie compact.
+            newSlot = ((child != null) && (child.m_slots.length == 1)
+                && !(child.m_slots[0] instanceof Node)) ? child.m_slots[0] : child;
+        }
+        else if (slot instanceof Leaf)
+        {
+            Leaf leaf = (Leaf) slot;
+            if ((leaf.m_hash != hash) || !leaf.m_key.equals(key))
+            {
+                return node;
+            }
+            newSlot = null;
+        }
+        else
+        {
+            Leaf[] leaves = (Leaf[]) slot;
+            int i = 0;
+            while ((i < leaves.length)
+                && ((leaves[i].m_hash != hash) || !leaves[i].m_key.equals(key)))
+            {
+                i++;
+            }
+            if (i == leaves.length)
+            {
+                return node;
+            }
+            else if (leaves.length == 2)
+            {
+                newSlot = leaves[1 - i];
+            }
+            else
+            {
+                Leaf[] newLeaves = new Leaf[leaves.length - 1];
+                System.arraycopy(leaves, 0, newLeaves, 0, i);
+                System.arraycopy(leaves, i + 1, newLeaves, i, newLeaves.length - i);
+                newSlot = newLeaves;
+            }
+        }
+        return (newSlot == null) ? node.delete(idx, bit) : node.replace(idx, newSlot);
+    }
+
+    private static class Node
+    {
+        // Bitmap of the occupied slots, whose entries are either nodes,
+        // leaves or arrays of leaves with the same hash.
+        final int m_bitmap;
+        final Object[] m_slots;
+
+        Node(int bitmap, Object[] slots)
+        {
+            m_bitmap = bitmap;
+            m_slots = slots;
+        }
+
+        int index(int bit)
+        {
+            return Integer.bitCount(m_bitmap & (bit - 1));
+        }
+
+        Node insert(int idx, int bit, Object slot)
+        {
+            Object[] slots = new Object[m_slots.length + 1];
+            System.arraycopy(m_slots, 0, slots, 0, idx);
+            slots[idx] = slot;
+            System.arraycopy(m_slots, idx, slots, idx + 1, m_slots.length - idx);
+            return new Node(m_bitmap | bit, slots);
+        }
+
+        Node replace(int idx, Object slot)
+        {
+            Object[] slots = m_slots.clone();
+            slots[idx] = slot;
+            return new Node(m_bitmap, slots);
+        }
+
+        Node delete(int idx, int bit)
+        {
+            if (m_slots.length == 1)
+            {
+                return null;
+            }
+            Object[] slots = new Object[m_slots.length - 1];
+            System.arraycopy(m_slots, 0, slots, 0, idx);
+            System.arraycopy(m_slots, idx + 1, slots, idx, slots.length - idx);
+            return new Node(m_bitmap & ~bit, slots);
+        }
+    }
+
+    private static class Leaf<K, V> implements Map.Entry<K, V>
+    {
+        final int m_hash;
+        final K m_key;
+        final V m_value;
+
+        Leaf(int hash, K key, V value)
+        {
+            m_hash = hash;
+            m_key = key;
+            m_value = value;
+        }
+
+        public K getKey()
+        {
+            return m_key;
+        }
+
+        public V getValue()
+        {
+            return m_value;
+        }
+
+        public V setValue(V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry entry = (Map.Entry) obj;
+            return m_key.equals(entry.getKey()) && m_value.equals(entry.getValue());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_key.hashCode() ^ m_value.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_key + "=" + m_value;
+        }
+    }
+
+    private static class EntryIterator<K, V> implements Iterator<Entry<K, V>>
+    {
+        // Slots of the nodes on the path to the next leaf; the trie is at
+        // most seven levels deep, plus one level for colliding hashes.
+        private final Object[][] m_stack = new Object[8][];
+        private final int[] m_positions = new int[8];
+        private int m_depth = -1;
+        private Leaf<K, V> m_next;
+
+        EntryIterator(Node root)
+        {
+            if (root != null)
+            {
+                push(root.m_slots);
+                advance();
+            }
+        }
+
+        private void push(Object[] slots)
+        {
+            m_depth++;
+            m_stack[m_depth] = slots;
+            m_positions[m_depth] = 0;
+        }
+
+        private void advance()
+        {
+            m_next = null;
+            while (m_depth >= 0)
+            {
+                Object[] slots = m_stack[m_depth];
+                if (m_positions[m_depth] == slots.length)
+                {
+                    m_stack[m_depth] = null;
+                    m_depth--;
+                    continue;
+                }
+                Object slot = slots[m_positions[m_depth]++];
+                if (slot instanceof Node)
+                {
+                    push(((Node) slot).m_slots);
+                }
+                else if (slot instanceof Leaf[])
+                {
+                    push((Leaf[]) slot);
+                }
+                else
+                {
+                    m_next = (Leaf<K, V>) slot;
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return m_next != null;
+        }
+
+        public Entry<K, V> next()
+        {
+            if (m_next == null)
+            {
+                throw new NoSuchElementException();
+            }
+            Leaf<K, V> next = m_next;
+            advance();
+            return next;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
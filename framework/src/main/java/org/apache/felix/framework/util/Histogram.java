@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Values are counted in
+ * buckets whose bounds are powers of two, so percentiles are only known
+ * within a factor of two, which is sufficient to tell where time goes while
+ * keeping the cost of recording a value to a few atomic increments.
+**/
+public class Histogram
+{
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    /**
+     * Records the specified duration.
+     * @param nanos the duration in nanoseconds.
+    **/
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        // Bucket i holds the values of at least 2^(i-1) and less than 2^i.
+        m_buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        m_count.incrementAndGet();
+        m_total.addAndGet(nanos);
+        long max = m_max.get();
+        while ((nanos > max) && !m_max.compareAndSet(max, nanos))
+        {
+            max = m_max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return m_count.get();
+    }
+
+    public long getTotal()
+    {
+        return m_total.get();
+    }
+
+    public long getMax()
+    {
+        return m_max.get();
+    }
+
+    public long getMean()
+    {
+        long count = m_count.get();
+        return (count == 0) ? 0 : m_total.get() / count;
+    }
+
+    /**
+     * Returns an upper bound of the specified percentile of the recorded
+     * durations, which is at most twice the actual value.
+     * @param percentile the percentile between 0 and 100.
+     * @return the upper bound in nanoseconds or zero if nothing was recorded.
+    **/
+    public long getPercentile(double percentile)
+    {
+        long count = 0;
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            buckets[i] = m_buckets.get(i);
+            count += buckets[i];
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += buckets[i];
+            if ((seen >= rank) && (seen > 0))
+            {
+                return Math.min((i == BUCKETS - 1) ? Long.MAX_VALUE : (1L << i), getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Discards all recorded durations. Durations recorded concurrently may
+     * be partially retained.
+    **/
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            m_buckets.set(i, 0);
+        }
+        m_count.set(0);
+        m_total.set(0);
+        m_max.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount()
+            + ", mean=" + micros(getMean())
+            + ", p50<=" + micros(getPercentile(50))
+            + ", p99<=" + micros(getPercentile(99))
+            + ", max=" + micros(getMax());
+    }
+
+    private static String micros(long nanos)
+    {
+        return (nanos / 1000) + " us";
+    }
+}
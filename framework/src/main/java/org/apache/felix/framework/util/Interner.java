@@ -0,0 +1,355 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.osgi.framework.Version;
+
+/**
+ * <p>
+ * A pool of shared immutable values for the metadata derived from bundle
+ * manifests, such as package names, versions, directive and attribute maps,
+ * and <tt>uses</tt> lists. Many bundles declare the same packages and
+ * directives, so sharing equal values considerably reduces the memory used
+ * by capabilities and requirements. Values are only weakly referenced by the
+ * pool, so they are released once no capability or requirement uses them.
+ * </p>
+ * <p>
+ * Maps and lists are copied into <tt>ImmutableMap</tt> and
+ * <tt>ImmutableList</tt> instances, so they cannot be modified once shared.
+ * </p>
+ * <p>
+ * The pool is shared by all interners in the JVM and split into segments
+ * with their own locks, so concurrent lookups rarely contend. Each framework
+ * uses its own interner, which keeps an estimate of the memory saved for
+ * that framework, available from <tt>getStatistics()</tt>.
+ * </p>
+**/
+public class Interner
+{
+    // Rough object sizes, assuming compressed references.
+    private static final int OBJECT_SIZE = 16;
+    private static final int ARRAY_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int STRING_SIZE = 24;
+    private static final int VERSION_SIZE = 32;
+    private static final int ENTRY_SIZE = 24;
+
+    private static final int SEGMENTS = 16;
+
+    private static final Map<Object, WeakReference<Object>>[] m_pool =
+        new Map[SEGMENTS];
+    private static final Interner m_default = new Interner();
+
+    static
+    {
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            m_pool[i] = new WeakHashMap<Object, WeakReference<Object>>();
+        }
+    }
+
+    private final AtomicLong m_lookups = new AtomicLong();
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_savedBytes = new AtomicLong();
+
+    /**
+     * Returns the interner used for values that do not belong to a
+     * framework.
+     * @return the default interner.
+    **/
+    public static Interner getDefault()
+    {
+        return m_default;
+    }
+
+    /**
+     * Returns the shared instance of the specified value, which becomes the
+     * shared instance if there is none yet.
+     * @param value the value to intern, which must be immutable.
+     * @return the shared instance equal to the value.
+    **/
+    public <T> T intern(T value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        m_lookups.incrementAndGet();
+        Object pooled;
+        Map<Object, WeakReference<Object>> segment = getSegment(value);
+        synchronized (segment)
+        {
+            WeakReference<Object> ref = segment.get(value);
+            pooled = (ref != null) ? ref.get() : null;
+            if (pooled == null)
+            {
+                segment.put(value, new WeakReference<Object>(value));
+                return value;
+            }
+        }
+        // Equal maps may have a different order, which is visible.
+        if ((pooled != value) && (!(value instanceof Map)
+            || isSameOrder((Map) pooled, (Map) value)))
+        {
+            m_hits.incrementAndGet();
+            m_savedBytes.addAndGet(estimateSize(value));
+            return (T) pooled;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a shared immutable copy of the specified value. Strings,
+     * versions, version ranges and numbers are interned as they are, while
+     * lists are copied into immutable lists of shared elements. Other values
+     * are returned unchanged.
+     * @param value the value to intern.
+     * @return the shared value.
+    **/
+    public Object internValue(Object value)
+    {
+        if (value instanceof List)
+        {
+            return internList((List) value);
+        }
+        else if ((value instanceof String) || (value instanceof Version)
+            || (value instanceof VersionRange) || (value instanceof Long)
+            || (value instanceof Double))
+        {
+            return intern(value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns a shared immutable copy of the specified list, whose elements
+     * are interned as well.
+     * @param list the list to intern.
+     * @return the shared list.
+    **/
+    public <E> List<E> internList(List<E> list)
+    {
+        Object[] elements = new Object[list.size()];
+        for (int i = 0; i < elements.length; i++)
+        {
+            elements[i] = internValue(list.get(i));
+        }
+        return intern((List<E>) ImmutableList.newInstance(elements));
+    }
+
+    /**
+     * Returns a shared immutable copy of the specified map, whose keys and
+     * values are interned as well. The order of the map is retained.
+     * @param map the map to intern.
+     * @return the shared map.
+    **/
+    public <V> Map<String, V> internMap(Map<String, V> map)
+    {
+        Entry<String, V>[] entries = new Entry[map.size()];
+        int i = 0;
+        for (Entry<String, V> entry : map.entrySet())
+        {
+            entries[i++] = new InternedEntry<V>(
+                intern(entry.getKey()), (V) internValue(entry.getValue()));
+        }
+        return intern((Map<String, V>) ImmutableMap.newInstance(entries));
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this interner.
+     * @return the statistics of this interner.
+    **/
+    public Statistics getStatistics()
+    {
+        int size = 0;
+        for (int i = 0; i < SEGMENTS; i++)
+        {
+            synchronized (m_pool[i])
+            {
+                size += m_pool[i].size();
+            }
+        }
+        return new Statistics(
+            size, m_lookups.get(), m_hits.get(), m_savedBytes.get());
+    }
+
+    private static Map<Object, WeakReference<Object>> getSegment(Object value)
+    {
+        // Spread the hash code, since the low bits of the hash codes of
+        // short strings are not well distributed.
+        int h = value.hashCode();
+        h ^= (h >>> 16);
+        h ^= (h >>> 8);
+        return m_pool[h & (SEGMENTS - 1)];
+    }
+
+    private static boolean isSameOrder(Map pooled, Map value)
+    {
+        Iterator it = pooled.keySet().iterator();
+        for (Object key : value.keySet())
+        {
+            if (!key.equals(it.next()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long estimateSize(Object value)
+    {
+        if (value instanceof String)
+        {
+            return STRING_SIZE + align(ARRAY_SIZE + ((String) value).length() * 2);
+        }
+        else if (value instanceof Version)
+        {
+            return VERSION_SIZE;
+        }
+        else if (value instanceof VersionRange)
+        {
+            return align(OBJECT_SIZE + 2 * REFERENCE_SIZE) + 2 * VERSION_SIZE;
+        }
+        else if (value instanceof Map)
+        {
+            int size = ((Map) value).size();
+            return OBJECT_SIZE + align(ARRAY_SIZE + size * REFERENCE_SIZE)
+                + size * ENTRY_SIZE;
+        }
+        else if (value instanceof List)
+        {
+            int size = ((List) value).size();
+            return OBJECT_SIZE + align(ARRAY_SIZE + size * REFERENCE_SIZE);
+        }
+        return OBJECT_SIZE + 8;
+    }
+
+    private static long align(long size)
+    {
+        return (size + 7) & ~7L;
+    }
+
+    private static class InternedEntry<V> implements Entry<String, V>
+    {
+        private final String m_key;
+        private final V m_value;
+
+        InternedEntry(String key, V value)
+        {
+            m_key = key;
+            m_value = value;
+        }
+
+        public String getKey()
+        {
+            return m_key;
+        }
+
+        public V getValue()
+        {
+            return m_value;
+        }
+
+        public V setValue(V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Entry))
+            {
+                return false;
+            }
+            Entry entry = (Entry) obj;
+            return ((m_key == null) ? entry.getKey() == null : m_key.equals(entry.getKey()))
+                && ((m_value == null) ? entry.getValue() == null : m_value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((m_key == null) ? 0 : m_key.hashCode())
+                ^ ((m_value == null) ? 0 : m_value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return m_key + "=" + m_value;
+        }
+    }
+
+    /**
+     * Statistics of an interner, i.e., the number of shared values in the
+     * pool, the number of values interned and how many of those were
+     * replaced by a shared value, together with the estimated number of
+     * bytes saved by that.
+    **/
+    public static class Statistics
+    {
+        private final int m_size;
+        private final long m_lookups;
+        private final long m_hits;
+        private final long m_savedBytes;
+
+        Statistics(int size, long lookups, long hits, long savedBytes)
+        {
+            m_size = size;
+            m_lookups = lookups;
+            m_hits = hits;
+            m_savedBytes = savedBytes;
+        }
+
+        public int getSize()
+        {
+            return m_size;
+        }
+
+        public long getLookups()
+        {
+            return m_lookups;
+        }
+
+        public long getHits()
+        {
+            return m_hits;
+        }
+
+        public long getSavedBytes()
+        {
+            return m_savedBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "shared=" + m_size + ", interned=" + m_lookups
+                + ", reused=" + m_hits + ", saved~" + m_savedBytes + " bytes";
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.felix.framework.capabilityset.CompiledFilter;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
+
+/**
+ * Immutable index of service listeners by the object class their filter
+ * requires, so that a service event only needs to be dispatched to the
+ * listeners that can possibly match it. Listeners whose filter does not
+ * require a specific object class, and unfiltered listeners, are kept in
+ * a separate bucket that is always dispatched to. Every modification
+ * returns a new index, which only copies the affected buckets.
+**/
+class ServiceListenerIndex
+{
+    static final ServiceListenerIndex EMPTY = new ServiceListenerIndex(
+        Collections.EMPTY_MAP, Collections.EMPTY_MAP, 0);
+
+    // Maps object class to the listeners requiring it.
+    private final Map<String, Map<BundleContext, List<ListenerInfo>>> m_byClass;
+    // Listeners that may match services of any object class.
+    private final Map<BundleContext, List<ListenerInfo>> m_unindexed;
+    private final int m_size;
+
+    private ServiceListenerIndex(
+        Map<String, Map<BundleContext, List<ListenerInfo>>> byClass,
+        Map<BundleContext, List<ListenerInfo>> unindexed, int size)
+    {
+        m_byClass = byClass;
+        m_unindexed = unindexed;
+        m_size = size;
+    }
+
+    /**
+     * Returns the total number of service listeners in the index.
+    **/
+    int size()
+    {
+        return m_size;
+    }
+
+    ServiceListenerIndex add(ListenerInfo info)
+    {
+        Set<String> classes = getRequiredObjectClasses(info);
+        if (classes == null)
+        {
+            return new ServiceListenerIndex(
+                m_byClass, addListenerInfo(m_unindexed, info), m_size + 1);
+        }
+        Map<String, Map<BundleContext, List<ListenerInfo>>> byClass =
+            new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_byClass);
+        for (String clazz : classes)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = byClass.get(clazz);
+            byClass.put(clazz, addListenerInfo(
+                (bucket == null) ? Collections.EMPTY_MAP : bucket, info));
+        }
+        return new ServiceListenerIndex(byClass, m_unindexed, m_size + 1);
+    }
+
+    ServiceListenerIndex remove(ListenerInfo info)
+    {
+        Set<String> classes = getRequiredObjectClasses(info);
+        if (classes == null)
+        {
+            return new ServiceListenerIndex(
+                m_byClass, removeListenerInfo(m_unindexed, info), m_size - 1);
+        }
+        Map<String, Map<BundleContext, List<ListenerInfo>>> byClass =
+            new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_byClass);
+        for (String clazz : classes)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = byClass.remove(clazz);
+            if (bucket != null)
+            {
+                bucket = removeListenerInfo(bucket, info);
+                if (!bucket.isEmpty())
+                {
+                    byClass.put(clazz, bucket);
+                }
+            }
+        }
+        return new ServiceListenerIndex(byClass, m_unindexed, m_size - 1);
+    }
+
+    ServiceListenerIndex removeAll(BundleContext bc, int count)
+    {
+        Map<String, Map<BundleContext, List<ListenerInfo>>> byClass =
+            new HashMap<String, Map<BundleContext, List<ListenerInfo>>>(m_byClass.size());
+        for (Entry<String, Map<BundleContext, List<ListenerInfo>>> entry : m_byClass.entrySet())
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = entry.getValue();
+            if (bucket.containsKey(bc))
+            {
+                bucket = new HashMap<BundleContext, List<ListenerInfo>>(bucket);
+                bucket.remove(bc);
+            }
+            if (!bucket.isEmpty())
+            {
+                byClass.put(entry.getKey(), bucket);
+            }
+        }
+        Map<BundleContext, List<ListenerInfo>> unindexed = m_unindexed;
+        if (unindexed.containsKey(bc))
+        {
+            unindexed = new HashMap<BundleContext, List<ListenerInfo>>(unindexed);
+            unindexed.remove(bc);
+        }
+        return new ServiceListenerIndex(byClass, unindexed, m_size - count);
+    }
+
+    /**
+     * Returns the listeners that may match the specified service, which
+     * are the listeners requiring one of its object classes plus the
+     * unindexed listeners.
+    **/
+    Map<BundleContext, List<ListenerInfo>> getListeners(ServiceReference ref)
+    {
+        Object value = ref.getProperty(Constants.OBJECTCLASS);
+        String[] classes = (value instanceof String[]) ? (String[]) value : null;
+
+        Map<BundleContext, List<ListenerInfo>> result = m_unindexed;
+        boolean copied = false;
+        for (int i = 0; (classes != null) && (i < classes.length); i++)
+        {
+            Map<BundleContext, List<ListenerInfo>> bucket = m_byClass.get(classes[i]);
+            if (bucket == null)
+            {
+                continue;
+            }
+            else if (result.isEmpty())
+            {
+                result = bucket;
+                continue;
+            }
+
+            // Merge the bucket; a listener may be in several buckets, if its
+            // filter accepts several object classes, so avoid duplicates.
+            if (!copied)
+            {
+                Map<BundleContext, List<ListenerInfo>> copy =
+                    new LinkedHashMap<BundleContext, List<ListenerInfo>>();
+                for (Entry<BundleContext, List<ListenerInfo>> entry : result.entrySet())
+                {
+                    copy.put(entry.getKey(), new ArrayList<ListenerInfo>(entry.getValue()));
+                }
+                result = copy;
+                copied = true;
+            }
+            for (Entry<BundleContext, List<ListenerInfo>> entry : bucket.entrySet())
+            {
+                List<ListenerInfo> infos = result.get(entry.getKey());
+                if (infos == null)
+                {
+                    result.put(entry.getKey(), new ArrayList<ListenerInfo>(entry.getValue()));
+                }
+                else
+                {
+                    for (ListenerInfo info : entry.getValue())
+                    {
+                        if (!containsInstance(infos, info))
+                        {
+                            infos.add(info);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Determines the object classes of which a service must have at least
+     * one to possibly match the listener's filter.
+     * @return the required object classes or <tt>null</tt> if the listener
+     *         may match services of any object class.
+    **/
+    static Set<String> getRequiredObjectClasses(ListenerInfo info)
+    {
+        if ((info.getParsedFilter() == null)
+            || (info.getListener() instanceof UnfilteredServiceListener))
+        {
+            return null;
+        }
+        try
+        {
+            return getRequiredObjectClasses(
+                CompiledFilter.parse(info.getParsedFilter().toString()).getFilter());
+        }
+        catch (Exception ex)
+        {
+            // Filters we cannot parse are not indexed.
+            return null;
+        }
+    }
+
+    private static Set<String> getRequiredObjectClasses(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName()))
+                {
+                    Set<String> classes = new TreeSet<String>();
+                    classes.add((String) sf.getValue());
+                    return classes;
+                }
+                return null;
+            case SimpleFilter.AND:
+                // Any operand requiring object classes will do, but the
+                // fewer classes, the fewer events the listener is indexed for.
+                Set<String> result = null;
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    Set<String> classes = getRequiredObjectClasses(child);
+                    if ((classes != null)
+                        && ((result == null) || (classes.size() < result.size())))
+                    {
+                        result = classes;
+                    }
+                }
+                return result;
+            case SimpleFilter.OR:
+                // All operands must require object classes.
+                Set<String> union = new TreeSet<String>();
+                for (SimpleFilter child : (List<SimpleFilter>) sf.getValue())
+                {
+                    Set<String> classes = getRequiredObjectClasses(child);
+                    if (classes == null)
+                    {
+                        return null;
+                    }
+                    union.addAll(classes);
+                }
+                return union.isEmpty() ? null : union;
+            default:
+                return null;
+        }
+    }
+
+    private static Map<BundleContext, List<ListenerInfo>> addListenerInfo(
+        Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info)
+    {
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        List<ListenerInfo> infos = copy.get(info.getBundleContext());
+        infos = (infos == null)
+            ? new ArrayList<ListenerInfo>() : new ArrayList<ListenerInfo>(infos);
+        infos.add(info);
+        copy.put(info.getBundleContext(), infos);
+        return copy;
+    }
+
+    private static Map<BundleContext, List<ListenerInfo>> removeListenerInfo(
+        Map<BundleContext, List<ListenerInfo>> listeners, ListenerInfo info)
+    {
+        List<ListenerInfo> infos = listeners.get(info.getBundleContext());
+        if (infos == null)
+        {
+            return listeners;
+        }
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        infos = new ArrayList<ListenerInfo>(infos);
+        for (int i = 0; i < infos.size(); i++)
+        {
+            if (infos.get(i) == info)
+            {
+                infos.remove(i);
+                break;
+            }
+        }
+        if (infos.isEmpty())
+        {
+            copy.remove(info.getBundleContext());
+        }
+        else
+        {
+            copy.put(info.getBundleContext(), infos);
+        }
+        return copy;
+    }
+
+    private static boolean containsInstance(List<ListenerInfo> infos, ListenerInfo info)
+    {
+        for (int i = 0; i < infos.size(); i++)
+        {
+            if (infos.get(i) == info)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
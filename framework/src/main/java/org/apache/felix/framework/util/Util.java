@@ -424,6 +424,27 @@ public class Util
         }
     }
 
+    /**
+     * Encodes a byte array, such as a message digest, as a string of
+     * lower case hexadecimal digits.
+     *
+     * @param bytes Byte array to encode.
+    **/
+    public static String toHexString(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++)
+        {
+            String hex = Integer.toHexString(bytes[i] & 0xFF);
+            if (hex.length() == 1)
+            {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
     public static void encode(InputStream in, OutputStream out, int len)
         throws IOException
     {
@@ -291,6 +291,28 @@ public class ManifestParser
         m_isExtension = checkExtensionBundle(headerMap);
     }
 
+    // Used to recreate a previously parsed manifest, see ParsedManifest.
+    ManifestParser(Logger logger, Map configMap, Map headerMap,
+        int activationPolicy, String activationIncludeDir, String activationExcludeDir,
+        boolean isExtension, String bundleSymbolicName, Version bundleVersion,
+        List<BundleCapability> capabilities, List<BundleRequirement> requirements,
+        List<R4LibraryClause> libraryClauses, boolean libraryHeadersOptional)
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_headerMap = headerMap;
+        m_activationPolicy = activationPolicy;
+        m_activationIncludeDir = activationIncludeDir;
+        m_activationExcludeDir = activationExcludeDir;
+        m_isExtension = isExtension;
+        m_bundleSymbolicName = bundleSymbolicName;
+        m_bundleVersion = bundleVersion;
+        m_capabilities = capabilities;
+        m_requirements = requirements;
+        m_libraryClauses = libraryClauses;
+        m_libraryHeadersOptional = libraryHeadersOptional;
+    }
+
     private static List<ParsedHeaderClause> normalizeImportClauses(
         Logger logger, List<ParsedHeaderClause> clauses, String mv)
         throws BundleException
@@ -946,6 +968,11 @@ public class ManifestParser
         return m_libraryClauses;
     }
 
+    public boolean isLibraryHeadersOptional()
+    {
+        return m_libraryHeadersOptional;
+    }
+
     /**
      * <p>
      * This method returns the selected native library metadata from
@@ -0,0 +1,344 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Converts the result of a <tt>ManifestParser</tt> to and from a compact
+ * binary form, so that it can be stored in the bundle cache and the manifest
+ * does not have to be parsed again when the bundle is reloaded.
+**/
+public class ParsedManifest
+{
+    private static final int VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_DOUBLE = 3;
+    private static final byte TYPE_VERSION = 4;
+    private static final byte TYPE_VERSION_RANGE = 5;
+    private static final byte TYPE_LIST = 6;
+    private static final byte TYPE_FILTER = 7;
+
+    /**
+     * Returns the binary form of the specified parsed manifest.
+     * @param mp the parsed manifest.
+     * @return the binary form or <tt>null</tt> if the parsed manifest contains
+     *         values that cannot be stored.
+    **/
+    public static byte[] write(ManifestParser mp)
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(VERSION);
+            dos.writeInt(mp.getActivationPolicy());
+            writeValue(dos, mp.getActivationIncludeDirective());
+            writeValue(dos, mp.getActivationExcludeDirective());
+            dos.writeBoolean(mp.isExtension());
+            writeValue(dos, mp.getSymbolicName());
+            writeValue(dos, mp.getBundleVersion());
+
+            List<BundleCapability> caps = mp.getCapabilities();
+            dos.writeInt(caps.size());
+            for (BundleCapability cap : caps)
+            {
+                dos.writeUTF(cap.getNamespace());
+                writeMap(dos, cap.getDirectives());
+                writeMap(dos, cap.getAttributes());
+            }
+
+            List<BundleRequirement> reqs = mp.getRequirements();
+            dos.writeInt(reqs.size());
+            for (BundleRequirement req : reqs)
+            {
+                dos.writeUTF(req.getNamespace());
+                writeMap(dos, req.getDirectives());
+                writeMap(dos, req.getAttributes());
+                writeValue(dos, ((BundleRequirementImpl) req).getFilter());
+            }
+
+            List<R4LibraryClause> clauses = mp.getLibraryClauses();
+            dos.writeInt(clauses.size());
+            for (R4LibraryClause clause : clauses)
+            {
+                writeStrings(dos, clause.getLibraryEntries());
+                writeStrings(dos, clause.getOSNames());
+                writeStrings(dos, clause.getProcessors());
+                writeStrings(dos, clause.getOSVersions());
+                writeStrings(dos, clause.getLanguages());
+                writeValue(dos, clause.getSelectionFilter());
+            }
+            dos.writeBoolean(mp.isLibraryHeadersOptional());
+
+            dos.flush();
+            return baos.toByteArray();
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Recreates a parsed manifest from its binary form.
+     * @param logger the logger to use.
+     * @param configMap the framework configuration.
+     * @param owner the revision owning the capabilities and requirements.
+     * @param headerMap the manifest headers the binary form was created for.
+     * @param data the binary form.
+     * @return the parsed manifest or <tt>null</tt> if the binary form is not
+     *         supported.
+     * @throws IOException if the binary form is invalid.
+    **/
+    public static ManifestParser read(
+        Logger logger, Map configMap, BundleRevision owner, Map headerMap, byte[] data)
+        throws IOException
+    {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (dis.readInt() != VERSION)
+        {
+            return null;
+        }
+        int activationPolicy = dis.readInt();
+        String activationIncludeDir = (String) readValue(dis);
+        String activationExcludeDir = (String) readValue(dis);
+        boolean isExtension = dis.readBoolean();
+        String symbolicName = (String) readValue(dis);
+        Version bundleVersion = (Version) readValue(dis);
+
+        int size = dis.readInt();
+        List<BundleCapability> caps = new ArrayList<BundleCapability>(size);
+        for (int i = 0; i < size; i++)
+        {
+            String namespace = dis.readUTF();
+            Map dirs = readMap(dis);
+            Map attrs = readMap(dis);
+            caps.add(new BundleCapabilityImpl(owner, namespace, dirs, attrs));
+        }
+
+        size = dis.readInt();
+        List<BundleRequirement> reqs = new ArrayList<BundleRequirement>(size);
+        for (int i = 0; i < size; i++)
+        {
+            String namespace = dis.readUTF();
+            Map dirs = readMap(dis);
+            Map attrs = readMap(dis);
+            SimpleFilter filter = (SimpleFilter) readValue(dis);
+            reqs.add(new BundleRequirementImpl(owner, namespace, dirs, attrs, filter));
+        }
+
+        size = dis.readInt();
+        List<R4LibraryClause> clauses = new ArrayList<R4LibraryClause>(size);
+        for (int i = 0; i < size; i++)
+        {
+            clauses.add(new R4LibraryClause(
+                readStrings(dis), readStrings(dis), readStrings(dis),
+                readStrings(dis), readStrings(dis), (String) readValue(dis)));
+        }
+        boolean libraryHeadersOptional = dis.readBoolean();
+
+        return new ManifestParser(logger, configMap, headerMap,
+            activationPolicy, activationIncludeDir, activationExcludeDir,
+            isExtension, symbolicName, bundleVersion, caps, reqs,
+            clauses, libraryHeadersOptional);
+    }
+
+    private static void writeMap(DataOutputStream dos, Map<String, ?> map)
+        throws IOException
+    {
+        dos.writeInt(map.size());
+        for (Entry<String, ?> entry : map.entrySet())
+        {
+            dos.writeUTF(entry.getKey());
+            writeValue(dos, entry.getValue());
+        }
+    }
+
+    private static Map readMap(DataInputStream dis) throws IOException
+    {
+        int size = dis.readInt();
+        // Keep the order, since it is visible in the filters built from it.
+        Map map = new LinkedHashMap(size);
+        for (int i = 0; i < size; i++)
+        {
+            map.put(dis.readUTF(), readValue(dis));
+        }
+        return map;
+    }
+
+    private static void writeStrings(DataOutputStream dos, String[] strings)
+        throws IOException
+    {
+        dos.writeInt((strings == null) ? -1 : strings.length);
+        for (int i = 0; (strings != null) && (i < strings.length); i++)
+        {
+            writeString(dos, strings[i]);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream dis) throws IOException
+    {
+        int size = dis.readInt();
+        if (size < 0)
+        {
+            return null;
+        }
+        String[] strings = new String[size];
+        for (int i = 0; i < size; i++)
+        {
+            strings[i] = readString(dis);
+        }
+        return strings;
+    }
+
+    private static void writeValue(DataOutputStream dos, Object value)
+        throws IOException
+    {
+        if (value == null)
+        {
+            dos.writeByte(TYPE_NULL);
+        }
+        else if (value instanceof String)
+        {
+            dos.writeByte(TYPE_STRING);
+            writeString(dos, (String) value);
+        }
+        else if (value instanceof Long)
+        {
+            dos.writeByte(TYPE_LONG);
+            dos.writeLong(((Long) value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            dos.writeByte(TYPE_DOUBLE);
+            dos.writeDouble(((Double) value).doubleValue());
+        }
+        else if (value instanceof Version)
+        {
+            dos.writeByte(TYPE_VERSION);
+            writeString(dos, value.toString());
+        }
+        else if (value instanceof VersionRange)
+        {
+            VersionRange range = (VersionRange) value;
+            dos.writeByte(TYPE_VERSION_RANGE);
+            writeValue(dos, range.getFloor());
+            dos.writeBoolean(range.isFloorInclusive());
+            writeValue(dos, range.getCeiling());
+            dos.writeBoolean(range.isCeilingInclusive());
+        }
+        else if (value instanceof List)
+        {
+            List list = (List) value;
+            dos.writeByte(TYPE_LIST);
+            dos.writeInt(list.size());
+            for (Object o : list)
+            {
+                writeValue(dos, o);
+            }
+        }
+        else if (value instanceof SimpleFilter)
+        {
+            SimpleFilter filter = (SimpleFilter) value;
+            dos.writeByte(TYPE_FILTER);
+            writeValue(dos, filter.getName());
+            dos.writeInt(filter.getOperation());
+            writeValue(dos, filter.getValue());
+        }
+        else
+        {
+            throw new IOException("Unsupported value type: " + value.getClass());
+        }
+    }
+
+    private static Object readValue(DataInputStream dis) throws IOException
+    {
+        byte type = dis.readByte();
+        switch (type)
+        {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString(dis);
+            case TYPE_LONG:
+                return Long.valueOf(dis.readLong());
+            case TYPE_DOUBLE:
+                return Double.valueOf(dis.readDouble());
+            case TYPE_VERSION:
+                return Version.parseVersion(readString(dis));
+            case TYPE_VERSION_RANGE:
+                Version floor = (Version) readValue(dis);
+                boolean floorInclusive = dis.readBoolean();
+                Version ceiling = (Version) readValue(dis);
+                boolean ceilingInclusive = dis.readBoolean();
+                return new VersionRange(floor, floorInclusive, ceiling, ceilingInclusive);
+            case TYPE_LIST:
+                int size = dis.readInt();
+                List list = new ArrayList(size);
+                for (int i = 0; i < size; i++)
+                {
+                    list.add(readValue(dis));
+                }
+                return list;
+            case TYPE_FILTER:
+                String name = (String) readValue(dis);
+                int op = dis.readInt();
+                return new SimpleFilter(name, readValue(dis), op);
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    // Unlike writeUTF(), this does not limit the length of values.
+    private static void writeString(DataOutputStream dos, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException
+    {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -25,8 +25,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import org.apache.felix.framework.BundleRevisionImpl;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
-import org.apache.felix.framework.util.ImmutableMap;
+import org.apache.felix.framework.util.Interner;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.osgi.framework.Constants;
@@ -50,10 +51,11 @@ public class BundleCapabilityImpl implements BundleCapability
     public BundleCapabilityImpl(BundleRevision revision, String namespace,
         Map<String, String> dirs, Map<String, Object> attrs)
     {
-        m_namespace = namespace;
+        Interner interner = getInterner(revision);
+        m_namespace = interner.intern(namespace);
         m_revision = revision;
-        m_dirs = ImmutableMap.newInstance(dirs);
-        m_attrs = ImmutableMap.newInstance(attrs);
+        m_dirs = interner.internMap(dirs);
+        m_attrs = interner.internMap(attrs);
 
         // Find all export directives: uses, mandatory, include, and exclude.
 
@@ -69,7 +71,7 @@ public class BundleCapabilityImpl implements BundleCapability
                 uses.add(tok.nextToken().trim());
             }
         }
-        m_uses = uses;
+        m_uses = interner.internList(uses);
 
         value = m_dirs.get(Constants.INCLUDE_DIRECTIVE);
         if (value != null)
@@ -203,4 +205,13 @@ public class BundleCapabilityImpl implements BundleCapability
         }
         return "[" + m_revision + "] " + m_namespace + "; " + m_attrs;
     }
+
+    // Returns the interner of the framework of the revision, so metadata
+    // statistics are kept per framework.
+    static Interner getInterner(BundleRevision revision)
+    {
+        return (revision instanceof BundleRevisionImpl)
+            ? ((BundleRevisionImpl) revision).getInterner()
+            : Interner.getDefault();
+    }
 }
\ No newline at end of file
@@ -19,10 +19,12 @@
 package org.apache.felix.framework.wiring;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
-import org.apache.felix.framework.util.ImmutableMap;
+import org.apache.felix.framework.util.ImmutableList;
+import org.apache.felix.framework.util.Interner;
 import org.osgi.framework.Constants;
 import org.osgi.framework.wiring.BundleCapability;
 import org.osgi.framework.wiring.BundleRequirement;
@@ -43,10 +45,11 @@ public class BundleRequirementImpl implements BundleRequirement
         Map<String, String> dirs, Map<String, Object> attrs, SimpleFilter filter)
     {
         m_revision = revision;
-        m_namespace = namespace;
-        m_dirs = ImmutableMap.newInstance(dirs);
-        m_attrs = ImmutableMap.newInstance(attrs);
-        m_filter = filter;
+        Interner interner = BundleCapabilityImpl.getInterner(revision);
+        m_namespace = interner.intern(namespace);
+        m_dirs = interner.internMap(dirs);
+        m_attrs = interner.internMap(attrs);
+        m_filter = internFilter(interner, filter);
 
         // Find resolution import directives.
         boolean optional = false;
@@ -110,4 +113,34 @@ public class BundleRequirementImpl implements BundleRequirement
     {
         return "[" + m_revision + "] " + m_namespace + "; " + getFilter().toString();
     }
+
+    // Shares the attribute names and values of the filter, which are
+    // mostly the same package names and versions for many requirements.
+    private static SimpleFilter internFilter(Interner interner, SimpleFilter filter)
+    {
+        if (filter == null)
+        {
+            return null;
+        }
+        Object value = filter.getValue();
+        switch (filter.getOperation())
+        {
+            case SimpleFilter.AND:
+            case SimpleFilter.OR:
+            case SimpleFilter.NOT:
+                List<SimpleFilter> filters = (List<SimpleFilter>) value;
+                SimpleFilter[] interned = new SimpleFilter[filters.size()];
+                for (int i = 0; i < interned.length; i++)
+                {
+                    interned[i] = internFilter(interner, filters.get(i));
+                }
+                value = ImmutableList.newInstance(interned);
+                break;
+            default:
+                value = interner.internValue(value);
+                break;
+        }
+        return new SimpleFilter(
+            interner.intern(filter.getName()), value, filter.getOperation());
+    }
 }
\ No newline at end of file
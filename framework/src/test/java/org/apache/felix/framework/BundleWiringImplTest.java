@@ -0,0 +1,289 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class BundleWiringImplTest extends TestCase
+{
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        m_felix = new Felix(params);
+        m_felix.init();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testResourceSourceIndexHit() throws Exception
+    {
+        Bundle provider = install("Bundle-SymbolicName: wiring.provider\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: wiring.test\n",
+            Collections.singletonMap("wiring/test/res.txt", "provider"));
+        Bundle consumer = install("Bundle-SymbolicName: wiring.consumer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Require-Bundle: wiring.provider\n",
+            Collections.<String, String>emptyMap());
+
+        assertProvidedBy(provider, consumer.getResource("wiring/test/res.txt"));
+        BundleWiringImpl wiring = getWiring(consumer);
+        assertEquals(0, wiring.getSourceIndexHits());
+
+        assertProvidedBy(provider, consumer.getResource("wiring/test/res.txt"));
+        assertEquals(1, wiring.getSourceIndexHits());
+    }
+
+    public void testNotFoundCache() throws Exception
+    {
+        Bundle consumer = install("Bundle-SymbolicName: wiring.consumer\n"
+            + "Bundle-ManifestVersion: 2\n",
+            Collections.<String, String>emptyMap());
+
+        assertNull(consumer.getResource("wiring/missing/res.txt"));
+        assertNotLoadable(consumer, "wiring.missing.Foo");
+        BundleWiringImpl wiring = getWiring(consumer);
+        assertEquals(0, wiring.getNotFoundCacheHits());
+
+        assertNull(consumer.getResource("wiring/missing/res.txt"));
+        assertNotLoadable(consumer, "wiring.missing.Foo");
+        assertEquals(2, wiring.getNotFoundCacheHits());
+    }
+
+    public void testCachesClearedOnDispose() throws Exception
+    {
+        Bundle consumer = install("Bundle-SymbolicName: wiring.consumer\n"
+            + "Bundle-ManifestVersion: 2\n",
+            Collections.singletonMap("wiring/local/res.txt", "local"));
+
+        assertNotNull(consumer.getResource("wiring/local/res.txt"));
+        assertNull(consumer.getResource("wiring/missing/res.txt"));
+        BundleWiringImpl wiring = getWiring(consumer);
+        assertEquals(2, wiring.getLookupCacheSize());
+
+        refresh(consumer);
+        assertEquals(0, wiring.getLookupCacheSize());
+    }
+
+    public void testCachesClearedOnDynamicImport() throws Exception
+    {
+        Bundle consumer = install("Bundle-SymbolicName: wiring.consumer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "DynamicImport-Package: wiring.dynamic\n",
+            Collections.singletonMap("wiring/dynamic/res.txt", "local"));
+
+        // Without a provider, the local content is used and remembered.
+        assertProvidedBy(consumer, consumer.getResource("wiring/dynamic/res.txt"));
+        assertProvidedBy(consumer, consumer.getResource("wiring/dynamic/res.txt"));
+
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("wiring/dynamic/res.txt", "provider");
+        entries.put("wiring/dynamic/other.txt", "provider");
+        Bundle provider = install("Bundle-SymbolicName: wiring.provider\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: wiring.dynamic\n",
+            entries);
+
+        // Adding the dynamic wire makes the provider take precedence.
+        assertProvidedBy(provider, consumer.getResource("wiring/dynamic/other.txt"));
+        assertProvidedBy(provider, consumer.getResource("wiring/dynamic/res.txt"));
+    }
+
+    public void testConcurrentLoadClassDefinesClassOnce() throws Exception
+    {
+        String name = Probe.class.getName();
+        String path = name.replace('.', '/') + ".class";
+        InputStream is = getClass().getClassLoader().getResourceAsStream(path);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+        {
+            bytes.write(buffer, 0, n);
+        }
+        is.close();
+
+        for (int i = 0; i < 8; i++)
+        {
+            final Bundle bundle = install("Bundle-SymbolicName: wiring.probe" + i + "\n"
+                + "Bundle-ManifestVersion: 2\n",
+                Collections.singletonMap(path, bytes.toByteArray()));
+            assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(
+                Collections.singletonList(bundle)));
+
+            final Class[] loaded = new Class[16];
+            final Throwable[] errors = new Throwable[loaded.length];
+            final CyclicBarrier barrier = new CyclicBarrier(loaded.length);
+            Thread[] threads = new Thread[loaded.length];
+            for (int t = 0; t < threads.length; t++)
+            {
+                final int idx = t;
+                threads[t] = new Thread() {
+                    public void run()
+                    {
+                        try
+                        {
+                            barrier.await();
+                            loaded[idx] = bundle.loadClass(Probe.class.getName());
+                        }
+                        catch (Throwable ex)
+                        {
+                            errors[idx] = ex;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join(10000);
+            }
+
+            // All threads must see the single class defined by the bundle.
+            for (int t = 0; t < loaded.length; t++)
+            {
+                if (errors[t] != null)
+                {
+                    AssertionFailedError afe =
+                        new AssertionFailedError("Loading failed: " + errors[t]);
+                    afe.initCause(errors[t]);
+                    throw afe;
+                }
+                assertSame(loaded[0], loaded[t]);
+            }
+            assertNotSame(Probe.class, loaded[0]);
+            assertSame(getWiring(bundle).getClassLoader(), loaded[0].getClassLoader());
+        }
+    }
+
+    private BundleWiringImpl getWiring(Bundle bundle)
+    {
+        return (BundleWiringImpl) bundle.adapt(BundleWiring.class);
+    }
+
+    private static void assertProvidedBy(Bundle bundle, URL url)
+    {
+        assertNotNull(url);
+        assertEquals(bundle.getBundleId() + ".0", url.getHost());
+    }
+
+    private static void assertNotLoadable(Bundle bundle, String name)
+    {
+        try
+        {
+            bundle.loadClass(name);
+            fail("Class should not be found: " + name);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private void refresh(Bundle bundle) throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_felix.adapt(FrameworkWiring.class).refreshBundles(
+            Collections.singletonList(bundle),
+            new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private Bundle install(String manifest, Map<String, ?> entries)
+        throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        for (Map.Entry<String, ?> entry : entries.entrySet())
+        {
+            os.putNextEntry(new JarEntry(entry.getKey()));
+            os.write((entry.getValue() instanceof byte[])
+                ? (byte[]) entry.getValue()
+                : ((String) entry.getValue()).getBytes("utf-8"));
+            os.closeEntry();
+        }
+        os.close();
+        return m_felix.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    public static class Probe
+    {
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
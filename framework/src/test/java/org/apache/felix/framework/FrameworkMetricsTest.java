@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+public class FrameworkMetricsTest extends TestCase
+{
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.METRICS_PROP, "true");
+        m_felix = new Felix(params);
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testMetrics() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        ServiceReference ref = bc.getServiceReference(FrameworkMetricsMBean.class.getName());
+        assertNotNull(ref);
+        assertEquals("felix", ref.getProperty("osgi.command.scope"));
+        FrameworkMetricsMBean metrics = (FrameworkMetricsMBean) bc.getService(ref);
+        long registrations = metrics.getServiceRegistrations();
+        long resolves = metrics.getResolves();
+        long lookups = metrics.getServiceLookups();
+        bc.addBundleListener(new BundleListener() {
+            public void bundleChanged(BundleEvent event)
+            {
+            }
+        });
+
+        Bundle bundle = bc.installBundle(createBundle().toURI().toString());
+        assertNotNull(bundle.loadClass(Dummy.class.getName()));
+        try
+        {
+            bundle.loadClass("org.apache.felix.framework.DoesNotExist");
+            fail("Class should not be found.");
+        }
+        catch (ClassNotFoundException ex)
+        {
+            // Expected.
+        }
+        bc.registerService(Runnable.class.getName(), new Dummy(), null);
+
+        assertEquals(1, metrics.getClassLoads());
+        assertEquals(new Long(1),
+            metrics.getClassLoadsByBundle().get(new Long(bundle.getBundleId())));
+        assertTrue(metrics.getClassNotFound() > 0);
+        assertEquals(resolves + 1, metrics.getResolves());
+        assertEquals(registrations + 1, metrics.getServiceRegistrations());
+        assertEquals(lookups, metrics.getServiceLookups());
+        bc.getServiceReferences(Runnable.class.getName(), null);
+        assertEquals(lookups + 1, metrics.getServiceLookups());
+        assertTrue(metrics.metrics().contains(bundle.getSymbolicName()));
+
+        // The asynchronous delivery of the installed event is recorded
+        // once the listener returned.
+        for (int i = 0; (i < 100) && metrics.getListenerTimes().startsWith("count=0"); i++)
+        {
+            Thread.sleep(50);
+        }
+        assertFalse(metrics.getListenerTimes().startsWith("count=0"));
+
+        ObjectName name = new ObjectName(
+            "org.apache.felix.framework:type=FrameworkMetrics,uuid="
+            + bc.getProperty(Constants.FRAMEWORK_UUID));
+        assertEquals(new Long(1),
+            ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ClassLoads"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getClassLoads());
+        assertTrue(metrics.getListenerTimes().startsWith("count=0"));
+    }
+
+    public void testWiringLookups() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        FrameworkMetricsMBean metrics = (FrameworkMetricsMBean) bc.getService(
+            bc.getServiceReference(FrameworkMetricsMBean.class.getName()));
+        Bundle bundle = bc.installBundle(createBundle().toURI().toString());
+
+        assertNull(bundle.getResource("metrics/missing.txt"));
+        long hits = metrics.getNotFoundCacheHits();
+        long misses = metrics.getNotFoundCacheMisses();
+        assertTrue(misses > 0);
+        assertNull(bundle.getResource("metrics/missing.txt"));
+        assertEquals(hits + 1, metrics.getNotFoundCacheHits());
+        assertEquals(misses, metrics.getNotFoundCacheMisses());
+        assertTrue(metrics.getNotFoundCacheHitRatio() > 0);
+        assertTrue(metrics.metrics().contains(
+            "Not found cache: hits=" + metrics.getNotFoundCacheHits()));
+
+        ObjectName name = new ObjectName(
+            "org.apache.felix.framework:type=FrameworkMetrics,uuid="
+            + bc.getProperty(Constants.FRAMEWORK_UUID));
+        assertEquals(new Long(metrics.getNotFoundCacheHits()),
+            ManagementFactory.getPlatformMBeanServer().getAttribute(name, "NotFoundCacheHits"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getNotFoundCacheHits());
+        assertEquals(0, metrics.getNotFoundCacheMisses());
+    }
+
+    public void testIndexStatistics() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        FrameworkMetricsMBean metrics = (FrameworkMetricsMBean) bc.getService(
+            bc.getServiceReference(FrameworkMetricsMBean.class.getName()));
+        bc.registerService(Runnable.class.getName(), new Dummy(), null);
+        metrics.reset();
+
+        // The lookup by object class uses the index of the service registry.
+        assertNotNull(bc.getServiceReferences(Runnable.class.getName(), null));
+        Map<String, String> stats = metrics.getIndexStatistics();
+        assertTrue(stats.containsKey("osgi.wiring.package"));
+        assertFalse(stats.get("service-reference"), stats.get("service-reference").startsWith("hits=0,"));
+        assertTrue(metrics.metrics().contains("  service-reference: " + stats.get("service-reference")));
+
+        metrics.reset();
+        assertTrue(metrics.getIndexStatistics().get("service-reference").startsWith("hits=0, misses=0,"));
+    }
+
+    public void testUnregisteredOnStop() throws Exception
+    {
+        ServiceReference ref = m_felix.getBundleContext().getServiceReference(
+            FrameworkMetricsMBean.class.getName());
+        assertNotNull(ref);
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        // The reference of an unregistered service has no bundle.
+        assertNull(ref.getBundle());
+    }
+
+    private File createBundle() throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream((
+            "Manifest-Version: 1.0\n"
+            + "Bundle-SymbolicName: metrics.test\n"
+            + "Bundle-ManifestVersion: 2\n").getBytes("utf-8")));
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        String entry = Dummy.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new JarEntry(entry));
+        InputStream is = getClass().getClassLoader().getResourceAsStream(entry);
+        byte[] buffer = new byte[4096];
+        for (int n = is.read(buffer); n >= 0; n = is.read(buffer))
+        {
+            os.write(buffer, 0, n);
+        }
+        is.close();
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    public static class Dummy implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class RefreshTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map m_params;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        m_params = new HashMap();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testFullRefresh() throws Exception
+    {
+        Felix f = new Felix(m_params);
+        f.init();
+        Bundle[] bundles = installBundles(f);
+        bundles[0].update();
+
+        List<Bundle> targets = Arrays.asList(bundles[0], bundles[2]);
+        RefreshPreview preview = f.previewRefresh(targets);
+        assertEquals(new HashSet<Bundle>(Arrays.asList(bundles)), preview.getBundles());
+        assertTrue(preview.getActiveBundles().isEmpty());
+        assertFalse(preview.isRestart());
+        assertEquals(-1, preview.getEstimatedTime());
+
+        refresh(f, targets);
+        for (Bundle b : bundles)
+        {
+            assertEquals(Bundle.INSTALLED, b.getState());
+        }
+        assertTrue(f.previewRefresh(targets).getEstimatedTime() >= 0);
+        stop(f);
+    }
+
+    public void testIncrementalRefresh() throws Exception
+    {
+        m_params.put(FelixConstants.REFRESH_INCREMENTAL_PROP, "true");
+        Felix f = new Felix(m_params);
+        f.init();
+        Bundle[] bundles = installBundles(f);
+        bundles[0].update();
+
+        // Without targets, only the updated exporter and the importer
+        // wired to it are affected.
+        RefreshPreview preview = f.previewRefresh(null);
+        assertEquals(new HashSet<Bundle>(Arrays.asList(bundles[0], bundles[1])),
+            preview.getBundles());
+
+        // Targets are always refreshed, together with the importers of
+        // their stale wirings.
+        List<Bundle> targets = Arrays.asList(bundles[0], bundles[2]);
+        preview = f.previewRefresh(targets);
+        assertEquals(new HashSet<Bundle>(Arrays.asList(bundles)),
+            preview.getBundles());
+
+        refresh(f, targets);
+        assertEquals(Bundle.INSTALLED, bundles[0].getState());
+        assertEquals(Bundle.INSTALLED, bundles[1].getState());
+        assertEquals(Bundle.INSTALLED, bundles[2].getState());
+        assertEquals(Bundle.INSTALLED, bundles[3].getState());
+
+        // Nothing is left to be refreshed.
+        assertTrue(f.previewRefresh(null).getBundles().isEmpty());
+        stop(f);
+    }
+
+    private Bundle[] installBundles(Felix f) throws Exception
+    {
+        Bundle[] bundles = new Bundle[] {
+            install(f, "Bundle-SymbolicName: refresh.exporter\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Export-Package: refresh.test\n"),
+            install(f, "Bundle-SymbolicName: refresh.importer\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Import-Package: refresh.test\n"),
+            install(f, "Bundle-SymbolicName: refresh.other.exporter\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Export-Package: refresh.other\n"),
+            install(f, "Bundle-SymbolicName: refresh.other.importer\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Import-Package: refresh.other\n")
+        };
+        assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(null));
+        return bundles;
+    }
+
+    private Bundle install(Felix f, String manifest) throws Exception
+    {
+        return f.getBundleContext().installBundle(
+            createBundle(manifest).toURI().toString());
+    }
+
+    private static void refresh(Felix f, List<Bundle> targets) throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        f.adapt(FrameworkWiring.class).refreshBundles(targets,
+            new FrameworkListener() {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private static void stop(Felix f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(10000);
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolverCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map m_params;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        m_params = new HashMap();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_params.put(FelixConstants.RESOLVER_CACHE_PROP, "true");
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testWiresAreReusedAfterRestart() throws Exception
+    {
+        File exporterFile = createBundle(
+            "Bundle-SymbolicName: cache.exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: cache.test\n");
+        File importerFile = createBundle(
+            "Bundle-SymbolicName: cache.importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: cache.test, org.osgi.framework\n"
+            + "Require-Bundle: cache.exporter\n");
+        File otherFile = createBundle(
+            "Bundle-SymbolicName: cache.other\n"
+            + "Bundle-ManifestVersion: 2\n");
+
+        // Resolve all bundles in the first session.
+        Framework f = new Felix(m_params);
+        f.init();
+        f.getBundleContext().installBundle(exporterFile.toURI().toString());
+        f.getBundleContext().installBundle(importerFile.toURI().toString());
+        f.getBundleContext().installBundle(otherFile.toURI().toString());
+        assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(null));
+        stop(f);
+        assertTrue(new File(m_cacheDir, "bundle0/resolver.cache").exists());
+
+        // Resolving only the importer in the next session reuses the
+        // persisted wires of the importer and the exporter it depends on,
+        // while the unrelated bundle is left alone until it is resolved.
+        f = new Felix(m_params);
+        f.init();
+        Bundle exporter = getBundle(f, "cache.exporter");
+        Bundle importer = getBundle(f, "cache.importer");
+        Bundle other = getBundle(f, "cache.other");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(Collections.singleton(importer)));
+        assertEquals(Bundle.RESOLVED, exporter.getState());
+        assertEquals(Bundle.INSTALLED, other.getState());
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(Collections.singleton(other)));
+        assertEquals(Bundle.RESOLVED, other.getState());
+
+        List<BundleWire> wires = importer.adapt(BundleWiring.class).getRequiredWires(null);
+        assertEquals(3, wires.size());
+        int exporterWires = 0;
+        for (BundleWire wire : wires)
+        {
+            if (wire.getProviderWiring().getBundle() == exporter)
+            {
+                exporterWires++;
+            }
+        }
+        assertEquals(2, exporterWires);
+        assertEquals(1, importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.BUNDLE_NAMESPACE).size());
+        stop(f);
+
+        // Changing the configuration invalidates the persisted wires.
+        m_params.put("cache.test.property", "changed");
+        f = new Felix(m_params);
+        f.init();
+        importer = getBundle(f, "cache.importer");
+        other = getBundle(f, "cache.other");
+        assertTrue(f.adapt(FrameworkWiring.class)
+            .resolveBundles(Collections.singleton(importer)));
+        assertEquals(Bundle.RESOLVED, importer.getState());
+        assertEquals(Bundle.INSTALLED, other.getState());
+        stop(f);
+    }
+
+    private static Bundle getBundle(Framework f, String symbolicName)
+    {
+        for (Bundle b : f.getBundleContext().getBundles())
+        {
+            if (symbolicName.equals(b.getSymbolicName()))
+            {
+                return b;
+            }
+        }
+        fail("Bundle not found: " + symbolicName);
+        return null;
+    }
+
+    private static void stop(Framework f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(10000);
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
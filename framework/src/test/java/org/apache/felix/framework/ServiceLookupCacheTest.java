@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.service.FindHook;
+
+public class ServiceLookupCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Felix m_felix;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.SERVICE_LOOKUPCACHE_PROP, "2");
+        m_felix = new Felix(params);
+        m_felix.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(10000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testChangesAreVisible() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        String filter = "(color=blue)";
+        assertNull(bc.getServiceReferences(Runnable.class.getName(), filter));
+
+        Hashtable props = new Hashtable();
+        props.put("color", "blue");
+        ServiceRegistration reg = bc.registerService(
+            Runnable.class.getName(), new Noop(), props);
+        ServiceReference[] refs = bc.getServiceReferences(Runnable.class.getName(), filter);
+        assertEquals(1, refs.length);
+        assertSame(reg.getReference(), refs[0]);
+
+        // Cached results are copied, so callers cannot modify them.
+        refs[0] = null;
+        refs = bc.getServiceReferences(Runnable.class.getName(), filter);
+        assertSame(reg.getReference(), refs[0]);
+
+        // Lookups beyond the maximum size just start over.
+        assertEquals(1, bc.getServiceReferences(Runnable.class.getName(), null).length);
+        assertEquals(1, bc.getServiceReferences((String) null, filter).length);
+        assertSame(reg.getReference(),
+            bc.getServiceReferences(Runnable.class.getName(), filter)[0]);
+
+        props.put("color", "red");
+        reg.setProperties(props);
+        assertNull(bc.getServiceReferences(Runnable.class.getName(), filter));
+
+        props.put("color", "blue");
+        reg.setProperties(props);
+        assertEquals(1, bc.getServiceReferences(Runnable.class.getName(), filter).length);
+
+        reg.unregister();
+        assertNull(bc.getServiceReferences(Runnable.class.getName(), filter));
+    }
+
+    public void testFindHooksAreCalled() throws Exception
+    {
+        BundleContext bc = m_felix.getBundleContext();
+        bc.registerService(Runnable.class.getName(), new Noop(), null);
+        assertEquals(1, bc.getServiceReferences(Runnable.class.getName(), null).length);
+
+        final int[] calls = new int[1];
+        bc.registerService(FindHook.class.getName(), new FindHook() {
+            public void find(BundleContext context, String name, String filter,
+                boolean allServices, Collection references)
+            {
+                calls[0]++;
+                references.clear();
+            }
+        }, null);
+        assertNull(bc.getServiceReferences(Runnable.class.getName(), null));
+        assertNull(bc.getServiceReferences(Runnable.class.getName(), null));
+        assertEquals(2, calls[0]);
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    public static class Noop implements Runnable
+    {
+        public void run()
+        {
+        }
+    }
+}
@@ -331,4 +331,62 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(FindHook.class).size());
         assertEquals("Unregistration should have no effect", 0, sr.getHooks(ListenerHook.class).size());
     }
+
+    public void testGetUngetServiceConcurrently() throws Exception
+    {
+        MockControl control = MockControl.createNiceControl(Bundle.class);
+        final Bundle b = (Bundle) control.getMock();
+        control.replay();
+
+        MockControl controlContext = MockControl.createNiceControl(BundleContext.class);
+        BundleContext c = (BundleContext) controlContext.getMock();
+        controlContext.expectAndReturn(c.getBundle(), b);
+        controlContext.replay();
+
+        final ServiceRegistry sr = new ServiceRegistry(new Logger(), null);
+        final ServiceRegistration[] regs = new ServiceRegistration[4];
+        for (int i = 0; i < regs.length; i++)
+        {
+            regs[i] = sr.registerService(
+                c, new String [] {String.class.getName()}, "svc" + i, new Hashtable());
+        }
+
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[regs.length * 2];
+        for (int i = 0; i < threads.length; i++)
+        {
+            final ServiceReference ref = regs[i % regs.length].getReference();
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < 1000; j++)
+                        {
+                            assertNotNull(sr.getService(b, ref));
+                            assertTrue(sr.ungetService(b, ref));
+                        }
+                    }
+                    catch (Throwable th)
+                    {
+                        failure[0] = th;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i].join();
+        }
+
+        assertNull("Concurrent get/unget failed: " + failure[0], failure[0]);
+        assertNull("No services should be in use", sr.getServicesInUse(b));
+        for (int i = 0; i < regs.length; i++)
+        {
+            assertNull(sr.getUsingBundles(regs[i].getReference()));
+            sr.unregisterService(b, regs[i]);
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+
+public class StartLevelThreadsTest extends TestCase
+{
+    public static final int DELAY = 500;
+    public static final int BUNDLES = 4;
+
+    public void testBundlesOfStartLevelStartConcurrently() throws Exception
+    {
+        File cacheDir = File.createTempFile("felix-cache", ".dir");
+        cacheDir.delete();
+        cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, cacheDir.getPath());
+        params.put(Constants.FRAMEWORK_BEGINNING_STARTLEVEL, "3");
+        params.put(FelixConstants.STARTLEVEL_THREADS_PROP, Integer.toString(BUNDLES));
+
+        Framework f = new Felix(params);
+        f.init();
+        try
+        {
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (int i = 0; i < BUNDLES; i++)
+            {
+                bundles.add(install(f, "level2.test" + i, SlowActivator.class, 2, cacheDir));
+            }
+            // The bundle of the next start level checks that all bundles
+            // of the previous start level are active when it is started.
+            Bundle checker = install(f, "level3.test", CheckingActivator.class, 3, cacheDir);
+
+            long t0 = System.currentTimeMillis();
+            f.start();
+            long t1 = System.currentTimeMillis();
+
+            for (Bundle b : bundles)
+            {
+                assertEquals(Bundle.ACTIVE, b.getState());
+            }
+            assertEquals(Bundle.ACTIVE, checker.getState());
+            assertTrue((t1 - t0) < BUNDLES * DELAY);
+        }
+        finally
+        {
+            f.stop();
+            f.waitForStop(10000);
+            deleteDir(cacheDir);
+        }
+    }
+
+    private static Bundle install(
+        Framework f, String symbolicName, Class activator, int startLevel, File tempDir)
+        throws Exception
+    {
+        String mf = "Bundle-SymbolicName: " + symbolicName + "\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n";
+        File bundleFile = createBundle(mf, activator, tempDir);
+        Bundle b = f.getBundleContext().installBundle(bundleFile.toURI().toString());
+        b.adapt(BundleStartLevel.class).setStartLevel(startLevel);
+        b.start();
+        return b;
+    }
+
+    private static File createBundle(String manifest, Class activator, File tempDir)
+        throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, activator.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = activator.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = activator.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+
+    public static class SlowActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            Thread.sleep(DELAY);
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+
+    public static class CheckingActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            for (Bundle b : context.getBundles())
+            {
+                if (b.getSymbolicName().startsWith("level2.")
+                    && (b.getState() != Bundle.ACTIVE))
+                {
+                    throw new IllegalStateException("Not active: " + b);
+                }
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+public class CompactedJarTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-cache", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        // Create an embedded JAR file.
+        ByteArrayOutputStream embedded = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(embedded);
+        zos.putNextEntry(new ZipEntry("embedded.txt"));
+        zos.write("embedded".getBytes());
+        zos.close();
+
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue("Bundle-ClassPath", ".,lib/embedded.jar");
+        m_jar = new File(m_dir, "test.jar");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(m_jar), mf);
+        jos.putNextEntry(new ZipEntry("org/test/Test.class"));
+        jos.write("class bytes".getBytes());
+        jos.putNextEntry(new ZipEntry("lib/embedded.jar"));
+        jos.write(embedded.toByteArray());
+        jos.close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_dir);
+    }
+
+    public void testCompactedLayout() throws Exception
+    {
+        Map config = new HashMap();
+        config.put(BundleCache.CACHE_COMPACT_PROP, "true");
+        WeakZipFileFactory factory = new WeakZipFileFactory(0);
+        File revisionDir = new File(m_dir, "version0.0");
+
+        JarRevision revision = new JarRevision(new Logger(), config, factory,
+            revisionDir, m_jar.toURI().toString(), true, null);
+        assertTrue(new File(revisionDir, CompactedJar.FLAT_FILE).exists());
+        assertTrue(new File(revisionDir, CompactedJar.INDEX_FILE).exists());
+        assertTrue(new File(revisionDir, "test.jar-embedded/lib/embedded.jar").exists());
+        checkContent(revision.getContent());
+        revision.close();
+
+        // Reloading the revision uses the existing layout.
+        CompactedJar compacted = CompactedJar.open(new Logger(), revisionDir, m_jar);
+        assertFalse(compacted.isCreated());
+        revision = new JarRevision(new Logger(), config, factory,
+            revisionDir, m_jar.toURI().toString(), true, null);
+        checkContent(revision.getContent());
+        revision.close();
+
+        // A changed bundle JAR file invalidates the layout.
+        FileOutputStream fos = new FileOutputStream(m_jar, true);
+        fos.write(0);
+        fos.close();
+        compacted = CompactedJar.open(new Logger(), revisionDir, m_jar);
+        assertTrue(compacted.isCreated());
+    }
+
+    private static void checkContent(Content content) throws Exception
+    {
+        try
+        {
+            assertTrue(content instanceof MappedJarContent);
+            assertEquals("class bytes",
+                new String(content.getEntryAsBytes("org/test/Test.class")));
+            assertNull(content.getEntryAsBytes("org/test/Missing.class"));
+            Content embedded = content.getEntryAsContent("lib/embedded.jar");
+            assertEquals("embedded", new String(embedded.getEntryAsBytes("embedded.txt")));
+            embedded.close();
+        }
+        finally
+        {
+            content.close();
+        }
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
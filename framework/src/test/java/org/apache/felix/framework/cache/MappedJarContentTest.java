@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.WeakZipFileFactory;
+
+public class MappedJarContentTest extends TestCase
+{
+    private File m_dir;
+    private File m_jar;
+    private byte[] m_bytes;
+
+    protected void setUp() throws Exception
+    {
+        m_dir = File.createTempFile("felix-cache", ".dir");
+        m_dir.delete();
+        m_dir.mkdirs();
+
+        m_bytes = new byte[16384];
+        for (int i = 0; i < m_bytes.length; i++)
+        {
+            m_bytes[i] = (byte) ((i % 65) + 65);
+        }
+
+        m_jar = new File(m_dir, "bundle.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_jar));
+        zos.putNextEntry(new ZipEntry("org/"));
+        zos.putNextEntry(new ZipEntry("org/test/"));
+        zos.putNextEntry(new ZipEntry("org/test/Deflated.class"));
+        zos.write(m_bytes);
+        ZipEntry ze = new ZipEntry("org/test/Stored.class");
+        ze.setMethod(ZipEntry.STORED);
+        ze.setSize(m_bytes.length);
+        CRC32 crc = new CRC32();
+        crc.update(m_bytes);
+        ze.setCrc(crc.getValue());
+        zos.putNextEntry(ze);
+        zos.write(m_bytes);
+        zos.putNextEntry(new ZipEntry("org/test/empty.txt"));
+        zos.setComment("comment");
+        zos.close();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        m_jar.delete();
+        m_dir.delete();
+    }
+
+    public void testEntriesMatchJarContent() throws Exception
+    {
+        WeakZipFileFactory factory = new WeakZipFileFactory(0);
+        JarContent expected = new JarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null);
+        MappedJarContent mapped = new MappedJarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null);
+        try
+        {
+            String[] names = {
+                "org/", "org", "org/test", "org/test/Deflated.class",
+                "org/test/Stored.class", "org/test/empty.txt", "org/test/Missing.class",
+                "org/test/Stored", "" };
+            for (String name : names)
+            {
+                assertEquals(name, expected.hasEntry(name), mapped.hasEntry(name));
+                assertEquals(name, toString(expected.getEntryAsBytes(name)),
+                    toString(mapped.getEntryAsBytes(name)));
+                assertEquals(name, toString(read(expected.getEntryAsStream(name))),
+                    toString(read(mapped.getEntryAsStream(name))));
+            }
+        }
+        finally
+        {
+            expected.close();
+            mapped.close();
+        }
+    }
+
+    public void testStoredEntryIsMapped() throws Exception
+    {
+        // Use a file limit of one, so the JAR file gets closed weakly
+        // whenever another JAR file is opened.
+        WeakZipFileFactory factory = new WeakZipFileFactory(1);
+        MappedJarContent mapped = new MappedJarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null);
+        JarContent other = new JarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null);
+        try
+        {
+            assertTrue(other.hasEntry("org/test/Stored.class"));
+
+            ByteBuffer buffer = mapped.getEntryAsByteBuffer("org/test/Stored.class");
+            assertTrue(buffer.isReadOnly());
+            assertEquals(m_bytes.length, buffer.remaining());
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            assertEquals(toString(m_bytes), toString(bytes));
+
+            buffer = mapped.getEntryAsByteBuffer("org/test/Deflated.class");
+            assertEquals(m_bytes.length, buffer.remaining());
+            assertNull(mapped.getEntryAsByteBuffer("org/test/Missing.class"));
+        }
+        finally
+        {
+            other.close();
+            mapped.close();
+        }
+    }
+
+    public void testMappingReleasedWhenUnused() throws Exception
+    {
+        WeakZipFileFactory factory = new WeakZipFileFactory(0);
+        MappedJarContent.EntryIndex index = MappedJarContent.EntryIndex.create(m_jar);
+        MappedJarContent mapped = new MappedJarContent(
+            new Logger(), new HashMap(), factory, this, m_dir, m_jar, null, index);
+        index.release();
+
+        ByteBuffer buffer = mapped.getEntryAsByteBuffer("org/test/Stored.class");
+        InputStream is = mapped.getEntryAsStream("org/test/Stored.class");
+        mapped.close();
+
+        // The buffer and the stream keep the file mapped.
+        assertFalse(index.isReleased());
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals(toString(m_bytes), toString(bytes));
+        mapped.release(buffer);
+        assertFalse(index.isReleased());
+        assertEquals(toString(m_bytes), toString(read(is)));
+        assertTrue(index.isReleased());
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        if (is == null)
+        {
+            return null;
+        }
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+    private static String toString(byte[] bytes)
+    {
+        return (bytes == null) ? null : new String(bytes);
+    }
+}
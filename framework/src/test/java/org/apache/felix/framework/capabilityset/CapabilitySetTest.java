@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class CapabilitySetTest extends TestCase
+{
+    public void testAdaptiveIndexMatchesLikeScan()
+    {
+        List<String> indices = new ArrayList<String>();
+        indices.add("pkg");
+        CapabilitySet capSet = new CapabilitySet(indices, true);
+        for (int i = 0; i < 100; i++)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put("pkg", "p" + (i % 10));
+            attrs.put("pid", "pid" + i);
+            attrs.put("version", new Version(i % 5, 0, 0));
+            capSet.addCapability(
+                new BundleCapabilityImpl(null, "ns", Collections.EMPTY_MAP, attrs));
+        }
+
+        // Query often enough to cause indices to be built, checking that
+        // the results are the same before and after.
+        for (int i = 0; i < CapabilitySet.ADAPTIVE_INDEX_THRESHOLD + 1; i++)
+        {
+            Set<BundleCapability> matches =
+                capSet.match(SimpleFilter.parse("(&(pkg=p3)(pid=pid13))"), false);
+            assertEquals(1, matches.size());
+            assertEquals("pid13", matches.iterator().next().getAttributes().get("pid"));
+
+            matches = capSet.match(SimpleFilter.parse("(&(pkg=p3)(version>=2.0.0))"), false);
+            assertEquals(10, matches.size());
+
+            matches = capSet.match(SimpleFilter.parse("(&(pkg=p1)(version>=2.0.0))"), false);
+            assertEquals(0, matches.size());
+
+            matches = capSet.match(SimpleFilter.parse("(&(version>=1.0.0)(version<=2.0.0))"), false);
+            assertEquals(40, matches.size());
+
+            matches = capSet.match(SimpleFilter.parse("(version=9.0.0)"), false);
+            assertEquals(0, matches.size());
+        }
+        // Matching must not modify the set, the indices are only built
+        // when it is modified, which usually happens in a copy.
+        assertTrue(capSet.getAdaptiveIndices().isEmpty());
+        assertTrue(capSet.getIndexHits() > 0);
+        assertTrue(capSet.getIndexMisses() > 0);
+
+        // Indices must be maintained when capabilities are added or removed,
+        // also in copies of the capability set.
+        CapabilitySet copy = new CapabilitySet(capSet);
+        BundleCapability cap =
+            copy.match(SimpleFilter.parse("(pid=pid13)"), false).iterator().next();
+        assertTrue(copy.removeCapability(cap));
+        assertTrue(copy.getAdaptiveIndices().contains("pid"));
+        assertTrue(copy.getAdaptiveIndices().contains("version"));
+        assertTrue(capSet.getAdaptiveIndices().isEmpty());
+        assertEquals(0, copy.match(SimpleFilter.parse("(pid=pid13)"), false).size());
+        assertEquals(1, capSet.match(SimpleFilter.parse("(pid=pid13)"), false).size());
+
+        // Copies of the copy keep the indices.
+        CapabilitySet copy2 = new CapabilitySet(copy);
+        assertTrue(copy2.getAdaptiveIndices().contains("pid"));
+        assertEquals(40, copy2.match(
+            SimpleFilter.parse("(&(version>=1.0.0)(version<=2.0.0))"), false).size());
+
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put("pid", "pid13");
+        attrs.put("version", "not a version");
+        copy.addCapability(new BundleCapabilityImpl(null, "ns", Collections.EMPTY_MAP, attrs));
+        assertEquals(1, copy.match(SimpleFilter.parse("(pid=pid13)"), false).size());
+        assertFalse("Mixed value types cannot be indexed",
+            copy.getAdaptiveIndices().contains("version"));
+        assertEquals(40, copy.match(
+            SimpleFilter.parse("(&(version>=1.0.0)(version<=2.0.0))"), false).size());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+
+public class CompiledFilterTest extends TestCase
+{
+    public void testMatchesLikeCapabilitySet()
+    {
+        String[] filters = {
+            "(objectClass=foo.Bar)",
+            "(&(objectClass=foo.Bar)(ranking>=5))",
+            "(|(ranking<=-1)(id=42))",
+            "(!(ranking=10))",
+            "(name=hel*o)",
+            "(name~=HE LLO)",
+            "(version>=1.2)",
+            "(&(version<=2.0)(!(version=1.0)))",
+            "(flag=true)",
+            "(ranking=notanumber)",
+            "(ranking=*)",
+            "(longs=3)",
+            "(missing=value)"
+        };
+
+        List<BundleCapability> caps = new ArrayList<BundleCapability>();
+        for (int i = 0; i < 20; i++)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put("objectClass", (i % 2 == 0)
+                ? new String[] { "foo.Bar", "foo.Baz" } : new String[] { "foo.Baz" });
+            attrs.put("ranking", new Integer(i - 5));
+            attrs.put("id", new Long(i * 7));
+            attrs.put("name", (i % 3 == 0) ? "hello" : "he llo");
+            attrs.put("version", new Version(i % 3, i % 2, 0));
+            attrs.put("flag", Boolean.valueOf(i % 2 == 0));
+            attrs.put("longs", new long[] { i, i + 1 });
+            attrs.put("list", Arrays.asList(new Object[] { "a", new Integer(i) }));
+            caps.add(new BundleCapabilityImpl(null, "ns", Collections.EMPTY_MAP, attrs));
+        }
+
+        for (String filter : filters)
+        {
+            SimpleFilter sf = SimpleFilter.parse(filter);
+            CompiledFilter cf = CompiledFilter.compile(sf);
+            // Match twice to exercise the cached operands.
+            for (int pass = 0; pass < 2; pass++)
+            {
+                for (BundleCapability cap : caps)
+                {
+                    assertEquals("Mismatch for " + filter + " on " + cap.getAttributes(),
+                        CapabilitySet.matches(cap, sf), cf.matches(cap));
+                }
+            }
+        }
+    }
+
+    public void testParseIsInterned()
+    {
+        String filter = "(&(objectClass=foo.Bar)(id=1))";
+        CompiledFilter cf = CompiledFilter.parse(new String(filter));
+        assertSame(cf, CompiledFilter.parse(new String(filter)));
+        assertEquals(SimpleFilter.parse(filter).toString(), cf.toString());
+
+        // The filter must stay interned while it is in use, even if the
+        // string it was parsed from is not referenced anymore.
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+        }
+        assertSame(cf, CompiledFilter.parse(new String(filter)));
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.resolver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.Felix;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class ResolverImplTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map m_params;
+
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        m_params = new HashMap();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_params.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+            Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testParallelAndSequentialWiringsAreEqual() throws Exception
+    {
+        Map<String, List<String>> sequential = resolveConflicts(1);
+        Map<String, List<String>> parallel = resolveConflicts(4);
+        assertEquals(sequential, parallel);
+
+        // Each conflict is resolved by backtracking on the imports of the
+        // root and the user bundle to the exporter both accept.
+        for (int i = 0; i < 4; i++)
+        {
+            assertEquals(Arrays.asList("exporter2"), sequential.get("user" + i));
+            assertEquals(Arrays.asList("exporter2", "user" + i), sequential.get("root" + i));
+        }
+    }
+
+    public void testTimeout() throws Exception
+    {
+        // Checking the first permutation of a package space this large
+        // takes longer than the timeout.
+        StringBuffer exports1 = new StringBuffer();
+        StringBuffer exports2 = new StringBuffer();
+        StringBuffer imports = new StringBuffer();
+        StringBuffer uses = new StringBuffer();
+        for (int i = 0; i < 1000; i++)
+        {
+            String sep = (i == 0) ? "" : ",";
+            exports1.append(sep).append("p").append(i).append("; version=1");
+            exports2.append(sep).append("p").append(i).append("; version=2");
+            imports.append(sep).append("p").append(i).append("; version=\"[1,3)\"");
+            uses.append(sep).append("p").append(i);
+        }
+
+        m_params.put(FelixConstants.RESOLVER_TIMEOUT_PROP, "1");
+        Felix f = new Felix(m_params);
+        f.start();
+        try
+        {
+            install(f,
+                Constants.BUNDLE_SYMBOLICNAME, "exporter1",
+                Constants.EXPORT_PACKAGE, exports1.toString());
+            install(f,
+                Constants.BUNDLE_SYMBOLICNAME, "exporter2",
+                Constants.EXPORT_PACKAGE, exports2.toString());
+            install(f,
+                Constants.BUNDLE_SYMBOLICNAME, "user",
+                Constants.IMPORT_PACKAGE, imports.toString(),
+                Constants.EXPORT_PACKAGE, "q; uses:=\"" + uses + "\"");
+            Bundle root = install(f,
+                Constants.BUNDLE_SYMBOLICNAME, "root",
+                Constants.IMPORT_PACKAGE, "p0; version=\"[1,2)\", q");
+            try
+            {
+                root.start();
+                fail("Resolve should time out.");
+            }
+            catch (BundleException ex)
+            {
+                assertTrue(ex.getMessage(),
+                    ex.getMessage().startsWith("Unable to resolve within 1 ms"));
+            }
+        }
+        finally
+        {
+            stop(f);
+        }
+    }
+
+    /**
+     * Resolves several pairs of bundles at once, where the root bundle of each
+     * pair prefers a different exporter than the user bundle it imports from,
+     * so that many candidate permutations are pending at the same time.
+     * @return the providers of the wires of each bundle.
+    **/
+    private Map<String, List<String>> resolveConflicts(int parallelism)
+        throws Exception
+    {
+        m_params.put(FelixConstants.RESOLVER_PARALLELISM_PROP, Integer.toString(parallelism));
+        Felix f = new Felix(m_params);
+        f.init();
+        try
+        {
+            List<Bundle> bundles = new ArrayList<Bundle>();
+            for (int v = 1; v <= 3; v++)
+            {
+                bundles.add(install(f,
+                    Constants.BUNDLE_SYMBOLICNAME, "exporter" + v,
+                    Constants.EXPORT_PACKAGE, "p; version=" + v));
+            }
+            for (int i = 0; i < 4; i++)
+            {
+                bundles.add(install(f,
+                    Constants.BUNDLE_SYMBOLICNAME, "user" + i,
+                    Constants.IMPORT_PACKAGE, "p; version=\"[1,3)\"",
+                    Constants.EXPORT_PACKAGE, "q" + i + "; uses:=p"));
+                bundles.add(install(f,
+                    Constants.BUNDLE_SYMBOLICNAME, "root" + i,
+                    Constants.IMPORT_PACKAGE, "p; version=\"[2,4)\", q" + i));
+            }
+            assertTrue(f.adapt(FrameworkWiring.class).resolveBundles(null));
+
+            Map<String, List<String>> wirings = new TreeMap<String, List<String>>();
+            for (Bundle b : bundles)
+            {
+                List<String> providers = new ArrayList<String>();
+                for (BundleWire wire : b.adapt(BundleWiring.class).getRequiredWires(null))
+                {
+                    providers.add(wire.getProviderWiring().getBundle().getSymbolicName());
+                }
+                wirings.put(b.getSymbolicName(), providers);
+            }
+            return wirings;
+        }
+        finally
+        {
+            stop(f);
+        }
+    }
+
+    private Bundle install(Felix f, String... headers) throws Exception
+    {
+        File file = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        for (int i = 0; i < headers.length; i += 2)
+        {
+            mf.getMainAttributes().putValue(headers[i], headers[i + 1]);
+        }
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(file), mf);
+        os.close();
+        return f.getBundleContext().installBundle(file.toURI().toString());
+    }
+
+    private static void stop(Felix f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(10000);
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        assertTrue(root.delete());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import junit.framework.TestCase;
+
+public class BoundedCacheTest extends TestCase
+{
+    public void testSizeIsBounded()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(8);
+        for (int i = 0; i < 100; i++)
+        {
+            cache.put(Integer.valueOf(i), "v" + i);
+            assertTrue(cache.size() <= 8);
+        }
+        // The most recent entries are kept.
+        assertEquals("v99", cache.get(Integer.valueOf(99)));
+        assertNull(cache.get(Integer.valueOf(0)));
+    }
+
+    public void testRecentlyUsedEntriesAreKept()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(8);
+        cache.put(Integer.valueOf(-1), "hot");
+        for (int i = 0; i < 100; i++)
+        {
+            cache.put(Integer.valueOf(i), "v" + i);
+            assertEquals("hot", cache.get(Integer.valueOf(-1)));
+        }
+    }
+
+    public void testRemoveAndClear()
+    {
+        BoundedCache<Integer, String> cache = new BoundedCache<Integer, String>(8);
+        for (int i = 0; i < 6; i++)
+        {
+            cache.put(Integer.valueOf(i), "v" + i);
+        }
+        cache.remove(Integer.valueOf(1));
+        assertFalse(cache.containsKey(Integer.valueOf(1)));
+        assertTrue(cache.containsKey(Integer.valueOf(2)));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(cache.containsKey(Integer.valueOf(5)));
+    }
+}
@@ -26,14 +26,20 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.easymock.EasyMock;
+import org.osgi.framework.AllServiceListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
@@ -151,6 +157,199 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testFireServiceEventUsesListenerIndex() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+        final Bundle b3 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry);
+
+        final List fired = Collections.synchronizedList(new ArrayList());
+        AllServiceListener sl1 = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent arg0)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), ServiceListener.class, sl1,
+            new FilterImpl("(objectClass=java.lang.String)"));
+        AllServiceListener sl2 = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent arg0)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b2.getBundleContext(), ServiceListener.class, sl2,
+            new FilterImpl("(&(objectClass=java.lang.Integer)(foo=bar))"));
+        AllServiceListener sl3 = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent arg0)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b3.getBundleContext(), ServiceListener.class, sl3,
+            new FilterImpl("(foo=*)"));
+        AllServiceListener sl4 = new AllServiceListener()
+        {
+            public void serviceChanged(ServiceEvent arg0)
+            {
+                fired.add(this);
+            }
+        };
+        ed.addListener(b3.getBundleContext(), ServiceListener.class, sl4,
+            new FilterImpl("(|(objectClass=java.lang.String)(objectClass=java.lang.Long))"));
+
+        ServiceReference sr = EasyMock.createNiceMock(ServiceReference.class);
+        EasyMock.expect(sr.getProperty(Constants.OBJECTCLASS)).andReturn(new String[]
+            {
+                "java.lang.String", "java.lang.Long"
+            }).anyTimes();
+        EasyMock.expect(sr.getPropertyKeys()).andReturn(new String[]
+            {
+                Constants.OBJECTCLASS
+            }).anyTimes();
+        EasyMock.replay(new Object[]
+            {
+                sr
+            });
+
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(2, fired.size());
+        assertTrue(fired.contains(sl1));
+        assertTrue(fired.contains(sl4));
+        assertEquals(3, ed.getServiceListenerEvaluations());
+        assertEquals(1, ed.getServiceListenerEvaluationsSkipped());
+
+        // Removed listeners must no longer be considered.
+        ed.removeListener(b1.getBundleContext(), ServiceListener.class, sl1);
+        ed.removeListeners(b3.getBundleContext());
+        fired.clear();
+        ed.fireServiceEvent(new ServiceEvent(ServiceEvent.REGISTERED, sr), null, null);
+        assertEquals(0, fired.size());
+        assertEquals(3, ed.getServiceListenerEvaluations());
+        assertEquals(2, ed.getServiceListenerEvaluationsSkipped());
+    }
+
+    public void testPooledDeliveryKeepsListenerOrder() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        final Bundle b2 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 2, true);
+        ed.startDispatching();
+
+        final List received1 = Collections.synchronizedList(new ArrayList());
+        BundleListener bl1 = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received1.add(event);
+            }
+        };
+        final List received2 = Collections.synchronizedList(new ArrayList());
+        BundleListener bl2 = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received2.add(event);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), BundleListener.class, bl1, null);
+        ed.addListener(b2.getBundleContext(), BundleListener.class, bl2, null);
+
+        List fired = new ArrayList();
+        for (int i = 0; i < 100; i++)
+        {
+            BundleEvent event = new BundleEvent(BundleEvent.INSTALLED, b1);
+            fired.add(event);
+            ed.fireBundleEvent(event, null);
+        }
+
+        // Stopping delivers all pending events.
+        ed.stopDispatching();
+        assertEquals(fired, received1);
+        assertEquals(fired, received2);
+        assertEquals(0, ed.getAsyncQueueDepth());
+        assertEquals(100, ((EventDispatcher.ListenerStatistics)
+            ed.getListenerStatistics().get(bl1)).getDeliveries());
+
+        // Events are ignored once dispatching is stopped.
+        ed.fireBundleEvent(new BundleEvent(BundleEvent.INSTALLED, b1), null);
+        assertEquals(100, received1.size());
+    }
+
+    public void testListenerStatisticsOfRemovedListeners() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 1, true);
+        ed.startDispatching();
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        BundleListener bl = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                entered.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ed.addListener(b1.getBundleContext(), BundleListener.class, bl, null);
+        assertTrue(ed.getListenerStatistics().containsKey(bl));
+
+        // Remove the listener while an event is being delivered to it.
+        ed.fireBundleEvent(new BundleEvent(BundleEvent.INSTALLED, b1), null);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        ed.removeListener(b1.getBundleContext(), BundleListener.class, bl);
+        release.countDown();
+        ed.stopDispatching();
+
+        assertFalse(ed.getListenerStatistics().containsKey(bl));
+    }
+
+    public void testListenerStatisticsDisabledByDefault() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+
+        Logger logger = new Logger();
+        ServiceRegistry registry = new ServiceRegistry(logger, null);
+        EventDispatcher ed = new EventDispatcher(logger, registry, 1);
+        ed.startDispatching();
+
+        final List received = Collections.synchronizedList(new ArrayList());
+        BundleListener bl = new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                received.add(event);
+            }
+        };
+        ed.addListener(b1.getBundleContext(), BundleListener.class, bl, null);
+        ed.fireBundleEvent(new BundleEvent(BundleEvent.INSTALLED, b1), null);
+        ed.stopDispatching();
+
+        assertEquals(1, received.size());
+        assertTrue(ed.getListenerStatistics().isEmpty());
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class HashTrieMapTest extends TestCase
+{
+    public void testBehavesLikeHashMap()
+    {
+        Random random = new Random(42);
+        Map<Object, Integer> expected = new HashMap<Object, Integer>();
+        HashTrieMap<Object, Integer> map = HashTrieMap.empty();
+        for (int i = 0; i < 20000; i++)
+        {
+            Object key = new Key(random.nextInt(2000));
+            if (random.nextInt(3) == 0)
+            {
+                expected.remove(key);
+                map = map.minus(key);
+            }
+            else
+            {
+                expected.put(key, i);
+                map = map.plus(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        for (Object key : expected.keySet())
+        {
+            assertTrue(map.containsKey(key));
+        }
+    }
+
+    public void testModificationsDoNotAffectOriginal()
+    {
+        HashTrieMap<Object, Integer> map = HashTrieMap.empty();
+        for (int i = 0; i < 100; i++)
+        {
+            map = map.plus(new Key(i), i);
+        }
+        HashTrieMap<Object, Integer> copy = map.plus(new Key(100), 100);
+        copy = copy.minus(new Key(5)).plus(new Key(6), 60);
+
+        assertEquals(100, map.size());
+        assertEquals(Integer.valueOf(5), map.get(new Key(5)));
+        assertEquals(Integer.valueOf(6), map.get(new Key(6)));
+        assertFalse(map.containsKey(new Key(100)));
+        assertEquals(100, copy.size());
+        assertNull(copy.get(new Key(5)));
+        assertEquals(Integer.valueOf(60), copy.get(new Key(6)));
+
+        assertSame(map, map.plus(new Key(1), map.get(new Key(1))));
+        assertSame(map, map.minus(new Key(1000)));
+        assertTrue(map.minus(new Key(0)).minus(new Key(0)).size() == 99);
+    }
+
+    // Key whose hash codes use all bits, but partly collide.
+    private static class Key
+    {
+        private final int m_id;
+
+        Key(int id)
+        {
+            m_id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return (obj instanceof Key) && (((Key) obj).m_id == m_id);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (m_id % 3 == 0) ? m_id / 3 : m_id * 0x9E3779B9;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import junit.framework.TestCase;
+
+public class HistogramTest extends TestCase
+{
+    public void testPercentiles()
+    {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int i = 0; i < 99; i++)
+        {
+            h.record(1000);
+        }
+        h.record(1000000);
+
+        assertEquals(100, h.getCount());
+        assertEquals(1000000, h.getMax());
+        assertEquals((99 * 1000 + 1000000) / 100, h.getMean());
+        // Percentiles are upper bounds within a factor of two.
+        assertEquals(1024, h.getPercentile(50));
+        assertEquals(1024, h.getPercentile(99));
+        assertEquals(1000000, h.getPercentile(100));
+
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(99));
+    }
+}
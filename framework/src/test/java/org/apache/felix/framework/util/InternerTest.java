@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+
+public class InternerTest extends TestCase
+{
+    public void testSharesEqualValues()
+    {
+        Interner interner = new Interner();
+        String s1 = new String("org.slf4j");
+        String s2 = new String("org.slf4j");
+        assertSame(interner.intern(s1), interner.intern(s2));
+
+        Version v1 = new Version(1, 6, 0);
+        Version v2 = new Version(1, 6, 0);
+        assertSame(interner.internValue(v1), interner.internValue(v2));
+
+        List<String> l1 = new ArrayList<String>(Arrays.asList("a", new String("b")));
+        List<String> l2 = new ArrayList<String>(Arrays.asList("a", new String("b")));
+        List<String> interned = interner.internList(l1);
+        assertSame(interned, interner.internList(l2));
+        assertSame(interner.intern("b"), interned.get(1));
+        try
+        {
+            interned.add("c");
+            fail("Interned lists must be immutable.");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // Expected.
+        }
+    }
+
+    public void testMapOrderIsRetained()
+    {
+        Interner interner = new Interner();
+        Map<String, Object> m1 = new LinkedHashMap<String, Object>();
+        m1.put("x", "1");
+        m1.put("y", "2");
+        Map<String, Object> m2 = new LinkedHashMap<String, Object>();
+        m2.put("y", "2");
+        m2.put("x", "1");
+
+        Map<String, Object> i1 = interner.internMap(m1);
+        Map<String, Object> i2 = interner.internMap(m2);
+        assertEquals(i1, i2);
+        assertEquals("y", i2.keySet().iterator().next());
+        assertSame(i1, interner.internMap(new LinkedHashMap<String, Object>(m1)));
+    }
+
+    public void testCapabilitiesShareMetadata()
+    {
+        long saved = Interner.getDefault().getStatistics().getSavedBytes();
+
+        BundleCapabilityImpl c1 = createExport();
+        BundleCapabilityImpl c2 = createExport();
+        assertSame(c1.getAttributes(), c2.getAttributes());
+        assertSame(c1.getDirectives(), c2.getDirectives());
+        assertSame(c1.getUses(), c2.getUses());
+
+        assertTrue(Interner.getDefault().getStatistics().getSavedBytes() > saved);
+    }
+
+    public void testStatisticsArePerInterner()
+    {
+        Interner i1 = new Interner();
+        Interner i2 = new Interner();
+        String s1 = new String("org.osgi.framework");
+        String s2 = new String("org.osgi.framework");
+
+        // The pool is shared, but only the interner that reused the
+        // value counts it.
+        assertSame(s1, i1.intern(s1));
+        assertSame(s1, i2.intern(s2));
+        assertEquals(1, i1.getStatistics().getLookups());
+        assertEquals(0, i1.getStatistics().getHits());
+        assertEquals(0, i1.getStatistics().getSavedBytes());
+        assertEquals(1, i2.getStatistics().getLookups());
+        assertEquals(1, i2.getStatistics().getHits());
+        assertTrue(i2.getStatistics().getSavedBytes() > 0);
+    }
+
+    private static BundleCapabilityImpl createExport()
+    {
+        Map<String, String> dirs = new HashMap<String, String>();
+        dirs.put(Constants.USES_DIRECTIVE, new String("org.slf4j.spi,org.slf4j.helpers"));
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(BundleRevision.PACKAGE_NAMESPACE, new String("org.slf4j"));
+        attrs.put(Constants.VERSION_ATTRIBUTE, new Version(1, 7, 5));
+        return new BundleCapabilityImpl(null, BundleRevision.PACKAGE_NAMESPACE, dirs, attrs);
+    }
+}
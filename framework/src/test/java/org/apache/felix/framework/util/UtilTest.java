@@ -109,4 +109,11 @@ public class UtilTest extends TestCase
         v = Util.substVars(props.getProperty("one"), "one", null, props);
         assertEquals("2 middle text 3", v);
     }
+
+    public void testToHexString()
+    {
+        assertEquals("", Util.toHexString(new byte[0]));
+        assertEquals("00017f80ff",
+            Util.toHexString(new byte[] { 0, 1, 127, -128, -1 }));
+    }
 }
\ No newline at end of file
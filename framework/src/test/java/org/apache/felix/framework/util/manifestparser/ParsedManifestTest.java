@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+
+public class ParsedManifestTest extends TestCase
+{
+    public void testWriteAndRead() throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "foo.bar;singleton:=true");
+        headers.put(Constants.BUNDLE_VERSION, "1.2.3.qualifier");
+        headers.put(Constants.BUNDLE_ACTIVATIONPOLICY, "lazy;include:=\"foo.bar\"");
+        headers.put(Constants.EXPORT_PACKAGE,
+            "foo.bar;version=1.2;uses:=\"org.osgi.framework\";x=y;mandatory:=x");
+        headers.put(Constants.IMPORT_PACKAGE,
+            "org.osgi.framework;version=\"[1.4,2)\",javax.foo;resolution:=optional");
+        headers.put(Constants.DYNAMICIMPORT_PACKAGE, "org.dyn.*");
+        headers.put(Constants.REQUIRE_BUNDLE, "other;bundle-version=\"(1.0,2.0]\"");
+        headers.put(Constants.PROVIDE_CAPABILITY,
+            "foo;foo=bar;count:Long=3;ratio:Double=0.5;versions:List<Version>=\"1.0,2.0\"");
+        headers.put(Constants.REQUIRE_CAPABILITY,
+            "foo;filter:=\"(&(foo=b*r)(!(count<=2))(|(ratio>=0.1)(versions=*)))\"");
+        headers.put(Constants.BUNDLE_NATIVECODE,
+            "lib/foo.so;osname=Linux;processor=x86_64,lib/foo.dll;osname=Win32,*");
+        ManifestParser mp = new ManifestParser(null, null, null, headers);
+
+        byte[] data = ParsedManifest.write(mp);
+        assertNotNull(data);
+        ManifestParser read = ParsedManifest.read(null, null, null, headers, data);
+
+        assertEquals(mp.getManifestVersion(), read.getManifestVersion());
+        assertEquals(mp.getActivationPolicy(), read.getActivationPolicy());
+        assertEquals(mp.getActivationIncludeDirective(), read.getActivationIncludeDirective());
+        assertEquals(mp.getActivationExcludeDirective(), read.getActivationExcludeDirective());
+        assertEquals(mp.isExtension(), read.isExtension());
+        assertEquals(mp.getSymbolicName(), read.getSymbolicName());
+        assertEquals(mp.getBundleVersion(), read.getBundleVersion());
+        assertEquals(mp.isLibraryHeadersOptional(), read.isLibraryHeadersOptional());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        assertEquals(caps.size(), read.getCapabilities().size());
+        for (int i = 0; i < caps.size(); i++)
+        {
+            BundleCapability cap = caps.get(i);
+            BundleCapability readCap = read.getCapabilities().get(i);
+            assertEquals(cap.getNamespace(), readCap.getNamespace());
+            assertEquals(cap.getDirectives(), readCap.getDirectives());
+            assertEquals(cap.getAttributes(), readCap.getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        assertEquals(reqs.size(), read.getRequirements().size());
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            BundleRequirement req = reqs.get(i);
+            BundleRequirement readReq = read.getRequirements().get(i);
+            assertEquals(req.getNamespace(), readReq.getNamespace());
+            assertEquals(req.getDirectives(), readReq.getDirectives());
+            assertEquals(req.getAttributes(), readReq.getAttributes());
+            assertEquals(((BundleRequirementImpl) req).getFilter().toString(),
+                ((BundleRequirementImpl) readReq).getFilter().toString());
+        }
+
+        List<R4LibraryClause> clauses = mp.getLibraryClauses();
+        assertEquals(2, clauses.size());
+        assertEquals(clauses.size(), read.getLibraryClauses().size());
+        for (int i = 0; i < clauses.size(); i++)
+        {
+            R4LibraryClause clause = clauses.get(i);
+            R4LibraryClause readClause = read.getLibraryClauses().get(i);
+            assertTrue(Arrays.equals(clause.getLibraryEntries(), readClause.getLibraryEntries()));
+            assertTrue(Arrays.equals(clause.getOSNames(), readClause.getOSNames()));
+            assertTrue(Arrays.equals(clause.getProcessors(), readClause.getProcessors()));
+            assertTrue(Arrays.equals(clause.getOSVersions(), readClause.getOSVersions()));
+            assertTrue(Arrays.equals(clause.getLanguages(), readClause.getLanguages()));
+            assertEquals(clause.getSelectionFilter(), readClause.getSelectionFilter());
+        }
+    }
+
+    public void testUnknownVersion() throws Exception
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "foo.bar");
+        byte[] data = ParsedManifest.write(new ManifestParser(null, null, null, headers));
+        data[3]++;
+        assertNull(ParsedManifest.read(null, null, null, headers, data));
+    }
+}